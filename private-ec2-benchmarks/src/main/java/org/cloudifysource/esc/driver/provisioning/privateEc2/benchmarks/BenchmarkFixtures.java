@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixtures shared by the benchmarks.
+ * 
+ */
+final class BenchmarkFixtures {
+
+	/** System property of the directory of the bundled CFN templates. */
+	static final String TEMPLATES_DIRECTORY_PROPERTY = "privateEc2.cfnTemplates";
+
+	private static final String DEFAULT_TEMPLATES_DIRECTORY = "../private-ec2/src/test/resources/cfn_templates";
+
+	/** Kept so that the logger configuration isn't garbage collected. */
+	private static final Logger DRIVER_LOGGER =
+			Logger.getLogger("org.cloudifysource.esc.driver.provisioning.privateEc2");
+
+	private BenchmarkFixtures() {
+	}
+
+	/**
+	 * Only logs the severe messages of the driver, so that the warnings of the parser don't end up being measured.
+	 */
+	static void quietDriverLogging() {
+		DRIVER_LOGGER.setLevel(Level.SEVERE);
+	}
+
+	/**
+	 * @param fileName
+	 *            The name of a bundled CFN template.
+	 * @return The template file.
+	 * @throws IOException
+	 *             If the template doesn't exist.
+	 */
+	static File templateFile(final String fileName) throws IOException {
+		final File directory =
+				new File(System.getProperty(TEMPLATES_DIRECTORY_PROPERTY, DEFAULT_TEMPLATES_DIRECTORY));
+		final File file = new File(directory, fileName);
+		if (!file.isFile()) {
+			throw new IOException("CFN template not found: " + file.getAbsolutePath() + ". Set -D"
+					+ TEMPLATES_DIRECTORY_PROPERTY + " to the cfn_templates directory of the private-ec2 module.");
+		}
+		return file;
+	}
+
+	/**
+	 * Creates an empty temporary directory.
+	 * 
+	 * @param prefix
+	 *            The prefix of the directory name.
+	 * @return The directory.
+	 * @throws IOException
+	 *             If the directory couldn't be created.
+	 */
+	static File createTempDirectory(final String prefix) throws IOException {
+		final File directory = File.createTempFile(prefix, "");
+		if (!directory.delete() || !directory.mkdirs()) {
+			throw new IOException("Couldn't create temporary directory: " + directory.getAbsolutePath());
+		}
+		return directory;
+	}
+}
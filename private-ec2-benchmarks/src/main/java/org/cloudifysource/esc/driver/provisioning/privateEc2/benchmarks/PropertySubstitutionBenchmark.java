@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Substitution of the property variables of a template with {@link ParserUtils#replaceProperties}. The generated
+ * template references each property of the properties file once, as the value of a tag.
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PropertySubstitutionBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	private int properties;
+
+	private File directory;
+	private File templateFile;
+	private File propertiesFile;
+
+	@Setup
+	public void setup() throws IOException {
+		BenchmarkFixtures.quietDriverLogging();
+		this.directory = BenchmarkFixtures.createTempDirectory("substitution");
+		this.templateFile = new File(this.directory, "benchmark-cfn.template");
+		this.propertiesFile = new File(this.directory, "benchmark-cfn.properties");
+
+		final StringBuilder template = new StringBuilder();
+		final StringBuilder values = new StringBuilder();
+		template.append("{\n  \"Resources\":{\n    \"benchmark\":{\n      \"Type\":\"AWS::EC2::Instance\",\n");
+		template.append("      \"Properties\":{\n        \"ImageId\":\"ami-23d9a94a\",\n        \"Tags\":[\n");
+		for (int i = 0; i < this.properties; i++) {
+			template.append("          {\"Key\":\"tag").append(i).append("\",\"Value\":value").append(i).append('}');
+			template.append(i < this.properties - 1 ? ",\n" : "\n");
+			values.append("value").append(i).append("=\"tag-value-").append(i).append("\"\n");
+		}
+		template.append("        ]\n      }\n    }\n  }\n}\n");
+		FileUtils.writeStringToFile(this.templateFile, template.toString());
+		FileUtils.writeStringToFile(this.propertiesFile, values.toString());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.directory);
+	}
+
+	@Benchmark
+	public String replaceProperties() throws IOException {
+		return ParserUtils.replaceProperties(this.templateFile, this.propertiesFile);
+	}
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.TarGzUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Archiving of a cloud directory with {@link TarGzUtils#createTarGz(String[], boolean)} and extraction with
+ * {@link TarGzUtils#extract(File, String)}, on synthetic trees of different shapes:
+ * <ul>
+ * <li><code>flat</code>: 500 files of 1KB in a single directory,</li>
+ * <li><code>deep</code>: 16 nested directories of 8 files of 1KB,</li>
+ * <li><code>large</code>: 4 files of 2MB, like the jars of an upload directory.</li>
+ * </ul>
+ * The file contents are half random, half repeated so that they compress like text and class files.
+ * 
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TarGzBenchmark {
+
+	private static final int KB = 1024;
+	private static final int MB = KB * KB;
+	private static final int FLAT_FILES = 500;
+	private static final int DEEP_LEVELS = 16;
+	private static final int DEEP_FILES_PER_LEVEL = 8;
+	private static final int LARGE_FILES = 4;
+	private static final long SEED = 42L;
+
+	/**
+	 * The source tree and its archive, built once per trial.
+	 */
+	@State(Scope.Benchmark)
+	public static class SourceTree {
+
+		@Param({ "flat", "deep", "large" })
+		private String shape;
+
+		private File root;
+		private File archive;
+
+		@Setup
+		public void setup() throws IOException {
+			final Random random = new Random(SEED);
+			this.root = BenchmarkFixtures.createTempDirectory("targz-source");
+			if ("flat".equals(this.shape)) {
+				for (int i = 0; i < FLAT_FILES; i++) {
+					writeFile(new File(this.root, "file" + i + ".txt"), KB, random);
+				}
+			} else if ("deep".equals(this.shape)) {
+				File directory = this.root;
+				for (int level = 0; level < DEEP_LEVELS; level++) {
+					directory = new File(directory, "level" + level);
+					directory.mkdirs();
+					for (int i = 0; i < DEEP_FILES_PER_LEVEL; i++) {
+						writeFile(new File(directory, "file" + i + ".txt"), KB, random);
+					}
+				}
+			} else if ("large".equals(this.shape)) {
+				for (int i = 0; i < LARGE_FILES; i++) {
+					writeFile(new File(this.root, "library" + i + ".jar"), 2 * MB, random);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown tree shape: " + this.shape);
+			}
+			this.archive = TarGzUtils.createTarGz(new String[] { this.root.getAbsolutePath() }, false);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			FileUtils.deleteDirectory(this.root);
+			this.archive.delete();
+		}
+
+		private static void writeFile(final File file, final int size, final Random random) throws IOException {
+			final byte[] content = new byte[size];
+			random.nextBytes(content);
+			for (int i = size / 2; i < size; i++) {
+				content[i] = (byte) ('a' + i % 26);
+			}
+			final OutputStream out = new FileOutputStream(file);
+			try {
+				out.write(content);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * The outputs of an invocation, deleted after each invocation so that the disk use stays constant.
+	 */
+	@State(Scope.Thread)
+	public static class Output {
+
+		private File archive;
+		private File extractDirectory;
+
+		@Setup(Level.Invocation)
+		public void setup() throws IOException {
+			this.extractDirectory = BenchmarkFixtures.createTempDirectory("targz-extract");
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown() throws IOException {
+			if (this.archive != null) {
+				this.archive.delete();
+				this.archive = null;
+			}
+			FileUtils.deleteDirectory(this.extractDirectory);
+		}
+	}
+
+	@Benchmark
+	public File createTarGz(final SourceTree tree, final Output output) throws IOException {
+		output.archive = TarGzUtils.createTarGz(new String[] { tree.root.getAbsolutePath() }, false);
+		return output.archive;
+	}
+
+	@Benchmark
+	public File extract(final SourceTree tree, final Output output) throws IOException {
+		TarGzUtils.extract(tree.archive, output.extractDirectory.getAbsolutePath());
+		return output.extractDirectory;
+	}
+}
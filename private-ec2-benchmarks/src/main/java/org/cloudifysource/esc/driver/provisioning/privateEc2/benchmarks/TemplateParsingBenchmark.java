@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.TemplateSnapshotCache;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of the bundled CFN templates with {@link ParserUtils#mapJson}, from a string and from a file, compared with
+ * loading them from a {@link TemplateSnapshotCache} snapshot.
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TemplateParsingBenchmark {
+
+	@Param({ "WordPress_Single_Instance_With_RDS.template", "complete.template", "join.template", "ref.template",
+		"static-cfn.template", "static-with-volume-cfn.template", "tags.template", "volume.template" })
+	private String template;
+
+	private File templateFile;
+	private String templateString;
+	private File cacheDirectory;
+	private TemplateSnapshotCache cache;
+
+	@Setup
+	public void setup() throws IOException {
+		BenchmarkFixtures.quietDriverLogging();
+		this.templateFile = BenchmarkFixtures.templateFile(this.template);
+		this.templateString = FileUtils.readFileToString(this.templateFile);
+		this.cacheDirectory = BenchmarkFixtures.createTempDirectory("template-snapshots");
+		this.cache = new TemplateSnapshotCache(this.cacheDirectory);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.cacheDirectory);
+	}
+
+	@Benchmark
+	public PrivateEc2Template mapJsonString() throws PrivateEc2ParserException {
+		return ParserUtils.mapJson(PrivateEc2Template.class, this.templateString);
+	}
+
+	@Benchmark
+	public PrivateEc2Template mapJsonFile() throws PrivateEc2ParserException {
+		return ParserUtils.mapJson(PrivateEc2Template.class, this.templateFile);
+	}
+
+	/** The snapshot is written by the first invocation, the next ones only hash the file and decode the snapshot. */
+	@Benchmark
+	public PrivateEc2Template snapshotCache() throws IOException, PrivateEc2ParserException {
+		return this.cache.load(this.templateFile, null);
+	}
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.deserializers.ValueDeserializer;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.DeserializationConfig.Feature;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deserialization of nested <code>Fn::Base64</code>/<code>Fn::Join</code> values with the {@link ValueDeserializer}.
+ * Each level of nesting encodes a join of three parts, one of them a <code>Ref</code>, and of the next level.<br />
+ * The mapper is shared so that only the deserializer is measured, the value is evaluated as well by
+ * {@link #deserializeAndEvaluate()}.
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ValueDeserializerBenchmark {
+
+	@Param({ "1", "4", "16" })
+	private int depth;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private String json;
+
+	/**
+	 * A bean with a single CFN value.
+	 */
+	public static class ValueHolder {
+
+		@JsonProperty("Value")
+		private ValueType value;
+
+		public ValueType getValue() {
+			return this.value;
+		}
+
+		public void setValue(final ValueType value) {
+			this.value = value;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		BenchmarkFixtures.quietDriverLogging();
+		this.mapper.configure(Feature.USE_ANNOTATIONS, true);
+		this.mapper.configure(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+		String value = "\"leaf\"";
+		for (int i = 0; i < this.depth; i++) {
+			value = "{\"Fn::Base64\":{\"Fn::Join\":[\" \",[\"part" + i + "\",{\"Ref\":\"resource" + i
+					+ "\"},\"part\"," + value + "]]}}";
+		}
+		this.json = "{\"Value\":" + value + "}";
+	}
+
+	@Benchmark
+	public ValueType deserialize() throws IOException {
+		return this.mapper.readValue(this.json, ValueHolder.class).getValue();
+	}
+
+	@Benchmark
+	public String deserializeAndEvaluate() throws IOException {
+		return this.mapper.readValue(this.json, ValueHolder.class).getValue().getValue();
+	}
+}
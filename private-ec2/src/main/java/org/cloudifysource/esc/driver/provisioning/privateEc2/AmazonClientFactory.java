@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Creates the Amazon clients used by the driver. The driver uses {@link DefaultAmazonClientFactory} unless another
+ * factory is given to {@link PrivateEC2CloudifyDriver#setAmazonClientFactory(AmazonClientFactory)}, i.e. to run
+ * against a simulated cloud.<br />
+ * The driver sets the endpoint or the region of the clients itself.
+ * 
+ */
+public interface AmazonClientFactory {
+
+	/**
+	 * @param credentials
+	 *            The Amazon credentials.
+	 * @return A new EC2 client.
+	 */
+	AmazonEC2 createEC2(AWSCredentials credentials);
+
+	/**
+	 * @param credentials
+	 *            The Amazon credentials.
+	 * @return A new S3 client.
+	 */
+	AmazonS3 createS3(AWSCredentials credentials);
+}
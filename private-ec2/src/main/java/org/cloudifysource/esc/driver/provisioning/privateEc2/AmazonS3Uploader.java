@@ -21,8 +21,10 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.metrics.AmazonClientInstrumentation;
+
 import com.amazonaws.HttpMethod;
-import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
@@ -53,13 +55,44 @@ public class AmazonS3Uploader {
 	}
 
 	public AmazonS3Uploader(final String accessKey, final String secretKey, final String locationId) {
-		this.accessKey = accessKey;
-		final AWSCredentials credentials = new BasicAWSCredentials(accessKey, secretKey);
+		this(accessKey, secretKey, locationId, null);
+	}
 
-		this.s3client = new AmazonS3Client(credentials);
+	/**
+	 * @param accessKey
+	 *            The amazon access key.
+	 * @param secretKey
+	 *            The amazon secret key.
+	 * @param locationId
+	 *            The S3 location, <code>null</code> for the default one.
+	 * @param metrics
+	 *            The metrics where to count the S3 calls, <code>null</code> to not count them.
+	 */
+	public AmazonS3Uploader(final String accessKey, final String secretKey, final String locationId,
+			final ProvisioningMetrics metrics) {
+		this(new AmazonS3Client(new BasicAWSCredentials(accessKey, secretKey)), accessKey, locationId, metrics);
+	}
+
+	/**
+	 * @param s3client
+	 *            The S3 client.
+	 * @param accessKey
+	 *            The amazon access key.
+	 * @param locationId
+	 *            The S3 location, <code>null</code> for the default one.
+	 * @param metrics
+	 *            The metrics where to count the S3 calls, <code>null</code> to not count them.
+	 */
+	public AmazonS3Uploader(final AmazonS3 s3client, final String accessKey, final String locationId,
+			final ProvisioningMetrics metrics) {
+		this.accessKey = accessKey;
+		this.s3client = s3client;
 		if (locationId != null) {
 			this.s3client.setRegion(RegionUtils.convertLocationId2Region(locationId));
 		}
+		if (metrics != null) {
+			this.s3client = AmazonClientInstrumentation.instrument(AmazonS3.class, this.s3client, metrics);
+		}
 	}
 
 	/**
@@ -166,13 +199,16 @@ public class AmazonS3Uploader {
 	 *            The name of the bucket.
 	 * @param key
 	 *            The resource's key.
+	 * @return <code>true</code> if the resource was deleted, or didn't exist.
 	 * */
-	public void deleteS3Object(final String bucketName, final String key) {
+	public boolean deleteS3Object(final String bucketName, final String key) {
 		try {
 			logger.fine("Delete S3 resource: bucketName=" + bucketName + ", key=" + key);
 			s3client.deleteObject(bucketName, key);
+			return true;
 		} catch (final Exception e) {
 			logger.log(Level.WARNING, "Couldn't delete files from S3 : bucketName=" + bucketName + ", keys=" + key);
+			return false;
 		}
 	}
 
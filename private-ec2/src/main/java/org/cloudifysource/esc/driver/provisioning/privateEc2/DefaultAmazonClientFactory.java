@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+
+/**
+ * Creates the clients of the Amazon web services.
+ * 
+ */
+public class DefaultAmazonClientFactory implements AmazonClientFactory {
+
+	@Override
+	public AmazonEC2 createEC2(final AWSCredentials credentials) {
+		return new AmazonEC2Client(credentials);
+	}
+
+	@Override
+	public AmazonS3 createS3(final AWSCredentials credentials) {
+		return new AmazonS3Client(credentials);
+	}
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Instance;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+
+/**
+ * The launch prototypes of all the <code>AWS::EC2::Instance</code> resources of a CFN template.<br />
+ * Each instance is a tier of the plan. The <code>DependsOn</code> attribute of an instance orders it after the
+ * instances it names, the other instances are independent and are launched concurrently. The dependencies on the
+ * other resources, like volumes, are ignored as they are created with the instance.<br />
+ * The first instance of the template is the primary tier: its machine is the one returned by
+ * <code>startMachine</code>.
+ * 
+ */
+final class LaunchPlan {
+
+	private static final Logger logger = Logger.getLogger(LaunchPlan.class.getName());
+
+	/**
+	 * An instance of the template and its launch prototype.
+	 */
+	static final class Tier {
+
+		private final String name;
+
+		private final LaunchPrototype prototype;
+
+		private final List<String> dependencies;
+
+		private Tier(final String name, final LaunchPrototype prototype, final List<String> dependencies) {
+			this.name = name;
+			this.prototype = prototype;
+			this.dependencies = Collections.unmodifiableList(dependencies);
+		}
+
+		/**
+		 * @return The resource name of the instance.
+		 */
+		String getName() {
+			return name;
+		}
+
+		LaunchPrototype getPrototype() {
+			return prototype;
+		}
+
+		/**
+		 * @return The names of the tiers which must be launched before this one.
+		 */
+		List<String> getDependencies() {
+			return dependencies;
+		}
+
+		@Override
+		public String toString() {
+			return name + (dependencies.isEmpty() ? "" : " (DependsOn " + dependencies + ")");
+		}
+	}
+
+	/** The tiers in the template order. */
+	private final List<Tier> tiers;
+
+	/** The tiers ordered so that each one comes after its dependencies. */
+	private final List<Tier> launchOrder;
+
+	private LaunchPlan(final List<Tier> tiers, final List<Tier> launchOrder) {
+		this.tiers = Collections.unmodifiableList(tiers);
+		this.launchOrder = Collections.unmodifiableList(launchOrder);
+	}
+
+	/**
+	 * Compiles the launch prototypes of all the instances of a template, see
+	 * {@link LaunchPrototype#compile(PrivateEc2Template, AWSEC2Instance, String)}.
+	 * 
+	 * @param template
+	 *            The CFN template.
+	 * @param cloudFileDirectory
+	 *            The remote directory where the user data script extracts the cloud files.
+	 * @return The launch plan of the template.
+	 * @throws PrivateEc2ParserException
+	 *             If the template has no instance, if an instance can't be compiled or if the dependencies of the
+	 *             instances are cyclic.
+	 */
+	static LaunchPlan compile(final PrivateEc2Template template, final String cloudFileDirectory)
+			throws PrivateEc2ParserException {
+		final List<AWSEC2Instance> instances = template.getEC2Instances();
+		if (instances.isEmpty()) {
+			throw new PrivateEc2ParserException("The template has no AWS::EC2::Instance resource with properties");
+		}
+
+		final Map<String, AWSEC2Instance> byName = new LinkedHashMap<String, AWSEC2Instance>();
+		for (final AWSEC2Instance instance : instances) {
+			if (byName.put(instance.getResourceName(), instance) != null) {
+				throw new PrivateEc2ParserException("Duplicate AWS::EC2::Instance resource: "
+						+ instance.getResourceName());
+			}
+		}
+
+		final List<Tier> tiers = new ArrayList<Tier>(instances.size());
+		for (final AWSEC2Instance instance : instances) {
+			final List<String> dependencies = new ArrayList<String>();
+			if (instance.getDependsOn() != null) {
+				for (final String dependency : instance.getDependsOn()) {
+					if (byName.containsKey(dependency)) {
+						if (!dependencies.contains(dependency)) {
+							dependencies.add(dependency);
+						}
+					} else {
+						logger.fine("Ignoring the dependency of instance " + instance.getResourceName() + " on "
+								+ dependency + ", which is not an AWS::EC2::Instance resource");
+					}
+				}
+			}
+			tiers.add(new Tier(instance.getResourceName(),
+					LaunchPrototype.compile(template, instance, cloudFileDirectory), dependencies));
+		}
+		return new LaunchPlan(tiers, sort(tiers));
+	}
+
+	/**
+	 * Orders the tiers after their dependencies, keeping the template order of the independent tiers.
+	 */
+	private static List<Tier> sort(final List<Tier> tiers) throws PrivateEc2ParserException {
+		final Map<String, Tier> byName = new HashMap<String, Tier>();
+		for (final Tier tier : tiers) {
+			byName.put(tier.getName(), tier);
+		}
+		final List<Tier> sorted = new ArrayList<Tier>(tiers.size());
+		final Map<String, Boolean> visited = new HashMap<String, Boolean>();
+		for (final Tier tier : tiers) {
+			visit(tier, byName, visited, sorted);
+		}
+		return sorted;
+	}
+
+	/**
+	 * Depth-first visit of the dependencies: a tier is marked <code>false</code> while its dependencies are visited,
+	 * and <code>true</code> once it is added to the sorted list.
+	 */
+	private static void visit(final Tier tier, final Map<String, Tier> byName, final Map<String, Boolean> visited,
+			final List<Tier> sorted) throws PrivateEc2ParserException {
+		final Boolean state = visited.get(tier.getName());
+		if (Boolean.TRUE.equals(state)) {
+			return;
+		}
+		if (Boolean.FALSE.equals(state)) {
+			throw new PrivateEc2ParserException("Circular DependsOn involving instance " + tier.getName());
+		}
+		visited.put(tier.getName(), Boolean.FALSE);
+		for (final String dependency : tier.getDependencies()) {
+			visit(byName.get(dependency), byName, visited, sorted);
+		}
+		visited.put(tier.getName(), Boolean.TRUE);
+		sorted.add(tier);
+	}
+
+	/**
+	 * @return The first instance of the template.
+	 */
+	Tier getPrimary() {
+		return tiers.get(0);
+	}
+
+	/**
+	 * @return The tiers in the template order, the primary first.
+	 */
+	List<Tier> getTiers() {
+		return tiers;
+	}
+
+	/**
+	 * @return The tiers ordered so that each one comes after the tiers it depends on.
+	 */
+	List<Tier> getLaunchOrder() {
+		return launchOrder;
+	}
+
+	/**
+	 * @return <code>true</code> if the template has more than one instance.
+	 */
+	boolean isMultiInstance() {
+		return tiers.size() > 1;
+	}
+
+	@Override
+	public String toString() {
+		return "LaunchPlan" + launchOrder;
+	}
+}
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Instance;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Volume;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.InstanceProperties;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.VolumeMapping;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.VolumeProperties;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
+
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * The launch settings of a CFN template, evaluated once when the driver is configured.<br />
+ * The prototype is immutable and shared by the launches of the template: a launch only adds its own fields, the URL
+ * of its cloud files archive, to a copy of the prototype request. As the template values are evaluated up front, an
+ * invalid template is reported when the driver is configured instead of when a machine is started.
+ * 
+ */
+final class LaunchPrototype {
+
+	private static final String END_OF_LINE = " >> /tmp/cloud.txt\n";
+
+	private final String availabilityZone;
+	/** The candidate zones of the instance, <code>AvailabilityZone</code> first. */
+	private final List<String> availabilityZones;
+	private final String imageId;
+	private final String instanceType;
+	/** The candidate instance types, <code>InstanceType</code> first. */
+	private final List<String> instanceTypes;
+	private final String keyName;
+	private final String privateIpAddress;
+	private final List<String> securityGroupIds;
+	private final List<String> securityGroups;
+
+	/** The block device mappings, copied for each launch. <code>null</code> if the template has no volume. */
+	private final List<BlockDeviceMapping> blockDeviceMappings;
+
+	private final List<Tag> instanceTags;
+
+	/** The tags of the template volumes, by attachment device. */
+	private final Map<String, List<Tag>> volumeTags;
+
+	/** The user data script before the archive URL. <code>null</code> if the template has no user data. */
+	private final String userDataHead;
+
+	/** The user data script after the archive URL, ending with the user data of the template. */
+	private final String userDataTail;
+
+	private LaunchPrototype(final PrivateEc2Template template, final InstanceProperties properties,
+			final List<BlockDeviceMapping> blockDeviceMappings, final Map<String, List<Tag>> volumeTags,
+			final String cloudFileDirectory) {
+		this.availabilityZones =
+				candidates(template, properties.getAvailabilityZone(), properties.getAvailabilityZones());
+		this.availabilityZone = this.availabilityZones.isEmpty() ? null : this.availabilityZones.get(0);
+		this.imageId = template.evaluate(properties.getImageId());
+		this.instanceTypes = candidates(template, properties.getInstanceType(), properties.getInstanceTypes());
+		this.instanceType = this.instanceTypes.isEmpty() ? null : this.instanceTypes.get(0);
+		this.keyName = template.evaluate(properties.getKeyName());
+		this.privateIpAddress = template.evaluate(properties.getPrivateIpAddress());
+		this.securityGroupIds = evaluateAll(template, properties.getSecurityGroupIds());
+		this.securityGroups = evaluateAll(template, properties.getSecurityGroups());
+		this.blockDeviceMappings = blockDeviceMappings == null ? null
+				: Collections.unmodifiableList(blockDeviceMappings);
+		this.instanceTags = convertTags(properties.getTags());
+		this.volumeTags = Collections.unmodifiableMap(volumeTags);
+
+		if (properties.getUserData() == null) {
+			this.userDataHead = null;
+			this.userDataTail = null;
+		} else {
+			// Remove '/' from the path if it's the last char.
+			String cloudFileDir = cloudFileDirectory;
+			if (cloudFileDir.length() > 1 && cloudFileDir.endsWith("/")) {
+				cloudFileDir = cloudFileDir.substring(0, cloudFileDir.length() - 1);
+			}
+			final StringBuilder head = new StringBuilder();
+			head.append("#!/bin/bash\n");
+			head.append("export TMP_DIRECTORY=/tmp").append(END_OF_LINE);
+			this.userDataHead = head.toString();
+
+			final StringBuilder tail = new StringBuilder();
+			tail.append("wget -q -O $TMP_DIRECTORY/cloudArchive.tar.gz $S3_ARCHIVE_FILE").append(END_OF_LINE);
+			tail.append("mkdir -p ").append(cloudFileDir).append(END_OF_LINE);
+			tail.append("tar zxvf $TMP_DIRECTORY/cloudArchive.tar.gz -C ").append(cloudFileDir).append(END_OF_LINE);
+			tail.append("rm -f $TMP_DIRECTORY/cloudArchive.tar.gz").append(END_OF_LINE);
+			final String envScript = cloudFileDir + "/" + PrivateEC2CloudifyDriver.CLOUDIFY_ENV_SCRIPT;
+			tail.append("echo ").append(envScript).append(END_OF_LINE);
+			tail.append("chmod 755 ").append(envScript).append(END_OF_LINE);
+			tail.append("source ").append(envScript).append(END_OF_LINE);
+			tail.append(template.evaluate(properties.getUserData()));
+			this.userDataTail = tail.toString();
+		}
+	}
+
+	/**
+	 * Evaluates the launch settings of a template, see {@link PrivateEc2Template#evaluate(ValueType)}.
+	 * 
+	 * @param template
+	 *            The CFN template.
+	 * @param cloudFileDirectory
+	 *            The remote directory where the user data script extracts the cloud files.
+	 * @return The launch prototype of the template.
+	 * @throws PrivateEc2ParserException
+	 *             If the template has no instance, if a volume mapping is invalid, if a value can't be evaluated or if
+	 *             the template has user data without a remote directory.
+	 */
+	static LaunchPrototype compile(final PrivateEc2Template template, final String cloudFileDirectory)
+			throws PrivateEc2ParserException {
+		return compile(template, template.getEC2Instance(), cloudFileDirectory);
+	}
+
+	/**
+	 * Evaluates the launch settings of one of the instances of a template.
+	 * 
+	 * @param template
+	 *            The CFN template.
+	 * @param instance
+	 *            An <code>AWS::EC2::Instance</code> resource of the template.
+	 * @param cloudFileDirectory
+	 *            The remote directory where the user data script extracts the cloud files.
+	 * @return The launch prototype of the instance.
+	 * @throws PrivateEc2ParserException
+	 *             If the instance has no properties, if a volume mapping is invalid, if a value can't be evaluated or
+	 *             if the instance has user data without a remote directory.
+	 */
+	static LaunchPrototype compile(final PrivateEc2Template template, final AWSEC2Instance instance,
+			final String cloudFileDirectory) throws PrivateEc2ParserException {
+		try {
+			return doCompile(template, instance, cloudFileDirectory);
+		} catch (final IllegalStateException e) {
+			throw new PrivateEc2ParserException("Couldn't evaluate the template: " + e.getMessage(), e);
+		}
+	}
+
+	private static LaunchPrototype doCompile(final PrivateEc2Template template, final AWSEC2Instance instance,
+			final String cloudFileDirectory) throws PrivateEc2ParserException {
+		if (instance == null || instance.getProperties() == null) {
+			throw new PrivateEc2ParserException("The template has no AWS::EC2::Instance resource with properties");
+		}
+		final InstanceProperties properties = instance.getProperties();
+
+		List<BlockDeviceMapping> blockDeviceMappings = null;
+		final Map<String, List<Tag>> volumeTags = new LinkedHashMap<String, List<Tag>>();
+		if (properties.getVolumes() != null) {
+			blockDeviceMappings = new ArrayList<BlockDeviceMapping>(properties.getVolumes().size());
+			for (final VolumeMapping volMapping : properties.getVolumes()) {
+				final String volumeRef = template.evaluate(volMapping.getVolumeId());
+				final String device = template.evaluate(volMapping.getDevice());
+				if (volumeRef == null || device == null) {
+					throw new PrivateEc2ParserException("Volume mapping without VolumeId or Device: " + volMapping);
+				}
+				final AWSEC2Volume volumeConfig = template.getEC2Volume(volumeRef);
+				if (volumeConfig == null || volumeConfig.getProperties() == null) {
+					throw new PrivateEc2ParserException("Volume not found in the template: " + volumeRef);
+				}
+				blockDeviceMappings.add(createBlockDeviceMapping(template, device, volumeConfig.getProperties()));
+				if (!volumeTags.containsKey(device)) {
+					volumeTags.put(device, convertTags(volumeConfig.getProperties().getTags()));
+				}
+			}
+		}
+		if (properties.getUserData() != null && cloudFileDirectory == null) {
+			throw new PrivateEc2ParserException("The template has user data but no remote directory is defined");
+		}
+		return new LaunchPrototype(template, properties, blockDeviceMappings, volumeTags, cloudFileDirectory);
+	}
+
+	private static BlockDeviceMapping createBlockDeviceMapping(final PrivateEc2Template template, final String device,
+			final VolumeProperties volumeProperties) {
+		final EbsBlockDevice ebs = new EbsBlockDevice();
+		ebs.setIops(volumeProperties.getIops());
+		ebs.setSnapshotId(template.evaluate(volumeProperties.getSnapshotId()));
+		ebs.setVolumeSize(volumeProperties.getSize());
+		ebs.setVolumeType(template.evaluate(volumeProperties.getVolumeType()));
+		ebs.setDeleteOnTermination(true);
+
+		final BlockDeviceMapping mapping = new BlockDeviceMapping();
+		mapping.setDeviceName(device);
+		mapping.setEbs(ebs);
+		return mapping;
+	}
+
+	private static BlockDeviceMapping copyOf(final BlockDeviceMapping mapping) {
+		final EbsBlockDevice ebs = mapping.getEbs();
+		return new BlockDeviceMapping().withDeviceName(mapping.getDeviceName()).withEbs(new EbsBlockDevice()
+				.withIops(ebs.getIops()).withSnapshotId(ebs.getSnapshotId()).withVolumeSize(ebs.getVolumeSize())
+				.withVolumeType(ebs.getVolumeType()).withDeleteOnTermination(ebs.getDeleteOnTermination()));
+	}
+
+	/**
+	 * @return The evaluated preferred value, i.e. <code>AvailabilityZone</code>, followed by the other evaluated
+	 *         values of its list, i.e. <code>AvailabilityZones</code>.
+	 */
+	private static List<String> candidates(final PrivateEc2Template template, final ValueType preferred,
+			final List<ValueType> values) {
+		final List<String> candidates = new ArrayList<String>();
+		final String first = template.evaluate(preferred);
+		if (first != null) {
+			candidates.add(first);
+		}
+		final List<String> others = evaluateAll(template, values);
+		if (others != null) {
+			for (final String other : others) {
+				if (other != null && !candidates.contains(other)) {
+					candidates.add(other);
+				}
+			}
+		}
+		return Collections.unmodifiableList(candidates);
+	}
+
+	private static List<String> evaluateAll(final PrivateEc2Template template, final List<ValueType> values) {
+		if (values == null) {
+			return null;
+		}
+		final List<String> evaluated = new ArrayList<String>(values.size());
+		for (final ValueType value : values) {
+			evaluated.add(template.evaluate(value));
+		}
+		return Collections.unmodifiableList(evaluated);
+	}
+
+	private static List<Tag> convertTags(
+			final List<org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Tag> templateTags) {
+		if (templateTags == null) {
+			return Collections.emptyList();
+		}
+		final List<Tag> tags = new ArrayList<Tag>(templateTags.size());
+		for (final org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Tag tag : templateTags) {
+			tags.add(tag.convertToEC2Model());
+		}
+		return Collections.unmodifiableList(tags);
+	}
+
+	/**
+	 * @return <code>true</code> if the template defines user data, which needs the cloud files to be uploaded.
+	 */
+	boolean hasUserData() {
+		return this.userDataTail != null;
+	}
+
+	/**
+	 * Builds the user data script of a launch.
+	 * 
+	 * @param archiveUrl
+	 *            The URL of the cloud files archive of the launch.
+	 * @return The user data script, not encoded. <code>null</code> if the template has no user data.
+	 */
+	String userData(final String archiveUrl) {
+		if (this.userDataTail == null) {
+			return null;
+		}
+		return new StringBuilder(this.userDataHead.length() + archiveUrl.length() + this.userDataTail.length() + 64)
+				.append(this.userDataHead).append("export S3_ARCHIVE_FILE='").append(archiveUrl).append("'")
+				.append(END_OF_LINE).append(this.userDataTail).toString();
+	}
+
+	/**
+	 * Creates the RunInstances request of a launch, in the first candidate zone.
+	 * 
+	 * @param userData
+	 *            The encoded user data of the launch, or <code>null</code>.
+	 * @return A new request for one instance.
+	 */
+	RunInstancesRequest newRunInstancesRequest(final String userData) {
+		return this.newRunInstancesRequest(userData, this.instanceType, this.availabilityZone);
+	}
+
+	/**
+	 * Creates the RunInstances request of a launch with a given instance type and zone.
+	 * 
+	 * @param userData
+	 *            The encoded user data of the launch, or <code>null</code>.
+	 * @param type
+	 *            The instance type, <code>null</code> for the Amazon default type.
+	 * @param zone
+	 *            The availability zone of the instance, <code>null</code> to let Amazon choose it.
+	 * @return A new request for one instance.
+	 */
+	RunInstancesRequest newRunInstancesRequest(final String userData, final String type, final String zone) {
+		List<BlockDeviceMapping> mappings = null;
+		if (this.blockDeviceMappings != null) {
+			mappings = new ArrayList<BlockDeviceMapping>(this.blockDeviceMappings.size());
+			for (final BlockDeviceMapping mapping : this.blockDeviceMappings) {
+				mappings.add(copyOf(mapping));
+			}
+		}
+
+		final RunInstancesRequest runInstancesRequest = new RunInstancesRequest();
+		runInstancesRequest.withPlacement(zone == null ? null : new Placement(zone));
+		runInstancesRequest.withImageId(this.imageId);
+		runInstancesRequest.withInstanceType(type);
+		runInstancesRequest.withKeyName(this.keyName);
+		runInstancesRequest.withPrivateIpAddress(this.privateIpAddress);
+		runInstancesRequest.withSecurityGroupIds(this.securityGroupIds);
+		runInstancesRequest.withSecurityGroups(this.securityGroups);
+		runInstancesRequest.withMinCount(1);
+		runInstancesRequest.withMaxCount(1);
+		runInstancesRequest.withBlockDeviceMappings(mappings);
+		runInstancesRequest.withUserData(userData);
+		return runInstancesRequest;
+	}
+
+	String getAvailabilityZone() {
+		return this.availabilityZone;
+	}
+
+	/**
+	 * @return The candidate zones of the instance, in the preferred order. Empty if the template has no zone.
+	 */
+	List<String> getAvailabilityZones() {
+		return this.availabilityZones;
+	}
+
+	/**
+	 * @return The candidate instance types, in the preferred order. Empty if the template has no instance type.
+	 */
+	List<String> getInstanceTypes() {
+		return this.instanceTypes;
+	}
+
+	/**
+	 * @return The tags of the template instance.
+	 */
+	List<Tag> getInstanceTags() {
+		return this.instanceTags;
+	}
+
+	/**
+	 * @return The tags of the template volumes, by attachment device. Empty if the template has no volume.
+	 */
+	Map<String, List<Tag>> getVolumeTags() {
+		return this.volumeTags;
+	}
+}
@@ -0,0 +1,596 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A durable log of the steps of the launches in flight, so that the launches interrupted by a crash of the JVM are
+ * reconciled with EC2 when the driver starts again: their instances are adopted, finished or terminated and their
+ * cloud files archives are deleted from S3.<br />
+ * The log is a local append-only file, enabled with the <code>launchStateFile</code> entry of the cloud custom map.
+ * The drivers of a JVM share the log of a file. The records are appended to a buffer, and the records of the durable
+ * steps, the ones which come before a change in the cloud, are forced to the disk with the buffer before the step goes
+ * on. The records of the other steps may be lost by a crash, which is harmless: the reconciliation finds the instances
+ * by their client tokens, and tagging them, terminating them or deleting an archive again has no effect. The records
+ * forced at the same time by several launches share one write and one sync (group commit).<br />
+ * A launch is settled once it succeeded or its instance was terminated, and its archive was deleted: the settled
+ * launches are dropped from the file when it is opened, and once {@link #COMPACTION_THRESHOLD} of them are settled.
+ * 
+ * <pre>
+ * header: int magic, int version
+ * record: int length, byte step, UTF launch key, UTF value, UTF second value, int CRC32 of the record
+ * </pre>
+ * 
+ * A record torn by a crash, at the end of the file, is ignored.
+ * 
+ */
+final class LaunchStateStore {
+
+	private static final Logger logger = Logger.getLogger(LaunchStateStore.class.getName());
+
+	/** Key of the launch state file in the cloud custom map. */
+	static final String FILE_PROPERTY = "launchStateFile";
+
+	/** Number of settled launches which triggers a compaction of the file. */
+	static final int COMPACTION_THRESHOLD = 1024;
+
+	/** A store which doesn't record anything. */
+	static final LaunchStateStore DISABLED = new LaunchStateStore(null);
+
+	static final int MAGIC = 0x434c5353;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+
+	private static final int MAX_RECORD_SIZE = 65536;
+
+	/** Size of the buffered records which triggers a write, even if none of them is durable. */
+	private static final int MAX_BUFFER_SIZE = 65536;
+
+	private static final Map<String, LaunchStateStore> STORES = new HashMap<String, LaunchStateStore>();
+
+	/**
+	 * The steps of a launch, in the order they are recorded.
+	 */
+	static enum Step {
+		/** A launch started. The values are the machine name and the launch group. */
+		STARTED(false),
+		/** The cloud files archive is about to be uploaded. The values are the bucket and the key of the archive. */
+		ARCHIVED(true),
+		/** A RunInstances request is about to be sent. The value is its client token. */
+		REQUESTED(true),
+		/** The instance was launched. The value is the instance id. */
+		LAUNCHED(false),
+		/** The instance was tagged. */
+		TAGGED(false),
+		/** The archive was deleted. */
+		ARCHIVE_DELETED(false),
+		/** The launch succeeded: the instance is ready. */
+		SUCCEEDED(false),
+		/** The launch failed: its instance has to be terminated, and never adopted by the reconciliation. */
+		FAILED(true),
+		/** The instance was terminated, or the failed launch has no instance. The value is the instance id. */
+		TERMINATED(false);
+
+		private final boolean durable;
+
+		private Step(final boolean durable) {
+			this.durable = durable;
+		}
+
+		/**
+		 * @return <code>true</code> if the record of the step is on the disk before the step goes on.
+		 */
+		boolean isDurable() {
+			return durable;
+		}
+	}
+
+	/**
+	 * What is done with the instance of an interrupted launch.
+	 */
+	static enum Resolution {
+		/** The launch has no instance left, or succeeded: its archive is deleted. */
+		CLEAN_UP,
+		/** The instance of a failed launch is terminated. */
+		TERMINATE,
+		/** The tagged instance is kept once its agent is reachable. */
+		ADOPT,
+		/** The instance is tagged, then kept once its agent is reachable. */
+		FINISH
+	}
+
+	/**
+	 * The state of a launch, built from its records.
+	 */
+	static final class Launch {
+
+		private final String key;
+		private final List<byte[]> records = new ArrayList<byte[]>();
+		private final Set<String> clientTokens = new LinkedHashSet<String>();
+		private final Set<String> instanceIds = new LinkedHashSet<String>();
+		private String machineName;
+		private String launchGroup;
+		private String archiveBucket;
+		private String archiveKey;
+		private boolean archiveDeleted;
+		private boolean tagged;
+		private boolean succeeded;
+		private boolean failed;
+		private boolean terminated;
+
+		Launch(final String key) {
+			this.key = key;
+		}
+
+		private Launch(final Launch launch) {
+			this.key = launch.key;
+			this.clientTokens.addAll(launch.clientTokens);
+			this.instanceIds.addAll(launch.instanceIds);
+			this.machineName = launch.machineName;
+			this.launchGroup = launch.launchGroup;
+			this.archiveBucket = launch.archiveBucket;
+			this.archiveKey = launch.archiveKey;
+			this.archiveDeleted = launch.archiveDeleted;
+			this.tagged = launch.tagged;
+			this.succeeded = launch.succeeded;
+			this.failed = launch.failed;
+			this.terminated = launch.terminated;
+		}
+
+		void apply(final Step step, final String value, final String value2) {
+			switch (step) {
+			case STARTED:
+				this.machineName = value;
+				this.launchGroup = value2;
+				break;
+			case ARCHIVED:
+				this.archiveBucket = value;
+				this.archiveKey = value2;
+				break;
+			case REQUESTED:
+				this.clientTokens.add(value);
+				break;
+			case LAUNCHED:
+				this.instanceIds.add(value);
+				break;
+			case TAGGED:
+				this.tagged = true;
+				break;
+			case ARCHIVE_DELETED:
+				this.archiveDeleted = true;
+				break;
+			case SUCCEEDED:
+				this.succeeded = true;
+				break;
+			case FAILED:
+				this.failed = true;
+				break;
+			case TERMINATED:
+			default:
+				this.terminated = true;
+				break;
+			}
+		}
+
+		/**
+		 * @return <code>true</code> if nothing is left to do for the launch.
+		 */
+		boolean isSettled() {
+			return (this.archiveKey == null || this.archiveDeleted) && (this.succeeded || this.terminated);
+		}
+
+		/**
+		 * @param live
+		 *            <code>true</code> if an instance launched by the launch is pending or running.
+		 * @return What to do with the launch, interrupted by a crash.
+		 */
+		Resolution resolve(final boolean live) {
+			if (this.succeeded || this.terminated || !live) {
+				return Resolution.CLEAN_UP;
+			}
+			if (this.failed) {
+				return Resolution.TERMINATE;
+			}
+			return this.tagged ? Resolution.ADOPT : Resolution.FINISH;
+		}
+
+		String getKey() {
+			return key;
+		}
+
+		/**
+		 * @return The launch id of the launch, <code>null</code> if it has none.
+		 */
+		String getLaunchId() {
+			final int separator = this.key.indexOf('/');
+			return separator < 0 ? null : this.key.substring(0, separator);
+		}
+
+		String getMachineName() {
+			return machineName;
+		}
+
+		String getLaunchGroup() {
+			return launchGroup;
+		}
+
+		Set<String> getClientTokens() {
+			return Collections.unmodifiableSet(clientTokens);
+		}
+
+		Set<String> getInstanceIds() {
+			return Collections.unmodifiableSet(instanceIds);
+		}
+
+		/**
+		 * @return <code>true</code> if the launch uploaded an archive which isn't deleted yet.
+		 */
+		boolean hasArchive() {
+			return this.archiveKey != null && !this.archiveDeleted;
+		}
+
+		String getArchiveBucket() {
+			return archiveBucket;
+		}
+
+		String getArchiveKey() {
+			return archiveKey;
+		}
+
+		@Override
+		public String toString() {
+			return this.machineName + " (" + this.key + ")";
+		}
+	}
+
+	private final File file;
+	private final Map<String, Launch> pending = new LinkedHashMap<String, Launch>();
+	/** The records appended since the last write, framed. */
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	/** Held while the buffer is written and synced, taken before the lock of the store. */
+	private final Object flushLock = new Object();
+	private FileOutputStream out;
+	/** The sequence number of the last appended record. */
+	private long appended;
+	/** The sequence number of the last record on the disk, guarded by the flush lock. */
+	private long flushed;
+	private int settled;
+	private boolean reconciliationClaimed;
+	private int references;
+
+	private LaunchStateStore(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens the store of a file, or shares it if it is already open. The launches of an existing file are read back
+	 * and the settled ones are dropped from the file.
+	 * 
+	 * @param stateFile
+	 *            The launch state file.
+	 * @return The store, to release once the driver is closed.
+	 * @throws IOException
+	 *             If the file couldn't be opened or isn't a launch state file.
+	 */
+	static LaunchStateStore acquire(final File stateFile) throws IOException {
+		final File canonicalFile = stateFile.getCanonicalFile();
+		synchronized (STORES) {
+			LaunchStateStore store = STORES.get(canonicalFile.getPath());
+			if (store == null) {
+				store = new LaunchStateStore(canonicalFile);
+				store.open();
+				logger.info("Launch state store opened on " + canonicalFile + " (pending launches="
+						+ store.pending.size() + ")");
+				STORES.put(canonicalFile.getPath(), store);
+			}
+			store.references++;
+			return store;
+		}
+	}
+
+	private synchronized void open() throws IOException {
+		if (this.file.length() > 0) {
+			this.read(new ByteArrayInputStream(FileUtils.readFileToByteArray(this.file)));
+		}
+		this.compact();
+	}
+
+	private void read(final ByteArrayInputStream content) throws IOException {
+		final DataInputStream in = new DataInputStream(content);
+		if (content.available() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a launch state file: " + this.file);
+		}
+		final Step[] steps = Step.values();
+		while (content.available() > 0) {
+			final byte[] record;
+			try {
+				final int length = in.readInt();
+				if (length <= 0 || length > MAX_RECORD_SIZE) {
+					throw new EOFException("invalid record length " + length);
+				}
+				record = new byte[length];
+				in.readFully(record);
+				if (in.readInt() != checksum(record)) {
+					throw new EOFException("invalid record checksum");
+				}
+			} catch (final EOFException e) {
+				// The last record was being written when the JVM crashed
+				logger.warning("Ignoring the torn record at the end of the launch state file " + this.file + " ("
+						+ e.getMessage() + ")");
+				return;
+			}
+			final DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+			final int step = fields.readByte();
+			if (step < 0 || step >= steps.length) {
+				throw new IOException("Unknown step " + step + " in the launch state file " + this.file);
+			}
+			this.apply(record, steps[step], fields.readUTF(), emptyToNull(fields.readUTF()),
+					emptyToNull(fields.readUTF()));
+		}
+	}
+
+	/**
+	 * Rewrites the file with the records of the pending launches only, in a temporary file renamed once complete.
+	 */
+	private void compact() throws IOException {
+		IOUtils.closeQuietly(this.out);
+		this.out = null;
+		final File temp = new File(this.file.getPath() + ".tmp");
+		final FileOutputStream tempOut = new FileOutputStream(temp);
+		try {
+			final DataOutputStream data = new DataOutputStream(tempOut);
+			data.writeInt(MAGIC);
+			data.writeInt(VERSION);
+			for (final Launch launch : this.pending.values()) {
+				for (final byte[] record : launch.records) {
+					writeRecord(data, record);
+				}
+			}
+			data.flush();
+			tempOut.getChannel().force(true);
+		} finally {
+			tempOut.close();
+		}
+		if (!temp.renameTo(this.file) && !(this.file.delete() && temp.renameTo(this.file))) {
+			throw new IOException("Couldn't rename " + temp.getPath() + " to " + this.file.getPath());
+		}
+		this.out = new FileOutputStream(this.file, true);
+		// The buffered records of the pending launches were rewritten, the others are settled
+		this.buffer.reset();
+		this.flushed = this.appended;
+		this.settled = 0;
+	}
+
+	/**
+	 * Releases the store, which is closed if no other driver uses it.
+	 */
+	void release() {
+		if (this.file == null) {
+			return;
+		}
+		synchronized (STORES) {
+			this.references--;
+			if (this.references == 0) {
+				STORES.remove(this.file.getPath());
+				synchronized (this.flushLock) {
+					this.flush(Long.MAX_VALUE);
+					synchronized (this) {
+						IOUtils.closeQuietly(this.out);
+						this.out = null;
+					}
+				}
+				logger.info("Launch state store closed on " + this.file);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the store records the launches.
+	 */
+	boolean isEnabled() {
+		return this.file != null;
+	}
+
+	/**
+	 * @param launchId
+	 *            The launch id, <code>null</code> if the launch has none.
+	 * @param machineName
+	 *            The name of the launched machine.
+	 * @return The key of the launch of a machine: the instances of a multi-instance template share their launch id.
+	 */
+	static String key(final String launchId, final String machineName) {
+		return launchId == null ? machineName : launchId + '/' + machineName;
+	}
+
+	/**
+	 * Records a step of a launch. The record of a durable step is forced to the disk, with the records appended before
+	 * it, see {@link Step#isDurable()}. A failure to write is logged: the launch goes on.
+	 * 
+	 * @param step
+	 *            The step.
+	 * @param launchKey
+	 *            The key of the launch, see {@link #key(String, String)}.
+	 * @param value
+	 *            The value of the step, may be <code>null</code>.
+	 * @param value2
+	 *            The second value of the step, may be <code>null</code>.
+	 */
+	void record(final Step step, final String launchKey, final String value, final String value2) {
+		if (this.file == null) {
+			return;
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream fields = new DataOutputStream(bytes);
+		try {
+			fields.writeByte(step.ordinal());
+			fields.writeUTF(launchKey);
+			fields.writeUTF(value == null ? "" : value);
+			fields.writeUTF(value2 == null ? "" : value2);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		final byte[] record = bytes.toByteArray();
+		final long sequence;
+		final boolean write;
+		synchronized (this) {
+			try {
+				writeRecord(new DataOutputStream(this.buffer), record);
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			sequence = ++this.appended;
+			this.apply(record, step, launchKey, value, value2);
+			write = step.isDurable() || this.buffer.size() >= MAX_BUFFER_SIZE || this.settled >= COMPACTION_THRESHOLD;
+		}
+		if (write) {
+			synchronized (this.flushLock) {
+				this.flush(sequence);
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffered records and forces them to the disk, unless the given record is already on the disk: it
+	 * was written by another thread while this one was waiting for the flush lock. The file is compacted instead if
+	 * enough launches are settled.
+	 * 
+	 * @param sequence
+	 *            The sequence number of the record which must be on the disk.
+	 */
+	private void flush(final long sequence) {
+		if (this.flushed >= sequence) {
+			return;
+		}
+		final byte[] records;
+		final long last;
+		final FileOutputStream target;
+		synchronized (this) {
+			if (this.settled >= COMPACTION_THRESHOLD && this.out != null) {
+				try {
+					this.compact();
+					return;
+				} catch (final IOException e) {
+					logger.log(Level.WARNING, "Couldn't compact the launch state file " + this.file, e);
+				}
+			}
+			records = this.buffer.toByteArray();
+			this.buffer.reset();
+			last = this.appended;
+			target = this.out;
+		}
+		// The lock of the store is free while syncing: the other launches keep appending their records
+		try {
+			if (target == null) {
+				throw new IOException("The store is closed");
+			}
+			target.write(records);
+			target.getChannel().force(false);
+		} catch (final IOException e) {
+			logger.log(Level.WARNING, "Couldn't write " + records.length + " bytes of records in the launch state file "
+					+ this.file, e);
+		}
+		this.flushed = last;
+	}
+
+	/**
+	 * @see #record(Step, String, String, String)
+	 */
+	void record(final Step step, final String launchKey, final String value) {
+		this.record(step, launchKey, value, null);
+	}
+
+	/**
+	 * @see #record(Step, String, String, String)
+	 */
+	void record(final Step step, final String launchKey) {
+		this.record(step, launchKey, null, null);
+	}
+
+	private void apply(final byte[] record, final Step step, final String launchKey, final String value,
+			final String value2) {
+		Launch launch = this.pending.get(launchKey);
+		if (launch == null) {
+			launch = new Launch(launchKey);
+			this.pending.put(launchKey, launch);
+		}
+		launch.records.add(record);
+		launch.apply(step, value, value2);
+		if (launch.isSettled()) {
+			this.pending.remove(launchKey);
+			this.settled++;
+		}
+	}
+
+	/**
+	 * Claims the reconciliation of the launches read back from the file: only one of the drivers sharing the store
+	 * reconciles them.
+	 * 
+	 * @return <code>true</code> for the first caller.
+	 */
+	synchronized boolean claimReconciliation() {
+		if (this.file == null || this.reconciliationClaimed) {
+			return false;
+		}
+		this.reconciliationClaimed = true;
+		return true;
+	}
+
+	/**
+	 * @return A copy of the launches which are not settled, in the order they started.
+	 */
+	synchronized List<Launch> getPendingLaunches() {
+		final List<Launch> launches = new ArrayList<Launch>(this.pending.size());
+		for (final Launch launch : this.pending.values()) {
+			launches.add(new Launch(launch));
+		}
+		return launches;
+	}
+
+	private static void writeRecord(final DataOutputStream data, final byte[] record) throws IOException {
+		data.writeInt(record.length);
+		data.write(record);
+		data.writeInt(checksum(record));
+	}
+
+	private static int checksum(final byte[] record) {
+		final CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	private static String emptyToNull(final String value) {
+		return value.length() == 0 ? null : value;
+	}
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+
+/**
+ * The client tokens of the RunInstances requests, which make the requests idempotent: Amazon returns the instance
+ * launched by the first request with a token instead of launching another one. A request whose outcome is unknown,
+ * i.e. because its response timed out, can then be sent again without launching a duplicate instance.<br />
+ * The token of a request is derived from its launch, its machine and its candidate instance type and zone, so it is
+ * the same for every retry of the request.<br />
+ * The launch ID is new for each call of the driver, so a launch retried by the caller, i.e. by the ESM after a
+ * failure, has new tokens: it is a new launch, and the instance of the failed one is terminated by its own guard.
+ * 
+ */
+final class LaunchTokens {
+
+	/** The maximum length of a client token accepted by Amazon. */
+	static final int MAX_TOKEN_LENGTH = 64;
+
+	private LaunchTokens() {
+
+	}
+
+	/**
+	 * @param launchId
+	 *            The ID of the launch, <code>null</code> if the launch has none, in that case the token is unique.
+	 * @param machineName
+	 *            The name of the launched machine.
+	 * @param candidate
+	 *            The instance type and zone of the request.
+	 * @return The client token of the request, a SHA-1 hex digest shorter than {@link #MAX_TOKEN_LENGTH}.
+	 */
+	static String clientToken(final String launchId, final String machineName,
+			final ZoneCapacityTracker.Candidate candidate) {
+		final String launch = launchId == null ? LaunchContext.newLaunchId() : launchId;
+		return DigestUtils.shaHex(launch + '/' + machineName + '/' + candidate);
+	}
+}
@@ -13,27 +13,27 @@
 package org.cloudifysource.esc.driver.provisioning.privateEc2;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.StringUtils;
@@ -52,34 +52,33 @@ import org.cloudifysource.esc.driver.provisioning.ProvisioningContext;
 import org.cloudifysource.esc.driver.provisioning.ProvisioningContextAccess;
 import org.cloudifysource.esc.driver.provisioning.ProvisioningContextImpl;
 import org.cloudifysource.esc.driver.provisioning.ProvisioningDriver;
+import org.cloudifysource.esc.driver.provisioning.commons.ProvisioningScheduler;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.PrometheusEndpoint;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningEvents;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal.Transition;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.LaunchStateStore.Step;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.ProvisioningDeadline.Phase;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.metrics.AmazonClientInstrumentation;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
-import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Instance;
-import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Volume;
-import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.InstanceProperties;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
-import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.VolumeMapping;
-import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.VolumeProperties;
-import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2Client;
-import com.amazonaws.services.ec2.model.BlockDeviceMapping;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.DescribeTagsRequest;
 import com.amazonaws.services.ec2.model.DescribeTagsResult;
-import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
-import com.amazonaws.services.ec2.model.DescribeVolumesResult;
-import com.amazonaws.services.ec2.model.EbsBlockDevice;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.Placement;
 import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.RunInstancesResult;
@@ -87,8 +86,14 @@ import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TagDescription;
 import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
 import com.amazonaws.services.ec2.model.TerminateInstancesResult;
-import com.amazonaws.services.ec2.model.Volume;
+import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 /**
  * A custom Cloud Driver to provision Amazon EC2 machines using cloud formation templates.<br />
@@ -101,22 +106,34 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 		ProvisioningDriver, CustomServiceDataAware {
 
 	private static final int DEFAULT_CLOUDIFY_AGENT_PORT = 7002;
+	private static final int AGENT_PROBE_CONNECT_TIMEOUT = 2000;
 	private static final int AMAZON_EXCEPTION_CODE_400 = 400;
 	private static final int MAX_SERVERS_LIMIT = 200;
 	private static final long WAIT_STATUS_SLEEP_TIME = 5000L;
 
-	private static final String CLOUDIFY_ENV_SCRIPT = "cloudify_env.sh";
-	private static final String PATTERN_PROPS_JSON = "\\s*\\\"[\\w-]*\\\"\\s*:\\s*([^{(\\[\"][\\w-]+)\\s*,?";
-	private static final String VOLUME_PREFIX = "cloudify-storage-";
-
-	/** Key name for amazon tag resource's name. */
-	private static final String TK_NAME = "Name";
+	/** Error code of a RunInstances request when the availability zone has no capacity for the instance type. */
+	private static final String INSUFFICIENT_CAPACITY = "InsufficientInstanceCapacity";
+	/** Error code of a RunInstances request when the instance type isn't available in the availability zone. */
+	private static final String UNSUPPORTED = "Unsupported";
+	/** Error code of a RunInstances request when the quota of the instance type is reached. */
+	private static final String INSTANCE_LIMIT_EXCEEDED = "InstanceLimitExceeded";
+	/** Number of times a RunInstances request whose outcome is unknown is sent, with the same client token. */
+	private static final int MAX_RUN_ATTEMPTS = 3;
+	/** Delay in milliseconds before a RunInstances request whose outcome is unknown is sent again. */
+	private static final long RUN_RETRY_DELAY = 1000L;
+	/** Time given to the agent of the instance of an interrupted launch to be reachable. */
+	private static final long RECONCILE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	static final String CLOUDIFY_ENV_SCRIPT = "cloudify_env.sh";
+	private static final String METRICS_DRIVER_NAME = "privateEc2";
+	private static final String ARCHIVE_CREATE = "create";
+	private static final String ARCHIVE_UPLOAD = "upload";
 
 	/**
 	 * Enumeration for supported 'resource-type' value used in com.amazonaws.services.ec2.model.Filter parameter.
 	 */
 	private static enum TagResourceType {
-		INSTANCE, VOLUME;
+		INSTANCE;
 		public String getValue() {
 			return name().toLowerCase();
 		}
@@ -125,19 +142,41 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 	/** Counter for ec2 instances. */
 	private static AtomicInteger counter = new AtomicInteger(0);
 
-	/** Counter for storage instances. */
-	private static AtomicInteger volumeCounter = new AtomicInteger(0);
+	/** Map which contains all parsed CFN template, updated by the template watcher. */
+	private final ConcurrentMap<String, PrivateEc2Template> cfnTemplatePerService =
+			new ConcurrentHashMap<String, PrivateEc2Template>();
+
+	/** Latencies, API calls and operations in flight, exposed over JMX. */
+	private final ProvisioningMetrics metrics = ProvisioningMetrics.forDriver(METRICS_DRIVER_NAME);
 
-	/** Map which contains all parsed CFN template. */
-	private final Map<String, PrivateEc2Template> cfnTemplatePerService = new HashMap<String, PrivateEc2Template>();
+	/** Loader of the CFN templates of the custom data files. */
+	private final TemplateLoader templateLoader = TemplateLoader.withDefaultParallelism(this.metrics);
+
+	/** Scheduler which drives the asynchronous provisioning operations. */
+	private final ProvisioningScheduler scheduler = ProvisioningScheduler.forDriver(METRICS_DRIVER_NAME);
+	/** The zones which recently had no capacity, avoided by the next launches. */
+	private ZoneCapacityTracker zoneTracker =
+			new ZoneCapacityTracker(ZoneCapacityTracker.DEFAULT_COOLDOWN_MILLIS);
 
 	private AmazonEC2 ec2;
 	private AmazonS3Uploader amazonS3Uploader;
+	private PrometheusEndpoint prometheusEndpoint;
+	private AmazonClientFactory clientFactory = new DefaultAmazonClientFactory();
+	private ProvisioningJournal journal = ProvisioningJournal.DISABLED;
+	private LaunchStateStore launchStore = LaunchStateStore.DISABLED;
 
 	/** short name of the service (i.e without applicationName). */
 	private String serviceName;
 
-	private PrivateEc2Template privateEc2Template;
+	/** The custom data file of the services, watched for changes if the watch mode is enabled. */
+	private File customDataFile;
+	private TemplateWatcher templateWatcher;
+
+	private volatile PrivateEc2Template privateEc2Template;
+	/** The launch settings of the CFN template, evaluated once and swapped when the template is reloaded. */
+	private volatile LaunchPlan launchPlan;
+	/** Name of the CFN template used by this driver, to qualify its metrics. */
+	private String cfnTemplateName;
 	private Object cloudTemplateName;
 	private String cloudName;
 
@@ -147,6 +186,17 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 	 * ***
 	 */
 
+	/**
+	 * Sets the factory of the Amazon clients, i.e. to run against a simulated cloud. Must be called before
+	 * {@link #setConfig(Cloud, String, boolean, String)}.
+	 * 
+	 * @param clientFactory
+	 *            The factory of the Amazon clients.
+	 */
+	public void setAmazonClientFactory(final AmazonClientFactory clientFactory) {
+		this.clientFactory = clientFactory;
+	}
+
 	/**
 	 * Sets the custom data file for the cloud driver instance of a specific service.<br />
 	 * <p>
@@ -168,90 +218,15 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 	public void setCustomDataFile(final File customDataFile) {
 		logger.info("Received custom data file: " + customDataFile);
 
-		final Map<String, PrivateEc2Template> map = new HashMap<String, PrivateEc2Template>();
-		PrivateEc2Template mapJson = null;
-
+		final Map<String, PrivateEc2Template> map;
 		try {
-			if (customDataFile.isFile()) {
-				String templateName = this.getTemplatName(customDataFile);
-				logger.fine("Parsing CFN Template for service=" + templateName);
-				mapJson = ParserUtils.mapJson(PrivateEc2Template.class, customDataFile);
-				map.put(templateName, mapJson);
-			} else {
-				File[] listFiles = customDataFile.listFiles();
-				if (listFiles != null) {
-					for (File file : listFiles) {
-						if (this.isTemplateFile(file)) {
-							String templateName = this.getTemplatName(file);
-							logger.fine("Parsing CFN Template for service=" + templateName);
-
-							File pFile = this.getPropertiesFileIfExists(templateName, customDataFile.listFiles());
-							if (pFile != null) {
-								// Replace properties variable with values if the properties file exists
-								String templateString = this.replaceProperties(file, pFile);
-								mapJson = ParserUtils.mapJson(PrivateEc2Template.class, templateString);
-								map.put(templateName, mapJson);
-
-							} else {
-								mapJson = ParserUtils.mapJson(PrivateEc2Template.class, file);
-								map.put(templateName, mapJson);
-							}
-						}
-					}
-				}
-			}
-		} catch (Exception e) {
+			map = this.templateLoader.load(customDataFile);
+		} catch (final PrivateEc2ParserException e) {
 			logger.log(Level.SEVERE, "Couldn't parse the template file: " + customDataFile.getPath());
 			throw new IllegalStateException(e);
 		}
 		this.cfnTemplatePerService.putAll(map);
-	}
-
-	private String replaceProperties(final File file, final File propertiesFile) throws IOException {
-		logger.fine("Properties file=" + propertiesFile.getName());
-		Properties props = new Properties();
-		props.load(new FileInputStream(propertiesFile));
-
-		String templateString = FileUtils.readFileToString(file);
-
-		Pattern p = Pattern.compile(PATTERN_PROPS_JSON);
-		Matcher m = p.matcher(templateString);
-		while (m.find()) {
-			String group = m.group();
-			String group1 = m.group(1);
-			if (props.containsKey(group1)) {
-				String value = props.getProperty(group1);
-				if (logger.isLoggable(Level.FINEST)) {
-					logger.finest("Replacing property " + group + " by " + value);
-				}
-				templateString = m.replaceFirst(group.replace(group1, value));
-				m = p.matcher(templateString);
-			} else {
-				throw new IllegalStateException("Couldn't find property: " + group1);
-			}
-		}
-		return templateString;
-	}
-
-	private File getPropertiesFileIfExists(final String templateName, final File[] listFiles) {
-		String filename = templateName + "-cfn.properties";
-		for (File file : listFiles) {
-			if (filename.equals(file.getName())) {
-				return file;
-			}
-		}
-		return null;
-	}
-
-	private String getTemplatName(final File file) {
-		String name = file.getName();
-		name = name.replace("-cfn.template", "");
-		return name;
-	}
-
-	private boolean isTemplateFile(final File file) {
-		String name = file.getName();
-		return name.endsWith("-cfn.template");
+		this.customDataFile = customDataFile;
 	}
 
 	/** Testing purpose. */
@@ -296,19 +271,34 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 			if (management) {
 				String managerCfnTemplateFile = (String) managerTemplate.getCustom().get("cfnManagerTemplate");
 				this.privateEc2Template = this.getManagerPrivateEc2Template(managerCfnTemplateFile);
+				this.cfnTemplateName = TemplateLoader.templateName(new File(managerCfnTemplateFile));
 			} else {
 				this.privateEc2Template = cfnTemplatePerService.get(this.serviceName);
 				if (this.privateEc2Template == null) {
 					throw new IllegalArgumentException("CFN template not found for service:" + fullServiceName);
 				}
+				this.cfnTemplateName = this.serviceName;
 			}
+			this.launchPlan =
+					LaunchPlan.compile(this.privateEc2Template, (String) managerTemplate.getRemoteDirectory());
 			this.ec2 = this.createAmazonEC2();
+			final Object cooldown = this.cloud.getCustom().get(ZoneCapacityTracker.COOLDOWN_PROPERTY);
+			if (cooldown != null) {
+				this.zoneTracker = new ZoneCapacityTracker(Long.parseLong(cooldown.toString()));
+			}
+			if (!management) {
+				this.startTemplateWatcher((String) managerTemplate.getRemoteDirectory());
+			}
 
 			// Create s3 client
 			String locationId = (String) managerTemplate.getCustom().get("s3LocationId");
 			CloudUser user = this.cloud.getUser();
-			this.amazonS3Uploader = new AmazonS3Uploader(user.getUser(), user.getApiKey(), locationId);
+			AmazonS3 s3client = this.clientFactory.createS3(new BasicAWSCredentials(user.getUser(), user.getApiKey()));
+			this.amazonS3Uploader = new AmazonS3Uploader(s3client, user.getUser(), locationId, this.metrics);
 
+			this.startPrometheusEndpoint();
+			this.openJournal();
+			this.openLaunchStore();
 		} catch (CloudProvisioningException e) {
 			throw new IllegalArgumentException(e);
 		} catch (PrivateEc2ParserException e) {
@@ -319,6 +309,250 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 
 	}
 
+	/**
+	 * Starts watching the CFN templates if a polling interval is set in the cloud custom map. A changed template
+	 * replaces the previous one for the next launches, the launches in flight keep the prototype they started with.
+	 */
+	private void startTemplateWatcher(final String cloudFileDirectory) {
+		final Object interval = this.cloud.getCustom().get(TemplateWatcher.INTERVAL_PROPERTY);
+		if (interval == null || this.customDataFile == null || this.templateWatcher != null) {
+			return;
+		}
+		this.templateWatcher =
+				new TemplateWatcher(this.customDataFile, this.templateLoader, new TemplateWatcher.Listener() {
+					@Override
+					public void templateChanged(final String templateName, final PrivateEc2Template template) {
+						reloadTemplate(templateName, template, cloudFileDirectory);
+					}
+				});
+		this.templateWatcher.start(this.scheduler, Long.parseLong(interval.toString()));
+	}
+
+	/**
+	 * Replaces the template of a service. The launch plan of this driver is compiled again if the template is its
+	 * own, it is swapped as a whole so a launch sees either the previous or the new settings.
+	 * 
+	 * @param templateName
+	 *            The name of the service of the template.
+	 * @param template
+	 *            The new template.
+	 * @param cloudFileDirectory
+	 *            The remote directory of the cloud files, used in the user data of the instances.
+	 */
+	void reloadTemplate(final String templateName, final PrivateEc2Template template,
+			final String cloudFileDirectory) {
+		if (templateName.equals(this.cfnTemplateName)) {
+			final LaunchPlan plan;
+			try {
+				plan = LaunchPlan.compile(template, cloudFileDirectory);
+			} catch (final PrivateEc2ParserException e) {
+				logger.log(Level.WARNING, "Couldn't compile the reloaded CFN template of service=" + templateName
+						+ ", keeping the previous one", e);
+				return;
+			}
+			this.privateEc2Template = template;
+			this.launchPlan = plan;
+		}
+		this.cfnTemplatePerService.put(templateName, template);
+	}
+
+	private void stopTemplateWatcher() {
+		if (this.templateWatcher != null) {
+			this.templateWatcher.stop();
+			this.templateWatcher = null;
+		}
+	}
+
+	/**
+	 * Starts the Prometheus metrics endpoint if a port is set in the cloud custom map.
+	 */
+	private void startPrometheusEndpoint() throws IOException {
+		if (this.prometheusEndpoint != null) {
+			return;
+		}
+		final Object port = this.cloud.getCustom().get(PrometheusEndpoint.PORT_PROPERTY);
+		if (port != null) {
+			final Object bindAddress = this.cloud.getCustom().get(PrometheusEndpoint.BIND_ADDRESS_PROPERTY);
+			this.prometheusEndpoint = PrometheusEndpoint.acquire(bindAddress == null ? null : bindAddress.toString(),
+					Integer.parseInt(port.toString()), this.metrics);
+		}
+	}
+
+	/**
+	 * Opens the provisioning journal if a file is set in the cloud custom map.
+	 */
+	private void openJournal() throws IOException {
+		if (this.journal.isEnabled()) {
+			return;
+		}
+		final Object journalFile = this.cloud.getCustom().get(ProvisioningJournal.FILE_PROPERTY);
+		if (journalFile != null) {
+			final Object capacity = this.cloud.getCustom().get(ProvisioningJournal.CAPACITY_PROPERTY);
+			this.journal = ProvisioningJournal.acquire(new File(journalFile.toString()),
+					capacity == null ? ProvisioningJournal.DEFAULT_CAPACITY : Integer.parseInt(capacity.toString()));
+		}
+	}
+
+	/**
+	 * Opens the launch state store if a file is set in the cloud custom map. The launches interrupted by a previous
+	 * run are reconciled by the first driver which opens the store.
+	 */
+	private void openLaunchStore() throws IOException {
+		if (this.launchStore.isEnabled()) {
+			return;
+		}
+		final Object stateFile = this.cloud.getCustom().get(LaunchStateStore.FILE_PROPERTY);
+		if (stateFile != null) {
+			this.launchStore = LaunchStateStore.acquire(new File(stateFile.toString()));
+			if (this.launchStore.claimReconciliation()) {
+				this.reconcileLaunches();
+			}
+		}
+	}
+
+	/**
+	 * Reconciles the launches interrupted by a previous run of the driver, i.e. by a crash of the JVM, with EC2.<br />
+	 * Their instances are found by client token with a single request, then each launch is resolved, see
+	 * {@link LaunchStateStore.Resolution}: the instance of a failed launch is terminated, the instance of a launch in
+	 * flight is tagged if it wasn't and kept once its agent is reachable, or terminated if it never is. The archives
+	 * of the launches are deleted once they are resolved.
+	 */
+	private void reconcileLaunches() {
+		final List<LaunchStateStore.Launch> launches = this.launchStore.getPendingLaunches();
+		if (launches.isEmpty()) {
+			return;
+		}
+		logger.info("Reconciling " + launches.size() + " launch(es) interrupted by a previous run");
+		final List<String> clientTokens = new ArrayList<String>();
+		for (final LaunchStateStore.Launch launch : launches) {
+			clientTokens.addAll(launch.getClientTokens());
+		}
+		Futures.addCallback(this.scheduler.submit(new Callable<Map<String, Instance>>() {
+			@Override
+			public Map<String, Instance> call() {
+				final Map<String, Instance> instances = new HashMap<String, Instance>();
+				if (clientTokens.isEmpty()) {
+					return instances;
+				}
+				final DescribeInstancesResult result = ec2.describeInstances(new DescribeInstancesRequest()
+						.withFilters(new Filter("client-token", clientTokens)));
+				for (final Reservation reservation : result.getReservations()) {
+					for (final Instance instance : reservation.getInstances()) {
+						instances.put(instance.getClientToken(), instance);
+					}
+				}
+				return instances;
+			}
+		}), new FutureCallback<Map<String, Instance>>() {
+			@Override
+			public void onSuccess(final Map<String, Instance> instances) {
+				for (final LaunchStateStore.Launch launch : launches) {
+					reconcileLaunch(launch, instances);
+				}
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				logger.log(Level.WARNING, "Couldn't reconcile the interrupted launches, they will be reconciled at the"
+						+ " next start", t);
+			}
+		});
+	}
+
+	/**
+	 * @param instances
+	 *            The instances of the interrupted launches, by client token.
+	 */
+	private void reconcileLaunch(final LaunchStateStore.Launch launch, final Map<String, Instance> instances) {
+		Instance live = null;
+		for (final String clientToken : launch.getClientTokens()) {
+			final Instance instance = instances.get(clientToken);
+			if (instance != null && live == null) {
+				final InstanceStateType state = InstanceStateType.valueOf(instance.getState().getCode());
+				if (state == InstanceStateType.PENDING || state == InstanceStateType.RUNNING) {
+					live = instance;
+				}
+			}
+		}
+		final LaunchStateStore.Resolution resolution = launch.resolve(live != null);
+		logger.info("Interrupted launch of " + launch + ": " + resolution
+				+ (live == null ? "" : " instance " + live.getInstanceId()));
+		switch (resolution) {
+		case TERMINATE:
+			terminateInBackground(live.getInstanceId(), launch.getKey());
+			this.deleteArchive(launch);
+			break;
+		case ADOPT:
+		case FINISH:
+			this.resumeLaunch(launch, live, resolution == LaunchStateStore.Resolution.FINISH);
+			break;
+		case CLEAN_UP:
+		default:
+			if (live == null) {
+				// Nothing left to terminate
+				this.launchStore.record(Step.TERMINATED, launch.getKey());
+			}
+			this.deleteArchive(launch);
+			break;
+		}
+	}
+
+	/**
+	 * Resumes an interrupted launch whose instance is alive: the instance is tagged if it wasn't, then kept once its
+	 * agent is reachable. It is terminated if its agent isn't reachable in time.
+	 */
+	private void resumeLaunch(final LaunchStateStore.Launch launch, final Instance instance, final boolean tag) {
+		final String launchKey = launch.getKey();
+		final ProvisioningDeadline deadline =
+				new ProvisioningDeadline(RECONCILE_TIMEOUT, TimeUnit.MILLISECONDS, launch.getLaunchId(), this.journal);
+		final ListenableFuture<Instance> running =
+				deadline.phase(Phase.WAIT_RUNNING, waitRunningInstanceAsync(instance, deadline));
+		final ListenableFuture<Instance> tagged = Futures.transform(running, new Function<Instance, Instance>() {
+			@Override
+			public Instance apply(final Instance ec2Instance) {
+				if (tag && launch.getMachineName() != null) {
+					tagEC2Resources(ec2Instance, launch.getMachineName(), null, launch.getLaunchGroup());
+					launchStore.record(Step.TAGGED, launchKey);
+				}
+				return ec2Instance;
+			}
+		});
+		final ListenableFuture<Boolean> ready = Futures.transform(tagged, new AsyncFunction<Instance, Boolean>() {
+			@Override
+			public ListenableFuture<Boolean> apply(final Instance ec2Instance) {
+				return deadline.phase(Phase.AGENT_PROBE,
+						waitRunningAgentAsync(ec2Instance.getPublicIpAddress(), deadline));
+			}
+		});
+		Futures.addCallback(ready, new FutureCallback<Boolean>() {
+			@Override
+			public void onSuccess(final Boolean agentReachable) {
+				logger.info("Adopted instance " + instance.getInstanceId() + " of interrupted launch " + launch);
+				launchStore.record(Step.SUCCEEDED, launchKey);
+				deleteArchive(launch);
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				logger.log(Level.WARNING, "Instance " + instance.getInstanceId() + " of interrupted launch " + launch
+						+ " isn't ready", t);
+				launchStore.record(Step.FAILED, launchKey);
+				terminateInBackground(instance.getInstanceId(), launchKey);
+				deleteArchive(launch);
+			}
+		});
+	}
+
+	/**
+	 * Deletes the cloud files archive of an interrupted launch, if it wasn't.
+	 */
+	private void deleteArchive(final LaunchStateStore.Launch launch) {
+		if (launch.hasArchive()
+				&& this.amazonS3Uploader.deleteS3Object(launch.getArchiveBucket(), launch.getArchiveKey())) {
+			this.launchStore.record(Step.ARCHIVE_DELETED, launch.getKey());
+		}
+	}
+
 	private ComputeTemplate getManagerComputeTemplate() {
 		String managementMachineTemplate = this.cloud.getConfiguration().getManagementMachineTemplate();
 		ComputeTemplate managerTemplate =
@@ -336,17 +570,21 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 
 		logger.fine("Manager cfn template: " + file.getPath());
 
-		String templateName = this.getTemplatName(file);
-		File pFile = new File(file.getParent(), templateName + "-cfn.properties");
+		String templateName = TemplateLoader.templateName(file);
+		File pFile = new File(file.getParent(), templateName + TemplateLoader.PROPERTIES_SUFFIX);
 
 		logger.fine("Searching for manager cfn properties: " + file.getPath());
 
 		PrivateEc2Template mapJson = null;
 		if (pFile.exists()) {
 			// Replace properties variable with values if the properties file exists
-			String templateString = this.replaceProperties(file, pFile);
-			logger.fine("The template:\n" + templateString);
-			mapJson = ParserUtils.mapJson(PrivateEc2Template.class, templateString);
+			if (logger.isLoggable(Level.FINE)) {
+				String templateString = ParserUtils.replaceProperties(file, pFile);
+				logger.fine("The template:\n" + templateString);
+				mapJson = ParserUtils.mapJson(PrivateEc2Template.class, templateString);
+			} else {
+				mapJson = ParserUtils.mapJson(PrivateEc2Template.class, file, pFile);
+			}
 		} else {
 			mapJson = ParserUtils.mapJson(PrivateEc2Template.class, file);
 		}
@@ -372,7 +610,7 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 		CloudUser user = cloud.getUser();
 		AWSCredentials credentials = new BasicAWSCredentials(user.getUser(), user.getApiKey());
 
-		AmazonEC2 ec2 = new AmazonEC2Client(credentials);
+		AmazonEC2 ec2 = this.clientFactory.createEC2(credentials);
 
 		String endpoint = (String) cloud.getCustom().get("endpoint");
 		if (endpoint != null) {
@@ -381,14 +619,13 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 			Region region = this.getRegion();
 			ec2.setRegion(region);
 		}
-		return ec2;
+		return AmazonClientInstrumentation.instrument(AmazonEC2.class, ec2, this.metrics);
 	}
 
 	private Region getRegion() throws CloudProvisioningException {
-		AWSEC2Instance instance = this.privateEc2Template.getEC2Instance();
-		ValueType availabilityZoneObj = instance.getProperties().getAvailabilityZone();
-		if (availabilityZoneObj != null) {
-			Region region = RegionUtils.convertAvailabilityZone2Region(availabilityZoneObj.getValue());
+		String availabilityZone = this.launchPlan.getPrimary().getPrototype().getAvailabilityZone();
+		if (availabilityZone != null) {
+			Region region = RegionUtils.convertAvailabilityZone2Region(availabilityZone);
 			logger.info("Amazon ec2 region: " + region);
 			return region;
 		}
@@ -419,163 +656,442 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 	@Override
 	public MachineDetails startMachine(final String locationId, final long duration, final TimeUnit unit)
 			throws TimeoutException, CloudProvisioningException {
+		try {
+			return waitFor(this.startMachineAsync(locationId, duration, unit), duration, unit);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CloudProvisioningException("Interrupted while starting a new machine", e);
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #startMachine(String, long, TimeUnit)}.<br />
+	 * The returned future fails with a {@link TimeoutException} if the instance was not started in the allotted time
+	 * or with a {@link CloudProvisioningException} if a problem was encountered while starting the machine.<br />
+	 * If the template has several instances, they are all started, see
+	 * {@link #startMachinesAsync(String, long, TimeUnit)}, and the details of the first one are returned.
+	 * 
+	 * @param locationId
+	 *            the location to allocate the machine to.
+	 * @param duration
+	 *            Time duration to wait for the instance.
+	 * @param unit
+	 *            Time unit to wait for the instance.
+	 * 
+	 * @return A future of the details of the started instance.
+	 */
+	public ListenableFuture<MachineDetails> startMachineAsync(final String locationId, final long duration,
+			final TimeUnit unit) {
+		return Futures.transform(this.startMachinesAsync(locationId, duration, unit),
+				new Function<List<MachineDetails>, MachineDetails>() {
+					@Override
+					public MachineDetails apply(final List<MachineDetails> machines) {
+						return machines.get(0);
+					}
+				});
+	}
+
+	/**
+	 * Starts an instance for each <code>AWS::EC2::Instance</code> resource of the template.<br />
+	 * The instances are launched concurrently, except that an instance waits for the instances named by its
+	 * <code>DependsOn</code> attribute to be ready. They share the time budget of the launch. If one of them fails,
+	 * the launch fails and the others are terminated. The instances of a multi-instance template are tagged with the
+	 * launch id, so that stopping one of them stops them all.
+	 * 
+	 * @param locationId
+	 *            the location to allocate the machines to.
+	 * @param duration
+	 *            Time duration to wait for the instances.
+	 * @param unit
+	 *            Time unit to wait for the instances.
+	 * @return A future of the details of the started instances, in the template order.
+	 */
+	public ListenableFuture<List<MachineDetails>> startMachinesAsync(final String locationId, final long duration,
+			final TimeUnit unit) {
 		if (logger.isLoggable(Level.FINEST)) {
 			logger.finest("Stating new machine with the following thread: threadId=" + Thread.currentThread().getId()
 					+ " serviceName=" + this.serviceName);
 		}
 
-		String newName = this.createNewName(TagResourceType.INSTANCE, cloud.getProvider().getMachineNamePrefix());
-		ProvisioningContextImpl ctx =
+		final String launchId = LaunchContext.newLaunchId();
+		final ProvisioningDeadline deadline = new ProvisioningDeadline(duration, unit, launchId, this.journal);
+		final Object launchEvent = ProvisioningEvents.begin(ProvisioningEvents.Type.PROVISIONING);
+
+		// The provisioning context is bound to the calling thread
+		final ProvisioningContextImpl ctx =
 				(ProvisioningContextImpl) new ProvisioningContextAccess().getProvisioiningContext();
-		MachineDetails md = this.createServer(this.privateEc2Template, newName, ctx, false, duration, unit);
+		final LaunchPlan plan = this.launchPlan;
+		final String launchGroup = plan.isMultiInstance() ? launchId : null;
+		final String templateName = this.cfnTemplateName;
+		final String machineNamePrefix = cloud.getProvider().getMachineNamePrefix();
 
-		logger.fine("[" + md.getMachineId() + "] Cloud Server is allocated.");
-		return md;
+		this.metrics.enter(ProvisioningMetrics.LAUNCHES);
+		deadline.journal(Transition.LAUNCH_STARTED, templateName, null);
+
+		// Every task of the launch is submitted with its launch id
+		final String previousLaunchId = LaunchContext.enter(launchId);
+		try {
+			// The tiers are created after their dependencies
+			final Map<String, ListenableFuture<MachineDetails>> launched =
+					new HashMap<String, ListenableFuture<MachineDetails>>();
+			for (final LaunchPlan.Tier tier : plan.getLaunchOrder()) {
+				final List<ListenableFuture<MachineDetails>> dependencies =
+						new ArrayList<ListenableFuture<MachineDetails>>(tier.getDependencies().size());
+				for (final String dependency : tier.getDependencies()) {
+					dependencies.add(launched.get(dependency));
+				}
+				launched.put(tier.getName(), this.launchTierAsync(tier, dependencies, machineNamePrefix, ctx,
+						launchGroup, deadline));
+			}
+			final List<ListenableFuture<MachineDetails>> tiers =
+					new ArrayList<ListenableFuture<MachineDetails>>(plan.getTiers().size());
+			for (final LaunchPlan.Tier tier : plan.getTiers()) {
+				tiers.add(launched.get(tier.getName()));
+			}
+
+			final ListenableFuture<List<MachineDetails>> future = Futures.allAsList(tiers);
+			Futures.addCallback(future, new FutureCallback<List<MachineDetails>>() {
+				@Override
+				public void onSuccess(final List<MachineDetails> machines) {
+					final MachineDetails md = machines.get(0);
+					logger.fine("[" + md.getMachineId() + "] Cloud Server is allocated. Phase times (ms): "
+							+ deadline.getPhaseTimes() + " launchId=" + launchId);
+					metrics.exit(ProvisioningMetrics.LAUNCHES);
+					recordLaunchMetrics(deadline, templateName, true);
+					deadline.journal(Transition.LAUNCH_SUCCEEDED, md.getMachineId(), null);
+					ProvisioningEvents.commit(launchEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.LAUNCH,
+							templateName, ProvisioningEvents.status(null));
+				}
+
+				@Override
+				public void onFailure(final Throwable t) {
+					logger.log(Level.FINE, "Failed to start a new machine. Phase times (ms): "
+							+ deadline.getPhaseTimes() + " launchId=" + launchId, t);
+					abandonTiers(tiers);
+					metrics.exit(ProvisioningMetrics.LAUNCHES);
+					recordLaunchMetrics(deadline, templateName, false);
+					deadline.journal(Transition.LAUNCH_FAILED, null, ProvisioningEvents.status(t));
+					ProvisioningEvents.commit(launchEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.LAUNCH,
+							templateName, ProvisioningEvents.status(t));
+				}
+			});
+			return future;
+		} finally {
+			LaunchContext.restore(previousLaunchId);
+		}
+	}
+
+	/**
+	 * Launches the instance of a tier once its dependencies are ready.
+	 */
+	private ListenableFuture<MachineDetails> launchTierAsync(final LaunchPlan.Tier tier,
+			final List<ListenableFuture<MachineDetails>> dependencies, final String machineNamePrefix,
+			final ProvisioningContextImpl ctx, final String launchGroup, final ProvisioningDeadline deadline) {
+		final Callable<String> newNameTask = new Callable<String>() {
+			@Override
+			public String call() throws CloudProvisioningException {
+				return createNewName(TagResourceType.INSTANCE, machineNamePrefix);
+			}
+		};
+		final ListenableFuture<String> newName;
+		if (dependencies.isEmpty()) {
+			newName = this.scheduler.submit(newNameTask);
+		} else {
+			newName = Futures.transform(Futures.allAsList(dependencies),
+					new AsyncFunction<List<MachineDetails>, String>() {
+						@Override
+						public ListenableFuture<String> apply(final List<MachineDetails> ready) {
+							logger.fine("Launching instance " + tier.getName() + " after " + tier.getDependencies());
+							return scheduler.submit(newNameTask);
+						}
+					});
+		}
+		return Futures.transform(newName, new AsyncFunction<String, MachineDetails>() {
+			@Override
+			public ListenableFuture<MachineDetails> apply(final String machineName) {
+				return createServerAsync(tier.getPrototype(), machineName, ctx, false, launchGroup, deadline);
+			}
+		});
+	}
+
+	/**
+	 * Cancels the tiers of a failed launch and terminates the instances of the tiers which are already started. The
+	 * instance of a cancelled tier is terminated by its launch, see {@link LaunchGuard}.
+	 */
+	private void abandonTiers(final List<ListenableFuture<MachineDetails>> tiers) {
+		for (final ListenableFuture<MachineDetails> tier : tiers) {
+			if (!tier.cancel(true) && !tier.isCancelled()) {
+				try {
+					terminateInBackground(tier.get().getMachineId());
+				} catch (final ExecutionException e) {
+					// This tier failed, it has no instance left
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records the time spent in each phase of a launch and, if it succeeded, the time of the whole launch.
+	 */
+	private void recordLaunchMetrics(final ProvisioningDeadline deadline, final String templateName,
+			final boolean succeeded) {
+		for (final Map.Entry<Phase, Long> phaseTime : deadline.getPhaseTimes().entrySet()) {
+			this.metrics.recordLatency(phaseTime.getKey().name(), templateName, phaseTime.getValue());
+		}
+		if (succeeded) {
+			this.metrics.recordLatency(ProvisioningMetrics.LAUNCH, templateName, deadline.getElapsedMillis());
+		}
 	}
 
 	@Override
 	public boolean stopMachine(final String serverIp, final long duration, final TimeUnit unit)
 			throws CloudProvisioningException,
 			TimeoutException, InterruptedException {
+		return waitFor(this.stopMachineAsync(serverIp, duration, unit), duration, unit);
+	}
+
+	/**
+	 * Asynchronous version of {@link #stopMachine(String, long, TimeUnit)}.
+	 * 
+	 * @param serverIp
+	 *            The private ip of the machine to stop.
+	 * @param duration
+	 *            Time duration to wait for the instance to shutdown.
+	 * @param unit
+	 *            Time unit to wait for the instance to shutdown.
+	 * @return A future which is set to <code>true</code> once the machine is stopped.
+	 */
+	public ListenableFuture<Boolean> stopMachineAsync(final String serverIp, final long duration,
+			final TimeUnit unit) {
 		if (logger.isLoggable(Level.FINEST)) {
 			logger.finest("Stopping new machine with the following thread: threadId=" + Thread.currentThread().getId()
 					+ " serviceName=" + this.serviceName
 					+ " serverIp=" + serverIp);
 		}
+		final long startTime = System.currentTimeMillis();
+		final long endTime = startTime + unit.toMillis(duration);
+		final String templateName = this.cfnTemplateName;
+
+		final String launchId = LaunchContext.newLaunchId();
+		final Object stopEvent = ProvisioningEvents.begin(ProvisioningEvents.Type.PROVISIONING);
+		final ProvisioningJournal stopJournal = this.journal;
 
+		this.metrics.enter(ProvisioningMetrics.STOPS);
+		stopJournal.record(Transition.STOP_STARTED, launchId, serverIp, null);
+		final String previousLaunchId = LaunchContext.enter(launchId);
+		try {
+			final ListenableFuture<String> terminating = this.scheduler.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return terminateInstanceByIp(serverIp);
+				}
+			});
+			final ListenableFuture<Boolean> stopped =
+					Futures.transform(terminating, new AsyncFunction<String, Boolean>() {
+						@Override
+						public ListenableFuture<Boolean> apply(final String instanceId) {
+							if (instanceId == null) {
+								return Futures.immediateFuture(Boolean.TRUE);
+							}
+							stopJournal.record(Transition.MACHINE_TERMINATING, launchId, instanceId, null);
+							// FIXME By default, cloudify doesn't delete tags. So we should keep it that way.
+							return waitStopInstanceStatusAsync(instanceId, endTime);
+						}
+					});
+			Futures.addCallback(stopped, new FutureCallback<Boolean>() {
+				@Override
+				public void onSuccess(final Boolean result) {
+					metrics.exit(ProvisioningMetrics.STOPS);
+					metrics.recordLatency(ProvisioningMetrics.STOP, templateName, System.currentTimeMillis()
+							- startTime);
+					stopJournal.record(Transition.STOP_SUCCEEDED, launchId, serverIp, null);
+					ProvisioningEvents.commit(stopEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.STOP,
+							templateName, ProvisioningEvents.status(null));
+				}
+
+				@Override
+				public void onFailure(final Throwable t) {
+					metrics.exit(ProvisioningMetrics.STOPS);
+					stopJournal.record(Transition.STOP_FAILED, launchId, serverIp, ProvisioningEvents.status(t));
+					ProvisioningEvents.commit(stopEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.STOP,
+							templateName, ProvisioningEvents.status(t));
+				}
+			});
+			return stopped;
+		} finally {
+			LaunchContext.restore(previousLaunchId);
+		}
+	}
+
+	/**
+	 * Terminates the instance with the given private ip. The other instances of its launch group, if it was launched
+	 * with a multi-instance template, are terminated by the same request.
+	 * 
+	 * @return The id of the terminating instance or <code>null</code> if there is no instance to stop.
+	 */
+	private String terminateInstanceByIp(final String serverIp) {
 		logger.info("Stopping instance server ip = " + serverIp + "...");
 		DescribeInstancesRequest describeInstance = new DescribeInstancesRequest();
 		describeInstance.withFilters(new Filter("private-ip-address", Arrays.asList(serverIp)));
 		DescribeInstancesResult describeInstances = ec2.describeInstances(describeInstance);
 
-		Reservation reservation = describeInstances.getReservations().get(0);
-		if (reservation != null && reservation.getInstances().get(0) != null) {
+		// No match means the instance is already gone: stopping it again is a no-op
+		for (final Reservation reservation : describeInstances.getReservations()) {
+			if (reservation.getInstances().isEmpty()) {
+				continue;
+			}
+			final Instance instance = reservation.getInstances().get(0);
+			final List<String> instanceIds = new ArrayList<String>();
+			instanceIds.add(instance.getInstanceId());
+			final String launchGroup = getTagValue(instance, TagPlan.TK_LAUNCH_GROUP);
+			if (launchGroup != null) {
+				instanceIds.addAll(this.getLaunchGroupInstanceIds(launchGroup, instance.getInstanceId()));
+				logger.info("Stopping the instances of launch group " + launchGroup + ": " + instanceIds);
+			}
 			TerminateInstancesRequest tir = new TerminateInstancesRequest();
-			tir.withInstanceIds(reservation.getInstances().get(0).getInstanceId());
-			TerminateInstancesResult terminateInstances = ec2.terminateInstances(tir);
-
-			String instanceId = terminateInstances.getTerminatingInstances().get(0).getInstanceId();
+			tir.withInstanceIds(instanceIds);
+			ec2.terminateInstances(tir);
+			return instance.getInstanceId();
+		}
+		logger.warning("No instance to stop with ip " + serverIp + ", considering it already terminated");
+		return null;
+	}
 
-			try {
-				this.waitStopInstanceStatus(instanceId, duration, unit);
-			} finally {
-				// FIXME By default, cloudify doesn't delete tags. So we should keep it that way.
-				// Remove instance Tags
-				// if (!terminateInstances.getTerminatingInstances().isEmpty()) {
-				// logger.fine("Deleting tags for instance id=" + instanceId);
-				// DeleteTagsRequest deleteTagsRequest = new DeleteTagsRequest();
-				// deleteTagsRequest.setResources(Arrays.asList(instanceId));
-				// ec2.deleteTags(deleteTagsRequest);
-				// }
+	/**
+	 * @return The ids of the instances tagged with a launch group, except the given one.
+	 */
+	private List<String> getLaunchGroupInstanceIds(final String launchGroup, final String excludedInstanceId) {
+		final DescribeInstancesRequest request = new DescribeInstancesRequest();
+		request.withFilters(new Filter("tag:" + TagPlan.TK_LAUNCH_GROUP, Arrays.asList(launchGroup)));
+		final List<String> instanceIds = new ArrayList<String>();
+		for (final Reservation resa : ec2.describeInstances(request).getReservations()) {
+			for (final Instance groupInstance : resa.getInstances()) {
+				if (!groupInstance.getInstanceId().equals(excludedInstanceId)) {
+					instanceIds.add(groupInstance.getInstanceId());
+				}
 			}
-
-		} else {
-			logger.warning("No instance to stop: " + reservation);
 		}
-		return true;
+		return instanceIds;
 	}
 
-	private void waitStopInstanceStatus(final String instanceId, final long duration, final TimeUnit unit)
-			throws CloudProvisioningException, TimeoutException {
-		long endTime = System.currentTimeMillis() + unit.toMillis(duration);
-		while (System.currentTimeMillis() < endTime) {
-
-			DescribeInstancesRequest describeRequest = new DescribeInstancesRequest();
-			describeRequest.withInstanceIds(instanceId);
-			DescribeInstancesResult describeInstances = ec2.describeInstances(describeRequest);
+	private static String getTagValue(final Instance instance, final String key) {
+		for (final Tag tag : instance.getTags()) {
+			if (key.equals(tag.getKey())) {
+				return tag.getValue();
+			}
+		}
+		return null;
+	}
 
-			for (Reservation resa : describeInstances.getReservations()) {
-				for (Instance instance : resa.getInstances()) {
-					InstanceStateType state = InstanceStateType.valueOf(instance.getState().getCode());
-					if (logger.isLoggable(Level.FINEST)) {
-						logger.finest("instance= " + instance.getInstanceId() + " state=" + state);
-					}
-					switch (state) {
-					case PENDING:
-					case RUNNING:
-					case STOPPING:
-					case SHUTTING_DOWN:
-						this.sleep();
-						break;
-					case STOPPED:
-					case TERMINATED:
+	private ListenableFuture<Boolean> waitStopInstanceStatusAsync(final String instanceId, final long endTime) {
+		return this.scheduler.poll("WAIT_STOPPED", new ProvisioningScheduler.Poller<Boolean>() {
+			@Override
+			public Boolean poll() throws CloudProvisioningException {
+				DescribeInstancesRequest describeRequest = new DescribeInstancesRequest();
+				describeRequest.withInstanceIds(instanceId);
+				DescribeInstancesResult describeInstances = ec2.describeInstances(describeRequest);
+
+				for (Reservation resa : describeInstances.getReservations()) {
+					for (Instance instance : resa.getInstances()) {
+						InstanceStateType state = InstanceStateType.valueOf(instance.getState().getCode());
 						if (logger.isLoggable(Level.FINEST)) {
-							logger.finest("instance (id=" + instanceId + ") was shutdown");
+							logger.finest("instance= " + instance.getInstanceId() + " state=" + state);
 						}
-						return;
-					default:
-						throw new CloudProvisioningException("Failed to stop server - Cloud reported node in "
-								+ state.getName() + " state.");
+						switch (state) {
+						case PENDING:
+						case RUNNING:
+						case STOPPING:
+						case SHUTTING_DOWN:
+							break;
+						case STOPPED:
+						case TERMINATED:
+							if (logger.isLoggable(Level.FINEST)) {
+								logger.finest("instance (id=" + instanceId + ") was shutdown");
+							}
+							return Boolean.TRUE;
+						default:
+							throw new CloudProvisioningException("Failed to stop server - Cloud reported node in "
+									+ state.getName() + " state.");
 
-					}
+						}
 
+					}
 				}
+				return null;
 			}
-		}
-
-		throw new TimeoutException("Stopping instace timed out (id=" + instanceId + ")");
+		}, 0L, WAIT_STATUS_SLEEP_TIME, endTime, "Stopping instace timed out (id=" + instanceId + ")");
 	}
 
-	private void sleep() {
+	/**
+	 * Waits for the result of an asynchronous provisioning operation, at most for its time budget.<br />
+	 * The cause of a failed operation is thrown as is if it is a cloud provisioning failure, a timeout or a runtime
+	 * exception. The operation is cancelled if it is still running when the time is over or if the waiting thread is
+	 * interrupted.
+	 */
+	private static <T> T waitFor(final Future<T> future, final long timeout, final TimeUnit unit)
+			throws TimeoutException, CloudProvisioningException, InterruptedException {
 		try {
-			if (logger.isLoggable(Level.FINEST)) {
-				logger.finest("sleeping...");
+			return future.get(timeout, unit);
+		} catch (final TimeoutException e) {
+			future.cancel(true);
+			throw e;
+		} catch (final InterruptedException e) {
+			// The caller gave up, stop the operation
+			future.cancel(true);
+			throw e;
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof TimeoutException) {
+				throw (TimeoutException) cause;
+			} else if (cause instanceof CloudProvisioningException) {
+				throw (CloudProvisioningException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
 			}
-			Thread.sleep(WAIT_STATUS_SLEEP_TIME);
-		} catch (InterruptedException e) {
-			Thread.currentThread().interrupt();
+			throw new CloudProvisioningException(cause);
 		}
 	}
 
-	private MachineDetails createServer(final PrivateEc2Template cfnTemplate, final String machineName,
-			final ProvisioningContextImpl ctx, final boolean management, final long duration, final TimeUnit unit)
-			throws CloudProvisioningException, TimeoutException {
-		Instance ec2Instance = this.createEC2Instance(cfnTemplate, ctx, management, machineName, duration, unit);
-
-		MachineDetails md = new MachineDetails();
-		md.setMachineId(ec2Instance.getInstanceId());
-		md.setPrivateAddress(ec2Instance.getPrivateIpAddress());
-		md.setPublicAddress(ec2Instance.getPublicIpAddress());
-		md.setAgentRunning(true);
-		md.setCloudifyInstalled(true);
-		return md;
-	}
-
-	private void tagEC2Instance(final Instance ec2Instance, final String ec2InstanceName,
-			final AWSEC2Instance templateInstance)
-			throws CloudProvisioningException {
-		List<Tag> additionalTags = Arrays.asList(new Tag(TK_NAME, ec2InstanceName));
-		this.createEC2Tags(ec2Instance.getInstanceId(), templateInstance.getProperties().getTags(), additionalTags);
-	}
-
-	private void tagEC2Volumes(final String instanceId, final PrivateEc2Template cfnTemplate)
-			throws CloudProvisioningException {
-
-		List<VolumeMapping> volumeMappings = cfnTemplate.getEC2Instance().getProperties().getVolumes();
-		if (volumeMappings != null) {
-			DescribeVolumesRequest request = new DescribeVolumesRequest();
-			request.withFilters(new Filter("attachment.instance-id", Arrays.asList(instanceId)));
-			DescribeVolumesResult describeVolumes = ec2.describeVolumes(request);
-
-			for (Volume volume : describeVolumes.getVolumes()) {
-				String volumeRef = null;
-				for (VolumeMapping vMap : volumeMappings) {
-					String device = volume.getAttachments().get(0).getDevice();
-					if (device.equals(vMap.getDevice().getValue())) {
-						volumeRef = vMap.getVolumeId().getValue();
-						break;
-					}
-				}
-				if (volumeRef != null) {
-					AWSEC2Volume ec2Volume = cfnTemplate.getEC2Volume(volumeRef);
-					List<org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Tag> templateTags =
-							ec2Volume == null ? null : ec2Volume
-									.getProperties().getTags();
-					List<Tag> additionalTags =
-							Arrays.asList(new Tag(TK_NAME, this.createNewName(TagResourceType.VOLUME, VOLUME_PREFIX)));
-					this.createEC2Tags(volume.getVolumeId(), templateTags, additionalTags);
+	/**
+	 * @param launchGroup
+	 *            The id tagging the instances launched together, <code>null</code> if the instance is launched alone.
+	 */
+	private ListenableFuture<MachineDetails> createServerAsync(final LaunchPrototype prototype,
+			final String machineName, final ProvisioningContextImpl ctx, final boolean management,
+			final String launchGroup, final ProvisioningDeadline deadline) {
+		final ListenableFuture<Instance> instance =
+				this.createEC2InstanceAsync(prototype, ctx, management, machineName, launchGroup, deadline);
+		return Futures.transform(instance, new Function<Instance, MachineDetails>() {
+			@Override
+			public MachineDetails apply(final Instance ec2Instance) {
+				PrivateEc2MachineDetails md = new PrivateEc2MachineDetails();
+				md.setMachineId(ec2Instance.getInstanceId());
+				md.setInstanceType(ec2Instance.getInstanceType());
+				if (ec2Instance.getPlacement() != null) {
+					md.setAvailabilityZone(ec2Instance.getPlacement().getAvailabilityZone());
 				}
+				md.setPrivateAddress(ec2Instance.getPrivateIpAddress());
+				md.setPublicAddress(ec2Instance.getPublicIpAddress());
+				md.setAgentRunning(true);
+				md.setCloudifyInstalled(true);
+				return md;
 			}
+		});
+	}
+
+	/**
+	 * Tags a launched instance and its template volumes, see {@link TagPlan}.
+	 */
+	private void tagEC2Resources(final Instance ec2Instance, final String ec2InstanceName,
+			final LaunchPrototype prototype, final String launchGroup) {
+		final TagPlan plan = TagPlan.forLaunch(ec2Instance, ec2InstanceName, prototype, launchGroup);
+		logger.fine("Tag instance " + ec2Instance.getInstanceId() + ": " + plan);
+		for (final CreateTagsRequest request : plan.getRequests()) {
+			this.ec2.createTags(request);
 		}
 	}
 
@@ -589,17 +1105,7 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 			// counter = (counter + 1) % MAX_SERVERS_LIMIT;
 			++attempts;
 
-			switch (resourceType) {
-			case INSTANCE:
-				newName = prefix + counter.incrementAndGet();
-				break;
-			case VOLUME:
-				newName = prefix + volumeCounter.incrementAndGet();
-				break;
-			default:
-				// not possible
-				throw new CloudProvisioningException("ResourceType not supported");
-			}
+			newName = prefix + counter.incrementAndGet();
 
 			// verifying this server name is not already used
 			DescribeTagsRequest tagRequest = new DescribeTagsRequest();
@@ -620,70 +1126,45 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 		return newName;
 	}
 
-	private void createEC2Tags(final String resourceId,
-			final List<org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Tag> templateTags,
-			final List<Tag> additionalTags) {
-		List<Tag> tags = new ArrayList<Tag>();
-
-		if (templateTags != null) {
-			for (org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Tag tag : templateTags) {
-				tags.add(tag.convertToEC2Model());
-			}
-		}
-
-		if (additionalTags != null) {
-			tags.addAll(additionalTags);
-		}
-
-		if (!tags.isEmpty()) {
-			logger.fine("Tag resourceId=" + resourceId + " tags=" + tags);
-			CreateTagsRequest ctr = new CreateTagsRequest();
-			ctr.setTags(tags);
-			ctr.withResources(resourceId);
-			this.ec2.createTags(ctr);
-		}
-	}
-
-	private Instance waitRunningInstance(final Instance ec2instance, final long duration, final TimeUnit unit)
-			throws CloudProvisioningException, TimeoutException {
-		long endTime = System.currentTimeMillis() + unit.toMillis(duration);
-
-		while (System.currentTimeMillis() < endTime) {
-			// Sleep before requesting the instance description
-			// because we can get a AWS Error Code: InvalidInstanceID.NotFound if the request is too early.
-			this.sleep();
-
-			DescribeInstancesRequest describeRequest = new DescribeInstancesRequest();
-			describeRequest.setInstanceIds(Arrays.asList(ec2instance.getInstanceId()));
-			DescribeInstancesResult describeInstances = this.ec2.describeInstances(describeRequest);
+	private ListenableFuture<Instance> waitRunningInstanceAsync(final Instance ec2instance,
+			final ProvisioningDeadline deadline) {
+		// Sleep before requesting the instance description
+		// because we can get a AWS Error Code: InvalidInstanceID.NotFound if the request is too early.
+		return this.scheduler.poll(Phase.WAIT_RUNNING.name(), new ProvisioningScheduler.Poller<Instance>() {
+			@Override
+			public Instance poll() throws CloudProvisioningException {
+				DescribeInstancesRequest describeRequest = new DescribeInstancesRequest();
+				describeRequest.setInstanceIds(Arrays.asList(ec2instance.getInstanceId()));
+				DescribeInstancesResult describeInstances = ec2.describeInstances(describeRequest);
+
+				for (Reservation resa : describeInstances.getReservations()) {
+					for (Instance instance : resa.getInstances()) {
+						InstanceStateType state = InstanceStateType.valueOf(instance.getState().getCode());
+						if (logger.isLoggable(Level.FINER)) {
+							logger.finer("instance= " + instance.getInstanceId() + " state=" + state);
+						}
+						switch (state) {
+						case PENDING:
+							break;
+						case RUNNING:
+							logger.fine("running okay...");
+							return instance;
+						case STOPPING:
+						case SHUTTING_DOWN:
+						case TERMINATED:
+						case STOPPED:
+						default:
+							throw new CloudProvisioningException("Failed to allocate server - Cloud reported node in "
+									+ state.getName() + " state. Node details: "
+									+ ec2instance);
+						}
 
-			for (Reservation resa : describeInstances.getReservations()) {
-				for (Instance instance : resa.getInstances()) {
-					InstanceStateType state = InstanceStateType.valueOf(instance.getState().getCode());
-					if (logger.isLoggable(Level.FINER)) {
-						logger.finer("instance= " + instance.getInstanceId() + " state=" + state);
-					}
-					switch (state) {
-					case PENDING:
-						break;
-					case RUNNING:
-						logger.fine("running okay...");
-						return instance;
-					case STOPPING:
-					case SHUTTING_DOWN:
-					case TERMINATED:
-					case STOPPED:
-					default:
-						throw new CloudProvisioningException("Failed to allocate server - Cloud reported node in "
-								+ state.getName() + " state. Node details: "
-								+ ec2instance);
 					}
-
 				}
+				return null;
 			}
-		}
-
-		throw new TimeoutException("Node failed to reach RUNNING mode in time");
+		}, Math.min(WAIT_STATUS_SLEEP_TIME, deadline.remainingMillis()), WAIT_STATUS_SLEEP_TIME, deadline.getEndTime(),
+				"Node failed to reach RUNNING mode in time");
 	}
 
 	private MachineDetails[] getManagementServersMachineDetails() throws CloudProvisioningException {
@@ -748,134 +1229,468 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 		return md;
 	}
 
-	private Instance createEC2Instance(final PrivateEc2Template cfnTemplate, final ProvisioningContextImpl ctx,
-			final boolean management, final String machineName, final long duration, final TimeUnit unit)
-			throws CloudProvisioningException, TimeoutException {
+	private ListenableFuture<Instance> createEC2InstanceAsync(final LaunchPrototype prototype,
+			final ProvisioningContextImpl ctx, final boolean management, final String machineName,
+			final String launchGroup, final ProvisioningDeadline deadline) {
+		final String launchKey = LaunchStateStore.key(deadline.getLaunchId(), machineName);
+		this.launchStore.record(Step.STARTED, launchKey, machineName, launchGroup);
+		final ListenableFuture<S3Object> uploaded = this.scheduler.submit(deadline.phase(Phase.UPLOAD,
+				new Callable<S3Object>() {
+					@Override
+					public S3Object call() throws CloudProvisioningException {
+						return uploadCloudFiles(prototype, ctx, management, launchKey);
+					}
+				}));
+		Futures.addCallback(uploaded, new FutureCallback<S3Object>() {
+			@Override
+			public void onSuccess(final S3Object s3Object) {
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				// Nothing was launched
+				launchStore.record(Step.TERMINATED, launchKey);
+			}
+		});
+		return Futures.transform(uploaded, new AsyncFunction<S3Object, Instance>() {
+			@Override
+			public ListenableFuture<Instance> apply(final S3Object s3Object) {
+				final ListenableFuture<Instance> ready =
+						launchEC2InstanceAsync(prototype, machineName, s3Object, launchGroup, launchKey, deadline);
+				if (s3Object != null) {
+					ready.addListener(new Runnable() {
+						@Override
+						public void run() {
+							if (amazonS3Uploader.deleteS3Object(s3Object.getBucketName(), s3Object.getKey())) {
+								launchStore.record(Step.ARCHIVE_DELETED, launchKey);
+							}
+						}
+					}, MoreExecutors.sameThreadExecutor());
+				}
+				return ready;
+			}
+		});
+	}
+
+	/**
+	 * @param launchKey
+	 *            The key of the launch in the launch state store, see {@link LaunchStateStore#key(String, String)}.
+	 */
+	private ListenableFuture<Instance> launchEC2InstanceAsync(final LaunchPrototype prototype,
+			final String machineName, final S3Object s3Object, final String launchGroup, final String launchKey,
+			final ProvisioningDeadline deadline) {
+		final LaunchGuard guard = new LaunchGuard(deadline, launchKey);
+		final ListenableFuture<Instance> pending = deadline.phase(Phase.RUN, this.scheduler.poll("RunInstances",
+				new RunInstancesPoller(prototype, machineName, s3Object, guard), 0L, RUN_RETRY_DELAY,
+				deadline.getEndTime(), "Launch of " + machineName + " timed out"));
+		final ListenableFuture<Instance> running = Futures.transform(pending, new AsyncFunction<Instance, Instance>() {
+			@Override
+			public ListenableFuture<Instance> apply(final Instance ec2Instance) throws TimeoutException {
+				deadline.checkRemaining(Phase.WAIT_RUNNING);
+				return deadline.phase(Phase.WAIT_RUNNING, waitRunningInstanceAsync(ec2Instance, deadline));
+			}
+		});
+		final ListenableFuture<Instance> tagged = Futures.transform(running, new AsyncFunction<Instance, Instance>() {
+			@Override
+			public ListenableFuture<Instance> apply(final Instance ec2Instance) {
+				return scheduler.submit(deadline.phase(Phase.TAG, new Callable<Instance>() {
+					@Override
+					public Instance call() throws CloudProvisioningException {
+						tagEC2Resources(ec2Instance, machineName, prototype, launchGroup);
+						launchStore.record(Step.TAGGED, launchKey);
+						return ec2Instance;
+					}
+				}));
+			}
+		});
+		final ListenableFuture<Instance> ready = Futures.transform(tagged, new AsyncFunction<Instance, Instance>() {
+			@Override
+			public ListenableFuture<Instance> apply(final Instance ec2Instance) throws TimeoutException {
+				deadline.checkRemaining(Phase.AGENT_PROBE);
+				final ListenableFuture<Boolean> agentRunning =
+						waitRunningAgentAsync(ec2Instance.getPublicIpAddress(), deadline);
+				return Futures.transform(deadline.phase(Phase.AGENT_PROBE, agentRunning),
+						new Function<Boolean, Instance>() {
+							@Override
+							public Instance apply(final Boolean agentReachable) {
+								return ec2Instance;
+							}
+						});
+			}
+		});
+		Futures.addCallback(ready, new FutureCallback<Instance>() {
+			@Override
+			public void onSuccess(final Instance ec2Instance) {
+				launchStore.record(Step.SUCCEEDED, launchKey);
+			}
 
-		final InstanceProperties properties = cfnTemplate.getEC2Instance().getProperties();
+			@Override
+			public void onFailure(final Throwable t) {
+				// Cancelled, timed out or failed: don't leave a half-built instance behind
+				launchStore.record(Step.FAILED, launchKey);
+				guard.abandoned();
+			}
+		});
+		return ready;
+	}
 
-		final String availabilityZone = properties.getAvailabilityZone() == null
-				? null : properties.getAvailabilityZone().getValue();
-		final Placement placement = availabilityZone == null ? null : new Placement(availabilityZone);
+	/**
+	 * Keeps track of the instance created by a launch so that it gets terminated if the launch is abandoned.<br />
+	 * The launch may be abandoned while the RunInstances request is still running, in that case the instance is
+	 * terminated as soon as the request returns. If the launch is abandoned while the outcome of a request is unknown,
+	 * the instance launched by the request, if any, is found by its client token and terminated.<br />
+	 * The requests, the instance and its termination are recorded in the launch state store.
+	 */
+	private final class LaunchGuard {
 
-		final String imageId = properties.getImageId() == null ? null : properties.getImageId().getValue();
-		final String instanceType = properties.getInstanceType() == null
-				? null : properties.getInstanceType().getValue();
-		final String keyName = properties.getKeyName() == null ? null : properties.getKeyName().getValue();
-		final String privateIpAddress = properties.getPrivateIpAddress() == null
-				? null : properties.getPrivateIpAddress().getValue();
-		final List<String> securityGroupIds = properties.getSecurityGroupIdsAsString();
-		final List<String> securityGroups = properties.getSecurityGroupsAsString();
+		private static final String ABANDONED = "abandoned";
 
-		S3Object s3Object = null;
-		try {
+		private final AtomicReference<String> instanceId = new AtomicReference<String>();
+		/** The client tokens of the RunInstances requests which weren't answered by Amazon. */
+		private final Set<String> unanswered = new CopyOnWriteArraySet<String>();
+		private final ProvisioningDeadline deadline;
+		private final String launchKey;
+
+		private LaunchGuard(final ProvisioningDeadline deadline, final String launchKey) {
+			this.deadline = deadline;
+			this.launchKey = launchKey;
+		}
+
+		private void requested(final String clientToken) {
+			launchStore.record(Step.REQUESTED, this.launchKey, clientToken);
+			this.unanswered.add(clientToken);
+		}
+
+		private void answered(final String clientToken) {
+			this.unanswered.remove(clientToken);
+		}
+
+		private void launched(final String launchedInstanceId) {
+			this.deadline.journal(Transition.MACHINE_CREATED, launchedInstanceId, null);
+			launchStore.record(Step.LAUNCHED, this.launchKey, launchedInstanceId);
+			if (!this.instanceId.compareAndSet(null, launchedInstanceId)) {
+				this.terminate(launchedInstanceId);
+			}
+		}
 
-			String userData = null;
-			if (properties.getUserData() != null) {
-				// Generate ENV script for the provisioned machine
-				final StringBuilder sb = new StringBuilder();
-				final String script =
-						management ? this.generateManagementCloudifyEnv(ctx) : this.generateCloudifyEnv(ctx);
-
-				s3Object = this.uploadCloudDir(ctx, script, management);
-				final String cloudFileS3 = this.amazonS3Uploader.generatePresignedURL(s3Object);
-
-				ComputeTemplate template = this.getManagerComputeTemplate();
-				String cloudFileDir = (String) template.getRemoteDirectory();
-				// Remove '/' from the path if it's the last char.
-				if (cloudFileDir.length() > 1 && cloudFileDir.endsWith("/")) {
-					cloudFileDir = cloudFileDir.substring(0, cloudFileDir.length() - 1);
+		private void abandoned() {
+			final String launchedInstanceId = this.instanceId.getAndSet(ABANDONED);
+			if (launchedInstanceId != null && !ABANDONED.equals(launchedInstanceId)) {
+				this.terminate(launchedInstanceId);
+			} else if (launchedInstanceId == null) {
+				if (this.unanswered.isEmpty()) {
+					// Every request was rejected, nothing was launched
+					launchStore.record(Step.TERMINATED, this.launchKey);
 				}
-				String endOfLine = " >> /tmp/cloud.txt\n";
-				sb.append("#!/bin/bash\n");
-				sb.append("export TMP_DIRECTORY=/tmp").append(endOfLine);
-				sb.append("export S3_ARCHIVE_FILE='" + cloudFileS3 + "'").append(endOfLine);
-				sb.append("wget -q -O $TMP_DIRECTORY/cloudArchive.tar.gz $S3_ARCHIVE_FILE").append(endOfLine);
-				sb.append("mkdir -p " + cloudFileDir).append(endOfLine);
-				sb.append("tar zxvf $TMP_DIRECTORY/cloudArchive.tar.gz -C " + cloudFileDir).append(endOfLine);
-				sb.append("rm -f $TMP_DIRECTORY/cloudArchive.tar.gz").append(endOfLine);
-				sb.append("echo ").append(cloudFileDir).append("/").append(CLOUDIFY_ENV_SCRIPT).append(endOfLine);
-				sb.append("chmod 755 ").append(cloudFileDir).append("/").append(CLOUDIFY_ENV_SCRIPT).append(endOfLine);
-				sb.append("source ").append(cloudFileDir).append("/").append(CLOUDIFY_ENV_SCRIPT).append(endOfLine);
-
-				sb.append(properties.getUserData().getValue());
-				userData = sb.toString();
-				logger.fine("Instanciate ec2 with user data:\n" + userData);
-				userData = StringUtils.newStringUtf8(Base64.encodeBase64(userData.getBytes()));
-			}
-
-			List<BlockDeviceMapping> blockDeviceMappings = null;
-			AWSEC2Volume volumeConfig = null;
-			if (properties.getVolumes() != null) {
-				blockDeviceMappings = new ArrayList<BlockDeviceMapping>(properties.getVolumes().size());
-				for (final VolumeMapping volMapping : properties.getVolumes()) {
-					volumeConfig = cfnTemplate.getEC2Volume(volMapping.getVolumeId().getValue());
-					blockDeviceMappings.add(this.createBlockDeviceMapping(volMapping.getDevice().getValue(),
-							volumeConfig));
+				for (final String clientToken : this.unanswered) {
+					terminateByClientTokenInBackground(clientToken, this.deadline, this.launchKey);
 				}
 			}
+		}
+
+		private void terminate(final String launchedInstanceId) {
+			this.deadline.journal(Transition.MACHINE_TERMINATING, launchedInstanceId, ABANDONED);
+			terminateInBackground(launchedInstanceId, this.launchKey);
+		}
+	}
 
-			final RunInstancesRequest runInstancesRequest = new RunInstancesRequest();
-			runInstancesRequest.withPlacement(placement);
-			runInstancesRequest.withImageId(imageId);
-			runInstancesRequest.withInstanceType(instanceType);
-			runInstancesRequest.withKeyName(keyName);
-			runInstancesRequest.withPrivateIpAddress(privateIpAddress);
-			runInstancesRequest.withSecurityGroupIds(securityGroupIds);
-			runInstancesRequest.withSecurityGroups(securityGroups);
-			runInstancesRequest.withMinCount(1);
-			runInstancesRequest.withMaxCount(1);
-			runInstancesRequest.withBlockDeviceMappings(blockDeviceMappings);
-			runInstancesRequest.withUserData(userData);
+	/**
+	 * Terminates the instance of an abandoned launch without blocking the caller.
+	 */
+	private void terminateInBackground(final String instanceId) {
+		this.terminateInBackground(instanceId, null);
+	}
 
-			if (logger.isLoggable(Level.FINEST)) {
-				logger.finest("EC2::Instance request=" + runInstancesRequest);
+	/**
+	 * @param launchKey
+	 *            The key of the launch in the launch state store, which records the termination. <code>null</code> if
+	 *            it isn't recorded.
+	 */
+	private void terminateInBackground(final String instanceId, final String launchKey) {
+		logger.warning("Launch of instance " + instanceId + " was abandoned. Terminating the instance...");
+		Futures.addCallback(this.scheduler.submit(new Callable<TerminateInstancesResult>() {
+			@Override
+			public TerminateInstancesResult call() {
+				return ec2.terminateInstances(new TerminateInstancesRequest().withInstanceIds(instanceId));
+			}
+		}), new FutureCallback<TerminateInstancesResult>() {
+			@Override
+			public void onSuccess(final TerminateInstancesResult result) {
+				logger.fine("Abandoned instance " + instanceId + " is terminating.");
+				if (launchKey != null) {
+					launchStore.record(Step.TERMINATED, launchKey, instanceId);
+				}
 			}
 
-			final RunInstancesResult runInstances = this.ec2.runInstances(runInstancesRequest);
-			if (runInstances.getReservation().getInstances().size() != 1) {
-				throw new CloudProvisioningException("Request runInstace fails (request=" + runInstancesRequest + ").");
+			@Override
+			public void onFailure(final Throwable t) {
+				logger.log(Level.WARNING, "Couldn't terminate abandoned instance " + instanceId
+						+ ". It may be leaking.", t);
 			}
+		});
+	}
 
-			Instance ec2Instance = runInstances.getReservation().getInstances().get(0);
-			ec2Instance = this.waitRunningInstance(ec2Instance, duration, unit);
-			this.tagEC2Instance(ec2Instance, machineName, cfnTemplate.getEC2Instance());
-			this.tagEC2Volumes(ec2Instance.getInstanceId(), cfnTemplate);
-			this.waitRunningAgent(ec2Instance.getPublicIpAddress(), duration, unit);
+	/**
+	 * Terminates the instance launched by a RunInstances request whose outcome is unknown, if there is one, without
+	 * blocking the caller.
+	 */
+	private void terminateByClientTokenInBackground(final String clientToken, final ProvisioningDeadline deadline,
+			final String launchKey) {
+		Futures.addCallback(this.scheduler.submit(new Callable<List<String>>() {
+			@Override
+			public List<String> call() {
+				final DescribeInstancesResult result = ec2.describeInstances(new DescribeInstancesRequest()
+						.withFilters(new Filter("client-token", Arrays.asList(clientToken))));
+				final List<String> instanceIds = new ArrayList<String>();
+				for (final Reservation reservation : result.getReservations()) {
+					for (final Instance instance : reservation.getInstances()) {
+						instanceIds.add(instance.getInstanceId());
+					}
+				}
+				return instanceIds;
+			}
+		}), new FutureCallback<List<String>>() {
+			@Override
+			public void onSuccess(final List<String> instanceIds) {
+				if (instanceIds.isEmpty()) {
+					launchStore.record(Step.TERMINATED, launchKey);
+				}
+				for (final String instanceId : instanceIds) {
+					deadline.journal(Transition.MACHINE_TERMINATING, instanceId, LaunchGuard.ABANDONED);
+					terminateInBackground(instanceId, launchKey);
+				}
+			}
 
-			return ec2Instance;
-		} finally {
-			if (s3Object != null) {
-				this.amazonS3Uploader.deleteS3Object(s3Object.getBucketName(), s3Object.getKey());
+			@Override
+			public void onFailure(final Throwable t) {
+				logger.log(Level.WARNING, "Couldn't find the instance of abandoned launch " + clientToken
+						+ ". It may be leaking.", t);
 			}
+		});
+	}
+
+	/**
+	 * Uploads the cloud files which will be retrieved by the user data script of the new instance.
+	 * 
+	 * @return The uploaded S3 object or <code>null</code> if the template doesn't define user data.
+	 */
+	private S3Object uploadCloudFiles(final LaunchPrototype prototype, final ProvisioningContextImpl ctx,
+			final boolean management, final String launchKey) throws CloudProvisioningException {
+		if (!prototype.hasUserData()) {
+			return null;
 		}
+		// Generate ENV script for the provisioned machine
+		final String script = management ? this.generateManagementCloudifyEnv(ctx) : this.generateCloudifyEnv(ctx);
+		return this.uploadCloudDir(ctx, script, management, launchKey);
 	}
 
-	private void waitRunningAgent(final String host, final long duration, final TimeUnit unit) {
-		long endTime = System.currentTimeMillis() + unit.toMillis(duration);
-		Socket socket = null;
-		while (System.currentTimeMillis() < endTime) {
+	/**
+	 * Requests a new instance to Amazon, one polling tick per RunInstances request.<br />
+	 * If the template has several candidate instance types or availability zones, a type without capacity in a zone
+	 * or a type whose quota is reached is skipped for the next candidate, and avoided by the next launches while it
+	 * cools down, see {@link ZoneCapacityTracker}.<br />
+	 * Each request has the client token of its launch and candidate, see {@link LaunchTokens}. If the outcome of a
+	 * request is unknown, i.e. because its response timed out, the same request is sent again on the next tick:
+	 * Amazon returns the instance of the first request instead of launching another one, and no thread waits between
+	 * two attempts.
+	 */
+	private final class RunInstancesPoller implements ProvisioningScheduler.Poller<Instance> {
+
+		private final LaunchPrototype prototype;
+		private final String machineName;
+		private final S3Object s3Object;
+		private final LaunchGuard guard;
+
+		// The ticks never overlap, each one is scheduled at the end of the previous one
+		private String userData;
+		private List<ZoneCapacityTracker.Candidate> candidates;
+		// The candidates which failed during this launch, they are not tried again
+		private final List<ZoneCapacityTracker.Candidate> failed = new ArrayList<ZoneCapacityTracker.Candidate>();
+		private ZoneCapacityTracker.Candidate candidate;
+		private int attempt;
+
+		/**
+		 * @param machineName
+		 *            The name of the launched machine.
+		 * @param s3Object
+		 *            The uploaded cloud files to retrieve with the user data script.
+		 * @param guard
+		 *            The guard of the launch, which tracks the requests whose outcome is unknown.
+		 */
+		private RunInstancesPoller(final LaunchPrototype prototype, final String machineName,
+				final S3Object s3Object, final LaunchGuard guard) {
+			this.prototype = prototype;
+			this.machineName = machineName;
+			this.s3Object = s3Object;
+			this.guard = guard;
+		}
+
+		@Override
+		public Instance poll() throws Exception {
+			if (this.candidates == null) {
+				this.guard.deadline.checkRemaining(Phase.RUN);
+				if (this.s3Object != null) {
+					final String cloudFileS3 = amazonS3Uploader.generatePresignedURL(this.s3Object);
+					final String script = this.prototype.userData(cloudFileS3);
+					logger.fine("Instanciate ec2 with user data:\n" + script);
+					this.userData = StringUtils.newStringUtf8(Base64.encodeBase64(script.getBytes()));
+				}
+				this.candidates = zoneTracker.candidates(this.prototype.getInstanceTypes(),
+						this.prototype.getAvailabilityZones());
+				this.candidate = this.candidates.get(0);
+			}
+
+			while (true) {
+				final RunInstancesRequest runInstancesRequest = this.prototype
+						.newRunInstancesRequest(this.userData, this.candidate.getInstanceType(),
+								this.candidate.getZone())
+						.withClientToken(LaunchTokens.clientToken(this.guard.deadline.getLaunchId(), this.machineName,
+								this.candidate));
+
+				if (logger.isLoggable(Level.FINEST)) {
+					logger.finest("EC2::Instance request=" + runInstancesRequest);
+				}
+
+				final RunInstancesResult runInstances;
+				try {
+					runInstances = this.send(runInstancesRequest);
+				} catch (final AmazonServiceException e) {
+					this.failOver(e);
+					continue;
+				}
+				if (runInstances == null) {
+					// Outcome unknown, sent again on the next tick
+					return null;
+				}
+				if (runInstances.getReservation().getInstances().size() != 1) {
+					throw new CloudProvisioningException("Request runInstace fails (request=" + runInstancesRequest
+							+ ").");
+				}
+				if (this.candidates.size() > 1) {
+					zoneTracker.launched(this.candidate);
+					if (this.candidate != this.candidates.get(0)) {
+						logger.info("Launched " + this.candidate + " instead of " + this.candidates.get(0));
+					}
+				}
+				final Instance ec2Instance = runInstances.getReservation().getInstances().get(0);
+				this.guard.launched(ec2Instance.getInstanceId());
+				return ec2Instance;
+			}
+		}
+
+		/**
+		 * Sends a RunInstances request.
+		 * 
+		 * @return The result of the request, <code>null</code> if its outcome is unknown and it should be sent again.
+		 * @throws AmazonServiceException
+		 *             If Amazon rejected the request, nothing was launched.
+		 * @throws AmazonClientException
+		 *             If the outcome of the last attempt is still unknown.
+		 */
+		private RunInstancesResult send(final RunInstancesRequest request) {
+			final String clientToken = request.getClientToken();
+			if (this.attempt == 0) {
+				this.guard.requested(clientToken);
+			}
+			this.attempt++;
 			try {
-				socket = new Socket(host, DEFAULT_CLOUDIFY_AGENT_PORT);
-				logger.fine("Agent is reachable on: " + host + ":" + DEFAULT_CLOUDIFY_AGENT_PORT);
-				break;
-			} catch (Exception e) {
-				this.sleep();
-			} finally {
-				if (socket != null) {
+				final RunInstancesResult result = ec2.runInstances(request);
+				this.guard.answered(clientToken);
+				return result;
+			} catch (final AmazonServiceException e) {
+				this.guard.answered(clientToken);
+				throw e;
+			} catch (final AmazonClientException e) {
+				if (this.attempt >= MAX_RUN_ATTEMPTS || this.guard.deadline.remainingMillis() <= RUN_RETRY_DELAY) {
+					throw e;
+				}
+				logger.log(Level.WARNING, "Outcome of launch " + clientToken + " of " + this.machineName
+						+ " is unknown, sending it again with the same client token", e);
+				metrics.increment(ProvisioningMetrics.LAUNCH_RETRIES);
+				return null;
+			}
+		}
+
+		/**
+		 * Moves to the next candidate after Amazon rejected a request.
+		 * 
+		 * @throws AmazonServiceException
+		 *             The rejection, if it isn't a capacity failure or if there is no other candidate.
+		 */
+		private void failOver(final AmazonServiceException e) {
+			if (this.candidates.size() == 1) {
+				throw e;
+			}
+			if (INSTANCE_LIMIT_EXCEEDED.equals(e.getErrorCode())) {
+				// The quota is the same in all the zones
+				for (final ZoneCapacityTracker.Candidate sameType : this.candidates) {
+					if (sameType.hasSameType(this.candidate)) {
+						zoneTracker.noCapacity(sameType);
+						this.failed.add(sameType);
+					}
+				}
+			} else if (INSUFFICIENT_CAPACITY.equals(e.getErrorCode()) || UNSUPPORTED.equals(e.getErrorCode())) {
+				zoneTracker.noCapacity(this.candidate);
+				this.failed.add(this.candidate);
+			} else {
+				throw e;
+			}
+			final ZoneCapacityTracker.Candidate next = nextCandidate(this.candidates, this.failed);
+			if (next == null) {
+				throw e;
+			}
+			logger.warning("Couldn't launch " + this.candidate + " (" + e.getErrorCode() + "), trying " + next);
+			metrics.increment(next.hasSameType(this.candidate) ? ProvisioningMetrics.ZONE_FAILOVERS
+					: ProvisioningMetrics.INSTANCE_TYPE_FAILOVERS);
+			this.candidate = next;
+			this.attempt = 0;
+		}
+	}
+
+	private static ZoneCapacityTracker.Candidate nextCandidate(final List<ZoneCapacityTracker.Candidate> candidates,
+			final List<ZoneCapacityTracker.Candidate> failed) {
+		for (final ZoneCapacityTracker.Candidate candidate : candidates) {
+			if (!failed.contains(candidate)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Probes the cloudify agent port until it is reachable.
+	 * 
+	 * @return A future set to <code>true</code> once the agent is reachable. It fails with a {@link TimeoutException}
+	 *         if the agent is still unreachable when the deadline is over.
+	 */
+	private ListenableFuture<Boolean> waitRunningAgentAsync(final String host, final ProvisioningDeadline deadline) {
+		return this.scheduler.poll(Phase.AGENT_PROBE.name(), new ProvisioningScheduler.Poller<Boolean>() {
+			@Override
+			public Boolean poll() {
+				final long connectTimeout = Math.min(AGENT_PROBE_CONNECT_TIMEOUT, deadline.remainingMillis());
+				if (connectTimeout <= 0) {
+					return null;
+				}
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(host, DEFAULT_CLOUDIFY_AGENT_PORT), (int) connectTimeout);
+					logger.fine("Agent is reachable on: " + host + ":" + DEFAULT_CLOUDIFY_AGENT_PORT);
+					return Boolean.TRUE;
+				} catch (Exception e) {
+					return null;
+				} finally {
 					try {
 						socket.close();
 					} catch (IOException e) {
-						continue;
+						logger.finest("Couldn't close agent probe socket: " + e.getMessage());
 					}
 				}
 			}
-		}
-
+		}, 0L, WAIT_STATUS_SLEEP_TIME, deadline.getEndTime(), "Agent is not reachable on: " + host);
 	}
 
-	private S3Object uploadCloudDir(final ProvisioningContextImpl ctx, final String script, final boolean isManagement)
-			throws CloudProvisioningException {
+	private S3Object uploadCloudDir(final ProvisioningContextImpl ctx, final String script, final boolean isManagement,
+			final String launchKey) throws CloudProvisioningException {
 		try {
 			final ComputeTemplate template = this.getManagerComputeTemplate();
 			final String cloudDirectory = isManagement ? (String) template.getCustom().get("cloudDirectory")
@@ -903,39 +1718,33 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 			// Compress file
 			logger.fine("Archive folders to upload: " + cloudDirectory + " and " + tmpEnvFile.getAbsolutePath());
 			String[] sourcePaths = new String[] { cloudDirectory, tmpEnvFile.getAbsolutePath() };
+			final Object createEvent = ProvisioningEvents.begin(ProvisioningEvents.Type.ARCHIVE);
 			final File tarGzFile = TarGzUtils.createTarGz(sourcePaths, false);
-
-			// Upload to S3
-			final S3Object s3Object = amazonS3Uploader.uploadFile(s3BucketName, tarGzFile);
+			ProvisioningEvents.commit(createEvent, LaunchContext.current(), METRICS_DRIVER_NAME, ARCHIVE_CREATE,
+					tarGzFile.getAbsolutePath(), tarGzFile.length());
+			this.metrics.increment(ProvisioningMetrics.ARCHIVES);
+			this.metrics.add(ProvisioningMetrics.ARCHIVE_BYTES, tarGzFile.length());
+
+			// Upload to S3, the archive is recorded first so that it is deleted even if the JVM crashes
+			this.launchStore.record(Step.ARCHIVED, launchKey, s3BucketName, tarGzFile.getName());
+			final Object uploadEvent = ProvisioningEvents.begin(ProvisioningEvents.Type.ARCHIVE);
+			final S3Object s3Object;
+			try {
+				s3Object = amazonS3Uploader.uploadFile(s3BucketName, tarGzFile);
+			} catch (final RuntimeException e) {
+				if (amazonS3Uploader.deleteS3Object(s3BucketName, tarGzFile.getName())) {
+					this.launchStore.record(Step.ARCHIVE_DELETED, launchKey);
+				}
+				throw e;
+			}
+			ProvisioningEvents.commit(uploadEvent, LaunchContext.current(), METRICS_DRIVER_NAME, ARCHIVE_UPLOAD,
+					s3BucketName + "/" + s3Object.getKey(), tarGzFile.length());
 			return s3Object;
 		} catch (IOException e) {
 			throw new CloudProvisioningException(e);
 		}
 	}
 
-	private BlockDeviceMapping createBlockDeviceMapping(final String device, final AWSEC2Volume volumeConfig)
-			throws CloudProvisioningException {
-		VolumeProperties volumeProperties = volumeConfig.getProperties();
-		Integer iops = volumeProperties.getIops() == null ? null : volumeProperties.getIops();
-		Integer size = volumeProperties.getSize();
-		String snapshotId =
-				volumeProperties.getSnapshotId() == null ? null : volumeProperties.getSnapshotId().getValue();
-		String volumeType =
-				volumeProperties.getVolumeType() == null ? null : volumeProperties.getVolumeType().getValue();
-
-		EbsBlockDevice ebs = new EbsBlockDevice();
-		ebs.setIops(iops);
-		ebs.setSnapshotId(snapshotId);
-		ebs.setVolumeSize(size);
-		ebs.setVolumeType(volumeType);
-		ebs.setDeleteOnTermination(true);
-
-		BlockDeviceMapping mapping = new BlockDeviceMapping();
-		mapping.setDeviceName(device);
-		mapping.setEbs(ebs);
-		return mapping;
-	}
-
 	private String generateManagementCloudifyEnv(final ManagementProvisioningContext ctx)
 			throws CloudProvisioningException {
 		ComputeTemplate template = new ComputeTemplate();
@@ -985,7 +1794,7 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 			throw new TimeoutException("Starting a new machine timed out");
 		}
 
-		final long endTime = System.currentTimeMillis() + unit.toMillis(duration);
+		final ProvisioningDeadline deadline = new ProvisioningDeadline(duration, unit, null, this.journal);
 
 		logger.fine("DefaultCloudProvisioning: startMachine - management == " + management);
 
@@ -1009,8 +1818,7 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 		final int numberOfManagementMachines = this.cloud.getProvider().getNumberOfManagementMachines();
 		MachineDetails[] createdMachines;
 		try {
-			createdMachines = this.doStartManagementMachines(numberOfManagementMachines,
-					endTime, unit);
+			createdMachines = this.doStartManagementMachines(numberOfManagementMachines, deadline);
 		} catch (PrivateEc2ParserException e) {
 			throw new CloudProvisioningException(e);
 		}
@@ -1048,31 +1856,62 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 		return sb.toString();
 	}
 
-	private MachineDetails[] doStartManagementMachines(final int numberOfManagementMachines, final long endTime,
-			final TimeUnit unit) throws TimeoutException, CloudProvisioningException, PrivateEc2ParserException {
-		final ExecutorService executors = Executors.newFixedThreadPool(numberOfManagementMachines);
+	/**
+	 * Commits the provisioning event and journals the end of a management machine launch when it completes.
+	 */
+	private void traceManagementLaunch(final ListenableFuture<MachineDetails> future, final Object launchEvent,
+			final ProvisioningDeadline deadline) {
+		final String templateName = this.cfnTemplateName;
+		Futures.addCallback(future, new FutureCallback<MachineDetails>() {
+			@Override
+			public void onSuccess(final MachineDetails md) {
+				deadline.journal(Transition.LAUNCH_SUCCEEDED, md.getMachineId(), null);
+				ProvisioningEvents.commit(launchEvent, deadline.getLaunchId(), METRICS_DRIVER_NAME,
+						ProvisioningMetrics.LAUNCH, templateName, ProvisioningEvents.status(null));
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				deadline.journal(Transition.LAUNCH_FAILED, null, ProvisioningEvents.status(t));
+				ProvisioningEvents.commit(launchEvent, deadline.getLaunchId(), METRICS_DRIVER_NAME,
+						ProvisioningMetrics.LAUNCH, templateName, ProvisioningEvents.status(t));
+			}
+		});
+	}
+
+	private MachineDetails[] doStartManagementMachines(final int numberOfManagementMachines,
+			final ProvisioningDeadline deadline)
+			throws TimeoutException, CloudProvisioningException, PrivateEc2ParserException {
 
 		@SuppressWarnings("unchecked")
 		final Future<MachineDetails>[] futures = (Future<MachineDetails>[]) new Future<?>[numberOfManagementMachines];
 
 		try {
-			final PrivateEc2Template template = this.privateEc2Template;
+			final LaunchPrototype prototype = this.launchPlan.getPrimary().getPrototype();
 			final String managementGroup = this.cloud.getProvider().getManagementGroup();
 			final ProvisioningContextImpl ctx =
 					(ProvisioningContextImpl) new ProvisioningContextAccess().getManagementProvisioiningContext();
 
 			logger.info("ctx_threadlocal=" + ctx);
 
-			// Call startMachine asynchronously once for each management machine
+			// Start each management machine asynchronously, they all share the same deadline
+			final ProvisioningDeadline[] machineDeadlines = new ProvisioningDeadline[numberOfManagementMachines];
 			for (int i = 0; i < numberOfManagementMachines; i++) {
 				final int index = i + 1;
-				futures[i] = executors.submit(new Callable<MachineDetails>() {
-					@Override
-					public MachineDetails call() throws Exception {
-						return createServer(template, managementGroup + index, ctx, true, endTime, unit);
-					}
-				});
-
+				final String launchId = LaunchContext.newLaunchId();
+				machineDeadlines[i] = deadline.fork(launchId);
+				machineDeadlines[i].journal(Transition.LAUNCH_STARTED, this.cfnTemplateName, null);
+				final Object launchEvent = ProvisioningEvents.begin(ProvisioningEvents.Type.PROVISIONING);
+				final String previousLaunchId = LaunchContext.enter(launchId);
+				try {
+					final ListenableFuture<MachineDetails> future =
+							this.createServerAsync(prototype, managementGroup + index, ctx, true, null,
+									machineDeadlines[i]);
+					this.traceManagementLaunch(future, launchEvent, machineDeadlines[i]);
+					futures[i] = future;
+				} finally {
+					LaunchContext.restore(previousLaunchId);
+				}
 			}
 
 			// Wait for each of the async calls to terminate.
@@ -1081,8 +1920,10 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 			final MachineDetails[] createdManagementMachines = new MachineDetails[numberOfManagementMachines];
 			for (int i = 0; i < createdManagementMachines.length; i++) {
 				try {
-					createdManagementMachines[i] = futures[i].get(endTime - System.currentTimeMillis(),
-							TimeUnit.MILLISECONDS);
+					createdManagementMachines[i] = futures[i].get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+					logger.info("Management machine " + createdManagementMachines[i].getMachineId()
+							+ " phase times (ms): " + machineDeadlines[i].getPhaseTimes());
+					this.recordLaunchMetrics(machineDeadlines[i], this.cfnTemplateName, true);
 				} catch (final InterruptedException e) {
 					++numberOfErrors;
 					logger.log(Level.SEVERE, "Failed to start a management machine", e);
@@ -1092,7 +1933,9 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 
 				} catch (final ExecutionException e) {
 					++numberOfErrors;
-					logger.log(Level.SEVERE, "Failed to start a management machine", e);
+					logger.log(Level.SEVERE, "Failed to start a management machine. Phase times (ms): "
+							+ machineDeadlines[i].getPhaseTimes(), e);
+					this.recordLaunchMetrics(machineDeadlines[i], this.cfnTemplateName, false);
 					if (firstCreationException == null) {
 						firstCreationException = e;
 					}
@@ -1107,8 +1950,10 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 
 			return createdManagementMachines;
 		} finally {
-			if (executors != null) {
-				executors.shutdownNow();
+			for (final Future<MachineDetails> future : futures) {
+				if (future != null) {
+					future.cancel(true);
+				}
 			}
 		}
 	}
@@ -1159,15 +2004,25 @@ public class PrivateEC2CloudifyDriver extends CloudDriverSupport implements
 
 	@Override
 	public void close() {
+		this.stopTemplateWatcher();
 		if (ec2 != null) {
 			ec2.shutdown();
 		}
+		if (this.prometheusEndpoint != null) {
+			this.prometheusEndpoint.release(this.metrics);
+			this.prometheusEndpoint = null;
+		}
+		this.journal.release();
+		this.journal = ProvisioningJournal.DISABLED;
+		this.launchStore.release();
+		this.launchStore = LaunchStateStore.DISABLED;
 	}
 
 	@Override
 	public void onServiceUninstalled(final long duration, final TimeUnit unit) throws InterruptedException,
 			TimeoutException,
 			CloudProvisioningException {
+		this.stopTemplateWatcher();
 		this.cfnTemplatePerService.clear();
 	}
 }
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import org.cloudifysource.esc.driver.provisioning.MachineDetails;
+
+/**
+ * The details of a machine started by the private EC2 driver, with the instance type and the availability zone it
+ * was launched with. They may differ from the first ones of the template if the template lists other candidates.
+ * 
+ */
+public class PrivateEc2MachineDetails extends MachineDetails {
+
+	private String instanceType;
+
+	private String availabilityZone;
+
+	public String getInstanceType() {
+		return instanceType;
+	}
+
+	public void setInstanceType(final String instanceType) {
+		this.instanceType = instanceType;
+	}
+
+	public String getAvailabilityZone() {
+		return availabilityZone;
+	}
+
+	public void setAvailabilityZone(final String availabilityZone) {
+		this.availabilityZone = availabilityZone;
+	}
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningEvents;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal.Transition;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The time budget of a provisioning operation.<br />
+ * A single deadline is shared by every phase of the operation: each phase only gets the remaining time and doesn't
+ * start once the deadline is over. The time spent in each phase is recorded, and the start and end of each phase are
+ * written to the provisioning journal of the launch.
+ * 
+ */
+final class ProvisioningDeadline {
+
+	/**
+	 * The phases of a provisioning operation.
+	 */
+	enum Phase {
+		/** Upload of the cloud files to S3. */
+		UPLOAD,
+		/** RunInstances request. */
+		RUN,
+		/** Wait for the instance to be running. */
+		WAIT_RUNNING,
+		/** Tagging of the instance and its volumes. */
+		TAG,
+		/** Wait for the cloudify agent to be reachable. */
+		AGENT_PROBE
+	}
+
+	private final long startTime;
+	private final long endTime;
+	private final String launchId;
+	private final ProvisioningJournal journal;
+	private final Map<Phase, Long> phaseTimes = new EnumMap<Phase, Long>(Phase.class);
+
+	/**
+	 * Creates a deadline which ends after the given duration, without journal.
+	 * 
+	 * @param duration
+	 *            The time budget.
+	 * @param unit
+	 *            The time unit of the budget.
+	 */
+	ProvisioningDeadline(final long duration, final TimeUnit unit) {
+		this(duration, unit, null, ProvisioningJournal.DISABLED);
+	}
+
+	/**
+	 * Creates a deadline which ends after the given duration.
+	 * 
+	 * @param duration
+	 *            The time budget.
+	 * @param unit
+	 *            The time unit of the budget.
+	 * @param launchId
+	 *            The launch ID of the operation.
+	 * @param journal
+	 *            The journal of the transitions of the operation.
+	 */
+	ProvisioningDeadline(final long duration, final TimeUnit unit, final String launchId,
+			final ProvisioningJournal journal) {
+		this.startTime = System.currentTimeMillis();
+		this.endTime = this.startTime + unit.toMillis(duration);
+		this.launchId = launchId;
+		this.journal = journal;
+	}
+
+	private ProvisioningDeadline(final long startTime, final long endTime, final String launchId,
+			final ProvisioningJournal journal) {
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.launchId = launchId;
+		this.journal = journal;
+	}
+
+	/**
+	 * Creates a deadline which ends at the same time as this one but records its own phase times. Used when several
+	 * operations are run concurrently within the same time budget.
+	 * 
+	 * @param forkLaunchId
+	 *            The launch ID of the operation run within the new deadline.
+	 * @return The new deadline.
+	 */
+	ProvisioningDeadline fork(final String forkLaunchId) {
+		return new ProvisioningDeadline(this.startTime, this.endTime, forkLaunchId, this.journal);
+	}
+
+	/**
+	 * @return The launch ID of the operation.
+	 */
+	String getLaunchId() {
+		return this.launchId;
+	}
+
+	/**
+	 * Records a transition of the operation in its journal.
+	 * 
+	 * @param transition
+	 *            The transition.
+	 * @param subject
+	 *            The subject of the transition, may be <code>null</code>.
+	 * @param detail
+	 *            The detail of the transition, may be <code>null</code>.
+	 */
+	void journal(final Transition transition, final String subject, final String detail) {
+		this.journal.record(transition, this.launchId, subject, detail);
+	}
+
+	/**
+	 * @return The time in milliseconds at which the deadline is over.
+	 */
+	long getEndTime() {
+		return this.endTime;
+	}
+
+	/**
+	 * @return The time in milliseconds elapsed since the deadline was created.
+	 */
+	long getElapsedMillis() {
+		return System.currentTimeMillis() - this.startTime;
+	}
+
+	/**
+	 * @return The remaining time in milliseconds, 0 if the deadline is over.
+	 */
+	long remainingMillis() {
+		return Math.max(0L, this.endTime - System.currentTimeMillis());
+	}
+
+	/**
+	 * @return <code>true</code> if the deadline is over.
+	 */
+	boolean isExpired() {
+		return System.currentTimeMillis() >= this.endTime;
+	}
+
+	/**
+	 * Fails if there is no time left to run the given phase.
+	 * 
+	 * @param phase
+	 *            The phase about to start.
+	 * @throws TimeoutException
+	 *             If the deadline is over.
+	 */
+	void checkRemaining(final Phase phase) throws TimeoutException {
+		if (this.isExpired()) {
+			throw new TimeoutException("Provisioning deadline exceeded before phase " + phase + " (elapsed="
+					+ this.getElapsedMillis() + "ms, phases=" + this.getPhaseTimes() + ")");
+		}
+	}
+
+	/**
+	 * Wraps a synchronous phase: the task fails without running if the deadline is over and its duration is recorded.
+	 * 
+	 * @param phase
+	 *            The phase run by the task.
+	 * @param task
+	 *            The task to run.
+	 * @param <T>
+	 *            The type of the task result.
+	 * @return The wrapped task.
+	 */
+	<T> Callable<T> phase(final Phase phase, final Callable<T> task) {
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				checkRemaining(phase);
+				final long phaseStart = System.currentTimeMillis();
+				journal(Transition.PHASE_STARTED, phase.name(), null);
+				try {
+					final T result = task.call();
+					journal(Transition.PHASE_SUCCEEDED, phase.name(), null);
+					return result;
+				} catch (final Exception e) {
+					journal(Transition.PHASE_FAILED, phase.name(), ProvisioningEvents.status(e));
+					throw e;
+				} finally {
+					record(phase, System.currentTimeMillis() - phaseStart);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Records the duration of an asynchronous phase which starts now and ends when the given future completes.
+	 * 
+	 * @param phase
+	 *            The phase.
+	 * @param future
+	 *            The future completed at the end of the phase.
+	 * @param <T>
+	 *            The type of the phase result.
+	 * @return The given future.
+	 */
+	<T> ListenableFuture<T> phase(final Phase phase, final ListenableFuture<T> future) {
+		final long phaseStart = System.currentTimeMillis();
+		this.journal(Transition.PHASE_STARTED, phase.name(), null);
+		Futures.addCallback(future, new FutureCallback<T>() {
+			@Override
+			public void onSuccess(final T result) {
+				record(phase, System.currentTimeMillis() - phaseStart);
+				journal(Transition.PHASE_SUCCEEDED, phase.name(), null);
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				record(phase, System.currentTimeMillis() - phaseStart);
+				journal(Transition.PHASE_FAILED, phase.name(), ProvisioningEvents.status(t));
+			}
+		});
+		return future;
+	}
+
+	private synchronized void record(final Phase phase, final long elapsed) {
+		final Long previous = this.phaseTimes.get(phase);
+		this.phaseTimes.put(phase, previous == null ? elapsed : previous + elapsed);
+	}
+
+	/**
+	 * @return A copy of the time in milliseconds spent in each phase which already ran.
+	 */
+	synchronized Map<Phase, Long> getPhaseTimes() {
+		return new EnumMap<Phase, Long>(this.phaseTimes);
+	}
+
+	@Override
+	public String toString() {
+		return "ProvisioningDeadline [remaining=" + this.remainingMillis() + "ms, phases=" + this.getPhaseTimes() + "]";
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * The tags of a launched instance and of its template volumes.<br />
+ * The volumes are read from the block device mappings of the running instance and their names are derived from the
+ * name of the instance and their device, so the plan is built without any remote call and a volume gets the same name
+ * whenever its instance is tagged again.<br />
+ * A <code>CreateTags</code> request applies the same tags to all its resources, and every resource has its own name:
+ * each resource is tagged by its own request, so a launch with N template volumes costs 1 + N calls. Batching the
+ * shared template tags in one multi-resource request would still leave one request per name, i.e. 2 + N calls.
+ * 
+ */
+final class TagPlan {
+
+	private static final Logger logger = Logger.getLogger(TagPlan.class.getName());
+
+	/** Key name for amazon tag resource's name. */
+	static final String TK_NAME = "Name";
+
+	/** Key name for the tag shared by the instances of a multi-instance template launched together. */
+	static final String TK_LAUNCH_GROUP = "cloudify-launch-group";
+
+	static final String VOLUME_PREFIX = "cloudify-storage-";
+
+	/** The requests, the instance first then its volumes. */
+	private final List<CreateTagsRequest> requests = new ArrayList<CreateTagsRequest>();
+
+	private TagPlan() {
+	}
+
+	/**
+	 * Plans the tags of a launched instance: the template tags, its name and its launch group for the instance, the
+	 * template tags and the name <code>cloudify-storage-&lt;instance name&gt;-&lt;device&gt;</code> for each of its
+	 * template volumes, i.e. <code>cloudify-storage-vm1-sdf</code> for the volume of vm1 attached to /dev/sdf.
+	 * 
+	 * @param instance
+	 *            The running instance, with its block device mappings.
+	 * @param machineName
+	 *            The name of the instance.
+	 * @param prototype
+	 *            The launch prototype of the instance, <code>null</code> if it is unknown, i.e. for an instance whose
+	 *            launch was interrupted by a crash: only the name and the launch group of the instance are tagged.
+	 * @param launchGroup
+	 *            The id tagging the instances launched together, <code>null</code> if the instance is launched alone.
+	 * @return The tag plan.
+	 */
+	static TagPlan forLaunch(final Instance instance, final String machineName, final LaunchPrototype prototype,
+			final String launchGroup) {
+		final TagPlan plan = new TagPlan();
+
+		final List<Tag> instanceTags = prototype == null ? new ArrayList<Tag>()
+				: new ArrayList<Tag>(prototype.getInstanceTags());
+		instanceTags.add(new Tag(TK_NAME, machineName));
+		if (launchGroup != null) {
+			instanceTags.add(new Tag(TK_LAUNCH_GROUP, launchGroup));
+		}
+		plan.add(instance.getInstanceId(), instanceTags);
+
+		final Map<String, List<Tag>> volumeTags =
+				prototype == null ? Collections.<String, List<Tag>> emptyMap() : prototype.getVolumeTags();
+		if (!volumeTags.isEmpty()) {
+			int tagged = 0;
+			for (final InstanceBlockDeviceMapping mapping : instance.getBlockDeviceMappings()) {
+				final List<Tag> templateTags = volumeTags.get(mapping.getDeviceName());
+				if (templateTags != null && mapping.getEbs() != null && mapping.getEbs().getVolumeId() != null) {
+					final List<Tag> tags = new ArrayList<Tag>(templateTags);
+					tags.add(new Tag(TK_NAME, volumeName(machineName, mapping.getDeviceName())));
+					plan.add(mapping.getEbs().getVolumeId(), tags);
+					tagged++;
+				}
+			}
+			if (tagged < volumeTags.size()) {
+				logger.warning("Instance " + instance.getInstanceId() + " reports " + tagged + " of the "
+						+ volumeTags.size() + " template volumes " + volumeTags.keySet()
+						+ ", the missing ones are not tagged");
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * @return The name of the volume of an instance attached to a device, the device being named by its last path
+	 *         segment.
+	 */
+	static String volumeName(final String machineName, final String deviceName) {
+		return VOLUME_PREFIX + machineName + "-" + deviceName.substring(deviceName.lastIndexOf('/') + 1);
+	}
+
+	private void add(final String resourceId, final List<Tag> tags) {
+		this.requests.add(new CreateTagsRequest(Collections.singletonList(resourceId), tags));
+	}
+
+	/**
+	 * @return The <code>CreateTags</code> requests of the plan, one per resource.
+	 */
+	List<CreateTagsRequest> getRequests() {
+		return Collections.unmodifiableList(this.requests);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder("TagPlan{");
+		for (final CreateTagsRequest request : this.requests) {
+			if (builder.length() > "TagPlan{".length()) {
+				builder.append(", ");
+			}
+			builder.append(request.getResources().get(0)).append('=').append(request.getTags());
+		}
+		return builder.append('}').toString();
+	}
+}
@@ -129,6 +129,8 @@ public final class TarGzUtils {
 			bOut = new BufferedOutputStream(fOut);
 			gzOut = new GzipCompressorOutputStream(bOut);
 			tOut = new TarArchiveOutputStream(gzOut);
+			// Deep cloud folders have entry names longer than the 100 bytes of the ustar header
+			tOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
 			for (String path : sourcePaths) {
 				addFileToTarGz(tOut, path, base, addRoot);
 			}
@@ -159,7 +161,12 @@ public final class TarGzUtils {
 		if (f.isFile()) {
 			TarArchiveEntry tarEntry = new TarArchiveEntry(f, entryName);
 			tOut.putArchiveEntry(tarEntry);
-			IOUtils.copy(new FileInputStream(f), tOut);
+			final FileInputStream in = new FileInputStream(f);
+			try {
+				IOUtils.copy(in, tOut);
+			} finally {
+				in.close();
+			}
 			tOut.closeArchiveEntry();
 		} else {
 			if (addRoot) {
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.TemplateSnapshotCache;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+
+/**
+ * Loads the CFN templates of a custom data file, which is either a single template or a folder like the following:
+ * 
+ * <pre>
+ *   -- applicationNameFolder --- serviceName1-cfn.template
+ *                             |- serviceName1-cfn.properties
+ *                             |- serviceName2-cfn.template
+ * </pre>
+ * 
+ * The folder is listed once and the templates are parsed on a bounded pool of threads, which only lives for the
+ * duration of the loading. The errors of all the templates are reported together.<br />
+ * The parsed templates are stored in a {@link TemplateSnapshotCache} if one is set, so an unchanged template isn't
+ * parsed again after a restart.
+ * 
+ */
+final class TemplateLoader {
+
+	private static final Logger logger = Logger.getLogger(TemplateLoader.class.getName());
+
+	static final String TEMPLATE_SUFFIX = "-cfn.template";
+	static final String PROPERTIES_SUFFIX = "-cfn.properties";
+
+	private static final int MAX_PARALLELISM = 8;
+
+	private final int parallelism;
+
+	private final TemplateSnapshotCache cache;
+
+	/**
+	 * @param parallelism
+	 *            The maximum number of templates parsed at the same time.
+	 */
+	TemplateLoader(final int parallelism) {
+		this(parallelism, null);
+	}
+
+	/**
+	 * @param parallelism
+	 *            The maximum number of templates parsed at the same time.
+	 * @param cache
+	 *            The cache of the parsed templates, <code>null</code> to always parse the templates.
+	 */
+	TemplateLoader(final int parallelism, final TemplateSnapshotCache cache) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+		this.cache = cache;
+	}
+
+	/**
+	 * @param metrics
+	 *            The metrics where the snapshot cache counts its hits and misses.
+	 * @return A loader using at most one thread per processor, and the snapshot cache set by the
+	 *         {@link TemplateSnapshotCache#DIRECTORY_PROPERTY} system property.
+	 */
+	static TemplateLoader withDefaultParallelism(final ProvisioningMetrics metrics) {
+		return new TemplateLoader(Math.min(Runtime.getRuntime().availableProcessors(), MAX_PARALLELISM),
+				TemplateSnapshotCache.fromSystemProperty(metrics));
+	}
+
+	/**
+	 * Returns the name of the service of a template file, i.e. <code>serviceName1</code> for
+	 * <code>serviceName1-cfn.template</code>.
+	 * 
+	 * @param file
+	 *            The template file.
+	 * @return The name of the service.
+	 */
+	static String templateName(final File file) {
+		final String name = file.getName();
+		return name.endsWith(TEMPLATE_SUFFIX) ? name.substring(0, name.length() - TEMPLATE_SUFFIX.length()) : name;
+	}
+
+	static boolean isTemplateFile(final File file) {
+		return file.getName().endsWith(TEMPLATE_SUFFIX);
+	}
+
+	/**
+	 * Parses the templates of a custom data file. The property variables of a template are replaced with the values
+	 * of its properties file, if it exists.
+	 * 
+	 * @param customDataFile
+	 *            A template file or a folder of templates.
+	 * @return The templates mapped by service name.
+	 * @throws PrivateEc2ParserException
+	 *             If some templates couldn't be parsed. The message lists all of them.
+	 */
+	Map<String, PrivateEc2Template> load(final File customDataFile) throws PrivateEc2ParserException {
+		final Map<String, PrivateEc2Template> templates = new HashMap<String, PrivateEc2Template>();
+		if (customDataFile.isFile()) {
+			final String templateName = templateName(customDataFile);
+			try {
+				templates.put(templateName, this.parse(templateName, customDataFile, null));
+			} catch (final IOException e) {
+				throw new PrivateEc2ParserException(e);
+			}
+			return templates;
+		}
+
+		final File[] listFiles = customDataFile.listFiles();
+		if (listFiles == null) {
+			return templates;
+		}
+		final Map<String, File> propertiesFiles = new HashMap<String, File>();
+		final List<File> templateFiles = new ArrayList<File>();
+		for (final File file : listFiles) {
+			if (isTemplateFile(file)) {
+				templateFiles.add(file);
+			} else if (file.getName().endsWith(PROPERTIES_SUFFIX)) {
+				propertiesFiles.put(file.getName(), file);
+			}
+		}
+
+		final Map<String, Callable<PrivateEc2Template>> tasks =
+				new LinkedHashMap<String, Callable<PrivateEc2Template>>();
+		for (final File file : templateFiles) {
+			final String templateName = templateName(file);
+			final File propertiesFile = propertiesFiles.get(templateName + PROPERTIES_SUFFIX);
+			tasks.put(templateName, parseTask(templateName, file, propertiesFile));
+		}
+
+		final Map<String, Throwable> errors = new LinkedHashMap<String, Throwable>();
+		final int threads = Math.min(this.parallelism, tasks.size());
+		if (threads <= 1) {
+			for (final Entry<String, Callable<PrivateEc2Template>> task : tasks.entrySet()) {
+				try {
+					templates.put(task.getKey(), task.getValue().call());
+				} catch (final Exception e) {
+					errors.put(task.getKey(), e);
+				}
+			}
+		} else {
+			this.parseAll(tasks, threads, templates, errors);
+		}
+
+		if (!errors.isEmpty()) {
+			throw failure(customDataFile, errors);
+		}
+		return templates;
+	}
+
+	private void parseAll(final Map<String, Callable<PrivateEc2Template>> tasks, final int threads,
+			final Map<String, PrivateEc2Template> templates, final Map<String, Throwable> errors)
+			throws PrivateEc2ParserException {
+		final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger threadCounter = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "privateEc2-template-loader-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			final Map<String, Future<PrivateEc2Template>> futures =
+					new LinkedHashMap<String, Future<PrivateEc2Template>>();
+			for (final Entry<String, Callable<PrivateEc2Template>> task : tasks.entrySet()) {
+				futures.put(task.getKey(), executor.submit(task.getValue()));
+			}
+			for (final Entry<String, Future<PrivateEc2Template>> future : futures.entrySet()) {
+				try {
+					templates.put(future.getKey(), future.getValue().get());
+				} catch (final ExecutionException e) {
+					errors.put(future.getKey(), e.getCause());
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PrivateEc2ParserException("Interrupted while parsing the templates", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Callable<PrivateEc2Template> parseTask(final String templateName, final File file,
+			final File propertiesFile) {
+		return new Callable<PrivateEc2Template>() {
+			@Override
+			public PrivateEc2Template call() throws Exception {
+				return TemplateLoader.this.parse(templateName, file, propertiesFile);
+			}
+		};
+	}
+
+	/**
+	 * Parses a single template, or loads it from the snapshot cache.
+	 * 
+	 * @param templateName
+	 *            The name of the service of the template.
+	 * @param file
+	 *            The template file.
+	 * @param propertiesFile
+	 *            The properties file of the template, <code>null</code> if it doesn't exist.
+	 * @return The parsed template.
+	 * @throws IOException
+	 *             If one of the files couldn't be read.
+	 * @throws PrivateEc2ParserException
+	 *             If the template couldn't be parsed.
+	 * @throws IllegalStateException
+	 *             If the template references properties which are not in the properties file.
+	 */
+	PrivateEc2Template parse(final String templateName, final File file, final File propertiesFile)
+			throws IOException, PrivateEc2ParserException {
+		logger.fine("Parsing CFN Template for service=" + templateName);
+		if (this.cache != null) {
+			return this.cache.load(file, propertiesFile);
+		}
+		if (propertiesFile != null) {
+			// Replace properties variable with values if the properties file exists
+			return ParserUtils.mapJson(PrivateEc2Template.class, file, propertiesFile);
+		}
+		return ParserUtils.mapJson(PrivateEc2Template.class, file);
+	}
+
+	private static PrivateEc2ParserException failure(final File customDataFile, final Map<String, Throwable> errors) {
+		final StringBuilder message = new StringBuilder("Couldn't parse ").append(errors.size())
+				.append(" template(s) of ").append(customDataFile.getPath()).append(':');
+		for (final Entry<String, Throwable> error : errors.entrySet()) {
+			logger.log(Level.SEVERE, "Couldn't parse the template of service=" + error.getKey(), error.getValue());
+			message.append(' ').append(error.getKey()).append(" (").append(error.getValue().getMessage()).append(')');
+		}
+		return new PrivateEc2ParserException(message.toString(), errors.values().iterator().next());
+	}
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.commons.ProvisioningScheduler;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+
+/**
+ * Watches the CFN templates of a custom data file and re-parses a template when it or its properties file changes.
+ * <br />
+ * The files are polled on the {@link ProvisioningScheduler}: a change is detected by the last modification time and
+ * the length of the files. Only the changed templates are parsed again and handed to the {@link Listener}. A template
+ * which doesn't parse anymore is reported once and the previous one is kept until the file changes again.
+ * 
+ */
+final class TemplateWatcher {
+
+	private static final Logger logger = Logger.getLogger(TemplateWatcher.class.getName());
+
+	/** Key of the polling interval in milliseconds in the cloud custom map. Unset disables the watch mode. */
+	static final String INTERVAL_PROPERTY = "templateReloadInterval";
+
+	private static final String MISSING = "-";
+
+	/**
+	 * Receives the templates parsed again after a change.
+	 */
+	interface Listener {
+
+		/**
+		 * Called on the scheduler thread when a template has been parsed again.
+		 * 
+		 * @param templateName
+		 *            The name of the service of the template.
+		 * @param template
+		 *            The new template.
+		 */
+		void templateChanged(String templateName, PrivateEc2Template template);
+	}
+
+	private final File customDataFile;
+	private final TemplateLoader loader;
+	private final Listener listener;
+
+	/** The stamps of the files of each template. Only accessed by the polling task, whose runs never overlap. */
+	private final Map<String, String> stamps = new HashMap<String, String>();
+
+	private Future<?> polling;
+
+	/**
+	 * Creates a watcher of the current state of the templates: only the changes made from now on are reported.
+	 * 
+	 * @param customDataFile
+	 *            A template file or a folder of templates.
+	 * @param loader
+	 *            The loader which parses the changed templates.
+	 * @param listener
+	 *            The listener of the changed templates.
+	 */
+	TemplateWatcher(final File customDataFile, final TemplateLoader loader, final Listener listener) {
+		this.customDataFile = customDataFile;
+		this.loader = loader;
+		this.listener = listener;
+		this.scan(false);
+	}
+
+	/**
+	 * Starts polling the templates.
+	 * 
+	 * @param scheduler
+	 *            The scheduler which runs the polling.
+	 * @param interval
+	 *            The polling interval in milliseconds.
+	 */
+	synchronized void start(final ProvisioningScheduler scheduler, final long interval) {
+		if (this.polling != null) {
+			return;
+		}
+		logger.info("Watching the CFN templates of " + this.customDataFile.getPath() + " every " + interval + "ms");
+		this.polling = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				poll();
+			}
+		}, interval);
+	}
+
+	/**
+	 * Stops polling the templates.
+	 */
+	synchronized void stop() {
+		if (this.polling != null) {
+			this.polling.cancel(false);
+			this.polling = null;
+		}
+	}
+
+	/**
+	 * Checks the templates once and reports the ones which changed since the previous check.
+	 */
+	void poll() {
+		try {
+			this.scan(true);
+		} catch (final RuntimeException e) {
+			// Keep polling: the next tick may see a consistent folder
+			logger.log(Level.WARNING, "Couldn't check the CFN templates of " + this.customDataFile.getPath(), e);
+		}
+	}
+
+	private void scan(final boolean reload) {
+		if (this.customDataFile.isFile()) {
+			this.check(TemplateLoader.templateName(this.customDataFile), this.customDataFile, null, reload);
+			return;
+		}
+		final File[] listFiles = this.customDataFile.listFiles();
+		if (listFiles == null) {
+			return;
+		}
+		final Map<String, File> propertiesFiles = new HashMap<String, File>();
+		for (final File file : listFiles) {
+			if (file.getName().endsWith(TemplateLoader.PROPERTIES_SUFFIX)) {
+				propertiesFiles.put(file.getName(), file);
+			}
+		}
+		for (final File file : listFiles) {
+			if (TemplateLoader.isTemplateFile(file)) {
+				final String templateName = TemplateLoader.templateName(file);
+				this.check(templateName, file, propertiesFiles.get(templateName + TemplateLoader.PROPERTIES_SUFFIX),
+						reload);
+			}
+		}
+	}
+
+	private void check(final String templateName, final File file, final File propertiesFile, final boolean reload) {
+		final String stamp = stamp(file) + '/' + stamp(propertiesFile);
+		final String previous = this.stamps.put(templateName, stamp);
+		if (!reload || stamp.equals(previous)) {
+			return;
+		}
+		final PrivateEc2Template template;
+		try {
+			template = this.loader.parse(templateName, file, propertiesFile);
+		} catch (final Exception e) {
+			logger.log(Level.WARNING, "Couldn't reload the CFN template of service=" + templateName
+					+ ", keeping the previous one", e);
+			return;
+		}
+		logger.info("Reloaded the CFN template of service=" + templateName);
+		this.listener.templateChanged(templateName, template);
+	}
+
+	private static String stamp(final File file) {
+		if (file == null) {
+			return MISSING;
+		}
+		return file.lastModified() + ":" + file.length();
+	}
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the instance types and availability zones which recently had no capacity, so that the next launches try
+ * the other candidates first.<br />
+ * A combination of instance type and zone is cooling down for a while after an
+ * <code>InsufficientInstanceCapacity</code> error, and is healthy again once the cool-down is over or once an
+ * instance is launched with it.
+ * 
+ */
+final class ZoneCapacityTracker {
+
+	/** Key of the cool-down of a zone without capacity, in milliseconds, in the cloud custom map. */
+	static final String COOLDOWN_PROPERTY = "availabilityZoneCooldown";
+
+	static final long DEFAULT_COOLDOWN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * An instance type in an availability zone, either of them may be <code>null</code> to let Amazon choose it.
+	 */
+	static final class Candidate {
+
+		private final String instanceType;
+
+		private final String zone;
+
+		Candidate(final String instanceType, final String zone) {
+			this.instanceType = instanceType;
+			this.zone = zone;
+		}
+
+		String getInstanceType() {
+			return instanceType;
+		}
+
+		String getZone() {
+			return zone;
+		}
+
+		/**
+		 * @param other
+		 *            Another candidate.
+		 * @return <code>true</code> if both candidates have the same instance type.
+		 */
+		boolean hasSameType(final Candidate other) {
+			return instanceType == null ? other.instanceType == null : instanceType.equals(other.instanceType);
+		}
+
+		private String key() {
+			return zone + '/' + instanceType;
+		}
+
+		@Override
+		public String toString() {
+			return instanceType + " in " + zone;
+		}
+	}
+
+	private final long cooldownNanos;
+
+	/** The end of the cool-down, in {@link System#nanoTime()}, by candidate key. */
+	private final ConcurrentMap<String, Long> coolingDown = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * @param cooldownMillis
+	 *            The time a candidate is avoided after it had no capacity.
+	 */
+	ZoneCapacityTracker(final long cooldownMillis) {
+		this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+	}
+
+	/**
+	 * Orders the candidates of a launch: the healthy candidates first, by instance type then by zone in the preferred
+	 * order, then the candidates cooling down, the one whose cool-down ends first before the others.
+	 * 
+	 * @param instanceTypes
+	 *            The candidate instance types, in the preferred order. Empty to let Amazon choose the type.
+	 * @param zones
+	 *            The candidate zones, in the preferred order. Empty to let Amazon choose the zone.
+	 * @return The candidates to try, in order. Never empty.
+	 */
+	List<Candidate> candidates(final List<String> instanceTypes, final List<String> zones) {
+		final List<String> types = instanceTypes.isEmpty() ? Collections.<String> singletonList(null) : instanceTypes;
+		final List<String> places = zones.isEmpty() ? Collections.<String> singletonList(null) : zones;
+		final List<Candidate> healthy = new ArrayList<Candidate>(types.size() * places.size());
+		final List<Candidate> cooling = new ArrayList<Candidate>();
+		final Map<Candidate, Long> ends = new HashMap<Candidate, Long>();
+		final long now = System.nanoTime();
+		for (final String type : types) {
+			for (final String zone : places) {
+				final Candidate candidate = new Candidate(type, zone);
+				final Long end = this.coolingDown.isEmpty() ? null : this.coolingDown.get(candidate.key());
+				if (end == null || end - now <= 0) {
+					healthy.add(candidate);
+				} else {
+					cooling.add(candidate);
+					ends.put(candidate, end);
+				}
+			}
+		}
+		if (!cooling.isEmpty()) {
+			// Stable sort, the candidates cooling down until the same time keep the preferred order
+			Collections.sort(cooling, new Comparator<Candidate>() {
+				@Override
+				public int compare(final Candidate candidate1, final Candidate candidate2) {
+					final long diff = ends.get(candidate1) - ends.get(candidate2);
+					return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+				}
+			});
+			healthy.addAll(cooling);
+		}
+		return healthy;
+	}
+
+	/**
+	 * Starts the cool-down of a candidate which had no capacity.
+	 * 
+	 * @param candidate
+	 *            The instance type and zone which couldn't be launched.
+	 */
+	void noCapacity(final Candidate candidate) {
+		this.coolingDown.put(candidate.key(), System.nanoTime() + this.cooldownNanos);
+	}
+
+	/**
+	 * Ends the cool-down of a candidate which was launched.
+	 * 
+	 * @param candidate
+	 *            The instance type and zone which was launched.
+	 */
+	void launched(final Candidate candidate) {
+		if (!this.coolingDown.isEmpty()) {
+			this.coolingDown.remove(candidate.key());
+		}
+	}
+
+	/**
+	 * @param candidate
+	 *            An instance type and zone.
+	 * @return <code>true</code> if the candidate is cooling down.
+	 */
+	boolean isCoolingDown(final Candidate candidate) {
+		final Long end = this.coolingDown.get(candidate.key());
+		return end != null && end - System.nanoTime() > 0;
+	}
+}
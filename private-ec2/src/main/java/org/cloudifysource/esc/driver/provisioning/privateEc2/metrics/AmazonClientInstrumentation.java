@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningEvents;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Wraps an Amazon client (i.e. AmazonEC2 or AmazonS3) to count its API calls in the {@link ProvisioningMetrics}, by
+ * operation and error code.
+ * 
+ */
+public final class AmazonClientInstrumentation implements InvocationHandler {
+
+	/** The error code of failures which didn't come from Amazon, i.e. a network error. */
+	public static final String CLIENT_ERROR = "ClientError";
+
+	/** Methods of the clients which don't send a request to Amazon. */
+	private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList("setEndpoint", "setRegion",
+			"shutdown", "getCachedResponseMetadata", "generatePresignedUrl", "setS3ClientOptions"));
+
+	/** Error codes of the requests rejected by the Amazon throttling. */
+	private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(Arrays.asList(
+			"RequestLimitExceeded", "Throttling", "ThrottlingException", "SlowDown"));
+
+	private final Object client;
+	private final ProvisioningMetrics metrics;
+
+	private AmazonClientInstrumentation(final Object client, final ProvisioningMetrics metrics) {
+		this.client = client;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Wraps an Amazon client.
+	 * 
+	 * @param api
+	 *            The client interface.
+	 * @param client
+	 *            The client to wrap.
+	 * @param metrics
+	 *            The metrics where to count the calls.
+	 * @param <T>
+	 *            The client interface.
+	 * @return The instrumented client.
+	 */
+	public static <T> T instrument(final Class<T> api, final T client, final ProvisioningMetrics metrics) {
+		return api.cast(Proxy.newProxyInstance(api.getClassLoader(), new Class<?>[] { api },
+				new AmazonClientInstrumentation(client, metrics)));
+	}
+
+	/**
+	 * @param t
+	 *            The failure of an API call.
+	 * @return The error code of the failure.
+	 */
+	public static String errorCode(final Throwable t) {
+		if (t instanceof AmazonServiceException) {
+			final String errorCode = ((AmazonServiceException) t).getErrorCode();
+			return errorCode == null ? String.valueOf(((AmazonServiceException) t).getStatusCode()) : errorCode;
+		} else if (t instanceof AmazonClientException) {
+			return CLIENT_ERROR;
+		}
+		return t.getClass().getSimpleName();
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class || LOCAL_METHODS.contains(method.getName())) {
+			return this.call(method, args);
+		}
+		final String operation = method.getName();
+		final Object event = ProvisioningEvents.begin(ProvisioningEvents.Type.API_CALL);
+		String status = ProvisioningMetrics.SUCCESS;
+		this.metrics.enter(ProvisioningMetrics.API_CALLS);
+		try {
+			final Object result = this.call(method, args);
+			this.metrics.recordApiCall(operation, status);
+			return result;
+		} catch (final Throwable t) {
+			status = errorCode(t);
+			this.metrics.recordApiCall(operation, status);
+			if (THROTTLING_ERROR_CODES.contains(status)) {
+				this.metrics.increment(ProvisioningMetrics.THROTTLED);
+			}
+			throw t;
+		} finally {
+			this.metrics.exit(ProvisioningMetrics.API_CALLS);
+			ProvisioningEvents.commit(event, LaunchContext.current(), this.metrics.getDriverName(), operation, status);
+		}
+	}
+
+	private Object call(final Method method, final Object[] args) throws Throwable {
+		try {
+			return method.invoke(this.client, args);
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
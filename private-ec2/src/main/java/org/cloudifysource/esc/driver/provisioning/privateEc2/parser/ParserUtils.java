@@ -13,10 +13,17 @@
 package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.codehaus.jackson.map.DeserializationConfig.Feature;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
 
 /**
  * Utility class to parse JSONF.
@@ -26,10 +33,99 @@ import org.codehaus.jackson.map.ObjectMapper;
  */
 public final class ParserUtils {
 
+	/**
+	 * The shared mapper, only configured here. Its readers are immutable and thread-safe, they share the
+	 * deserializers and the introspection cached by the mapper.
+	 */
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final ConcurrentMap<Class<?>, ObjectReader> READERS =
+			new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+	static {
+		MAPPER.configure(Feature.USE_ANNOTATIONS, true);
+		MAPPER.configure(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+	}
+
 	private ParserUtils() {
 
 	}
 
+	/**
+	 * Returns the preconfigured reader of a class, created on first use.
+	 * 
+	 * @param clazz
+	 *            The class for deserialization.
+	 * @return The reader of the class.
+	 */
+	static ObjectReader reader(final Class<?> clazz) {
+		ObjectReader reader = READERS.get(clazz);
+		if (reader == null) {
+			reader = MAPPER.reader(clazz);
+			final ObjectReader previous = READERS.putIfAbsent(clazz, reader);
+			if (previous != null) {
+				reader = previous;
+			}
+		}
+		return reader;
+	}
+
+	/**
+	 * Replaces the property variables of a template with the values of a properties file.<br />
+	 * i.e. <code>"ImageId":imageId</code> is replaced by <code>"ImageId":"ami-23d9a94a"</code> if the properties file
+	 * contains <code>imageId="ami-23d9a94a"</code>. See {@link PropertySubstitution}.
+	 * 
+	 * @param file
+	 *            The template file.
+	 * @param propertiesFile
+	 *            The properties file.
+	 * @return The template with the property values.
+	 * @throws IOException
+	 *             If one of the files couldn't be read.
+	 * @throws IllegalStateException
+	 *             If the template references properties which are not in the properties file.
+	 */
+	public static String replaceProperties(final File file, final File propertiesFile) throws IOException {
+		final PropertySubstitution substitution = PropertySubstitution.load(propertiesFile);
+		final Reader template = new InputStreamReader(new FileInputStream(file));
+		try {
+			return substitution.substitute(template, (int) file.length());
+		} finally {
+			template.close();
+		}
+	}
+
+	/**
+	 * Parses a template, replacing its property variables with the values of a properties file. The substituted
+	 * template is parsed from the substitution buffer, without being copied into a string.
+	 * 
+	 * @param clazz
+	 *            The class for deserialization.
+	 * @param file
+	 *            The template file.
+	 * @param propertiesFile
+	 *            The properties file.
+	 * @param <T>
+	 *            The converting type for json.
+	 * @return The constructed JSON deserialization.
+	 * @throws IOException
+	 *             If one of the files couldn't be read.
+	 * @throws PrivateEc2ParserException
+	 *             If a problem occurs during the mapping.
+	 * @throws IllegalStateException
+	 *             If the template references properties which are not in the properties file.
+	 */
+	public static <T> T mapJson(final Class<T> clazz, final File file, final File propertiesFile)
+			throws IOException, PrivateEc2ParserException {
+		final PropertySubstitution substitution = PropertySubstitution.load(propertiesFile);
+		final Reader template = new InputStreamReader(new FileInputStream(file));
+		try {
+			return mapJson(clazz, substitution.substituteToReader(template, (int) file.length()));
+		} finally {
+			template.close();
+		}
+	}
+
 	/**
 	 * This method deserializes a json inputstream into the given object.
 	 * 
@@ -48,21 +144,40 @@ public final class ParserUtils {
 		if (jsonStream == null) {
 			return null;
 		}
+		try {
+			return reader(clazz).<T> readValue(jsonStream);
+		} catch (Exception e) {
+			throw new PrivateEc2ParserException(e);
+		}
+	}
 
-		final ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(Feature.USE_ANNOTATIONS, true);
-		mapper.configure(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		T tokenResponse = null;
+	/**
+	 * This method deserializes a json reader into the given object.
+	 * 
+	 * @param clazz
+	 *            The class for deserialization.
+	 * @param jsonReader
+	 *            The json reader
+	 * @param <T>
+	 *            The converting type for json.
+	 * @return The constructed JSON deserialization.
+	 * 
+	 * @throws PrivateEc2ParserException
+	 *             If a problem occurs during the mapping.
+	 */
+	public static <T> T mapJson(final Class<T> clazz, final Reader jsonReader) throws PrivateEc2ParserException {
+		if (jsonReader == null) {
+			return null;
+		}
 		try {
-			tokenResponse = mapper.readValue(jsonStream, clazz);
+			return reader(clazz).<T> readValue(jsonReader);
 		} catch (Exception e) {
 			throw new PrivateEc2ParserException(e);
 		}
-		return tokenResponse;
 	}
 
 	/**
-	 * This method deserializes a json inputstream into the given object.
+	 * This method deserializes a json string into the given object.
 	 * 
 	 * @param clazz
 	 *            The class for deserialization.
@@ -79,21 +194,15 @@ public final class ParserUtils {
 		if (jsonString == null) {
 			return null;
 		}
-
-		final ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(Feature.USE_ANNOTATIONS, true);
-		mapper.configure(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		T tokenResponse = null;
 		try {
-			tokenResponse = mapper.readValue(jsonString, clazz);
+			return reader(clazz).<T> readValue(jsonString);
 		} catch (Exception e) {
 			throw new PrivateEc2ParserException(e);
 		}
-		return tokenResponse;
 	}
 
 	/**
-	 * This method deserializes a json inputstream into the given object.
+	 * This method deserializes a json file into the given object.
 	 * 
 	 * @param clazz
 	 *            The class for deserialization.
@@ -110,16 +219,11 @@ public final class ParserUtils {
 		if (file == null) {
 			return null;
 		}
-		final ObjectMapper mapper = new ObjectMapper();
-		mapper.configure(Feature.USE_ANNOTATIONS, true);
-		mapper.configure(Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-		T tokenResponse = null;
 		try {
-			tokenResponse = mapper.readValue(file, clazz);
+			return reader(clazz).<T> readValue(file);
 		} catch (Exception e) {
 			throw new PrivateEc2ParserException(e);
 		}
-		return tokenResponse;
 	}
 
 }
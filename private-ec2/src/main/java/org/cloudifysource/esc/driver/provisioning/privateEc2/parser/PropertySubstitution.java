@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.io.CharArrayReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replaces the property variables of a CFN template with the values of a properties file.<br />
+ * A property variable is a bare word used as a JSON value, i.e. <code>imageId</code> in
+ * <code>"ImageId":imageId</code>. It is replaced by the raw property value, which is usually a quoted string such as
+ * <code>"ami-23d9a94a"</code>.<br />
+ * The template is tokenized in a single pass: the strings are copied as is, numbers and <code>true</code>,
+ * <code>false</code> and <code>null</code> literals are left untouched and every other bare word is looked up in the
+ * properties. All the missing properties are reported at once, at the end of the pass.
+ * 
+ */
+public final class PropertySubstitution {
+
+	private static final Logger logger = Logger.getLogger(PropertySubstitution.class.getName());
+
+	private static final int BUFFER_SIZE = 4096;
+
+	private final Properties properties;
+
+	/**
+	 * @param properties
+	 *            The property values.
+	 */
+	public PropertySubstitution(final Properties properties) {
+		this.properties = properties;
+	}
+
+	/**
+	 * Loads the property values of a properties file.
+	 * 
+	 * @param propertiesFile
+	 *            The properties file.
+	 * @return The substitution of the properties of the file.
+	 * @throws IOException
+	 *             If the file couldn't be read.
+	 */
+	public static PropertySubstitution load(final File propertiesFile) throws IOException {
+		logger.fine("Properties file=" + propertiesFile.getName());
+		final Properties properties = new Properties();
+		final InputStream in = new FileInputStream(propertiesFile);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return new PropertySubstitution(properties);
+	}
+
+	/**
+	 * Replaces the property variables of a template.
+	 * 
+	 * @param template
+	 *            The template, which isn't closed.
+	 * @param sizeHint
+	 *            The expected size of the template, used to size the result. 0 if unknown.
+	 * @return The template with the property values.
+	 * @throws IOException
+	 *             If the template couldn't be read.
+	 * @throws IllegalStateException
+	 *             If the template references properties which are not defined. The message lists all of them.
+	 */
+	public String substitute(final Reader template, final int sizeHint) throws IOException {
+		return this.substituteInto(template, sizeHint).toString();
+	}
+
+	/**
+	 * Replaces the property variables of a template and reads the result from the substitution buffer, without
+	 * copying it into a string.
+	 * 
+	 * @param template
+	 *            The template, which isn't closed.
+	 * @param sizeHint
+	 *            The expected size of the template, used to size the result. 0 if unknown.
+	 * @return A reader of the template with the property values.
+	 * @throws IOException
+	 *             If the template couldn't be read.
+	 * @throws IllegalStateException
+	 *             If the template references properties which are not defined. The message lists all of them.
+	 */
+	public Reader substituteToReader(final Reader template, final int sizeHint) throws IOException {
+		return this.substituteInto(template, sizeHint).reader();
+	}
+
+	private Output substituteInto(final Reader template, final int sizeHint) throws IOException {
+		final Output out = new Output(Math.max(sizeHint, BUFFER_SIZE));
+		final StringBuilder word = new StringBuilder();
+		final Set<String> missing = new LinkedHashSet<String>();
+		final char[] buffer = new char[BUFFER_SIZE];
+
+		boolean inString = false;
+		boolean escaped = false;
+		int read;
+		while ((read = template.read(buffer)) != -1) {
+			for (int i = 0; i < read; i++) {
+				final char c = buffer[i];
+				if (inString) {
+					out.append(c);
+					if (escaped) {
+						escaped = false;
+					} else if (c == '\\') {
+						escaped = true;
+					} else if (c == '"') {
+						inString = false;
+					}
+				} else if (isWordChar(c)) {
+					word.append(c);
+				} else {
+					this.flushWord(word, out, missing);
+					out.append(c);
+					inString = c == '"';
+				}
+			}
+		}
+		this.flushWord(word, out, missing);
+
+		if (!missing.isEmpty()) {
+			throw new IllegalStateException("Couldn't find properties: " + missing);
+		}
+		return out;
+	}
+
+	/**
+	 * Copies a bare word, replaced by its property value if it is a property variable.
+	 */
+	private void flushWord(final StringBuilder word, final Output out, final Set<String> missing) {
+		if (word.length() == 0) {
+			return;
+		}
+		if (isPropertyName(word)) {
+			final String name = word.toString();
+			final String value = this.properties.getProperty(name);
+			if (value == null) {
+				missing.add(name);
+				out.append(word);
+			} else {
+				if (logger.isLoggable(Level.FINEST)) {
+					logger.finest("Replacing property " + name + " by " + value);
+				}
+				out.append(value);
+			}
+		} else {
+			out.append(word);
+		}
+		word.setLength(0);
+	}
+
+	private static boolean isWordChar(final char c) {
+		switch (c) {
+		case '{':
+		case '}':
+		case '[':
+		case ']':
+		case ':':
+		case ',':
+		case '"':
+			return false;
+		default:
+			return !Character.isWhitespace(c);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the word is made of letters, digits, '_' and '-' and is neither a number nor a
+	 *         JSON literal.
+	 */
+	private static boolean isPropertyName(final CharSequence word) {
+		final char first = word.charAt(0);
+		if (first == '-' || first >= '0' && first <= '9') {
+			// A number, or a malformed one left to the JSON parser
+			return false;
+		}
+		for (int i = 0; i < word.length(); i++) {
+			final char c = word.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-')) {
+				return false;
+			}
+		}
+		return !(contentEquals(word, "true") || contentEquals(word, "false") || contentEquals(word, "null"));
+	}
+
+	private static boolean contentEquals(final CharSequence word, final String literal) {
+		if (word.length() != literal.length()) {
+			return false;
+		}
+		for (int i = 0; i < literal.length(); i++) {
+			if (word.charAt(i) != literal.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Growable character buffer holding the substituted template, which can be read without being copied.
+	 */
+	private static final class Output {
+
+		private char[] chars;
+		private int count;
+
+		Output(final int capacity) {
+			this.chars = new char[capacity];
+		}
+
+		void append(final char c) {
+			this.ensureCapacity(this.count + 1);
+			this.chars[this.count++] = c;
+		}
+
+		void append(final CharSequence sequence) {
+			final int length = sequence.length();
+			this.ensureCapacity(this.count + length);
+			for (int i = 0; i < length; i++) {
+				this.chars[this.count++] = sequence.charAt(i);
+			}
+		}
+
+		private void ensureCapacity(final int capacity) {
+			if (capacity > this.chars.length) {
+				this.chars = Arrays.copyOf(this.chars, Math.max(capacity, this.chars.length * 2));
+			}
+		}
+
+		Reader reader() {
+			return new CharArrayReader(this.chars, 0, this.count);
+		}
+
+		@Override
+		public String toString() {
+			return new String(this.chars, 0, this.count);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Parameter;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueEvaluator;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
+
+/**
+ * The evaluator of the values of one template.<br />
+ * A <code>Ref</code> resolves to the value of a parameter, or to the name itself for a resource, and a
+ * <code>Fn::FindInMap</code> to the value of a mapping. The parameter values are literals, so the value graph can't
+ * have cycles.<br />
+ * The value of every evaluated node is memoized. As nodes are compared by structure, the fragments repeated in a
+ * template, i.e. in user data, are evaluated once. The evaluator is thread-safe: two threads evaluating the same node
+ * at the same time may both compute it, but they get the same value.
+ * 
+ */
+public final class TemplateEvaluator implements ValueEvaluator {
+
+	private final Map<String, String> parameterValues;
+	private final Set<String> parametersWithoutValue;
+	private final Map<String, Map<String, Map<String, String>>> mappings;
+	private final ConcurrentMap<ValueType, String> values = new ConcurrentHashMap<ValueType, String>();
+
+	/**
+	 * @param parameters
+	 *            The parameters of the template, may be <code>null</code>.
+	 * @param mappings
+	 *            The mappings of the template, may be <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If the default value of a parameter is not one of its allowed values.
+	 */
+	public TemplateEvaluator(final Map<String, Parameter> parameters,
+			final Map<String, Map<String, Map<String, String>>> mappings) {
+		final Map<String, String> resolved = new HashMap<String, String>();
+		final Set<String> withoutValue = new HashSet<String>();
+		if (parameters != null) {
+			for (final Entry<String, Parameter> entry : parameters.entrySet()) {
+				final Parameter parameter = entry.getValue();
+				final String value = parameter == null ? null : parameter.getDefaultValue();
+				if (value == null) {
+					withoutValue.add(entry.getKey());
+					continue;
+				}
+				final Collection<String> allowedValues = parameter.getAllowedValues();
+				if (allowedValues != null && !allowedValues.contains(value)) {
+					throw new IllegalArgumentException("Value '" + value + "' of parameter " + entry.getKey()
+							+ " is not one of " + allowedValues);
+				}
+				resolved.put(entry.getKey(), value);
+			}
+		}
+		this.parameterValues = Collections.unmodifiableMap(resolved);
+		this.parametersWithoutValue = Collections.unmodifiableSet(withoutValue);
+		if (mappings == null) {
+			this.mappings = Collections.emptyMap();
+		} else {
+			this.mappings = Collections.unmodifiableMap(mappings);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @throws IllegalStateException
+	 *             If a reference of the node can't be resolved.
+	 */
+	@Override
+	public String evaluate(final ValueType value) {
+		if (value == null) {
+			return null;
+		}
+		String result = this.values.get(value);
+		if (result == null) {
+			result = value.evaluate(this);
+			if (result != null) {
+				this.values.putIfAbsent(value, result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @throws IllegalStateException
+	 *             If the name is a parameter without value.
+	 */
+	@Override
+	public String ref(final String name) {
+		final String value = this.parameterValues.get(name);
+		if (value != null) {
+			return value;
+		}
+		if (this.parametersWithoutValue.contains(name)) {
+			throw new IllegalStateException("Parameter " + name + " has no value");
+		}
+		// A resource, referenced by its name
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @throws IllegalStateException
+	 *             If the mapping doesn't define the value.
+	 */
+	@Override
+	public String findInMap(final String mapName, final String topLevelKey, final String secondLevelKey) {
+		final Map<String, Map<String, String>> mapping = this.mappings.get(mapName);
+		final Map<String, String> topLevel = mapping == null ? null : mapping.get(topLevelKey);
+		final String value = topLevel == null ? null : topLevel.get(secondLevelKey);
+		if (value == null) {
+			throw new IllegalStateException("Fn::FindInMap: no value for [" + mapName + ", " + topLevelKey + ", "
+					+ secondLevelKey + "]");
+		}
+		return value;
+	}
+
+	/**
+	 * @return The parameter values of the template, by name.
+	 */
+	public Map<String, String> getParameterValues() {
+		return this.parameterValues;
+	}
+}
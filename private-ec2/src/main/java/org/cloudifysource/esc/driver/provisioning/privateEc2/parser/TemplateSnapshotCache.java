@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.binary.StringUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+
+/**
+ * On-disk cache of parsed CFN templates, so a restarted ESM doesn't parse the templates again.<br />
+ * A snapshot is stored per template file, named after the SHA-1 of its absolute path. It starts with the SHA-1 of the
+ * content of the template and of its properties file: a snapshot whose hash doesn't match the files is stale, the
+ * template is then parsed and the snapshot rewritten. A cache hit only reads the files to hash them, there is no JSON
+ * parsing nor property substitution. See {@link TemplateSnapshotCodec} for the encoding of the template.<br />
+ * The cache never fails a load: a snapshot which can't be read or written is logged and the template is parsed.<br />
+ * The hits and misses are counted in the {@link ProvisioningMetrics#CACHE_HITS} and
+ * {@link ProvisioningMetrics#CACHE_MISSES} counters of the driver metrics.
+ * 
+ */
+public final class TemplateSnapshotCache {
+
+	private static final Logger logger = Logger.getLogger(TemplateSnapshotCache.class.getName());
+
+	/** System property of the cache directory. Unset disables the cache. */
+	public static final String DIRECTORY_PROPERTY = "privateEc2.templateCacheDirectory";
+
+	private static final int MAGIC = 0x43464e53;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".snapshot";
+	private static final int BUFFER_SIZE = 8192;
+
+	private final File directory;
+	private final ProvisioningMetrics metrics;
+
+	/**
+	 * @param directory
+	 *            The directory of the snapshots, created if it doesn't exist.
+	 */
+	public TemplateSnapshotCache(final File directory) {
+		this(directory, null);
+	}
+
+	/**
+	 * @param directory
+	 *            The directory of the snapshots, created if it doesn't exist.
+	 * @param metrics
+	 *            The metrics where the hits and misses are counted, <code>null</code> not to count them.
+	 */
+	public TemplateSnapshotCache(final File directory, final ProvisioningMetrics metrics) {
+		this.directory = directory;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param metrics
+	 *            The metrics where the hits and misses are counted.
+	 * @return The cache of the directory set in the {@link #DIRECTORY_PROPERTY} system property, <code>null</code> if
+	 *         it isn't set.
+	 */
+	public static TemplateSnapshotCache fromSystemProperty(final ProvisioningMetrics metrics) {
+		final String directory = System.getProperty(DIRECTORY_PROPERTY);
+		return directory == null ? null : new TemplateSnapshotCache(new File(directory), metrics);
+	}
+
+	/**
+	 * Loads a template from its snapshot, or parses it if the snapshot is missing or stale.
+	 * 
+	 * @param file
+	 *            The template file.
+	 * @param propertiesFile
+	 *            The properties file of the template, <code>null</code> if it doesn't exist.
+	 * @return The template.
+	 * @throws IOException
+	 *             If one of the files couldn't be read.
+	 * @throws PrivateEc2ParserException
+	 *             If the template couldn't be parsed.
+	 * @throws IllegalStateException
+	 *             If the template references properties which are not in the properties file.
+	 */
+	public PrivateEc2Template load(final File file, final File propertiesFile) throws IOException,
+			PrivateEc2ParserException {
+		final byte[] template = FileUtils.readFileToByteArray(file);
+		final byte[] properties = propertiesFile == null ? null : FileUtils.readFileToByteArray(propertiesFile);
+		final byte[] hash = contentHash(template, properties);
+		final File snapshot = this.snapshotFile(file);
+
+		final PrivateEc2Template cached = this.read(snapshot, hash);
+		if (cached != null) {
+			logger.fine("Loaded CFN template snapshot of " + file.getPath());
+			this.count(ProvisioningMetrics.CACHE_HITS);
+			return cached;
+		}
+
+		this.count(ProvisioningMetrics.CACHE_MISSES);
+		final PrivateEc2Template parsed = parse(template, properties);
+		this.write(snapshot, hash, parsed);
+		return parsed;
+	}
+
+	private void count(final String counter) {
+		if (this.metrics != null) {
+			this.metrics.increment(counter);
+		}
+	}
+
+	private static PrivateEc2Template parse(final byte[] template, final byte[] properties) throws IOException,
+			PrivateEc2ParserException {
+		if (properties == null) {
+			return ParserUtils.mapJson(PrivateEc2Template.class, new ByteArrayInputStream(template));
+		}
+		final Properties values = new Properties();
+		values.load(new ByteArrayInputStream(properties));
+		final PropertySubstitution substitution = new PropertySubstitution(values);
+		return ParserUtils.mapJson(PrivateEc2Template.class, substitution.substituteToReader(
+				new InputStreamReader(new ByteArrayInputStream(template)), template.length));
+	}
+
+	private File snapshotFile(final File file) {
+		final String path = file.getAbsolutePath();
+		return new File(this.directory, Hex.encodeHexString(sha1().digest(StringUtils.getBytesUtf8(path))) + SUFFIX);
+	}
+
+	/**
+	 * Reads a snapshot.
+	 * 
+	 * @return The template, <code>null</code> if the snapshot doesn't exist, is stale or can't be read.
+	 */
+	private PrivateEc2Template read(final File snapshot, final byte[] hash) {
+		final DataInputStream in;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), BUFFER_SIZE));
+		} catch (final FileNotFoundException e) {
+			return null;
+		}
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != TemplateSnapshotCodec.SCHEMA) {
+				return null;
+			}
+			final byte[] snapshotHash = new byte[hash.length];
+			in.readFully(snapshotHash);
+			if (!Arrays.equals(hash, snapshotHash)) {
+				return null;
+			}
+			return TemplateSnapshotCodec.read(in);
+		} catch (final Exception e) {
+			logger.log(Level.WARNING, "Couldn't read the CFN template snapshot " + snapshot.getPath(), e);
+			return null;
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Writes a snapshot in a temporary file renamed once complete, so a reader never sees a partial snapshot.
+	 */
+	private void write(final File snapshot, final byte[] hash, final PrivateEc2Template template) {
+		File temp = null;
+		try {
+			if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+				throw new IOException("Couldn't create the directory " + this.directory.getPath());
+			}
+			temp = File.createTempFile("template", ".tmp", this.directory);
+			final DataOutputStream out =
+					new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(TemplateSnapshotCodec.SCHEMA);
+				out.write(hash);
+				TemplateSnapshotCodec.write(out, template);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(snapshot) && !(snapshot.delete() && temp.renameTo(snapshot))) {
+				throw new IOException("Couldn't rename " + temp.getPath() + " to " + snapshot.getPath());
+			}
+			temp = null;
+		} catch (final IOException e) {
+			logger.log(Level.WARNING, "Couldn't write the CFN template snapshot " + snapshot.getPath(), e);
+		} finally {
+			if (temp != null && !temp.delete()) {
+				temp.deleteOnExit();
+			}
+		}
+	}
+
+	private static byte[] contentHash(final byte[] template, final byte[] properties) {
+		final MessageDigest digest = sha1();
+		digest.update(intBytes(template.length));
+		digest.update(template);
+		if (properties != null) {
+			digest.update(intBytes(properties.length));
+			digest.update(properties);
+		}
+		return digest.digest();
+	}
+
+	private static byte[] intBytes(final int value) {
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			// Every JVM supports SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,426 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.binary.StringUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Instance;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Volume;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSResource;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Parameter;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.Base64Function;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.FindInMapFunction;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.JoinFunction;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.RefValue;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.StringValue;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
+
+/**
+ * Binary encoding of a parsed {@link PrivateEc2Template}, used by the {@link TemplateSnapshotCache}.<br />
+ * The values are written with a one byte tag, the strings and the collections with their length. The beans are
+ * written field by field, in the order of {@link #fields(Class)}: {@link #SCHEMA} is a fingerprint of these fields,
+ * so a snapshot written by another version of the beans is never decoded.
+ * 
+ */
+final class TemplateSnapshotCodec {
+
+	private static final int NULL = -1;
+
+	private static final byte STRING_VALUE = 1;
+	private static final byte REF_VALUE = 2;
+	private static final byte JOIN_FUNCTION = 3;
+	private static final byte BASE64_FUNCTION = 4;
+	private static final byte FIND_IN_MAP_FUNCTION = 5;
+
+	private static final Class<?>[] RESOURCE_CLASSES = { AWSEC2Instance.class, AWSEC2Volume.class };
+
+	private static final ConcurrentMap<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<Class<?>, Field[]>();
+
+	/** Fingerprint of the fields of the beans, written in the snapshots. */
+	static final int SCHEMA = schema();
+
+	private TemplateSnapshotCodec() {
+
+	}
+
+	/**
+	 * Writes a template.
+	 * 
+	 * @param out
+	 *            The output.
+	 * @param template
+	 *            The template.
+	 * @throws IOException
+	 *             If the output fails, or if the template holds a value which can't be encoded.
+	 */
+	static void write(final DataOutput out, final PrivateEc2Template template) throws IOException {
+		out.writeInt(template.getResources().size());
+		for (final AWSResource resource : template.getResources()) {
+			out.writeByte(resourceIndex(resource.getClass()));
+			writeBean(out, resource);
+		}
+		out.writeInt(template.getParameters().size());
+		for (final Entry<String, Parameter> parameter : template.getParameters().entrySet()) {
+			writeString(out, parameter.getKey());
+			writeNullableBean(out, parameter.getValue());
+		}
+		out.writeInt(template.getMappings().size());
+		for (final Entry<String, Map<String, Map<String, String>>> mapping : template.getMappings().entrySet()) {
+			writeString(out, mapping.getKey());
+			writeSize(out, mapping.getValue());
+			if (mapping.getValue() != null) {
+				for (final Entry<String, Map<String, String>> topLevel : mapping.getValue().entrySet()) {
+					writeString(out, topLevel.getKey());
+					writeSize(out, topLevel.getValue());
+					if (topLevel.getValue() != null) {
+						for (final Entry<String, String> secondLevel : topLevel.getValue().entrySet()) {
+							writeString(out, secondLevel.getKey());
+							writeString(out, secondLevel.getValue());
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a template written by {@link #write(DataOutput, PrivateEc2Template)}.
+	 * 
+	 * @param in
+	 *            The input.
+	 * @return The template.
+	 * @throws IOException
+	 *             If the input fails or is corrupted.
+	 */
+	static PrivateEc2Template read(final DataInput in) throws IOException {
+		final int resourceCount = in.readInt();
+		final List<AWSResource> resources = new ArrayList<AWSResource>(resourceCount);
+		for (int i = 0; i < resourceCount; i++) {
+			final int index = in.readByte();
+			if (index < 0 || index >= RESOURCE_CLASSES.length) {
+				throw new IOException("Unknown resource class: " + index);
+			}
+			resources.add((AWSResource) readBean(in, RESOURCE_CLASSES[index]));
+		}
+		final int parameterCount = in.readInt();
+		final Map<String, Parameter> parameters = new LinkedHashMap<String, Parameter>();
+		for (int i = 0; i < parameterCount; i++) {
+			parameters.put(readString(in), (Parameter) readNullableBean(in, Parameter.class));
+		}
+		final int mappingCount = in.readInt();
+		final Map<String, Map<String, Map<String, String>>> mappings =
+				new LinkedHashMap<String, Map<String, Map<String, String>>>();
+		for (int i = 0; i < mappingCount; i++) {
+			final String mapName = readString(in);
+			final int topLevelCount = in.readInt();
+			Map<String, Map<String, String>> mapping = null;
+			if (topLevelCount != NULL) {
+				mapping = new LinkedHashMap<String, Map<String, String>>();
+				for (int j = 0; j < topLevelCount; j++) {
+					final String topLevelKey = readString(in);
+					final int secondLevelCount = in.readInt();
+					Map<String, String> values = null;
+					if (secondLevelCount != NULL) {
+						values = new LinkedHashMap<String, String>();
+						for (int k = 0; k < secondLevelCount; k++) {
+							values.put(readString(in), readString(in));
+						}
+					}
+					mapping.put(topLevelKey, values);
+				}
+			}
+			mappings.put(mapName, mapping);
+		}
+		return new PrivateEc2Template(resources, parameters, mappings);
+	}
+
+	private static int resourceIndex(final Class<?> clazz) throws IOException {
+		for (int i = 0; i < RESOURCE_CLASSES.length; i++) {
+			if (RESOURCE_CLASSES[i] == clazz) {
+				return i;
+			}
+		}
+		throw new IOException("Unsupported resource class: " + clazz.getName());
+	}
+
+	private static void writeSize(final DataOutput out, final Map<?, ?> map) throws IOException {
+		out.writeInt(map == null ? NULL : map.size());
+	}
+
+	private static void writeString(final DataOutput out, final String value) throws IOException {
+		if (value == null) {
+			out.writeInt(NULL);
+		} else {
+			// writeUTF is limited to 64KB, user data may be longer
+			final byte[] bytes = StringUtils.getBytesUtf8(value);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(final DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length == NULL) {
+			return null;
+		}
+		if (length < 0) {
+			throw new IOException("Invalid string length: " + length);
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return StringUtils.newStringUtf8(bytes);
+	}
+
+	private static void writeValue(final DataOutput out, final ValueType value) throws IOException {
+		if (value == null) {
+			out.writeByte(0);
+		} else if (value instanceof StringValue) {
+			out.writeByte(STRING_VALUE);
+			writeString(out, value.getValue());
+		} else if (value instanceof RefValue) {
+			out.writeByte(REF_VALUE);
+			writeString(out, value.getValue());
+		} else if (value instanceof JoinFunction) {
+			final JoinFunction join = (JoinFunction) value;
+			out.writeByte(JOIN_FUNCTION);
+			writeString(out, join.getSeparator());
+			out.writeInt(join.getStrings().size());
+			for (final ValueType string : join.getStrings()) {
+				writeValue(out, string);
+			}
+		} else if (value instanceof Base64Function) {
+			out.writeByte(BASE64_FUNCTION);
+			writeValue(out, ((Base64Function) value).getToEncode());
+		} else if (value instanceof FindInMapFunction) {
+			final FindInMapFunction findInMap = (FindInMapFunction) value;
+			out.writeByte(FIND_IN_MAP_FUNCTION);
+			writeValue(out, findInMap.getMapName());
+			writeValue(out, findInMap.getTopLevelKey());
+			writeValue(out, findInMap.getSecondLevelKey());
+		} else {
+			throw new IOException("Unsupported value: " + value.getClass().getName());
+		}
+	}
+
+	private static ValueType readValue(final DataInput in) throws IOException {
+		final byte tag = in.readByte();
+		switch (tag) {
+		case 0:
+			return null;
+		case STRING_VALUE:
+			return new StringValue(readString(in));
+		case REF_VALUE:
+			return new RefValue(readString(in));
+		case JOIN_FUNCTION:
+			final String separator = readString(in);
+			final int count = in.readInt();
+			final List<ValueType> strings = new ArrayList<ValueType>(count);
+			for (int i = 0; i < count; i++) {
+				strings.add(readValue(in));
+			}
+			return new JoinFunction(separator, strings);
+		case BASE64_FUNCTION:
+			return new Base64Function(readValue(in));
+		case FIND_IN_MAP_FUNCTION:
+			return new FindInMapFunction(readValue(in), readValue(in), readValue(in));
+		default:
+			throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+
+	private static void writeNullableBean(final DataOutput out, final Object bean) throws IOException {
+		out.writeBoolean(bean != null);
+		if (bean != null) {
+			writeBean(out, bean);
+		}
+	}
+
+	private static Object readNullableBean(final DataInput in, final Class<?> clazz) throws IOException {
+		return in.readBoolean() ? readBean(in, clazz) : null;
+	}
+
+	private static void writeBean(final DataOutput out, final Object bean) throws IOException {
+		try {
+			for (final Field field : fields(bean.getClass())) {
+				writeField(out, field.getGenericType(), field.get(bean));
+			}
+		} catch (final IllegalAccessException e) {
+			throw new IOException("Couldn't encode " + bean.getClass().getName(), e);
+		}
+	}
+
+	private static Object readBean(final DataInput in, final Class<?> clazz) throws IOException {
+		try {
+			final Object bean = clazz.newInstance();
+			for (final Field field : fields(clazz)) {
+				field.set(bean, readField(in, field.getGenericType()));
+			}
+			return bean;
+		} catch (final InstantiationException e) {
+			throw new IOException("Couldn't decode " + clazz.getName(), e);
+		} catch (final IllegalAccessException e) {
+			throw new IOException("Couldn't decode " + clazz.getName(), e);
+		} catch (final IllegalArgumentException e) {
+			throw new IOException("Couldn't decode " + clazz.getName(), e);
+		}
+	}
+
+	private static void writeField(final DataOutput out, final Type type, final Object value) throws IOException {
+		final Class<?> clazz = rawClass(type);
+		if (clazz == String.class) {
+			writeString(out, (String) value);
+		} else if (clazz == Integer.class) {
+			out.writeBoolean(value != null);
+			if (value != null) {
+				out.writeInt((Integer) value);
+			}
+		} else if (ValueType.class.isAssignableFrom(clazz)) {
+			writeValue(out, (ValueType) value);
+		} else if (clazz == List.class) {
+			final List<?> list = (List<?>) value;
+			out.writeInt(list == null ? NULL : list.size());
+			if (list != null) {
+				final Type elementType = ((ParameterizedType) type).getActualTypeArguments()[0];
+				for (final Object element : list) {
+					writeField(out, elementType, element);
+				}
+			}
+		} else if (value == null || value.getClass() == clazz) {
+			writeNullableBean(out, value);
+		} else {
+			throw new IOException("Unsupported bean: " + value.getClass().getName());
+		}
+	}
+
+	private static Object readField(final DataInput in, final Type type) throws IOException {
+		final Class<?> clazz = rawClass(type);
+		if (clazz == String.class) {
+			return readString(in);
+		} else if (clazz == Integer.class) {
+			return in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+		} else if (ValueType.class.isAssignableFrom(clazz)) {
+			final ValueType value = readValue(in);
+			if (value != null && !clazz.isInstance(value)) {
+				throw new IOException("Expected " + clazz.getName() + ": " + value.getClass().getName());
+			}
+			return value;
+		} else if (clazz == List.class) {
+			final int size = in.readInt();
+			if (size == NULL) {
+				return null;
+			}
+			final Type elementType = ((ParameterizedType) type).getActualTypeArguments()[0];
+			final List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readField(in, elementType));
+			}
+			return list;
+		} else {
+			return readNullableBean(in, clazz);
+		}
+	}
+
+	private static Class<?> rawClass(final Type type) throws IOException {
+		if (type instanceof Class) {
+			return (Class<?>) type;
+		} else if (type instanceof ParameterizedType) {
+			return (Class<?>) ((ParameterizedType) type).getRawType();
+		}
+		throw new IOException("Unsupported field type: " + type);
+	}
+
+	/**
+	 * Returns the fields encoded for a bean class: the instance fields of the class and of its super classes, super
+	 * classes first, sorted by name.
+	 */
+	private static Field[] fields(final Class<?> clazz) {
+		Field[] fields = FIELDS.get(clazz);
+		if (fields == null) {
+			final List<Field> list = new ArrayList<Field>();
+			for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+				final List<Field> declared = new ArrayList<Field>();
+				for (final Field field : c.getDeclaredFields()) {
+					final int modifiers = field.getModifiers();
+					if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+						field.setAccessible(true);
+						declared.add(field);
+					}
+				}
+				Field[] sorted = declared.toArray(new Field[declared.size()]);
+				Arrays.sort(sorted, new Comparator<Field>() {
+					@Override
+					public int compare(final Field f1, final Field f2) {
+						return f1.getName().compareTo(f2.getName());
+					}
+				});
+				list.addAll(0, Arrays.asList(sorted));
+			}
+			fields = list.toArray(new Field[list.size()]);
+			FIELDS.putIfAbsent(clazz, fields);
+		}
+		return fields;
+	}
+
+	/**
+	 * Fingerprints the fields of all the bean classes reachable from the resources and the parameters.
+	 */
+	private static int schema() {
+		final Set<Class<?>> visited = new LinkedHashSet<Class<?>>();
+		final List<Class<?>> pending = new ArrayList<Class<?>>(Arrays.asList(RESOURCE_CLASSES));
+		pending.add(Parameter.class);
+		final StringBuilder description = new StringBuilder();
+		while (!pending.isEmpty()) {
+			final Class<?> clazz = pending.remove(0);
+			if (!visited.add(clazz)) {
+				continue;
+			}
+			description.append(clazz.getName()).append('{');
+			for (final Field field : fields(clazz)) {
+				description.append(field.getName()).append(':').append(field.getGenericType()).append(';');
+				Type type = field.getGenericType();
+				if (type instanceof ParameterizedType) {
+					type = ((ParameterizedType) type).getActualTypeArguments()[0];
+				}
+				if (type instanceof Class && isBean((Class<?>) type)) {
+					pending.add((Class<?>) type);
+				}
+			}
+			description.append('}');
+		}
+		return description.toString().hashCode();
+	}
+
+	private static boolean isBean(final Class<?> clazz) {
+		return clazz != String.class && clazz != Integer.class && !ValueType.class.isAssignableFrom(clazz)
+				&& !clazz.isPrimitive() && clazz != List.class;
+	}
+}
@@ -29,8 +29,4 @@ public class AWSEC2Volume extends AWSResource {
 	public VolumeProperties getProperties() {
 		return properties;
 	}
-
-	public void setProperties(final VolumeProperties properties) {
-		this.properties = properties;
-	}
 }
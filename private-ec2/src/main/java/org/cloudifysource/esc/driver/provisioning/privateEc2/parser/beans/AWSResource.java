@@ -12,6 +12,10 @@
  ******************************************************************************/
 package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.codehaus.jackson.annotate.JsonProperty;
@@ -19,28 +23,60 @@ import org.codehaus.jackson.map.annotate.JsonDeserialize;
 
 /**
  * This abstract class is a bean representing a resource node of the Amazon CloudFormation template.<br />
- * A bean representing a specific type of resource must implement this class.
+ * A bean representing a specific type of resource must implement this class. The resources are only filled by the
+ * JSON parser, which sets the name of the resource as its {@value #NAME_PROPERTY} property.
  * 
  * @author victor
  */
 @JsonDeserialize
 public abstract class AWSResource {
 
+	/** The property set to the name of the resource, which is the key of the resource in the template. */
+	public static final String NAME_PROPERTY = "@Name";
+
+	@JsonProperty(NAME_PROPERTY)
 	private String resourceName;
 
 	@JsonProperty("Type")
 	private String type;
 
+	/** The names of the resources which must be created before this one. */
+	private List<String> dependsOn;
+
 	public String getType() {
 		return type;
 	}
 
-	public String getResourceName() {
-		return resourceName;
+	/**
+	 * @return The names of the resources which must be created before this one, <code>null</code> if there is none.
+	 */
+	public List<String> getDependsOn() {
+		return dependsOn;
 	}
 
-	public void setResourceName(final String resourceName) {
-		this.resourceName = resourceName;
+	/**
+	 * Sets the <code>DependsOn</code> attribute, which is either a resource name or a list of resource names.
+	 * 
+	 * @param dependsOn
+	 *            A resource name or a list of resource names.
+	 */
+	@JsonProperty("DependsOn")
+	private void setDependsOn(final Object dependsOn) {
+		if (dependsOn == null) {
+			this.dependsOn = null;
+		} else if (dependsOn instanceof List) {
+			final List<String> names = new ArrayList<String>();
+			for (final Object name : (List<?>) dependsOn) {
+				names.add(String.valueOf(name));
+			}
+			this.dependsOn = Collections.unmodifiableList(names);
+		} else {
+			this.dependsOn = Collections.singletonList(dependsOn.toString());
+		}
+	}
+
+	public String getResourceName() {
+		return resourceName;
 	}
 
 	@Override
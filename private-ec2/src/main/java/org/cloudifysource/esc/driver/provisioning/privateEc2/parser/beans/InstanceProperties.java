@@ -34,12 +34,26 @@ public class InstanceProperties {
 	@JsonProperty("AvailabilityZone")
 	private ValueType availabilityZone;
 
+	/**
+	 * The zones tried after <code>AvailabilityZone</code> when a zone has no capacity. Not a CloudFormation
+	 * property.
+	 */
+	@JsonProperty("AvailabilityZones")
+	private List<ValueType> availabilityZones;
+
 	@JsonProperty("ImageId")
 	private ValueType imageId;
 
 	@JsonProperty("InstanceType")
 	private ValueType instanceType;
 
+	/**
+	 * The instance types tried after <code>InstanceType</code> when a type has no capacity or exceeds its quota.
+	 * Not a CloudFormation property.
+	 */
+	@JsonProperty("InstanceTypes")
+	private List<ValueType> instanceTypes;
+
 	@JsonProperty("KeyName")
 	private ValueType keyName;
 
@@ -69,10 +83,18 @@ public class InstanceProperties {
 		return instanceType;
 	}
 
+	public List<ValueType> getInstanceTypes() {
+		return instanceTypes;
+	}
+
 	public ValueType getAvailabilityZone() {
 		return availabilityZone;
 	}
 
+	public List<ValueType> getAvailabilityZones() {
+		return availabilityZones;
+	}
+
 	public List<ValueType> getSecurityGroupIds() {
 		return securityGroupIds;
 	}
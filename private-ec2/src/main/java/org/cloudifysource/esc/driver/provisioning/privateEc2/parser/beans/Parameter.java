@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans;
+
+import java.util.List;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * A parameter of an Amazon CloudFormation template, referenced with <code>Ref</code>.
+ * 
+ */
+public class Parameter {
+
+	@JsonProperty("Type")
+	private String type;
+
+	@JsonProperty("Default")
+	private String defaultValue;
+
+	@JsonProperty("AllowedValues")
+	private List<String> allowedValues;
+
+	@JsonProperty("Description")
+	private String description;
+
+	public Parameter() {
+	}
+
+	public Parameter(final String defaultValue) {
+		this.defaultValue = defaultValue;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getDefaultValue() {
+		return defaultValue;
+	}
+
+	public List<String> getAllowedValues() {
+		return allowedValues;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+	}
+}
@@ -12,38 +12,175 @@
  ******************************************************************************/
 package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.TemplateEvaluator;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.deserializers.ResourcesDeserializer;
+import org.codehaus.jackson.annotate.JsonCreator;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.annotate.JsonDeserialize;
 
 /**
- * This class represents the root node of the Amazon CloudFormation Template.
+ * This class represents the root node of the Amazon CloudFormation Template.<br />
+ * The template is immutable: the resources are indexed by type and by name when it is created, so it can be shared
+ * by concurrent launches. Its values are evaluated with {@link #evaluate(ValueType)}, against its parameters and
+ * mappings.
  * 
  * @author victor
  * 
  */
-public class PrivateEc2Template {
+public final class PrivateEc2Template {
 
-	@JsonProperty("Resources")
-	@JsonDeserialize(using = ResourcesDeserializer.class)
-	private List<AWSResource> resources;
+	private final List<AWSResource> resources;
 
-	public void setResources(final List<AWSResource> resources) {
-		this.resources = resources;
+	/** The first resource of each resource class, and of its super classes. */
+	private final Map<Class<?>, AWSResource> resourcesByType;
+
+	/** The first resource of each name. */
+	private final Map<String, AWSResource> resourcesByName;
+
+	private final Map<String, Parameter> parameters;
+
+	private final Map<String, Map<String, Map<String, String>>> mappings;
+
+	/** Evaluates the values of the resources against the parameters and mappings. */
+	private final TemplateEvaluator evaluator;
+
+	/**
+	 * @param resources
+	 *            The resources of the template, in the template order. <code>null</code> if there is none.
+	 */
+	public PrivateEc2Template(final List<AWSResource> resources) {
+		this(resources, null, null);
+	}
+
+	/**
+	 * @param resources
+	 *            The resources of the template, in the template order. <code>null</code> if there is none.
+	 * @param parameters
+	 *            The parameters of the template. <code>null</code> if there is none.
+	 * @param mappings
+	 *            The mappings of the template, for <code>Fn::FindInMap</code>. <code>null</code> if there is none.
+	 * @throws IllegalArgumentException
+	 *             If the default value of a parameter is not one of its allowed values.
+	 */
+	@JsonCreator
+	public PrivateEc2Template(@JsonProperty("Resources")
+			@JsonDeserialize(using = ResourcesDeserializer.class) final List<AWSResource> resources,
+			@JsonProperty("Parameters") final Map<String, Parameter> parameters,
+			@JsonProperty("Mappings") final Map<String, Map<String, Map<String, String>>> mappings) {
+		this.parameters = parameters == null ? Collections.<String, Parameter> emptyMap()
+				: Collections.unmodifiableMap(new LinkedHashMap<String, Parameter>(parameters));
+		this.mappings = copyMappings(mappings);
+		this.evaluator = new TemplateEvaluator(this.parameters, this.mappings);
+		if (resources == null) {
+			this.resources = Collections.emptyList();
+		} else {
+			this.resources = Collections.unmodifiableList(new ArrayList<AWSResource>(resources));
+		}
+
+		final Map<Class<?>, AWSResource> byType = new HashMap<Class<?>, AWSResource>();
+		final Map<String, AWSResource> byName = new HashMap<String, AWSResource>();
+		for (final AWSResource resource : this.resources) {
+			for (Class<?> clazz = resource.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
+				if (!byType.containsKey(clazz)) {
+					byType.put(clazz, resource);
+				}
+			}
+			if (resource.getResourceName() != null && !byName.containsKey(resource.getResourceName())) {
+				byName.put(resource.getResourceName(), resource);
+			}
+		}
+		this.resourcesByType = byType;
+		this.resourcesByName = byName;
+	}
+
+	/**
+	 * @return An unmodifiable copy of the mappings, down to the values of each key.
+	 */
+	private static Map<String, Map<String, Map<String, String>>> copyMappings(
+			final Map<String, Map<String, Map<String, String>>> mappings) {
+		if (mappings == null) {
+			return Collections.emptyMap();
+		}
+		final Map<String, Map<String, Map<String, String>>> copy =
+				new LinkedHashMap<String, Map<String, Map<String, String>>>();
+		for (final Map.Entry<String, Map<String, Map<String, String>>> mapping : mappings.entrySet()) {
+			if (mapping.getValue() == null) {
+				copy.put(mapping.getKey(), null);
+				continue;
+			}
+			final Map<String, Map<String, String>> keys = new LinkedHashMap<String, Map<String, String>>();
+			for (final Map.Entry<String, Map<String, String>> key : mapping.getValue().entrySet()) {
+				keys.put(key.getKey(), key.getValue() == null ? null
+						: Collections.unmodifiableMap(new LinkedHashMap<String, String>(key.getValue())));
+			}
+			copy.put(mapping.getKey(), Collections.unmodifiableMap(keys));
+		}
+		return Collections.unmodifiableMap(copy);
+	}
+
+	/**
+	 * Evaluates a value of the template, resolving its <code>Ref</code> and <code>Fn::FindInMap</code>. The values
+	 * are memoized, see {@link TemplateEvaluator}.
+	 * 
+	 * @param value
+	 *            A value of the template.
+	 * @return The evaluated value, <code>null</code> if the value is <code>null</code>.
+	 * @throws IllegalStateException
+	 *             If a reference of the value can't be resolved.
+	 */
+	public String evaluate(final ValueType value) {
+		return this.evaluator.evaluate(value);
 	}
 
+	/**
+	 * @return The resources of the template, which can't be modified.
+	 */
 	public List<AWSResource> getResources() {
 		return resources;
 	}
 
+	/**
+	 * @return The parameters of the template, which can't be modified.
+	 */
+	public Map<String, Parameter> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return The mappings of the template, which can't be modified.
+	 */
+	public Map<String, Map<String, Map<String, String>>> getMappings() {
+		return mappings;
+	}
+
 	public AWSEC2Instance getEC2Instance() {
 		return this.getResourceType(AWSEC2Instance.class, null);
 	}
 
+	/**
+	 * @return The <code>AWS::EC2::Instance</code> resources, in the template order. The first one is returned by
+	 *         {@link #getEC2Instance()}.
+	 */
+	public List<AWSEC2Instance> getEC2Instances() {
+		final List<AWSEC2Instance> instances = new ArrayList<AWSEC2Instance>();
+		for (final AWSResource resource : this.resources) {
+			if (resource instanceof AWSEC2Instance) {
+				instances.add((AWSEC2Instance) resource);
+			}
+		}
+		return instances;
+	}
+
 	/**
 	 * Returns a volume bean from the given volume name.<br />
 	 * 
@@ -56,25 +193,19 @@ public class PrivateEc2Template {
 		return this.getResourceType(AWSEC2Volume.class, volumeName);
 	}
 
-	@SuppressWarnings("unchecked")
-	private <T> T getResourceType(final Class<T> clazz, final String volumeName) {
-		for (AWSResource resource : this.resources) {
-			if (clazz.isInstance(resource)) {
-				if (volumeName != null) {
-					if (volumeName.equals(resource.getResourceName())) {
-						return (T) resource;
-					}
-				} else {
-					return (T) resource;
-				}
-			}
+	private <T> T getResourceType(final Class<T> clazz, final String resourceName) {
+		final AWSResource resource;
+		if (resourceName != null) {
+			resource = this.resourcesByName.get(resourceName);
+		} else {
+			resource = this.resourcesByType.get(clazz);
 		}
-		return null;
+		return clazz.isInstance(resource) ? clazz.cast(resource) : null;
 	}
 
 	@Override
 	public String toString() {
-		return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append("resources", resources).toString();
 	}
 
 }
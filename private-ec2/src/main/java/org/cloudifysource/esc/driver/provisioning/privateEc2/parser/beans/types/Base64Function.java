@@ -29,21 +29,65 @@ public class Base64Function implements ValueType {
 
 	private final ValueType toEncode;
 
+	/** The encoded value, computed on first use. */
+	private volatile String encodedValue;
+
 	public Base64Function(final ValueType toEncode) {
 		this.toEncode = toEncode;
 	}
 
+	public ValueType getToEncode() {
+		return toEncode;
+	}
+
 	@Override
 	public String getValue() {
 		return this.toEncode.getValue();
 	}
 
+	@Override
+	public String evaluate(final ValueEvaluator evaluator) {
+		return evaluator.evaluate(this.toEncode);
+	}
+
 	public String getEncodedValue() {
-		return StringUtils.newStringUtf8(Base64.encodeBase64(toEncode.getValue().getBytes()));
+		String encoded = this.encodedValue;
+		if (encoded == null) {
+			encoded = encode(this.toEncode.getValue());
+			this.encodedValue = encoded;
+		}
+		return encoded;
+	}
+
+	/**
+	 * Encodes a value the way <code>Fn::Base64</code> does.
+	 * 
+	 * @param value
+	 *            The value to encode.
+	 * @return The base64 encoded UTF-8 bytes of the value.
+	 */
+	public static String encode(final String value) {
+		return StringUtils.newStringUtf8(Base64.encodeBase64(StringUtils.getBytesUtf8(value)));
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Base64Function)) {
+			return false;
+		}
+		return toEncode.equals(((Base64Function) obj).toEncode);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Base64Function.class.hashCode() + toEncode.hashCode();
 	}
 
 	@Override
 	public String toString() {
-		return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append("toEncode", toEncode).toString();
 	}
 }
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+import org.apache.commons.lang.builder.ToStringStyle;
+
+/**
+ * A bean to handle the parsing of the <code>Fn::FindInMap</code> function of Amazon CloudFormation.<br />
+ * The function can only be evaluated within its template, which holds the mappings.<br />
+ * <a href="http://docs.aws.amazon.com/AWSCloudFormation/latest/UserGuide/intrinsic-function-reference-findinmap.html">
+ * http://docs.aws.amazon.com/AWSCloudFormation/latest/UserGuide/intrinsic-function-reference-findinmap.html</a>
+ * 
+ */
+public class FindInMapFunction implements ValueType {
+
+	private final ValueType mapName;
+
+	private final ValueType topLevelKey;
+
+	private final ValueType secondLevelKey;
+
+	public FindInMapFunction(final ValueType mapName, final ValueType topLevelKey, final ValueType secondLevelKey) {
+		this.mapName = mapName;
+		this.topLevelKey = topLevelKey;
+		this.secondLevelKey = secondLevelKey;
+	}
+
+	public ValueType getMapName() {
+		return mapName;
+	}
+
+	public ValueType getTopLevelKey() {
+		return topLevelKey;
+	}
+
+	public ValueType getSecondLevelKey() {
+		return secondLevelKey;
+	}
+
+	/**
+	 * @return The function with its arguments, not evaluated as the mappings are defined by the template. See
+	 *         {@link #evaluate(ValueEvaluator)}.
+	 */
+	@Override
+	public String getValue() {
+		return "Fn::FindInMap[" + mapName.getValue() + ", " + topLevelKey.getValue() + ", "
+				+ secondLevelKey.getValue() + "]";
+	}
+
+	@Override
+	public String evaluate(final ValueEvaluator evaluator) {
+		return evaluator.findInMap(evaluator.evaluate(this.mapName), evaluator.evaluate(this.topLevelKey),
+				evaluator.evaluate(this.secondLevelKey));
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof FindInMapFunction)) {
+			return false;
+		}
+		final FindInMapFunction other = (FindInMapFunction) obj;
+		return mapName.equals(other.mapName) && topLevelKey.equals(other.topLevelKey)
+				&& secondLevelKey.equals(other.secondLevelKey);
+	}
+
+	@Override
+	public int hashCode() {
+		return (31 * mapName.hashCode() + topLevelKey.hashCode()) * 31 + secondLevelKey.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append("mapName", mapName)
+				.append("topLevelKey", topLevelKey).append("secondLevelKey", secondLevelKey).toString();
+	}
+}
@@ -12,6 +12,8 @@
  ******************************************************************************/
 package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
@@ -31,23 +33,74 @@ public class JoinFunction implements ValueType {
 
 	private final List<ValueType> strings;
 
+	private final int hashCode;
+
+	/** The value, computed on first use. */
+	private volatile String value;
+
 	public JoinFunction(final String separator, final List<ValueType> strings) {
 		this.separator = separator;
-		this.strings = strings;
+		this.strings = Collections.unmodifiableList(new ArrayList<ValueType>(strings));
+		this.hashCode = 31 * (separator == null ? 0 : separator.hashCode()) + this.strings.hashCode();
+	}
+
+	public String getSeparator() {
+		return separator;
+	}
+
+	/**
+	 * @return The joined values, which can't be modified.
+	 */
+	public List<ValueType> getStrings() {
+		return strings;
 	}
 
 	@Override
 	public String getValue() {
+		String joined = this.value;
+		if (joined == null) {
+			StringBuilder sb = new StringBuilder();
+			for (ValueType s : this.strings) {
+				sb.append(s.getValue()).append(this.separator);
+			}
+			joined = sb.toString();
+			this.value = joined;
+		}
+		return joined;
+	}
+
+	@Override
+	public String evaluate(final ValueEvaluator evaluator) {
 		StringBuilder sb = new StringBuilder();
 		for (ValueType s : this.strings) {
-			sb.append(s.getValue()).append(this.separator);
+			sb.append(evaluator.evaluate(s)).append(this.separator);
 		}
 		return sb.toString();
 	}
 
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof JoinFunction)) {
+			return false;
+		}
+		final JoinFunction other = (JoinFunction) obj;
+		return this.hashCode == other.hashCode
+				&& (separator == null ? other.separator == null : separator.equals(other.separator))
+				&& strings.equals(other.strings);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hashCode;
+	}
+
 	@Override
 	public String toString() {
-		return ToStringBuilder.reflectionToString(this, ToStringStyle.SHORT_PREFIX_STYLE);
+		return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE).append("separator", separator)
+				.append("strings", strings).toString();
 	}
 
 }
@@ -23,17 +23,42 @@ package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types
  */
 public class RefValue implements ValueType {
 
-	private String resourceName;
+	private final String resourceName;
 
 	public RefValue(final String resourceName) {
 		this.resourceName = resourceName;
 	}
 
+	/**
+	 * @return The referenced name, not resolved. See {@link #evaluate(ValueEvaluator)}.
+	 */
 	@Override
 	public String getValue() {
 		return this.resourceName;
 	}
 
+	@Override
+	public String evaluate(final ValueEvaluator evaluator) {
+		return evaluator.ref(this.resourceName);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RefValue)) {
+			return false;
+		}
+		final RefValue other = (RefValue) obj;
+		return resourceName == null ? other.resourceName == null : resourceName.equals(other.resourceName);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * RefValue.class.hashCode() + (resourceName == null ? 0 : resourceName.hashCode());
+	}
+
 	@Override
 	public String toString() {
 		return "Ref=" + resourceName;
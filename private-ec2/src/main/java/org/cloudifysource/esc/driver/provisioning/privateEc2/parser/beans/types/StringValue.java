@@ -30,6 +30,28 @@ public class StringValue implements ValueType {
 		return value.toString();
 	}
 
+	@Override
+	public String evaluate(final ValueEvaluator evaluator) {
+		return value;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof StringValue)) {
+			return false;
+		}
+		final StringValue other = (StringValue) obj;
+		return value == null ? other.value == null : value.equals(other.value);
+	}
+
+	@Override
+	public int hashCode() {
+		return value == null ? 0 : value.hashCode();
+	}
+
 	@Override
 	public String toString() {
 		return value;
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types;
+
+/**
+ * Evaluates the value nodes of a template, resolving the references against the template parameters, mappings and
+ * resources.
+ * 
+ */
+public interface ValueEvaluator {
+
+	/**
+	 * Evaluates a node, or returns its value if an equal node was already evaluated.
+	 * 
+	 * @param value
+	 *            The node to evaluate.
+	 * @return The value of the node, <code>null</code> if the node is <code>null</code>.
+	 */
+	String evaluate(ValueType value);
+
+	/**
+	 * Resolves a <code>Ref</code>.
+	 * 
+	 * @param name
+	 *            The referenced name.
+	 * @return The value of the parameter or the name of the resource.
+	 */
+	String ref(String name);
+
+	/**
+	 * Resolves a <code>Fn::FindInMap</code>.
+	 * 
+	 * @param mapName
+	 *            The name of the mapping.
+	 * @param topLevelKey
+	 *            The top level key.
+	 * @param secondLevelKey
+	 *            The second level key.
+	 * @return The value of the mapping.
+	 */
+	String findInMap(String mapName, String topLevelKey, String secondLevelKey);
+}
@@ -31,4 +31,15 @@ public interface ValueType {
 	 * @return A string value of the node.
 	 */
 	String getValue();
+
+	/**
+	 * Evaluates the node within its template: references are resolved by the evaluator, which also memoizes the
+	 * values of the nested nodes.<br />
+	 * Nodes are compared by structure, so equal nodes evaluate to the same value.
+	 * 
+	 * @param evaluator
+	 *            The evaluator of the template.
+	 * @return The evaluated value of the node.
+	 */
+	String evaluate(ValueEvaluator evaluator);
 }
@@ -14,28 +14,40 @@ package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.deserialize
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Instance;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Volume;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSResource;
-import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.JsonToken;
-import org.codehaus.jackson.ObjectCodec;
 import org.codehaus.jackson.map.DeserializationContext;
 import org.codehaus.jackson.map.JsonDeserializer;
+import org.codehaus.jackson.util.JsonParserSequence;
+import org.codehaus.jackson.util.TokenBuffer;
 
 /**
  * A deserializer for Amazon CloudFormation resources.<br />
- * This class will create a specific bean for <code>AWS::EC2::Instance</code> and <code>AWS::EC2::Volume</code>.
+ * This class will create a specific bean for <code>AWS::EC2::Instance</code> and <code>AWS::EC2::Volume</code>.<br />
+ * The resources are read from the token stream, without building an intermediate tree. Their name and type are
+ * passed to the bean deserializer as properties, so the resources have no setter.
  * 
  * @author victor
  * 
  */
 public class ResourcesDeserializer extends JsonDeserializer<List<AWSResource>> {
 
+	private static final Map<String, Class<? extends AWSResource>> RESOURCE_TYPES =
+			new HashMap<String, Class<? extends AWSResource>>();
+
+	static {
+		RESOURCE_TYPES.put("AWS::EC2::Instance", AWSEC2Instance.class);
+		RESOURCE_TYPES.put("AWS::EC2::Volume", AWSEC2Volume.class);
+	}
+
 	protected final Logger logger = Logger.getLogger(this.getClass().getName());
 
 	public ResourcesDeserializer() {
@@ -59,27 +71,63 @@ public class ResourcesDeserializer extends JsonDeserializer<List<AWSResource>> {
 		return resources;
 	}
 
+	/**
+	 * Deserializes a resource straight from the token stream. The fields read before <code>Type</code>, usually
+	 * none, are buffered and replayed once the type of the resource is known.
+	 */
 	private AWSResource deserializeResource(final JsonParser jp, final DeserializationContext ctxt) throws IOException {
 		String resourceName = jp.getText();
 
-		jp.nextToken();
-		JsonNode jsonNode = jp.readValueAsTree();
-		String type = jsonNode.path("Type").getTextValue();
-		ObjectCodec codec = jp.getCodec();
+		if (JsonToken.START_OBJECT != jp.nextToken()) {
+			throw ctxt.mappingException("Expected START OBJECT for resource: " + resourceName);
+		}
+
+		TokenBuffer buffered = null;
+		String type = null;
+		while (JsonToken.END_OBJECT != jp.nextToken()) {
+			if ("Type".equals(jp.getCurrentName())) {
+				jp.nextToken();
+				type = jp.getText();
+				break;
+			}
+			if (buffered == null) {
+				buffered = new TokenBuffer(jp.getCodec());
+			}
+			buffered.copyCurrentStructure(jp);
+		}
+
 		if (type != null && type.startsWith("AWS::")) {
-			if ("AWS::EC2::Instance".equals(type)) {
-				AWSEC2Instance instance = codec.treeToValue(jsonNode, AWSEC2Instance.class);
-				instance.setResourceName(resourceName);
-				return instance;
-			} else if ("AWS::EC2::Volume".equals(type)) {
-				AWSEC2Volume instance = codec.treeToValue(jsonNode, AWSEC2Volume.class);
-				instance.setResourceName(resourceName);
-				return instance;
-			} else {
+			Class<? extends AWSResource> resourceClass = RESOURCE_TYPES.get(type);
+			if (resourceClass == null) {
 				logger.warning("The parsing do not handle resource type " + type);
+				this.skipFields(jp);
 				return null;
 			}
+
+			// The resource deserializer reads the name, the type and the remaining fields, starting at the name
+			TokenBuffer identity = new TokenBuffer(jp.getCodec());
+			identity.writeStringField(AWSResource.NAME_PROPERTY, resourceName);
+			identity.writeStringField("Type", type);
+			JsonParser fields = jp;
+			if (buffered != null) {
+				fields = JsonParserSequence.createFlattened(buffered.asParser(jp), fields);
+			}
+			fields = JsonParserSequence.createFlattened(identity.asParser(jp), fields);
+			fields.nextToken();
+			JsonDeserializer<Object> deserializer = ctxt.getDeserializerProvider().findTypedValueDeserializer(
+					ctxt.getConfig(), ctxt.constructType(resourceClass), null);
+			return (AWSResource) deserializer.deserialize(fields, ctxt);
 		}
 		throw ctxt.mappingException("Node is of type AWS::EC2 resources: " + resourceName);
 	}
+
+	/**
+	 * Skips the remaining fields of the current object.
+	 */
+	private void skipFields(final JsonParser jp) throws IOException {
+		while (JsonToken.END_OBJECT != jp.nextToken()) {
+			jp.nextToken();
+			jp.skipChildren();
+		}
+	}
 }
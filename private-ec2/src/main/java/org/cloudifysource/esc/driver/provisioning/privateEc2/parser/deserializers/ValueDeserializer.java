@@ -14,20 +14,22 @@ package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.deserialize
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
 
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.Base64Function;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.FindInMapFunction;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.JoinFunction;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.RefValue;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.StringValue;
 import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.JsonParser;
-import org.codehaus.jackson.ObjectCodec;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.DeserializationContext;
 import org.codehaus.jackson.map.JsonDeserializer;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
 
 /**
  * A deserializer which handle property values of Amazon CloudFormation.<br />
@@ -35,10 +37,12 @@ import org.codehaus.jackson.map.JsonDeserializer;
  * <ul>
  * <li><code>Fn::Base64</code></li>
  * <li><code>Fn::Join</code></li>
+ * <li><code>Fn::FindInMap</code></li>
  * <li><code>Ref</code></li>
  * <li><code>basic string values</code></li>
  * </ul>
- * The other type of value is simply saved as a raw in a {@link StringValue}.
+ * The other type of value is simply saved as a raw in a {@link StringValue}.<br />
+ * The values are read from the token stream, a tree is only built for the unsupported ones.
  * 
  * @author victor
  * 
@@ -48,45 +52,111 @@ public class ValueDeserializer extends JsonDeserializer<ValueType> {
 
 	@Override
 	public ValueType deserialize(final JsonParser jp, final DeserializationContext ctxt) throws IOException {
-		ObjectCodec oc = jp.getCodec();
-		JsonNode node = oc.readTree(jp);
-		return this.functionValue(node, ctxt);
+		return this.functionValue(jp, ctxt);
 	}
 
-	private ValueType functionValue(final JsonNode root, final DeserializationContext ctxt) throws IOException {
+	/**
+	 * Reads the value starting at the current token of the parser. Only the first field of an object is considered,
+	 * the others are skipped.
+	 */
+	private ValueType functionValue(final JsonParser jp, final DeserializationContext ctxt) throws IOException {
+		JsonToken token = jp.getCurrentToken();
+		if (token == JsonToken.START_ARRAY) {
+			JsonNode node = jp.readValueAsTree();
+			logger.warning("Value not supported: " + node.toString());
+			return new StringValue(node.toString());
+		}
+		if (token != JsonToken.START_OBJECT) {
+			return new StringValue(jp.getText());
+		}
+		if (jp.nextToken() != JsonToken.FIELD_NAME) {
+			return new StringValue(null);
+		}
 
-		Iterator<String> fieldNames = root.getFieldNames();
+		String next = jp.getCurrentName();
+		jp.nextToken();
+		ValueType value;
+		if ("Fn::Base64".equals(next)) {
+			value = new Base64Function(this.functionValue(jp, ctxt));
+		} else if ("Fn::Join".equals(next)) {
+			value = this.joinFunction(jp, ctxt);
+		} else if ("Fn::FindInMap".equals(next)) {
+			value = this.findInMapFunction(jp, ctxt);
+		} else if ("Ref".equals(next)) {
+			value = new RefValue(this.scalarText(jp));
+		} else {
+			// Keep the whole object, as it was written
+			ObjectNode root = JsonNodeFactory.instance.objectNode();
+			root.put(next, jp.readValueAsTree());
+			while (jp.nextToken() != JsonToken.END_OBJECT) {
+				String fieldName = jp.getCurrentName();
+				jp.nextToken();
+				root.put(fieldName, jp.readValueAsTree());
+			}
+			logger.warning("Value not supported: " + next + " - node: " + root.toString());
+			return new StringValue(root.toString());
+		}
 
-		while (fieldNames.hasNext()) {
-			String next = fieldNames.next();
+		while (jp.nextToken() != JsonToken.END_OBJECT) {
+			jp.nextToken();
+			jp.skipChildren();
+		}
+		return value;
+	}
 
-			if ("Fn::Base64".equals(next)) {
-				JsonNode jsonNode = root.get(next);
-				ValueType value = this.functionValue(jsonNode, ctxt);
-				return new Base64Function(value);
-			} else if ("Fn::Join".equals(next)) {
-				JsonNode joinNode = root.get(next);
-				Iterator<JsonNode> elements = joinNode.getElements();
+	/**
+	 * Reads <code>[separator, [values...]]</code>.
+	 */
+	private ValueType joinFunction(final JsonParser jp, final DeserializationContext ctxt) throws IOException {
+		if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw ctxt.mappingException("Expected an array for Fn::Join");
+		}
+		jp.nextToken();
+		String separator = this.scalarText(jp);
 
-				JsonNode separatorNode = elements.next();
-				String separator = separatorNode.getTextValue();
+		List<ValueType> toJoinList = new ArrayList<ValueType>();
+		if (jp.nextToken() != JsonToken.START_ARRAY) {
+			throw ctxt.mappingException("Expected the values to join for Fn::Join");
+		}
+		while (jp.nextToken() != JsonToken.END_ARRAY) {
+			toJoinList.add(this.functionValue(jp, ctxt));
+		}
 
-				JsonNode toJoinNodes = elements.next();
-				Iterator<JsonNode> iterator = toJoinNodes.iterator();
-				List<ValueType> toJoinList = new ArrayList<ValueType>();
-				while (iterator.hasNext()) {
-					JsonNode node = iterator.next();
-					toJoinList.add(this.functionValue(node, ctxt));
-				}
+		while (jp.nextToken() != JsonToken.END_ARRAY) {
+			jp.skipChildren();
+		}
+		return new JoinFunction(separator, toJoinList);
+	}
 
-				return new JoinFunction(separator, toJoinList);
-			} else if ("Ref".equals(next)) {
-				return new RefValue(root.get(next).getValueAsText());
-			} else {
-				logger.warning("Value not supported: " + next + " - node: " + root.toString());
-				return new StringValue(root.toString());
+	/**
+	 * Reads <code>[mapName, topLevelKey, secondLevelKey]</code>.
+	 */
+	private ValueType findInMapFunction(final JsonParser jp, final DeserializationContext ctxt) throws IOException {
+		if (jp.getCurrentToken() != JsonToken.START_ARRAY) {
+			throw ctxt.mappingException("Expected an array for Fn::FindInMap");
+		}
+		ValueType[] arguments = new ValueType[3];
+		for (int i = 0; i < arguments.length; i++) {
+			if (jp.nextToken() == JsonToken.END_ARRAY) {
+				throw ctxt.mappingException("Expected 3 arguments for Fn::FindInMap");
 			}
+			arguments[i] = this.functionValue(jp, ctxt);
+		}
+		while (jp.nextToken() != JsonToken.END_ARRAY) {
+			jp.skipChildren();
+		}
+		return new FindInMapFunction(arguments[0], arguments[1], arguments[2]);
+	}
+
+	/**
+	 * @return The text of a scalar value, <code>null</code> for an object or an array which are skipped.
+	 */
+	private String scalarText(final JsonParser jp) throws IOException {
+		JsonToken token = jp.getCurrentToken();
+		if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+			jp.skipChildren();
+			return null;
 		}
-		return new StringValue(root.getTextValue());
+		return jp.getText();
 	}
 }
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LaunchPlanTest {
+
+	private static String instance(final String name, final String imageId, final String dependsOn) {
+		return "\"" + name + "\":{\"Type\":\"AWS::EC2::Instance\"," + (dependsOn == null ? "" : "\"DependsOn\":"
+				+ dependsOn + ",") + "\"Properties\":{\"ImageId\":\"" + imageId + "\"}}";
+	}
+
+	private LaunchPlan compile(final String... resources) throws Exception {
+		final StringBuilder json = new StringBuilder("{\"Resources\":{");
+		for (int i = 0; i < resources.length; i++) {
+			json.append(i == 0 ? "" : ",").append(resources[i]);
+		}
+		json.append("}}");
+		return LaunchPlan.compile(ParserUtils.mapJson(PrivateEc2Template.class, json.toString()), "/tmp");
+	}
+
+	private static List<String> names(final List<LaunchPlan.Tier> tiers) {
+		final List<String> names = new ArrayList<String>();
+		for (final LaunchPlan.Tier tier : tiers) {
+			names.add(tier.getName());
+		}
+		return names;
+	}
+
+	@Test
+	public void testSingleInstance() throws Exception {
+		LaunchPlan plan = compile(instance("vm", "ami-1", null));
+		Assert.assertFalse(plan.isMultiInstance());
+		Assert.assertEquals("vm", plan.getPrimary().getName());
+		Assert.assertEquals("ami-1", plan.getPrimary().getPrototype().newRunInstancesRequest(null).getImageId());
+		Assert.assertTrue(plan.getPrimary().getDependencies().isEmpty());
+	}
+
+	@Test
+	public void testLaunchOrder() throws Exception {
+		LaunchPlan plan = compile(instance("web", "ami-1", "[\"db\",\"cache\"]"), instance("cache", "ami-2", null),
+				instance("db", "ami-3", "\"cache\""), instance("monitor", "ami-4", null));
+		Assert.assertTrue(plan.isMultiInstance());
+		Assert.assertEquals("web", plan.getPrimary().getName());
+		Assert.assertEquals(Arrays.asList("web", "cache", "db", "monitor"), names(plan.getTiers()));
+		Assert.assertEquals(Arrays.asList("cache", "db", "web", "monitor"), names(plan.getLaunchOrder()));
+		Assert.assertEquals(Arrays.asList("db", "cache"), plan.getPrimary().getDependencies());
+		Assert.assertEquals("ami-3", plan.getTiers().get(2).getPrototype().newRunInstancesRequest(null).getImageId());
+	}
+
+	@Test
+	public void testDependencyOnVolumeIsIgnored() throws Exception {
+		LaunchPlan plan = compile(instance("vm", "ami-1", "\"disk\""),
+				"\"disk\":{\"Type\":\"AWS::EC2::Volume\",\"Properties\":{\"Size\":1}}");
+		Assert.assertTrue(plan.getPrimary().getDependencies().isEmpty());
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testCircularDependencies() throws Exception {
+		compile(instance("a", "ami-1", "\"c\""), instance("b", "ami-2", "\"a\""), instance("c", "ami-3", "\"b\""));
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testNoInstance() throws Exception {
+		compile("\"disk\":{\"Type\":\"AWS::EC2::Volume\",\"Properties\":{\"Size\":1}}");
+	}
+}
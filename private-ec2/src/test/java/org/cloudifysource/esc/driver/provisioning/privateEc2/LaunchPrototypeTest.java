@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+public class LaunchPrototypeTest {
+
+	private LaunchPrototype compile(final String templateName, final String cloudFileDirectory) throws Exception {
+		PrivateEc2Template template = ParserUtils.mapJson(PrivateEc2Template.class,
+				new File("./src/test/resources/cfn_templates/" + templateName));
+		return LaunchPrototype.compile(template, cloudFileDirectory);
+	}
+
+	private LaunchPrototype compileJson(final String json) throws Exception {
+		return LaunchPrototype.compile(ParserUtils.mapJson(PrivateEc2Template.class, json), "/tmp");
+	}
+
+	@Test
+	public void testRunInstancesRequest() throws Exception {
+		LaunchPrototype prototype = compile("ref.template", null);
+		RunInstancesRequest request = prototype.newRunInstancesRequest(null);
+		Assert.assertEquals("ami-89b1a3fd", request.getImageId());
+		Assert.assertEquals("t1.micro", request.getInstanceType());
+		Assert.assertEquals("cloudify", request.getKeyName());
+		Assert.assertEquals("eu-west-1c", request.getPlacement().getAvailabilityZone());
+		Assert.assertEquals(Arrays.asList("cloudify", "default"), request.getSecurityGroups());
+		Assert.assertEquals(Integer.valueOf(1), request.getMinCount());
+		Assert.assertEquals(Integer.valueOf(1), request.getMaxCount());
+		Assert.assertEquals(1, request.getBlockDeviceMappings().size());
+		Assert.assertEquals("/dev/sdk", request.getBlockDeviceMappings().get(0).getDeviceName());
+		Assert.assertEquals(Integer.valueOf(1), request.getBlockDeviceMappings().get(0).getEbs().getVolumeSize());
+		Assert.assertTrue(request.getBlockDeviceMappings().get(0).getEbs().getDeleteOnTermination());
+		Assert.assertNull(request.getUserData());
+		Assert.assertFalse(prototype.hasUserData());
+	}
+
+	@Test
+	public void testRequestsAreIndependent() throws Exception {
+		LaunchPrototype prototype = compile("ref.template", null);
+		RunInstancesRequest first = prototype.newRunInstancesRequest("first");
+		first.getBlockDeviceMappings().get(0).getEbs().setVolumeSize(100);
+		first.getSecurityGroups().add("other");
+
+		RunInstancesRequest second = prototype.newRunInstancesRequest("second");
+		Assert.assertEquals("second", second.getUserData());
+		Assert.assertEquals(Integer.valueOf(1), second.getBlockDeviceMappings().get(0).getEbs().getVolumeSize());
+		Assert.assertEquals(2, second.getSecurityGroups().size());
+	}
+
+	@Test
+	public void testUserData() throws Exception {
+		LaunchPrototype prototype = compile("volume.template", "/home/ubuntu/");
+		Assert.assertTrue(prototype.hasUserData());
+		String userData = prototype.userData("https://bucket/archive.tar.gz");
+		Assert.assertTrue(userData.startsWith("#!/bin/bash\nexport TMP_DIRECTORY=/tmp >> /tmp/cloud.txt\n"
+				+ "export S3_ARCHIVE_FILE='https://bucket/archive.tar.gz' >> /tmp/cloud.txt\n"));
+		Assert.assertTrue(userData.contains("mkdir -p /home/ubuntu >> /tmp/cloud.txt\n"));
+		Assert.assertTrue(userData.contains("source /home/ubuntu/cloudify_env.sh >> /tmp/cloud.txt\n"));
+		Assert.assertTrue(userData.endsWith("--verbose > /home/ubuntu/output.txt\n"));
+	}
+
+	@Test
+	public void testTags() throws Exception {
+		LaunchPrototype prototype = compile("tags.template", null);
+		Assert.assertEquals(Arrays.asList(new Tag("Instance", "someInstanceTag")), prototype.getInstanceTags());
+		List<Tag> volumeTags = prototype.getVolumeTags().get("/dev/sdk");
+		Assert.assertEquals(Arrays.asList(new Tag("Volume1", "someVolumeTag1"), new Tag("Volume2", "someVolumeTag2")),
+				volumeTags);
+	}
+
+	@Test
+	public void testEvaluatedParameters() throws Exception {
+		LaunchPrototype prototype = compileJson("{\"Parameters\":{\"Group\":{\"Default\":\"web\"}},"
+				+ "\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{"
+				+ "\"SecurityGroups\":[\"default\",{\"Ref\":\"Group\"}],\"ImageId\":{\"Ref\":\"ImageId\"}}}}}");
+		RunInstancesRequest request = prototype.newRunInstancesRequest(null);
+		Assert.assertEquals(Arrays.asList("default", "web"), request.getSecurityGroups());
+		Assert.assertEquals("ImageId", request.getImageId());
+	}
+
+	@Test
+	public void testCandidateZones() throws Exception {
+		LaunchPrototype prototype = compileJson("{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\","
+				+ "\"Properties\":{\"AvailabilityZone\":\"eu-west-1b\","
+				+ "\"AvailabilityZones\":[\"eu-west-1a\",\"eu-west-1b\",\"eu-west-1c\"]}}}}");
+		Assert.assertEquals(Arrays.asList("eu-west-1b", "eu-west-1a", "eu-west-1c"), prototype.getAvailabilityZones());
+		Assert.assertEquals("eu-west-1b", prototype.newRunInstancesRequest(null).getPlacement().getAvailabilityZone());
+		Assert.assertEquals("eu-west-1c",
+				prototype.newRunInstancesRequest(null, null, "eu-west-1c").getPlacement().getAvailabilityZone());
+
+		prototype = compileJson("{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{"
+				+ "\"AvailabilityZones\":[\"eu-west-1c\",\"eu-west-1a\"]}}}}");
+		Assert.assertEquals("eu-west-1c", prototype.getAvailabilityZone());
+
+		prototype = compileJson("{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{}}}}");
+		Assert.assertTrue(prototype.getAvailabilityZones().isEmpty());
+		Assert.assertNull(prototype.newRunInstancesRequest(null).getPlacement());
+	}
+
+	@Test
+	public void testCandidateInstanceTypes() throws Exception {
+		LaunchPrototype prototype = compileJson("{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\","
+				+ "\"Properties\":{\"InstanceType\":\"m3.xlarge\","
+				+ "\"InstanceTypes\":[\"c3.xlarge\",\"m1.xlarge\"]}}}}");
+		Assert.assertEquals(Arrays.asList("m3.xlarge", "c3.xlarge", "m1.xlarge"), prototype.getInstanceTypes());
+		Assert.assertEquals("m3.xlarge", prototype.newRunInstancesRequest(null).getInstanceType());
+		Assert.assertEquals("m1.xlarge", prototype.newRunInstancesRequest(null, "m1.xlarge", null).getInstanceType());
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testUnresolvedParameter() throws Exception {
+		compileJson("{\"Parameters\":{\"ImageId\":{\"Type\":\"String\"}},"
+				+ "\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{"
+				+ "\"ImageId\":{\"Ref\":\"ImageId\"}}}}}");
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testMissingVolume() throws Exception {
+		compileJson("{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{"
+				+ "\"Volumes\":[{\"VolumeId\":{\"Ref\":\"missing\"},\"Device\":\"/dev/sdk\"}]}}}}");
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testMissingInstance() throws Exception {
+		compileJson("{\"Resources\":{\"disk\":{\"Type\":\"AWS::EC2::Volume\",\"Properties\":{\"Size\":1}}}}");
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testUserDataWithoutRemoteDirectory() throws Exception {
+		compile("volume.template", null);
+	}
+}
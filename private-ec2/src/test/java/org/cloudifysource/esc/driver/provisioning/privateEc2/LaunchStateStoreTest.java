@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.LaunchStateStore.Resolution;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.LaunchStateStore.Step;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LaunchStateStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File stateFile;
+
+	@Before
+	public void before() {
+		this.stateFile = new File(this.folder.getRoot(), "launches.state");
+	}
+
+	private static void recordSucceededLaunch(final LaunchStateStore store, final String key) {
+		store.record(Step.STARTED, key, "cloudify-agent-1", null);
+		store.record(Step.ARCHIVED, key, "bucket/folder", "archive-1.tar.gz");
+		store.record(Step.REQUESTED, key, "token-1");
+		store.record(Step.LAUNCHED, key, "i-00000001");
+		store.record(Step.TAGGED, key);
+		store.record(Step.SUCCEEDED, key);
+		store.record(Step.ARCHIVE_DELETED, key);
+	}
+
+	private static void recordInterruptedLaunch(final LaunchStateStore store, final String key) {
+		store.record(Step.STARTED, key, "cloudify-agent-2", "launch-2");
+		store.record(Step.ARCHIVED, key, "bucket/folder", "archive-2.tar.gz");
+		store.record(Step.REQUESTED, key, "token-2");
+	}
+
+	@Test
+	public void testPendingLaunchesSurviveRestart() throws Exception {
+		final LaunchStateStore store = LaunchStateStore.acquire(this.stateFile);
+		recordSucceededLaunch(store, LaunchStateStore.key("launch-1", "cloudify-agent-1"));
+		recordInterruptedLaunch(store, LaunchStateStore.key("launch-2", "cloudify-agent-2"));
+		Assert.assertEquals(1, store.getPendingLaunches().size());
+		store.release();
+
+		final LaunchStateStore reopened = LaunchStateStore.acquire(this.stateFile);
+		try {
+			final List<LaunchStateStore.Launch> launches = reopened.getPendingLaunches();
+			Assert.assertEquals(1, launches.size());
+			final LaunchStateStore.Launch launch = launches.get(0);
+			Assert.assertEquals("launch-2", launch.getLaunchId());
+			Assert.assertEquals("cloudify-agent-2", launch.getMachineName());
+			Assert.assertEquals("launch-2", launch.getLaunchGroup());
+			Assert.assertEquals(Arrays.asList("token-2"), new ArrayList<String>(launch.getClientTokens()));
+			Assert.assertTrue(launch.hasArchive());
+			Assert.assertEquals("bucket/folder", launch.getArchiveBucket());
+			Assert.assertEquals("archive-2.tar.gz", launch.getArchiveKey());
+
+			// The drivers sharing the store reconcile the launches once
+			final LaunchStateStore shared = LaunchStateStore.acquire(this.stateFile);
+			Assert.assertSame(reopened, shared);
+			Assert.assertTrue(reopened.claimReconciliation());
+			Assert.assertFalse(shared.claimReconciliation());
+			shared.release();
+		} finally {
+			reopened.release();
+		}
+	}
+
+	@Test
+	public void testSettledLaunchesAreCompacted() throws Exception {
+		final LaunchStateStore store = LaunchStateStore.acquire(this.stateFile);
+		for (int i = 0; i < 10; i++) {
+			recordSucceededLaunch(store, LaunchStateStore.key("launch-" + i, "cloudify-agent-1"));
+		}
+		Assert.assertTrue(this.stateFile.length() > LaunchStateStore.HEADER_SIZE);
+		store.release();
+
+		LaunchStateStore.acquire(this.stateFile).release();
+		Assert.assertEquals(LaunchStateStore.HEADER_SIZE, this.stateFile.length());
+	}
+
+	@Test
+	public void testOnlyDurableStepsAreForced() throws Exception {
+		final LaunchStateStore store = LaunchStateStore.acquire(this.stateFile);
+		final String key = LaunchStateStore.key("launch-1", "cloudify-agent-1");
+		store.record(Step.STARTED, key, "cloudify-agent-1", null);
+		Assert.assertEquals(LaunchStateStore.HEADER_SIZE, this.stateFile.length());
+
+		// The durable step writes the records appended before it too
+		store.record(Step.REQUESTED, key, "token-1");
+		final long length = this.stateFile.length();
+		Assert.assertTrue(length > LaunchStateStore.HEADER_SIZE);
+
+		store.record(Step.LAUNCHED, key, "i-00000001");
+		Assert.assertEquals(length, this.stateFile.length());
+		store.release();
+		Assert.assertTrue(this.stateFile.length() > length);
+	}
+
+	@Test
+	public void testConcurrentDurableRecords() throws Exception {
+		final int threads = 8;
+		final int launchesPerThread = 50;
+		final LaunchStateStore store = LaunchStateStore.acquire(this.stateFile);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < launchesPerThread; i++) {
+							final String key = LaunchStateStore.key("launch-" + thread + "-" + i, "cloudify-agent");
+							store.record(Step.STARTED, key, "cloudify-agent", null);
+							store.record(Step.REQUESTED, key, "token-" + thread + "-" + i);
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+			store.release();
+		}
+
+		final LaunchStateStore reopened = LaunchStateStore.acquire(this.stateFile);
+		try {
+			final List<LaunchStateStore.Launch> launches = reopened.getPendingLaunches();
+			Assert.assertEquals(threads * launchesPerThread, launches.size());
+			for (final LaunchStateStore.Launch launch : launches) {
+				Assert.assertEquals(1, launch.getClientTokens().size());
+			}
+		} finally {
+			reopened.release();
+		}
+	}
+
+	@Test
+	public void testTornRecordIsIgnored() throws Exception {
+		final LaunchStateStore store = LaunchStateStore.acquire(this.stateFile);
+		final String key = LaunchStateStore.key("launch-2", "cloudify-agent-2");
+		recordInterruptedLaunch(store, key);
+		store.release();
+		final long length = this.stateFile.length();
+
+		// The JVM crashed while writing a record
+		final FileOutputStream out = new FileOutputStream(this.stateFile, true);
+		try {
+			out.write(new byte[] { 0, 0, 0, 42, 1, 0 });
+		} finally {
+			out.close();
+		}
+
+		final LaunchStateStore reopened = LaunchStateStore.acquire(this.stateFile);
+		try {
+			Assert.assertEquals(length, this.stateFile.length());
+			Assert.assertEquals(1, reopened.getPendingLaunches().size());
+			Assert.assertTrue(reopened.getPendingLaunches().get(0).getClientTokens().contains("token-2"));
+
+			reopened.record(Step.LAUNCHED, key, "i-00000002");
+		} finally {
+			reopened.release();
+		}
+		final LaunchStateStore again = LaunchStateStore.acquire(this.stateFile);
+		try {
+			Assert.assertTrue(again.getPendingLaunches().get(0).getInstanceIds().contains("i-00000002"));
+		} finally {
+			again.release();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotAStateFile() throws Exception {
+		FileUtils.writeStringToFile(this.stateFile, "not a launch state file");
+		LaunchStateStore.acquire(this.stateFile);
+	}
+
+	@Test
+	public void testResolve() {
+		final LaunchStateStore.Launch launch = new LaunchStateStore.Launch("launch-1/cloudify-agent-1");
+		launch.apply(Step.STARTED, "cloudify-agent-1", null);
+		launch.apply(Step.REQUESTED, "token-1", null);
+		Assert.assertEquals(Resolution.CLEAN_UP, launch.resolve(false));
+		Assert.assertEquals(Resolution.FINISH, launch.resolve(true));
+
+		launch.apply(Step.TAGGED, null, null);
+		Assert.assertEquals(Resolution.ADOPT, launch.resolve(true));
+
+		launch.apply(Step.FAILED, null, null);
+		Assert.assertEquals(Resolution.TERMINATE, launch.resolve(true));
+		Assert.assertFalse(launch.isSettled());
+
+		launch.apply(Step.TERMINATED, "i-00000001", null);
+		Assert.assertEquals(Resolution.CLEAN_UP, launch.resolve(true));
+		Assert.assertTrue(launch.isSettled());
+	}
+}
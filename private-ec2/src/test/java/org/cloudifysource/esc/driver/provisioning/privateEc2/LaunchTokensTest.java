@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LaunchTokensTest {
+
+	private static final ZoneCapacityTracker.Candidate FIRST = new ZoneCapacityTracker.Candidate("m3.xlarge",
+			"eu-west-1a");
+
+	private static final ZoneCapacityTracker.Candidate SECOND = new ZoneCapacityTracker.Candidate("m3.xlarge",
+			"eu-west-1b");
+
+	@Test
+	public void testClientToken() {
+		final String token = LaunchTokens.clientToken("launch-1", "cloudify-agent-1", FIRST);
+		Assert.assertTrue(token.length() <= LaunchTokens.MAX_TOKEN_LENGTH);
+		// The retries of a request have the same token
+		Assert.assertEquals(token, LaunchTokens.clientToken("launch-1", "cloudify-agent-1", FIRST));
+
+		Assert.assertFalse(token.equals(LaunchTokens.clientToken("launch-1", "cloudify-agent-1", SECOND)));
+		Assert.assertFalse(token.equals(LaunchTokens.clientToken("launch-1", "cloudify-agent-2", FIRST)));
+		Assert.assertFalse(token.equals(LaunchTokens.clientToken("launch-2", "cloudify-agent-1", FIRST)));
+		Assert.assertFalse(LaunchTokens.clientToken(null, "cloudify-agent-1", FIRST).equals(
+				LaunchTokens.clientToken(null, "cloudify-agent-1", FIRST)));
+	}
+
+	@Test
+	public void testEachLaunchHasItsOwnToken() {
+		// A launch retried by the ESM is a new startMachine call, with a new launch ID: it isn't deduplicated
+		final String first = LaunchTokens.clientToken(LaunchContext.newLaunchId(), "cloudify-agent-1", FIRST);
+		final String retry = LaunchTokens.clientToken(LaunchContext.newLaunchId(), "cloudify-agent-1", FIRST);
+		Assert.assertFalse(first.equals(retry));
+	}
+}
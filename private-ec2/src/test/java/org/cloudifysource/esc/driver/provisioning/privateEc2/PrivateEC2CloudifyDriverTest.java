@@ -106,4 +106,13 @@ public class PrivateEC2CloudifyDriverTest {
 		assertThat(keyName.getValue(), is("cloudify"));
 	}
 
+	@Test
+	public void testReloadTemplate() throws Exception {
+		driver.setCustomDataFile(new File("./src/test/resources/cfn_templates"));
+		PrivateEc2Template template = driver.getCFNTemplatePerService("static");
+
+		driver.reloadTemplate("externalConfig", template, "/tmp");
+		Assert.assertSame(template, driver.getCFNTemplatePerService("externalConfig"));
+	}
+
 }
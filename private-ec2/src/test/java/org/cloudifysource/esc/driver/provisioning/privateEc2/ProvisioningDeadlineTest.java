@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.ProvisioningDeadline.Phase;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProvisioningDeadlineTest {
+
+	@Test
+	public void testPhaseTimeIsRecorded() throws Exception {
+		ProvisioningDeadline deadline = new ProvisioningDeadline(1, TimeUnit.MINUTES);
+		String result = deadline.phase(Phase.UPLOAD, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				Thread.sleep(20L);
+				return "uploaded";
+			}
+		}).call();
+
+		Assert.assertEquals("uploaded", result);
+		Assert.assertTrue(deadline.getPhaseTimes().get(Phase.UPLOAD) >= 20L);
+		Assert.assertNull(deadline.getPhaseTimes().get(Phase.RUN));
+		Assert.assertTrue(deadline.remainingMillis() > 0);
+	}
+
+	@Test
+	public void testPhaseDoesNotStartAfterDeadline() throws Exception {
+		ProvisioningDeadline deadline = new ProvisioningDeadline(0, TimeUnit.MILLISECONDS);
+		final boolean[] started = { false };
+		try {
+			deadline.phase(Phase.RUN, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					started[0] = true;
+					return null;
+				}
+			}).call();
+			Assert.fail("TimeoutException expected");
+		} catch (TimeoutException e) {
+			Assert.assertFalse(started[0]);
+			Assert.assertEquals(0L, deadline.remainingMillis());
+		}
+	}
+
+	@Test
+	public void testForkSharesTheEndTime() throws Exception {
+		ProvisioningDeadline deadline = new ProvisioningDeadline(1, TimeUnit.MINUTES);
+		ProvisioningDeadline fork = deadline.fork("launch-2");
+		fork.phase(Phase.TAG, new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return null;
+			}
+		}).call();
+
+		Assert.assertEquals(deadline.getEndTime(), fork.getEndTime());
+		Assert.assertNotNull(fork.getPhaseTimes().get(Phase.TAG));
+		Assert.assertTrue(deadline.getPhaseTimes().isEmpty());
+	}
+}
@@ -0,0 +1,462 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.cloudifysource.dsl.cloud.Cloud;
+import org.cloudifysource.dsl.cloud.compute.ComputeTemplate;
+import org.cloudifysource.dsl.internal.ServiceReader;
+import org.cloudifysource.esc.driver.provisioning.MachineDetails;
+import org.cloudifysource.esc.driver.provisioning.ProvisioningContextAccess;
+import org.cloudifysource.esc.driver.provisioning.ProvisioningContextImpl;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.JournalEntry;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal.Transition;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.fake.FakeAmazonClientFactory;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.fake.FakeAmazonEC2;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Load harness firing a storm of concurrent startMachine/stopMachine calls against one or several drivers backed by
+ * the in-memory EC2 and S3 fakes, so it runs offline in a few seconds.<br />
+ * Each scenario writes a JSON report in <code>target/scale-storm-&lt;scenario&gt;.json</code> with:
+ * <ul>
+ * <li>the API calls made per launch and per stop, and per operation,</li>
+ * <li>the p50/p99 time to ready of the launches and the time of the stops,</li>
+ * <li>the peak thread count, of the JVM and of the driver scheduler,</li>
+ * <li>the heap used before, during and after the storm.</li>
+ * </ul>
+ * The calls are attributed to the launches through the launch ID of the calling thread and the provisioning journal.
+ * The scenario fails if the p99 of the API calls per launch exceeds <code>scaleStorm.maxCallsPerLaunch</code>, which
+ * catches call amplifications such as a name lookup or a management servers lookup repeated for each launch.<br />
+ * The storm is sized with system properties: <code>scaleStorm.launches</code>, <code>scaleStorm.drivers</code>,
+ * <code>scaleStorm.pendingMillis</code>, <code>scaleStorm.shuttingDownMillis</code> and
+ * <code>scaleStorm.callLatencyMillis</code>.<br />
+ * The agent probe connects to the port 7002 of the public address of the instances: a fake agent listens on the local
+ * host for the duration of the storm.
+ * 
+ */
+public class ScaleStormIT {
+
+	private static final Logger logger = Logger.getLogger(ScaleStormIT.class.getName());
+
+	private static final String CLOUD_DIRECTORY = "cloudify/clouds/privateEc2";
+	private static final String TEMPLATES_DIRECTORY = "src/test/resources/scale_storm";
+	private static final String REPORT_DIRECTORY = "target";
+	private static final String CLOUD_TEMPLATE = "CFN_TEMPLATE";
+	private static final String SERVICE_NAME = "stormApplication.stormService";
+	private static final String CLOUD_OVERRIDES = "accessKey=\"storm\"\napiKey=\"storm\"\nlocationId=\"us-east-1\"\n";
+
+	private static final int AGENT_PORT = 7002;
+	private static final long SAMPLING_INTERVAL = 50L;
+	private static final long STORM_TIMEOUT_MINUTES = 10L;
+	private static final int JOURNAL_RECORDS_PER_LAUNCH = 32;
+	private static final double P50 = 0.50;
+	private static final double P99 = 0.99;
+
+	private final int launches = Integer.getInteger("scaleStorm.launches", 200);
+	private final int drivers = Integer.getInteger("scaleStorm.drivers", 4);
+	private final long pendingMillis = Long.getLong("scaleStorm.pendingMillis", 1000L);
+	private final long shuttingDownMillis = Long.getLong("scaleStorm.shuttingDownMillis", 1000L);
+	private final long callLatencyMillis = Long.getLong("scaleStorm.callLatencyMillis", 20L);
+	private final int maxCallsPerLaunch = Integer.getInteger("scaleStorm.maxCallsPerLaunch", 12);
+
+	private FakeAmazonClientFactory factory;
+	private FakeAgent agent;
+	private Cloud cloud;
+	private File journalFile;
+
+	@Before
+	public void before() throws Exception {
+		this.agent = FakeAgent.start();
+		Assume.assumeNotNull(this.agent);
+
+		this.factory = new FakeAmazonClientFactory();
+		this.factory.getEC2().setPendingMillis(0L);
+		this.startManagementMachine(this.factory.getEC2());
+		this.factory.getEC2().setPendingMillis(this.pendingMillis);
+		this.factory.getEC2().setShuttingDownMillis(this.shuttingDownMillis);
+		this.factory.getEC2().setCallLatencyMillis(this.callLatencyMillis);
+		this.factory.getS3().setCallLatencyMillis(this.callLatencyMillis);
+		this.factory.getEC2().resetCallCounts();
+		this.factory.getS3().resetCallCounts();
+
+		final File cloudDirectory = new File(CLOUD_DIRECTORY);
+		this.cloud = ServiceReader.readCloudFromDirectory(cloudDirectory.getAbsolutePath(), CLOUD_OVERRIDES);
+		this.journalFile = File.createTempFile("scale-storm", ".journal");
+		this.journalFile.delete();
+		this.cloud.getCustom().put(ProvisioningJournal.FILE_PROPERTY, this.journalFile.getAbsolutePath());
+		this.cloud.getCustom().put(ProvisioningJournal.CAPACITY_PROPERTY,
+				String.valueOf(this.launches * JOURNAL_RECORDS_PER_LAUNCH));
+		final ComputeTemplate managerTemplate = this.cloud.getCloudCompute().getTemplates()
+				.get(this.cloud.getConfiguration().getManagementMachineTemplate());
+		managerTemplate.getCustom().put("s3BucketName", "scale-storm");
+	}
+
+	@After
+	public void after() throws IOException {
+		if (this.agent != null) {
+			this.agent.stop();
+		}
+		if (this.journalFile != null) {
+			this.journalFile.delete();
+		}
+	}
+
+	/**
+	 * Every launch and stop goes through a single driver.
+	 */
+	@Test
+	public void testStormOnOneDriver() throws Exception {
+		this.storm("one-driver", 1);
+	}
+
+	/**
+	 * The launches and stops are spread over several drivers sharing the same cloud, as when several services scale
+	 * out at once.
+	 */
+	@Test
+	public void testStormOnManyDrivers() throws Exception {
+		this.storm("many-drivers", this.drivers);
+	}
+
+	private void startManagementMachine(final FakeAmazonEC2 ec2) {
+		// Launches look up the management servers to generate the cloudify environment of the new machines
+		final Instance manager = ec2.getClient().runInstances(new RunInstancesRequest("ami-manager", 1, 1))
+				.getReservation().getInstances().get(0);
+		ec2.getClient().createTags(new CreateTagsRequest().withResources(manager.getInstanceId())
+				.withTags(new Tag("Name", "cfy-manager1")));
+	}
+
+	private void storm(final String scenario, final int driverNumber) throws Exception {
+		final List<PrivateEC2CloudifyDriver> stormDrivers = new ArrayList<PrivateEC2CloudifyDriver>(driverNumber);
+		for (int i = 0; i < driverNumber; i++) {
+			final PrivateEC2CloudifyDriver driver = new PrivateEC2CloudifyDriver();
+			driver.setAmazonClientFactory(this.factory);
+			driver.setCustomDataFile(new File(TEMPLATES_DIRECTORY));
+			driver.setConfig(this.cloud, CLOUD_TEMPLATE, false, SERVICE_NAME);
+			stormDrivers.add(driver);
+		}
+
+		final ResourceSampler sampler = new ResourceSampler();
+		final ComputeTemplate template = this.cloud.getCloudCompute().getTemplates().get(CLOUD_TEMPLATE);
+		final List<Long> readyTimes = Collections.synchronizedList(new ArrayList<Long>());
+		final List<Long> stopTimes = Collections.synchronizedList(new ArrayList<Long>());
+		final AtomicInteger failedLaunches = new AtomicInteger();
+		final AtomicInteger failedStops = new AtomicInteger();
+		final CountDownLatch startSignal = new CountDownLatch(1);
+
+		// One caller thread per launch, as when the ESM scales many services out at once
+		final ExecutorService callers = Executors.newFixedThreadPool(this.launches);
+		final List<Future<?>> calls = new ArrayList<Future<?>>(this.launches);
+		sampler.start();
+		final long stormStart = System.currentTimeMillis();
+		try {
+			for (int i = 0; i < this.launches; i++) {
+				final PrivateEC2CloudifyDriver driver = stormDrivers.get(i % driverNumber);
+				calls.add(callers.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						final ProvisioningContextImpl ctx = new ProvisioningContextImpl();
+						ctx.getInstallationDetailsBuilder().setCloud(cloud);
+						ctx.getInstallationDetailsBuilder().setTemplate(template);
+						ProvisioningContextAccess.setCurrentProvisioingContext(ctx);
+						startSignal.await();
+
+						MachineDetails md = null;
+						final long launchStart = System.currentTimeMillis();
+						try {
+							md = driver.startMachine(null, STORM_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+							readyTimes.add(System.currentTimeMillis() - launchStart);
+						} catch (final Exception e) {
+							failedLaunches.incrementAndGet();
+							logger.warning("Launch failed: " + e);
+							return null;
+						}
+						final long stopStart = System.currentTimeMillis();
+						try {
+							driver.stopMachine(md.getPrivateAddress(), STORM_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+							stopTimes.add(System.currentTimeMillis() - stopStart);
+						} catch (final Exception e) {
+							failedStops.incrementAndGet();
+							logger.warning("Stop of " + md.getMachineId() + " failed: " + e);
+						}
+						return null;
+					}
+				}));
+			}
+			startSignal.countDown();
+			for (final Future<?> call : calls) {
+				call.get(STORM_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+			}
+		} finally {
+			callers.shutdownNow();
+			sampler.stop();
+			for (final PrivateEC2CloudifyDriver driver : stormDrivers) {
+				driver.close();
+			}
+		}
+		final long stormMillis = System.currentTimeMillis() - stormStart;
+
+		final Map<String, Object> report = this.report(scenario, driverNumber, stormMillis, readyTimes, stopTimes,
+				failedLaunches.get(), failedStops.get(), sampler);
+		final File reportFile = new File(REPORT_DIRECTORY, "scale-storm-" + scenario + ".json");
+		reportFile.getParentFile().mkdirs();
+		new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(reportFile, report);
+		logger.info("Scale storm report written to " + reportFile.getAbsolutePath());
+
+		Assert.assertEquals("Failed launches", 0, failedLaunches.get());
+		Assert.assertEquals("Failed stops", 0, failedStops.get());
+		Assert.assertEquals("Leaking instances", 1, this.factory.getEC2().getLiveInstanceCount());
+		@SuppressWarnings("unchecked")
+		final Map<String, Long> callsPerLaunch = (Map<String, Long>) report.get("apiCallsPerLaunch");
+		Assert.assertTrue("API calls per launch amplified: " + callsPerLaunch,
+				callsPerLaunch.get("p99") <= this.maxCallsPerLaunch);
+	}
+
+	private Map<String, Object> report(final String scenario, final int driverNumber, final long stormMillis,
+			final List<Long> readyTimes, final List<Long> stopTimes, final int failedLaunches, final int failedStops,
+			final ResourceSampler sampler) throws IOException {
+		// The journal tells which launch IDs are launches and which are stops
+		final Set<String> launchIds = new HashSet<String>();
+		final Set<String> stopIds = new HashSet<String>();
+		for (final JournalEntry entry : ProvisioningJournal.read(this.journalFile)) {
+			if (Transition.LAUNCH_STARTED.name().equals(entry.getTransition())) {
+				launchIds.add(entry.getLaunchId());
+			} else if (Transition.STOP_STARTED.name().equals(entry.getTransition())) {
+				stopIds.add(entry.getLaunchId());
+			}
+		}
+		final Map<String, Integer> callsPerId =
+				new HashMap<String, Integer>(this.factory.getEC2().getLaunchCallCounts());
+		for (final Map.Entry<String, Integer> s3Calls : this.factory.getS3().getLaunchCallCounts().entrySet()) {
+			final Integer ec2Calls = callsPerId.get(s3Calls.getKey());
+			callsPerId.put(s3Calls.getKey(), ec2Calls == null ? s3Calls.getValue() : ec2Calls + s3Calls.getValue());
+		}
+		final List<Long> launchCalls = new ArrayList<Long>();
+		final List<Long> stopCalls = new ArrayList<Long>();
+		for (final Map.Entry<String, Integer> calls : callsPerId.entrySet()) {
+			if (launchIds.contains(calls.getKey())) {
+				launchCalls.add(calls.getValue().longValue());
+			} else if (stopIds.contains(calls.getKey())) {
+				stopCalls.add(calls.getValue().longValue());
+			}
+		}
+
+		final Map<String, Object> fake = new LinkedHashMap<String, Object>();
+		fake.put("pendingMillis", this.pendingMillis);
+		fake.put("shuttingDownMillis", this.shuttingDownMillis);
+		fake.put("callLatencyMillis", this.callLatencyMillis);
+
+		final Map<String, Object> operations = new LinkedHashMap<String, Object>();
+		operations.put("ec2", this.factory.getEC2().getCallCounts());
+		operations.put("s3", this.factory.getS3().getCallCounts());
+
+		final Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("scenario", scenario);
+		report.put("drivers", driverNumber);
+		report.put("launches", this.launches);
+		report.put("fake", fake);
+		report.put("durationMillis", stormMillis);
+		report.put("failedLaunches", failedLaunches);
+		report.put("failedStops", failedStops);
+		report.put("timeToReadyMillis", summary(readyTimes));
+		report.put("stopMillis", summary(stopTimes));
+		report.put("apiCallsPerLaunch", summary(launchCalls));
+		report.put("apiCallsPerStop", summary(stopCalls));
+		report.put("apiCallsPerOperation", operations);
+		report.put("threads", sampler.getThreadReport());
+		report.put("heapUsedBytes", sampler.getHeapReport());
+		return report;
+	}
+
+	private static Map<String, Long> summary(final List<Long> values) {
+		final List<Long> sorted = new ArrayList<Long>(values);
+		Collections.sort(sorted);
+		long sum = 0L;
+		for (final Long value : sorted) {
+			sum += value;
+		}
+		final Map<String, Long> summary = new LinkedHashMap<String, Long>();
+		summary.put("count", (long) sorted.size());
+		summary.put("p50", percentile(sorted, P50));
+		summary.put("p99", percentile(sorted, P99));
+		summary.put("max", sorted.isEmpty() ? 0L : sorted.get(sorted.size() - 1));
+		summary.put("total", sum);
+		return summary;
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted values.
+	 */
+	private static long percentile(final List<Long> sorted, final double quantile) {
+		if (sorted.isEmpty()) {
+			return 0L;
+		}
+		final int rank = (int) Math.ceil(quantile * sorted.size());
+		return sorted.get(Math.max(0, rank - 1));
+	}
+
+	/**
+	 * Samples the thread count and the heap use of the JVM during the storm.
+	 */
+	private static final class ResourceSampler implements Runnable {
+
+		private static final String SCHEDULER_THREAD_PREFIX = "privateEc2-provisioning-";
+
+		private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private final AtomicLong peakHeap = new AtomicLong();
+		private final AtomicInteger peakSchedulerThreads = new AtomicInteger();
+		private final Thread thread = new Thread(this, "scale-storm-sampler");
+		private volatile boolean running = true;
+		private long startHeap;
+		private long endHeap;
+		private int startThreads;
+
+		private void start() {
+			System.gc();
+			this.startHeap = this.memory.getHeapMemoryUsage().getUsed();
+			this.startThreads = this.threads.getThreadCount();
+			this.threads.resetPeakThreadCount();
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		private void stop() throws InterruptedException {
+			this.running = false;
+			this.thread.join();
+			System.gc();
+			this.endHeap = this.memory.getHeapMemoryUsage().getUsed();
+		}
+
+		@Override
+		public void run() {
+			while (this.running) {
+				final long heap = this.memory.getHeapMemoryUsage().getUsed();
+				if (heap > this.peakHeap.get()) {
+					this.peakHeap.set(heap);
+				}
+				int schedulerThreads = 0;
+				for (final ThreadInfo info : this.threads.getThreadInfo(this.threads.getAllThreadIds())) {
+					if (info != null && info.getThreadName().startsWith(SCHEDULER_THREAD_PREFIX)) {
+						schedulerThreads++;
+					}
+				}
+				if (schedulerThreads > this.peakSchedulerThreads.get()) {
+					this.peakSchedulerThreads.set(schedulerThreads);
+				}
+				try {
+					Thread.sleep(SAMPLING_INTERVAL);
+				} catch (final InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private Map<String, Object> getThreadReport() {
+			final Map<String, Object> report = new LinkedHashMap<String, Object>();
+			report.put("atStart", this.startThreads);
+			report.put("peak", this.threads.getPeakThreadCount());
+			report.put("peakScheduler", this.peakSchedulerThreads.get());
+			return report;
+		}
+
+		private Map<String, Object> getHeapReport() {
+			final Map<String, Object> report = new LinkedHashMap<String, Object>();
+			report.put("atStart", this.startHeap);
+			report.put("peak", this.peakHeap.get());
+			report.put("atEnd", this.endHeap);
+			return report;
+		}
+	}
+
+	/**
+	 * Accepts the connections of the agent probes and closes them right away.
+	 */
+	private static final class FakeAgent implements Runnable {
+
+		private final ServerSocket serverSocket;
+
+		private FakeAgent(final ServerSocket serverSocket) {
+			this.serverSocket = serverSocket;
+		}
+
+		/**
+		 * @return The started agent or <code>null</code> if the agent port is already in use.
+		 */
+		private static FakeAgent start() {
+			try {
+				final FakeAgent agent = new FakeAgent(new ServerSocket(AGENT_PORT));
+				final Thread thread = new Thread(agent, "scale-storm-agent");
+				thread.setDaemon(true);
+				thread.start();
+				return agent;
+			} catch (final IOException e) {
+				logger.warning("Agent port " + AGENT_PORT + " is not available: " + e.getMessage());
+				return null;
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!this.serverSocket.isClosed()) {
+				try {
+					final Socket socket = this.serverSocket.accept();
+					socket.close();
+				} catch (final IOException e) {
+					// Closed
+				}
+			}
+		}
+
+		private void stop() throws IOException {
+			this.serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.Tag;
+
+public class TagPlanTest {
+
+	private static LaunchPrototype compile(final String templateName) throws Exception {
+		PrivateEc2Template template = ParserUtils.mapJson(PrivateEc2Template.class,
+				new File("./src/test/resources/cfn_templates/" + templateName));
+		return LaunchPrototype.compile(template, null);
+	}
+
+	private static InstanceBlockDeviceMapping ebs(final String device, final String volumeId) {
+		return new InstanceBlockDeviceMapping().withDeviceName(device)
+				.withEbs(new EbsInstanceBlockDevice().withVolumeId(volumeId));
+	}
+
+	@Test
+	public void testInstanceAndVolumes() throws Exception {
+		Instance instance = new Instance().withInstanceId("i-1").withBlockDeviceMappings(ebs("/dev/sda1", "vol-0"),
+				ebs("/dev/sdk", "vol-1"));
+		List<CreateTagsRequest> requests =
+				TagPlan.forLaunch(instance, "cloudify_agent_1", compile("tags.template"), null).getRequests();
+
+		Assert.assertEquals(2, requests.size());
+		Assert.assertEquals(Arrays.asList("i-1"), requests.get(0).getResources());
+		Assert.assertEquals(Arrays.asList(new Tag("Instance", "someInstanceTag"), new Tag("Name", "cloudify_agent_1")),
+				requests.get(0).getTags());
+		// The root device isn't a template volume
+		Assert.assertEquals(Arrays.asList("vol-1"), requests.get(1).getResources());
+		Assert.assertEquals(Arrays.asList(new Tag("Volume1", "someVolumeTag1"), new Tag("Volume2", "someVolumeTag2"),
+				new Tag("Name", "cloudify-storage-cloudify_agent_1-sdk")), requests.get(1).getTags());
+	}
+
+	@Test
+	public void testVolumesHaveDistinctNames() throws Exception {
+		String json = "{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{\"Volumes\":["
+				+ "{\"VolumeId\":{\"Ref\":\"disk\"},\"Device\":\"/dev/sdk\"},"
+				+ "{\"VolumeId\":{\"Ref\":\"disk\"},\"Device\":\"/dev/sdl\"}]}},"
+				+ "\"disk\":{\"Type\":\"AWS::EC2::Volume\",\"Properties\":{\"Size\":1}}}}";
+		LaunchPrototype prototype =
+				LaunchPrototype.compile(ParserUtils.mapJson(PrivateEc2Template.class, json), null);
+		Instance instance = new Instance().withInstanceId("i-1").withBlockDeviceMappings(ebs("/dev/sdk", "vol-1"),
+				ebs("/dev/sdl", "vol-2"));
+		List<CreateTagsRequest> requests = TagPlan.forLaunch(instance, "vm1", prototype, "launch-1").getRequests();
+
+		Assert.assertEquals(3, requests.size());
+		Assert.assertEquals(Arrays.asList(new Tag("Name", "vm1"), new Tag(TagPlan.TK_LAUNCH_GROUP, "launch-1")),
+				requests.get(0).getTags());
+		Assert.assertEquals(Arrays.asList("vol-1"), requests.get(1).getResources());
+		Assert.assertEquals(Arrays.asList(new Tag("Name", "cloudify-storage-vm1-sdk")), requests.get(1).getTags());
+		Assert.assertEquals(Arrays.asList("vol-2"), requests.get(2).getResources());
+		Assert.assertEquals(Arrays.asList(new Tag("Name", "cloudify-storage-vm1-sdl")), requests.get(2).getTags());
+	}
+
+	@Test
+	public void testOneRequestPerResource() throws Exception {
+		String json = "{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{"
+				+ "\"Tags\":[{\"Key\":\"env\",\"Value\":\"test\"}],\"Volumes\":["
+				+ "{\"VolumeId\":{\"Ref\":\"disk\"},\"Device\":\"/dev/sdk\"},"
+				+ "{\"VolumeId\":{\"Ref\":\"disk\"},\"Device\":\"/dev/sdl\"},"
+				+ "{\"VolumeId\":{\"Ref\":\"disk\"},\"Device\":\"/dev/sdm\"}]}},"
+				+ "\"disk\":{\"Type\":\"AWS::EC2::Volume\",\"Properties\":{\"Size\":1,"
+				+ "\"Tags\":[{\"Key\":\"env\",\"Value\":\"test\"}]}}}}";
+		LaunchPrototype prototype =
+				LaunchPrototype.compile(ParserUtils.mapJson(PrivateEc2Template.class, json), null);
+		Instance instance = new Instance().withInstanceId("i-1").withBlockDeviceMappings(ebs("/dev/sdk", "vol-1"),
+				ebs("/dev/sdl", "vol-2"), ebs("/dev/sdm", "vol-3"));
+		List<CreateTagsRequest> requests = TagPlan.forLaunch(instance, "vm1", prototype, null).getRequests();
+
+		// Even with the same template tags, each volume has its own name: 1 + 3 calls
+		Assert.assertEquals(4, requests.size());
+		String[] resources = { "i-1", "vol-1", "vol-2", "vol-3" };
+		for (int i = 0; i < resources.length; i++) {
+			Assert.assertEquals(Arrays.asList(resources[i]), requests.get(i).getResources());
+			Assert.assertEquals(new Tag("env", "test"), requests.get(i).getTags().get(0));
+		}
+		Assert.assertEquals(new Tag("Name", "cloudify-storage-vm1-sdm"), requests.get(3).getTags().get(1));
+	}
+
+	@Test
+	public void testMissingVolumeIsNotTagged() throws Exception {
+		Instance instance = new Instance().withInstanceId("i-1");
+		List<CreateTagsRequest> requests =
+				TagPlan.forLaunch(instance, "cloudify_agent_1", compile("tags.template"), null).getRequests();
+		Assert.assertEquals(1, requests.size());
+		Assert.assertEquals(Arrays.asList("i-1"), requests.get(0).getResources());
+	}
+
+	@Test
+	public void testUnknownPrototype() throws Exception {
+		Instance instance = new Instance().withInstanceId("i-1").withBlockDeviceMappings(ebs("/dev/sdk", "vol-1"));
+		List<CreateTagsRequest> requests = TagPlan.forLaunch(instance, "vm1", null, "launch-1").getRequests();
+		Assert.assertEquals(1, requests.size());
+		Assert.assertEquals(Arrays.asList("i-1"), requests.get(0).getResources());
+		Assert.assertEquals(Arrays.asList(new Tag("Name", "vm1"), new Tag(TagPlan.TK_LAUNCH_GROUP, "launch-1")),
+				requests.get(0).getTags());
+	}
+}
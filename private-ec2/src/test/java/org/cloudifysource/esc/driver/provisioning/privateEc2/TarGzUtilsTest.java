@@ -57,4 +57,30 @@ public class TarGzUtilsTest {
 		Assert.assertTrue(filenames.contains("upload"));
 		Assert.assertTrue(filenames.contains("privateEc2-cloud.groovy"));
 	}
+
+	@Test
+	public void testCreateTarGzWithLongPaths() throws Exception {
+		File source = File.createTempFile("test", "");
+		source.delete();
+		File directory = source;
+		for (int i = 0; i < 12; i++) {
+			directory = new File(directory, "a-rather-long-folder-name-" + i);
+		}
+		directory.mkdirs();
+		FileUtils.writeStringToFile(new File(directory, "setenv.sh"), "this is a test");
+
+		File createTarGz = TarGzUtils.createTarGz(new String[] { source.getAbsolutePath() }, false);
+
+		File destinationFolder = File.createTempFile("test", "");
+		destinationFolder.delete();
+		destinationFolder.mkdirs();
+		TarGzUtils.extract(createTarGz, destinationFolder.getAbsolutePath());
+
+		String relativePath = directory.getAbsolutePath().substring(source.getAbsolutePath().length());
+		Assert.assertEquals("this is a test",
+				FileUtils.readFileToString(new File(destinationFolder, relativePath + "/setenv.sh")));
+		FileUtils.deleteDirectory(source);
+		FileUtils.deleteDirectory(destinationFolder);
+		createTarGz.delete();
+	}
 }
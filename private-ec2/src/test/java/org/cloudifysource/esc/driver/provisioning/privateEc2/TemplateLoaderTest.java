@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.TemplateSnapshotCache;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateLoaderTest {
+
+	private static final String TEMPLATE = "{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\","
+			+ "\"Properties\":{\"ImageId\":%s,\"InstanceType\":\"t1.micro\"}}}}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private void write(final String name, final String content) throws Exception {
+		FileUtils.writeStringToFile(new File(this.folder.getRoot(), name), content);
+	}
+
+	private static String imageId(final Map<String, PrivateEc2Template> templates, final String service) {
+		return templates.get(service).getEC2Instance().getProperties().getImageId().getValue();
+	}
+
+	@Test
+	public void testLoadFolder() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			this.write("service" + i + "-cfn.template", String.format(TEMPLATE, "\"ami-" + i + "\""));
+		}
+		this.write("external-cfn.template", String.format(TEMPLATE, "imageId"));
+		this.write("external-cfn.properties", "imageId=\"ami-external\"");
+		this.write("readme.txt", "not a template");
+
+		final Map<String, PrivateEc2Template> templates = new TemplateLoader(4).load(this.folder.getRoot());
+		Assert.assertEquals(21, templates.size());
+		Assert.assertEquals("ami-7", imageId(templates, "service7"));
+		Assert.assertEquals("ami-external", imageId(templates, "external"));
+	}
+
+	@Test
+	public void testLoadSingleThread() throws Exception {
+		this.write("a-cfn.template", String.format(TEMPLATE, "\"ami-a\""));
+		this.write("b-cfn.template", String.format(TEMPLATE, "\"ami-b\""));
+
+		final Map<String, PrivateEc2Template> templates = new TemplateLoader(1).load(this.folder.getRoot());
+		Assert.assertEquals("ami-a", imageId(templates, "a"));
+		Assert.assertEquals("ami-b", imageId(templates, "b"));
+	}
+
+	@Test
+	public void testLoadFile() throws Exception {
+		this.write("single-cfn.template", String.format(TEMPLATE, "\"ami-single\""));
+
+		final Map<String, PrivateEc2Template> templates =
+				new TemplateLoader(4).load(new File(this.folder.getRoot(), "single-cfn.template"));
+		Assert.assertEquals(1, templates.size());
+		Assert.assertEquals("ami-single", imageId(templates, "single"));
+	}
+
+	@Test
+	public void testLoadWithSnapshotCache() throws Exception {
+		this.write("a-cfn.template", String.format(TEMPLATE, "\"ami-a\""));
+		this.write("b-cfn.template", String.format(TEMPLATE, "imageId"));
+		this.write("b-cfn.properties", "imageId=\"ami-b\"");
+		final File cacheDirectory = this.folder.newFolder("cache");
+
+		new TemplateLoader(2, new TemplateSnapshotCache(cacheDirectory)).load(this.folder.getRoot());
+		Assert.assertEquals(2, cacheDirectory.listFiles().length);
+
+		final Map<String, PrivateEc2Template> templates =
+				new TemplateLoader(2, new TemplateSnapshotCache(cacheDirectory)).load(this.folder.getRoot());
+		Assert.assertEquals("ami-a", imageId(templates, "a"));
+		Assert.assertEquals("ami-b", imageId(templates, "b"));
+	}
+
+	@Test
+	public void testErrorsAreAggregated() throws Exception {
+		this.write("good-cfn.template", String.format(TEMPLATE, "\"ami-good\""));
+		this.write("broken-cfn.template", "{\"Resources\":");
+		this.write("missing-cfn.template", String.format(TEMPLATE, "imageId"));
+		this.write("missing-cfn.properties", "keyName=\"cloudify\"");
+
+		try {
+			new TemplateLoader(4).load(this.folder.getRoot());
+			Assert.fail("The broken templates should be reported");
+		} catch (final PrivateEc2ParserException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("Couldn't parse 2 template(s)"));
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("broken ("));
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("missing (Couldn't find properties: [imageId])"));
+			Assert.assertFalse(e.getMessage(), e.getMessage().contains("good"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidParallelism() {
+		new TemplateLoader(0);
+	}
+}
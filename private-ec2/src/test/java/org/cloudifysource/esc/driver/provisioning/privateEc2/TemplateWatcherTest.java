@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.cloudifysource.esc.driver.provisioning.commons.ProvisioningScheduler;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateWatcherTest {
+
+	private static final String TEMPLATE = "{\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\","
+			+ "\"Properties\":{\"ImageId\":%s,\"InstanceType\":\"t1.micro\"}}}}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final TemplateLoader loader = new TemplateLoader(1);
+
+	private final Map<String, PrivateEc2Template> reloaded = new LinkedHashMap<String, PrivateEc2Template>();
+
+	private final TemplateWatcher.Listener listener = new TemplateWatcher.Listener() {
+		@Override
+		public void templateChanged(final String templateName, final PrivateEc2Template template) {
+			reloaded.put(templateName, template);
+		}
+	};
+
+	private long time = 1000000000000L;
+
+	/**
+	 * Writes a file with a new modification time, the file system resolution may be too coarse otherwise.
+	 */
+	private void write(final String name, final String content) throws Exception {
+		final File file = new File(this.folder.getRoot(), name);
+		FileUtils.writeStringToFile(file, content);
+		this.time += 10000L;
+		Assert.assertTrue(file.setLastModified(this.time));
+	}
+
+	private String imageId(final String service) {
+		return this.reloaded.get(service).getEC2Instance().getProperties().getImageId().getValue();
+	}
+
+	@Before
+	public void before() throws Exception {
+		this.write("a-cfn.template", String.format(TEMPLATE, "\"ami-a\""));
+		this.write("b-cfn.template", String.format(TEMPLATE, "imageId"));
+		this.write("b-cfn.properties", "imageId=\"ami-b\"");
+	}
+
+	@Test
+	public void testUnchanged() {
+		final TemplateWatcher watcher = new TemplateWatcher(this.folder.getRoot(), this.loader, this.listener);
+		watcher.poll();
+		Assert.assertTrue(this.reloaded.isEmpty());
+	}
+
+	@Test
+	public void testOnlyChangedTemplatesAreParsed() throws Exception {
+		final TemplateWatcher watcher = new TemplateWatcher(this.folder.getRoot(), this.loader, this.listener);
+		this.write("a-cfn.template", String.format(TEMPLATE, "\"ami-a2\""));
+		watcher.poll();
+		Assert.assertEquals(1, this.reloaded.size());
+		Assert.assertEquals("ami-a2", this.imageId("a"));
+
+		this.reloaded.clear();
+		watcher.poll();
+		Assert.assertTrue(this.reloaded.isEmpty());
+	}
+
+	@Test
+	public void testPropertiesChange() throws Exception {
+		final TemplateWatcher watcher = new TemplateWatcher(this.folder.getRoot(), this.loader, this.listener);
+		this.write("b-cfn.properties", "imageId=\"ami-b2\"");
+		watcher.poll();
+		Assert.assertEquals(1, this.reloaded.size());
+		Assert.assertEquals("ami-b2", this.imageId("b"));
+	}
+
+	@Test
+	public void testNewTemplate() throws Exception {
+		final TemplateWatcher watcher = new TemplateWatcher(this.folder.getRoot(), this.loader, this.listener);
+		this.write("c-cfn.template", String.format(TEMPLATE, "\"ami-c\""));
+		watcher.poll();
+		Assert.assertEquals("ami-c", this.imageId("c"));
+	}
+
+	@Test
+	public void testBrokenTemplateIsSkippedUntilFixed() throws Exception {
+		final TemplateWatcher watcher = new TemplateWatcher(this.folder.getRoot(), this.loader, this.listener);
+		this.write("a-cfn.template", "{\"Resources\":");
+		watcher.poll();
+		watcher.poll();
+		Assert.assertTrue(this.reloaded.isEmpty());
+
+		this.write("a-cfn.template", String.format(TEMPLATE, "\"ami-fixed\""));
+		watcher.poll();
+		Assert.assertEquals("ami-fixed", this.imageId("a"));
+	}
+
+	@Test
+	public void testSingleFile() throws Exception {
+		final TemplateWatcher watcher =
+				new TemplateWatcher(new File(this.folder.getRoot(), "a-cfn.template"), this.loader, this.listener);
+		this.write("a-cfn.template", String.format(TEMPLATE, "\"ami-single\""));
+		watcher.poll();
+		Assert.assertEquals("ami-single", this.imageId("a"));
+	}
+
+	@Test
+	public void testPollingOnScheduler() throws Exception {
+		final CountDownLatch changed = new CountDownLatch(1);
+		final TemplateWatcher.Listener countDown = new TemplateWatcher.Listener() {
+			@Override
+			public void templateChanged(final String templateName, final PrivateEc2Template template) {
+				changed.countDown();
+			}
+		};
+		final TemplateWatcher watcher = new TemplateWatcher(this.folder.getRoot(), this.loader, countDown);
+		watcher.start(ProvisioningScheduler.forDriver("testTemplateWatcher"), 10L);
+		try {
+			this.write("a-cfn.template", String.format(TEMPLATE, "\"ami-polled\""));
+			Assert.assertTrue(changed.await(5, TimeUnit.SECONDS));
+		} finally {
+			watcher.stop();
+		}
+	}
+}
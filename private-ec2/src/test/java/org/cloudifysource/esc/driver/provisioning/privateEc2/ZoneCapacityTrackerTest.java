@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZoneCapacityTrackerTest {
+
+	private static final List<String> ZONES = Arrays.asList("eu-west-1a", "eu-west-1b", "eu-west-1c");
+
+	private static final List<String> TYPES = Arrays.asList("m3.xlarge", "c3.xlarge");
+
+	private static List<String> names(final List<ZoneCapacityTracker.Candidate> candidates) {
+		final List<String> names = new ArrayList<String>();
+		for (final ZoneCapacityTracker.Candidate candidate : candidates) {
+			names.add(candidate.toString());
+		}
+		return names;
+	}
+
+	@Test
+	public void testHealthyCandidatesKeepTheirOrder() {
+		ZoneCapacityTracker tracker = new ZoneCapacityTracker(60000L);
+		Assert.assertEquals(Arrays.asList("m3.xlarge in eu-west-1a", "m3.xlarge in eu-west-1b",
+				"m3.xlarge in eu-west-1c", "c3.xlarge in eu-west-1a", "c3.xlarge in eu-west-1b",
+				"c3.xlarge in eu-west-1c"), names(tracker.candidates(TYPES, ZONES)));
+	}
+
+	@Test
+	public void testNoCandidate() {
+		List<ZoneCapacityTracker.Candidate> candidates = new ZoneCapacityTracker(60000L).candidates(
+				Collections.<String> emptyList(), Collections.<String> emptyList());
+		Assert.assertEquals(1, candidates.size());
+		Assert.assertNull(candidates.get(0).getInstanceType());
+		Assert.assertNull(candidates.get(0).getZone());
+	}
+
+	@Test
+	public void testCandidatesWithoutCapacityAreTriedLast() throws Exception {
+		ZoneCapacityTracker tracker = new ZoneCapacityTracker(60000L);
+		List<ZoneCapacityTracker.Candidate> candidates = tracker.candidates(TYPES, ZONES);
+		tracker.noCapacity(candidates.get(1));
+		Thread.sleep(1L);
+		tracker.noCapacity(candidates.get(0));
+
+		Assert.assertTrue(tracker.isCoolingDown(candidates.get(0)));
+		Assert.assertEquals(Arrays.asList("m3.xlarge in eu-west-1c", "c3.xlarge in eu-west-1a",
+				"c3.xlarge in eu-west-1b", "c3.xlarge in eu-west-1c", "m3.xlarge in eu-west-1b",
+				"m3.xlarge in eu-west-1a"), names(tracker.candidates(TYPES, ZONES)));
+	}
+
+	@Test
+	public void testLaunchEndsTheCooldown() {
+		ZoneCapacityTracker tracker = new ZoneCapacityTracker(60000L);
+		ZoneCapacityTracker.Candidate candidate = tracker.candidates(TYPES, ZONES).get(0);
+		tracker.noCapacity(candidate);
+		tracker.launched(candidate);
+		Assert.assertFalse(tracker.isCoolingDown(candidate));
+		Assert.assertEquals("m3.xlarge in eu-west-1a", tracker.candidates(TYPES, ZONES).get(0).toString());
+	}
+
+	@Test
+	public void testCooldownIsOver() throws Exception {
+		ZoneCapacityTracker tracker = new ZoneCapacityTracker(10L);
+		ZoneCapacityTracker.Candidate candidate = tracker.candidates(TYPES, ZONES).get(0);
+		tracker.noCapacity(candidate);
+		Thread.sleep(20L);
+		Assert.assertFalse(tracker.isCoolingDown(candidate));
+		Assert.assertEquals("m3.xlarge in eu-west-1a", tracker.candidates(TYPES, ZONES).get(0).toString());
+	}
+
+	@Test
+	public void testSameType() {
+		List<ZoneCapacityTracker.Candidate> candidates = new ZoneCapacityTracker(60000L).candidates(TYPES, ZONES);
+		Assert.assertTrue(candidates.get(0).hasSameType(candidates.get(2)));
+		Assert.assertFalse(candidates.get(0).hasSameType(candidates.get(3)));
+	}
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.fake;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.AmazonClientFactory;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Gives the clients of a simulated cloud to the drivers: all the drivers given this factory share the same fake EC2
+ * and S3 services.
+ * 
+ */
+public class FakeAmazonClientFactory implements AmazonClientFactory {
+
+	private final FakeAmazonEC2 ec2 = new FakeAmazonEC2();
+	private final FakeAmazonS3 s3 = new FakeAmazonS3();
+
+	/**
+	 * @return The fake EC2 service.
+	 */
+	public FakeAmazonEC2 getEC2() {
+		return this.ec2;
+	}
+
+	/**
+	 * @return The fake S3 service.
+	 */
+	public FakeAmazonS3 getS3() {
+		return this.s3;
+	}
+
+	@Override
+	public AmazonEC2 createEC2(final AWSCredentials credentials) {
+		return this.ec2.getClient();
+	}
+
+	@Override
+	public AmazonS3 createS3(final AWSCredentials credentials) {
+		return this.s3.getClient();
+	}
+}
@@ -0,0 +1,498 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.fake;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.InstanceStateType;
+
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.DescribeTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeTagsResult;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TagDescription;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.amazonaws.services.ec2.model.Volume;
+import com.amazonaws.services.ec2.model.VolumeAttachment;
+
+/**
+ * An in-memory fake of the EC2 operations used by the driver: runInstances, describeInstances, describeTags,
+ * describeVolumes, createTags and terminateInstances.<br />
+ * Instances are pending for {@link #setPendingMillis(long)} after they are run, then running. Once terminated, they
+ * are shutting down for {@link #setShuttingDownMillis(long)}, then terminated. An EBS volume is attached to an
+ * instance for each EBS block device mapping of its request, it is reported in the block device mappings of the
+ * described instance.
+ * 
+ */
+public class FakeAmazonEC2 extends FakeAmazonService<AmazonEC2> {
+
+	private static final String DEFAULT_AVAILABILITY_ZONE = "us-east-1a";
+	private static final String INSTANCE_PREFIX = "i-";
+	private static final String VOLUME_PREFIX = "vol-";
+
+	private final ConcurrentMap<String, FakeInstance> instances = new ConcurrentHashMap<String, FakeInstance>();
+	/** The instances launched by each client token, so that a retried RunInstances doesn't launch them again. */
+	private final Map<String, List<String>> clientTokens = new HashMap<String, List<String>>();
+	private final ConcurrentMap<String, VolumeAttachment> volumes = new ConcurrentHashMap<String, VolumeAttachment>();
+	private final ConcurrentMap<String, Map<String, String>> tags =
+			new ConcurrentHashMap<String, Map<String, String>>();
+	private final AtomicInteger ids = new AtomicInteger();
+
+	private volatile long pendingMillis;
+	private volatile long shuttingDownMillis;
+	private volatile String publicIpAddress = "127.0.0.1";
+
+	/**
+	 * Creates a fake where instances are running and terminated right away.
+	 */
+	public FakeAmazonEC2() {
+		super(AmazonEC2.class, "AmazonEC2", "RequestLimitExceeded");
+	}
+
+	/**
+	 * @param pendingMillis
+	 *            The time an instance is pending before it is running.
+	 */
+	public void setPendingMillis(final long pendingMillis) {
+		this.pendingMillis = pendingMillis;
+	}
+
+	/**
+	 * @param shuttingDownMillis
+	 *            The time an instance is shutting down before it is terminated.
+	 */
+	public void setShuttingDownMillis(final long shuttingDownMillis) {
+		this.shuttingDownMillis = shuttingDownMillis;
+	}
+
+	/**
+	 * @param publicIpAddress
+	 *            The public address of all the instances, the local host by default so that a fake agent can listen
+	 *            to it.
+	 */
+	public void setPublicIpAddress(final String publicIpAddress) {
+		this.publicIpAddress = publicIpAddress;
+	}
+
+	/**
+	 * @return The number of instances which are not terminated yet.
+	 */
+	public int getLiveInstanceCount() {
+		int count = 0;
+		final long now = System.currentTimeMillis();
+		for (final FakeInstance instance : this.instances.values()) {
+			if (instance.state(now) != InstanceStateType.TERMINATED) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param instanceId
+	 *            An instance id.
+	 * @return The tags of a resource.
+	 */
+	public Map<String, String> getTags(final String instanceId) {
+		final Map<String, String> resourceTags = this.tags.get(instanceId);
+		return resourceTags == null ? Collections.<String, String> emptyMap() : resourceTags;
+	}
+
+	private String newId(final String prefix) {
+		return prefix + String.format("%08x", this.ids.incrementAndGet());
+	}
+
+	/**
+	 * Runs the minimum count of instances of the request. A request with the client token of a previous request
+	 * returns the instances of the previous request instead.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @return The pending instances.
+	 */
+	public RunInstancesResult runInstances(final RunInstancesRequest request) {
+		if (request.getImageId() == null) {
+			throw this.serviceError("The request must contain the parameter ImageId", "MissingParameter", 400);
+		}
+		final String clientToken = request.getClientToken();
+		if (clientToken == null) {
+			return this.launch(request);
+		}
+		synchronized (this.clientTokens) {
+			final List<String> launchedIds = this.clientTokens.get(clientToken);
+			if (launchedIds != null) {
+				final long now = System.currentTimeMillis();
+				final List<Instance> launched = new ArrayList<Instance>(launchedIds.size());
+				for (final String instanceId : launchedIds) {
+					launched.add(this.instances.get(instanceId).toInstance(now));
+				}
+				return new RunInstancesResult().withReservation(new Reservation().withReservationId(
+						this.instances.get(launchedIds.get(0)).reservationId).withInstances(launched));
+			}
+			final RunInstancesResult result = this.launch(request);
+			final List<String> ids = new ArrayList<String>();
+			for (final Instance instance : result.getReservation().getInstances()) {
+				ids.add(instance.getInstanceId());
+			}
+			this.clientTokens.put(clientToken, ids);
+			return result;
+		}
+	}
+
+	private RunInstancesResult launch(final RunInstancesRequest request) {
+		final int count = request.getMinCount() == null ? 1 : request.getMinCount();
+		final List<Instance> launched = new ArrayList<Instance>(count);
+		for (int i = 0; i < count; i++) {
+			final int id = this.ids.incrementAndGet();
+			final FakeInstance instance = new FakeInstance(String.format(INSTANCE_PREFIX + "%08x", id), request,
+					request.getPrivateIpAddress() == null ? "10.0." + (id / 250 % 250) + "." + (id % 250 + 1)
+							: request.getPrivateIpAddress());
+			this.instances.put(instance.instanceId, instance);
+			if (request.getBlockDeviceMappings() != null) {
+				for (final BlockDeviceMapping mapping : request.getBlockDeviceMappings()) {
+					if (mapping.getEbs() != null) {
+						this.volumes.put(this.newId(VOLUME_PREFIX), new VolumeAttachment()
+								.withInstanceId(instance.instanceId).withDevice(mapping.getDeviceName())
+								.withState("attached"));
+					}
+				}
+			}
+			launched.add(instance.toInstance(System.currentTimeMillis()));
+		}
+		return new RunInstancesResult().withReservation(new Reservation().withReservationId(this.newId("r-"))
+				.withInstances(launched));
+	}
+
+	/**
+	 * Describes the instances matching the ids and the filters of the request. The supported filters are
+	 * <code>private-ip-address</code>, <code>instance-state-name</code>, <code>availability-zone</code>,
+	 * <code>client-token</code>, <code>tag-key</code>, <code>tag-value</code> and <code>tag:&lt;key&gt;</code>.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @return A reservation per instance.
+	 */
+	public DescribeInstancesResult describeInstances(final DescribeInstancesRequest request) {
+		final long now = System.currentTimeMillis();
+		final List<Reservation> reservations = new ArrayList<Reservation>();
+		for (final FakeInstance instance : this.instances.values()) {
+			if (!request.getInstanceIds().isEmpty() && !request.getInstanceIds().contains(instance.instanceId)) {
+				continue;
+			}
+			final Instance described = instance.toInstance(now);
+			if (this.matches(described, request.getFilters())) {
+				reservations.add(new Reservation().withReservationId(instance.reservationId)
+						.withInstances(described));
+			}
+		}
+		return new DescribeInstancesResult().withReservations(reservations);
+	}
+
+	/**
+	 * @return All the instances.
+	 */
+	public DescribeInstancesResult describeInstances() {
+		return this.describeInstances(new DescribeInstancesRequest());
+	}
+
+	private boolean matches(final Instance instance, final List<Filter> filters) {
+		for (final Filter filter : filters) {
+			final String name = filter.getName();
+			final boolean matches;
+			if ("private-ip-address".equals(name)) {
+				matches = matchesAny(instance.getPrivateIpAddress(), filter.getValues());
+			} else if ("instance-state-name".equals(name)) {
+				matches = matchesAny(instance.getState().getName(), filter.getValues());
+			} else if ("availability-zone".equals(name)) {
+				matches = matchesAny(instance.getPlacement().getAvailabilityZone(), filter.getValues());
+			} else if ("client-token".equals(name)) {
+				matches = matchesAny(instance.getClientToken(), filter.getValues());
+			} else if ("tag-key".equals(name)) {
+				matches = matchesAny(this.getTags(instance.getInstanceId()).keySet(), filter.getValues());
+			} else if ("tag-value".equals(name)) {
+				matches = matchesAny(this.getTags(instance.getInstanceId()).values(), filter.getValues());
+			} else if (name.startsWith("tag:")) {
+				matches = matchesAny(this.getTags(instance.getInstanceId()).get(name.substring("tag:".length())),
+						filter.getValues());
+			} else {
+				throw this.serviceError("The filter '" + name + "' is invalid", "InvalidParameterValue", 400);
+			}
+			if (!matches) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Describes the tags matching the filters of the request. The supported filters are <code>resource-id</code>,
+	 * <code>resource-type</code>, <code>key</code> and <code>value</code>.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @return The matching tags.
+	 */
+	public DescribeTagsResult describeTags(final DescribeTagsRequest request) {
+		final List<TagDescription> descriptions = new ArrayList<TagDescription>();
+		for (final Map.Entry<String, Map<String, String>> resource : this.tags.entrySet()) {
+			final String resourceId = resource.getKey();
+			final String resourceType = resourceId.startsWith(VOLUME_PREFIX) ? "volume" : "instance";
+			for (final Map.Entry<String, String> tag : resource.getValue().entrySet()) {
+				boolean matches = true;
+				for (final Filter filter : request.getFilters()) {
+					final String name = filter.getName();
+					if ("resource-id".equals(name)) {
+						matches &= matchesAny(resourceId, filter.getValues());
+					} else if ("resource-type".equals(name)) {
+						matches &= matchesAny(resourceType, filter.getValues());
+					} else if ("key".equals(name)) {
+						matches &= matchesAny(tag.getKey(), filter.getValues());
+					} else if ("value".equals(name)) {
+						matches &= matchesAny(tag.getValue(), filter.getValues());
+					} else {
+						throw this.serviceError("The filter '" + name + "' is invalid", "InvalidParameterValue", 400);
+					}
+				}
+				if (matches) {
+					descriptions.add(new TagDescription().withResourceId(resourceId).withResourceType(resourceType)
+							.withKey(tag.getKey()).withValue(tag.getValue()));
+				}
+			}
+		}
+		return new DescribeTagsResult().withTags(descriptions);
+	}
+
+	/**
+	 * @return All the tags.
+	 */
+	public DescribeTagsResult describeTags() {
+		return this.describeTags(new DescribeTagsRequest());
+	}
+
+	/**
+	 * Describes the volumes matching the ids and the filters of the request. The only supported filter is
+	 * <code>attachment.instance-id</code>.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @return The matching volumes.
+	 */
+	public DescribeVolumesResult describeVolumes(final DescribeVolumesRequest request) {
+		final List<Volume> described = new ArrayList<Volume>();
+		for (final Map.Entry<String, VolumeAttachment> volume : this.volumes.entrySet()) {
+			final VolumeAttachment attachment = volume.getValue();
+			if (!request.getVolumeIds().isEmpty() && !request.getVolumeIds().contains(volume.getKey())) {
+				continue;
+			}
+			boolean matches = true;
+			for (final Filter filter : request.getFilters()) {
+				if ("attachment.instance-id".equals(filter.getName())) {
+					matches &= matchesAny(attachment.getInstanceId(), filter.getValues());
+				} else {
+					throw this.serviceError("The filter '" + filter.getName() + "' is invalid",
+							"InvalidParameterValue", 400);
+				}
+			}
+			if (matches) {
+				described.add(new Volume().withVolumeId(volume.getKey()).withState("in-use")
+						.withAttachments(new VolumeAttachment().withVolumeId(volume.getKey())
+								.withInstanceId(attachment.getInstanceId()).withDevice(attachment.getDevice())
+								.withState(attachment.getState())));
+			}
+		}
+		return new DescribeVolumesResult().withVolumes(described);
+	}
+
+	/**
+	 * @return All the volumes.
+	 */
+	public DescribeVolumesResult describeVolumes() {
+		return this.describeVolumes(new DescribeVolumesRequest());
+	}
+
+	/**
+	 * Tags resources.
+	 * 
+	 * @param request
+	 *            The request.
+	 */
+	public void createTags(final CreateTagsRequest request) {
+		for (final String resourceId : request.getResources()) {
+			if (!this.instances.containsKey(resourceId) && !this.volumes.containsKey(resourceId)) {
+				throw this.serviceError("The ID '" + resourceId + "' does not exist", "InvalidID.NotFound", 400);
+			}
+			Map<String, String> resourceTags = this.tags.get(resourceId);
+			if (resourceTags == null) {
+				this.tags.putIfAbsent(resourceId, new ConcurrentHashMap<String, String>());
+				resourceTags = this.tags.get(resourceId);
+			}
+			for (final Tag tag : request.getTags()) {
+				resourceTags.put(tag.getKey(), tag.getValue() == null ? "" : tag.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Terminates instances, their volumes are deleted.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @return The state changes of the instances.
+	 */
+	public TerminateInstancesResult terminateInstances(final TerminateInstancesRequest request) {
+		final long now = System.currentTimeMillis();
+		final List<InstanceStateChange> changes = new ArrayList<InstanceStateChange>();
+		for (final String instanceId : request.getInstanceIds()) {
+			final FakeInstance instance = this.instances.get(instanceId);
+			if (instance == null) {
+				throw this.serviceError("The instance ID '" + instanceId + "' does not exist",
+						"InvalidInstanceID.NotFound", 400);
+			}
+			final InstanceState previous = toInstanceState(instance.state(now));
+			instance.terminate(now);
+			for (final Map.Entry<String, VolumeAttachment> volume : this.volumes.entrySet()) {
+				if (instanceId.equals(volume.getValue().getInstanceId())) {
+					this.volumes.remove(volume.getKey());
+				}
+			}
+			changes.add(new InstanceStateChange().withInstanceId(instanceId).withPreviousState(previous)
+					.withCurrentState(toInstanceState(instance.state(now))));
+		}
+		return new TerminateInstancesResult().withTerminatingInstances(changes);
+	}
+
+	private static InstanceState toInstanceState(final InstanceStateType state) {
+		return new InstanceState().withCode(state.getCode()).withName(state.getName());
+	}
+
+	private static boolean matchesAny(final Collection<String> values, final List<String> patterns) {
+		for (final String value : values) {
+			if (matchesAny(value, patterns)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> if the value matches one of the patterns, where '*' matches any characters.
+	 */
+	private static boolean matchesAny(final String value, final List<String> patterns) {
+		if (value == null) {
+			return false;
+		}
+		for (final String pattern : patterns) {
+			final String regex = ("\\Q" + pattern + "\\E").replace("*", "\\E.*\\Q");
+			if (Pattern.matches(regex, value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The state of an instance.
+	 */
+	private final class FakeInstance {
+
+		private final String instanceId;
+		private final String reservationId;
+		private final String imageId;
+		private final String instanceType;
+		private final String keyName;
+		private final String availabilityZone;
+		private final String privateIpAddress;
+		private final String clientToken;
+		private final long launchTime;
+		private volatile long terminationTime;
+
+		private FakeInstance(final String instanceId, final RunInstancesRequest request, final String privateIpAddress) {
+			this.instanceId = instanceId;
+			this.reservationId = newId("r-");
+			this.imageId = request.getImageId();
+			this.instanceType = request.getInstanceType();
+			this.keyName = request.getKeyName();
+			final Placement placement = request.getPlacement();
+			this.availabilityZone = placement == null || placement.getAvailabilityZone() == null
+					? DEFAULT_AVAILABILITY_ZONE : placement.getAvailabilityZone();
+			this.privateIpAddress = privateIpAddress;
+			this.clientToken = request.getClientToken();
+			this.launchTime = System.currentTimeMillis();
+		}
+
+		private synchronized void terminate(final long now) {
+			if (this.terminationTime == 0L) {
+				this.terminationTime = now;
+			}
+		}
+
+		private InstanceStateType state(final long now) {
+			final long terminated = this.terminationTime;
+			if (terminated != 0L) {
+				return now - terminated < shuttingDownMillis ? InstanceStateType.SHUTTING_DOWN
+						: InstanceStateType.TERMINATED;
+			}
+			return now - this.launchTime < pendingMillis ? InstanceStateType.PENDING : InstanceStateType.RUNNING;
+		}
+
+		private Instance toInstance(final long now) {
+			final InstanceStateType state = this.state(now);
+			final List<Tag> instanceTags = new ArrayList<Tag>();
+			for (final Map.Entry<String, String> tag : getTags(this.instanceId).entrySet()) {
+				instanceTags.add(new Tag(tag.getKey(), tag.getValue()));
+			}
+			final List<InstanceBlockDeviceMapping> mappings = new ArrayList<InstanceBlockDeviceMapping>();
+			for (final Map.Entry<String, VolumeAttachment> volume : volumes.entrySet()) {
+				if (this.instanceId.equals(volume.getValue().getInstanceId())) {
+					final EbsInstanceBlockDevice ebs =
+							new EbsInstanceBlockDevice().withVolumeId(volume.getKey()).withStatus("attached");
+					mappings.add(new InstanceBlockDeviceMapping().withDeviceName(volume.getValue().getDevice())
+							.withEbs(ebs));
+				}
+			}
+			return new Instance().withInstanceId(this.instanceId).withImageId(this.imageId)
+					.withInstanceType(this.instanceType).withKeyName(this.keyName)
+					.withPlacement(new Placement(this.availabilityZone)).withPrivateIpAddress(this.privateIpAddress)
+					.withPublicIpAddress(state == InstanceStateType.RUNNING ? publicIpAddress : null)
+					.withLaunchTime(new Date(this.launchTime)).withState(toInstanceState(state)).withTags(instanceTags)
+					.withBlockDeviceMappings(mappings).withClientToken(this.clientToken);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.fake;
+
+import java.util.Arrays;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.BlockDeviceMapping;
+import com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeTagsRequest;
+import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.amazonaws.services.ec2.model.EbsBlockDevice;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.Volume;
+
+public class FakeAmazonEC2Test {
+
+	private FakeAmazonEC2 fake;
+	private AmazonEC2 ec2;
+
+	@Before
+	public void before() {
+		fake = new FakeAmazonEC2();
+		ec2 = fake.getClient();
+	}
+
+	private Instance run() {
+		RunInstancesRequest request = new RunInstancesRequest("ami-12345678", 1, 1);
+		request.withBlockDeviceMappings(new BlockDeviceMapping().withDeviceName("/dev/sdf")
+				.withEbs(new EbsBlockDevice().withVolumeSize(10)));
+		return ec2.runInstances(request).getReservation().getInstances().get(0);
+	}
+
+	private String state(final String instanceId) {
+		return ec2.describeInstances(new DescribeInstancesRequest().withInstanceIds(instanceId)).getReservations()
+				.get(0).getInstances().get(0).getState().getName();
+	}
+
+	@Test
+	public void testInstanceLifecycle() throws Exception {
+		fake.setPendingMillis(100L);
+		fake.setShuttingDownMillis(100L);
+		Instance instance = run();
+		Assert.assertEquals("pending", instance.getState().getName());
+		Assert.assertEquals("us-east-1a", instance.getPlacement().getAvailabilityZone());
+		Thread.sleep(150L);
+		Assert.assertEquals("running", state(instance.getInstanceId()));
+		Assert.assertEquals(1, fake.getLiveInstanceCount());
+
+		ec2.terminateInstances(new TerminateInstancesRequest().withInstanceIds(instance.getInstanceId()));
+		Assert.assertEquals("shutting-down", state(instance.getInstanceId()));
+		Thread.sleep(150L);
+		Assert.assertEquals("terminated", state(instance.getInstanceId()));
+		Assert.assertEquals(0, fake.getLiveInstanceCount());
+	}
+
+	@Test
+	public void testFilters() {
+		Instance instance = run();
+		run();
+		ec2.createTags(new CreateTagsRequest().withResources(instance.getInstanceId()).withTags(
+				new Tag("Name", "cloudify-manager1")));
+
+		Assert.assertEquals(1, ec2.describeInstances(new DescribeInstancesRequest().withFilters(
+				new Filter("private-ip-address", Arrays.asList(instance.getPrivateIpAddress())))).getReservations()
+				.size());
+		Assert.assertEquals(1, ec2.describeInstances(new DescribeInstancesRequest().withFilters(
+				new Filter("tag-key", Arrays.asList("Name")),
+				new Filter("tag-value", Arrays.asList("cloudify-manager*")))).getReservations().size());
+		Assert.assertEquals(1, ec2.describeTags(new DescribeTagsRequest().withFilters(
+				new Filter("resource-type", Arrays.asList("instance")),
+				new Filter("value", Arrays.asList("cloudify-manager1")))).getTags().size());
+
+		Volume volume = ec2.describeVolumes(new DescribeVolumesRequest().withFilters(
+				new Filter("attachment.instance-id", Arrays.asList(instance.getInstanceId())))).getVolumes().get(0);
+		Assert.assertEquals("/dev/sdf", volume.getAttachments().get(0).getDevice());
+		Assert.assertEquals(7, fake.getTotalCallCount());
+		Assert.assertEquals(2, fake.getCallCount("runInstances"));
+
+		Instance described = ec2.describeInstances(new DescribeInstancesRequest().withInstanceIds(
+				instance.getInstanceId())).getReservations().get(0).getInstances().get(0);
+		Assert.assertEquals("/dev/sdf", described.getBlockDeviceMappings().get(0).getDeviceName());
+		Assert.assertEquals(volume.getVolumeId(), described.getBlockDeviceMappings().get(0).getEbs().getVolumeId());
+	}
+
+	@Test
+	public void testInjectedErrors() {
+		fake.injectError("runInstances", "InsufficientInstanceCapacity", 500, 1);
+		try {
+			run();
+			Assert.fail("AmazonServiceException expected");
+		} catch (AmazonServiceException e) {
+			Assert.assertEquals("InsufficientInstanceCapacity", e.getErrorCode());
+			Assert.assertEquals(500, e.getStatusCode());
+		}
+		Assert.assertNotNull(run());
+	}
+
+	@Test
+	public void testClientToken() {
+		RunInstancesRequest request = new RunInstancesRequest("ami-12345678", 1, 1).withClientToken("token-1");
+		fake.injectLostResponse("runInstances", 1);
+		try {
+			ec2.runInstances(request);
+			Assert.fail("AmazonClientException expected");
+		} catch (AmazonServiceException e) {
+			Assert.fail("The response should be lost on the client side");
+		} catch (AmazonClientException e) {
+			Assert.assertEquals(1, fake.getLiveInstanceCount());
+		}
+
+		// The retry returns the instance launched by the lost call
+		Instance instance = ec2.runInstances(request).getReservation().getInstances().get(0);
+		Assert.assertEquals(1, fake.getLiveInstanceCount());
+		Assert.assertEquals("token-1", instance.getClientToken());
+		Assert.assertEquals(instance.getInstanceId(), ec2.describeInstances(new DescribeInstancesRequest()
+				.withFilters(new Filter("client-token", Arrays.asList("token-1")))).getReservations().get(0)
+				.getInstances().get(0).getInstanceId());
+
+		ec2.runInstances(request.withClientToken("token-2"));
+		Assert.assertEquals(2, fake.getLiveInstanceCount());
+	}
+
+	@Test
+	public void testThrottling() {
+		fake.setMaxCallsPerSecond(2);
+		ec2.describeInstances();
+		ec2.describeInstances();
+		try {
+			ec2.describeInstances();
+			Assert.fail("AmazonServiceException expected");
+		} catch (AmazonServiceException e) {
+			Assert.assertEquals("RequestLimitExceeded", e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testCallCountsPerLaunch() {
+		ec2.describeInstances();
+		String previous = LaunchContext.enter("launch-1");
+		try {
+			run();
+			ec2.describeInstances();
+		} finally {
+			LaunchContext.restore(previous);
+		}
+		Assert.assertEquals(3, fake.getTotalCallCount());
+		Assert.assertEquals(1, fake.getLaunchCallCounts().size());
+		Assert.assertEquals(Integer.valueOf(2), fake.getLaunchCallCounts().get("launch-1"));
+
+		fake.resetCallCounts();
+		Assert.assertEquals(0, fake.getTotalCallCount());
+		Assert.assertTrue(fake.getLaunchCallCounts().isEmpty());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testUnsupportedOperation() {
+		ec2.describeImages();
+	}
+}
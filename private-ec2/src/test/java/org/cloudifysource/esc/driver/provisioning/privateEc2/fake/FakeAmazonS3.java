@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.fake;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * An in-memory fake of the S3 operations used by the driver: putObject, getObject, deleteObject, presigned URLs and
+ * bucket lifecycle configuration (which is ignored).
+ * 
+ */
+public class FakeAmazonS3 extends FakeAmazonService<AmazonS3> {
+
+	private final ConcurrentMap<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * Creates an empty fake.
+	 */
+	public FakeAmazonS3() {
+		super(AmazonS3.class, "Amazon S3", "SlowDown");
+	}
+
+	private static String path(final String bucketName, final String key) {
+		return bucketName + "/" + key;
+	}
+
+	/**
+	 * @return The number of stored objects.
+	 */
+	public int getObjectCount() {
+		return this.objects.size();
+	}
+
+	/**
+	 * @param bucketName
+	 *            The bucket.
+	 * @param key
+	 *            The object key.
+	 * @return <code>true</code> if the object is stored.
+	 */
+	public boolean hasObject(final String bucketName, final String key) {
+		return this.objects.containsKey(path(bucketName, key));
+	}
+
+	/**
+	 * Ignored.
+	 * 
+	 * @param bucketName
+	 *            The bucket.
+	 * @param configuration
+	 *            The lifecycle configuration.
+	 */
+	public void setBucketLifecycleConfiguration(final String bucketName,
+			final BucketLifecycleConfiguration configuration) {
+	}
+
+	/**
+	 * Stores the file or the input stream of the request.
+	 * 
+	 * @param request
+	 *            The request.
+	 * @return The ETag of the object.
+	 */
+	public PutObjectResult putObject(final PutObjectRequest request) {
+		final byte[] content;
+		try {
+			if (request.getFile() != null) {
+				content = FileUtils.readFileToByteArray(request.getFile());
+			} else {
+				content = IOUtils.toByteArray(request.getInputStream());
+			}
+		} catch (final IOException e) {
+			throw new AmazonClientException("Unable to read the content of " + request.getKey(), e);
+		}
+		this.objects.put(path(request.getBucketName(), request.getKey()), content);
+		final PutObjectResult result = new PutObjectResult();
+		result.setETag(DigestUtils.md5Hex(content));
+		return result;
+	}
+
+	/**
+	 * @param bucketName
+	 *            The bucket.
+	 * @param key
+	 *            The object key.
+	 * @param file
+	 *            The file to store.
+	 * @return The ETag of the object.
+	 */
+	public PutObjectResult putObject(final String bucketName, final String key, final File file) {
+		return this.putObject(new PutObjectRequest(bucketName, key, file));
+	}
+
+	/**
+	 * @param bucketName
+	 *            The bucket.
+	 * @param key
+	 *            The object key.
+	 * @param input
+	 *            The content to store.
+	 * @param metadata
+	 *            Ignored.
+	 * @return The ETag of the object.
+	 */
+	public PutObjectResult putObject(final String bucketName, final String key, final InputStream input,
+			final ObjectMetadata metadata) {
+		return this.putObject(new PutObjectRequest(bucketName, key, input, metadata));
+	}
+
+	/**
+	 * @param request
+	 *            The request.
+	 * @return The object.
+	 */
+	public S3Object getObject(final GetObjectRequest request) {
+		return this.getObject(request.getBucketName(), request.getKey());
+	}
+
+	/**
+	 * @param bucketName
+	 *            The bucket.
+	 * @param key
+	 *            The object key.
+	 * @return The object.
+	 */
+	public S3Object getObject(final String bucketName, final String key) {
+		final byte[] content = this.objects.get(path(bucketName, key));
+		if (content == null) {
+			throw this.serviceError("The specified key does not exist.", "NoSuchKey", 404);
+		}
+		final ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(content.length);
+		metadata.setHeader("ETag", DigestUtils.md5Hex(content));
+		final S3Object object = new S3Object();
+		object.setBucketName(bucketName);
+		object.setKey(key);
+		object.setObjectMetadata(metadata);
+		object.setObjectContent(new ByteArrayInputStream(content));
+		return object;
+	}
+
+	/**
+	 * Deletes an object, if it exists.
+	 * 
+	 * @param bucketName
+	 *            The bucket.
+	 * @param key
+	 *            The object key.
+	 */
+	public void deleteObject(final String bucketName, final String key) {
+		this.objects.remove(path(bucketName, key));
+	}
+
+	/**
+	 * @param request
+	 *            The request.
+	 * @return A fake URL of the object.
+	 */
+	public URL generatePresignedUrl(final GeneratePresignedUrlRequest request) {
+		final Date expiration = request.getExpiration();
+		try {
+			return new URL("https://s3.fake/" + path(request.getBucketName(), request.getKey()) + "?Expires="
+					+ (expiration == null ? 0L : expiration.getTime() / 1000L) + "&Signature=fake");
+		} catch (final MalformedURLException e) {
+			throw new AmazonClientException("Invalid object path", e);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.fake;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.AmazonS3Uploader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.model.S3Object;
+
+public class FakeAmazonS3Test {
+
+	@Test
+	public void testUploadThroughUploader() throws Exception {
+		FakeAmazonS3 fake = new FakeAmazonS3();
+		AmazonS3Uploader uploader = new AmazonS3Uploader(fake.getClient(), "accessKey", null, null);
+
+		File file = File.createTempFile("cloudFolder", ".tar.gz");
+		try {
+			FileUtils.writeStringToFile(file, "content");
+			S3Object object = uploader.uploadFile("bucket/folder", file);
+			Assert.assertEquals(file.getName(), object.getKey());
+			Assert.assertEquals("content", IOUtils.toString(object.getObjectContent()));
+			Assert.assertEquals(7L, object.getObjectMetadata().getContentLength());
+			Assert.assertTrue(uploader.generatePresignedURL(object).startsWith("https://s3.fake/bucket/folder/"));
+
+			uploader.deleteS3Object("bucket/folder", file.getName());
+			Assert.assertEquals(0, fake.getObjectCount());
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testMissingObject() {
+		FakeAmazonS3 fake = new FakeAmazonS3();
+		try {
+			fake.getClient().getObject("bucket", "missing");
+			Assert.fail("AmazonServiceException expected");
+		} catch (AmazonServiceException e) {
+			Assert.assertEquals("NoSuchKey", e.getErrorCode());
+			Assert.assertEquals(404, e.getStatusCode());
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.fake;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+
+/**
+ * Base of the in-memory fakes of the Amazon services. A fake implements the operations of the client interface it
+ * stands for as public methods with the same signature, the other operations fail with an
+ * {@link UnsupportedOperationException}.<br />
+ * Every remote call can be slowed down, throttled or failed:
+ * <ul>
+ * <li>{@link #setCallLatencyMillis(long)}: time spent in each call.</li>
+ * <li>{@link #setMaxCallsPerSecond(int)}: calls beyond the rate fail with the throttling error of the service.</li>
+ * <li>{@link #injectError(String, String, int, int)}: the next calls of an operation fail with the given error.</li>
+ * <li>{@link #setErrorRate(double, String, int)}: calls fail randomly with the given error.</li>
+ * <li>{@link #injectLostResponse(String, int)}: the next calls of an operation are executed, but the client fails
+ * as if the response had timed out.</li>
+ * </ul>
+ * The remote calls are counted per operation and per launch ID of the calling thread, see {@link LaunchContext}.
+ * 
+ * @param <T>
+ *            The client interface.
+ */
+public abstract class FakeAmazonService<T> implements InvocationHandler {
+
+	/** Methods of the clients which don't send a request to Amazon. */
+	private static final Set<String> LOCAL_METHODS = new HashSet<String>(Arrays.asList("setEndpoint", "setRegion",
+			"shutdown", "getCachedResponseMetadata", "generatePresignedUrl", "setS3ClientOptions"));
+
+	private static final long ONE_SECOND_MILLIS = 1000L;
+
+	private final Class<T> api;
+	private final String serviceName;
+	private final String throttlingErrorCode;
+	private final T client;
+
+	private final ConcurrentMap<String, AtomicInteger> callCounts = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, AtomicInteger> launchCallCounts =
+			new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentMap<String, Queue<AmazonServiceException>> injectedErrors =
+			new ConcurrentHashMap<String, Queue<AmazonServiceException>>();
+	private final ConcurrentMap<String, AtomicInteger> lostResponses = new ConcurrentHashMap<String, AtomicInteger>();
+	private final Random random = new Random();
+
+	private volatile long callLatencyMillis;
+	private volatile int maxCallsPerSecond;
+	private volatile double errorRate;
+	private volatile String randomErrorCode;
+	private volatile int randomErrorStatus;
+
+	private long windowStart;
+	private int windowCalls;
+
+	/**
+	 * @param api
+	 *            The client interface.
+	 * @param serviceName
+	 *            The service name reported in the errors.
+	 * @param throttlingErrorCode
+	 *            The error code of throttled calls.
+	 */
+	protected FakeAmazonService(final Class<T> api, final String serviceName, final String throttlingErrorCode) {
+		this.api = api;
+		this.serviceName = serviceName;
+		this.throttlingErrorCode = throttlingErrorCode;
+		this.client = api.cast(Proxy.newProxyInstance(api.getClassLoader(), new Class<?>[] { api }, this));
+	}
+
+	/**
+	 * @return The client backed by this fake.
+	 */
+	public T getClient() {
+		return this.client;
+	}
+
+	/**
+	 * @param callLatencyMillis
+	 *            The time spent in each remote call.
+	 */
+	public void setCallLatencyMillis(final long callLatencyMillis) {
+		this.callLatencyMillis = callLatencyMillis;
+	}
+
+	/**
+	 * @param maxCallsPerSecond
+	 *            The number of remote calls accepted each second, 0 for no limit.
+	 */
+	public void setMaxCallsPerSecond(final int maxCallsPerSecond) {
+		this.maxCallsPerSecond = maxCallsPerSecond;
+	}
+
+	/**
+	 * Fails the next calls of an operation.
+	 * 
+	 * @param operation
+	 *            The operation, i.e. "runInstances".
+	 * @param errorCode
+	 *            The Amazon error code.
+	 * @param statusCode
+	 *            The HTTP status.
+	 * @param times
+	 *            The number of calls to fail.
+	 */
+	public void injectError(final String operation, final String errorCode, final int statusCode, final int times) {
+		Queue<AmazonServiceException> errors = this.injectedErrors.get(operation);
+		if (errors == null) {
+			this.injectedErrors.putIfAbsent(operation, new ConcurrentLinkedQueue<AmazonServiceException>());
+			errors = this.injectedErrors.get(operation);
+		}
+		for (int i = 0; i < times; i++) {
+			errors.add(this.serviceError("Injected error on " + operation, errorCode, statusCode));
+		}
+	}
+
+	/**
+	 * Loses the responses of the next calls of an operation: the calls are executed, then the client fails with an
+	 * {@link AmazonClientException} as if the response had timed out.
+	 * 
+	 * @param operation
+	 *            The operation, i.e. "runInstances".
+	 * @param times
+	 *            The number of responses to lose.
+	 */
+	public void injectLostResponse(final String operation, final int times) {
+		AtomicInteger lost = this.lostResponses.get(operation);
+		if (lost == null) {
+			this.lostResponses.putIfAbsent(operation, new AtomicInteger());
+			lost = this.lostResponses.get(operation);
+		}
+		lost.addAndGet(times);
+	}
+
+	/**
+	 * Fails the remote calls randomly.
+	 * 
+	 * @param rate
+	 *            The probability of a call to fail, 0 to never fail.
+	 * @param errorCode
+	 *            The Amazon error code.
+	 * @param statusCode
+	 *            The HTTP status.
+	 */
+	public void setErrorRate(final double rate, final String errorCode, final int statusCode) {
+		this.randomErrorCode = errorCode;
+		this.randomErrorStatus = statusCode;
+		this.errorRate = rate;
+	}
+
+	/**
+	 * @param operation
+	 *            The operation.
+	 * @return The number of remote calls of the operation, including the failed ones.
+	 */
+	public int getCallCount(final String operation) {
+		final AtomicInteger count = this.callCounts.get(operation);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return The number of remote calls, including the failed ones.
+	 */
+	public int getTotalCallCount() {
+		int total = 0;
+		for (final AtomicInteger count : this.callCounts.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	/**
+	 * @return A copy of the number of remote calls of each operation.
+	 */
+	public Map<String, Integer> getCallCounts() {
+		final Map<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+		for (final Map.Entry<String, AtomicInteger> count : this.callCounts.entrySet()) {
+			counts.put(count.getKey(), count.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * @return A copy of the number of remote calls made on behalf of each launch ID. The calls made without launch ID
+	 *         are not counted.
+	 */
+	public Map<String, Integer> getLaunchCallCounts() {
+		final Map<String, Integer> counts = new ConcurrentHashMap<String, Integer>();
+		for (final Map.Entry<String, AtomicInteger> count : this.launchCallCounts.entrySet()) {
+			counts.put(count.getKey(), count.getValue().get());
+		}
+		return counts;
+	}
+
+	/**
+	 * Forgets the remote calls made so far, i.e. the calls which set up the simulated cloud.
+	 */
+	public void resetCallCounts() {
+		this.callCounts.clear();
+		this.launchCallCounts.clear();
+	}
+
+	/**
+	 * Creates an error of the service.
+	 * 
+	 * @param message
+	 *            The error message.
+	 * @param errorCode
+	 *            The Amazon error code.
+	 * @param statusCode
+	 *            The HTTP status.
+	 * @return The error.
+	 */
+	protected AmazonServiceException serviceError(final String message, final String errorCode,
+			final int statusCode) {
+		final AmazonServiceException e = new AmazonServiceException(message);
+		e.setServiceName(this.serviceName);
+		e.setErrorCode(errorCode);
+		e.setStatusCode(statusCode);
+		e.setErrorType(statusCode < 500 ? ErrorType.Client : ErrorType.Service);
+		return e;
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return method.invoke(this, args);
+		}
+		final String operation = method.getName();
+		if (!LOCAL_METHODS.contains(operation)) {
+			this.beforeRemoteCall(operation);
+		}
+		final Method implementation;
+		try {
+			implementation = this.getClass().getMethod(operation, method.getParameterTypes());
+		} catch (final NoSuchMethodException e) {
+			if (LOCAL_METHODS.contains(operation)) {
+				return null;
+			}
+			throw new UnsupportedOperationException(this.api.getSimpleName() + "." + operation
+					+ " is not supported by " + this.getClass().getSimpleName());
+		}
+		final Object response;
+		try {
+			response = implementation.invoke(this, args);
+		} catch (final InvocationTargetException e) {
+			throw e.getCause();
+		}
+		if (this.isLost(operation)) {
+			throw new AmazonClientException("Unable to execute HTTP request: Read timed out (injected on "
+					+ operation + ")");
+		}
+		return response;
+	}
+
+	private boolean isLost(final String operation) {
+		final AtomicInteger lost = this.lostResponses.get(operation);
+		if (lost == null) {
+			return false;
+		}
+		while (true) {
+			final int remaining = lost.get();
+			if (remaining <= 0) {
+				return false;
+			}
+			if (lost.compareAndSet(remaining, remaining - 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void beforeRemoteCall(final String operation) throws InterruptedException {
+		increment(this.callCounts, operation);
+		final String launchId = LaunchContext.current();
+		if (launchId != null) {
+			increment(this.launchCallCounts, launchId);
+		}
+
+		final long latency = this.callLatencyMillis;
+		if (latency > 0) {
+			Thread.sleep(latency);
+		}
+		if (this.isThrottled()) {
+			throw this.serviceError("Request limit exceeded.", this.throttlingErrorCode, 503);
+		}
+		final Queue<AmazonServiceException> errors = this.injectedErrors.get(operation);
+		final AmazonServiceException injected = errors == null ? null : errors.poll();
+		if (injected != null) {
+			throw injected;
+		}
+		final double rate = this.errorRate;
+		if (rate > 0 && this.nextDouble() < rate) {
+			throw this.serviceError("Random error on " + operation, this.randomErrorCode, this.randomErrorStatus);
+		}
+	}
+
+	private static void increment(final ConcurrentMap<String, AtomicInteger> counts, final String key) {
+		AtomicInteger count = counts.get(key);
+		if (count == null) {
+			counts.putIfAbsent(key, new AtomicInteger());
+			count = counts.get(key);
+		}
+		count.incrementAndGet();
+	}
+
+	private synchronized double nextDouble() {
+		return this.random.nextDouble();
+	}
+
+	private synchronized boolean isThrottled() {
+		final int max = this.maxCallsPerSecond;
+		if (max <= 0) {
+			return false;
+		}
+		final long now = System.currentTimeMillis();
+		if (now - this.windowStart >= ONE_SECOND_MILLIS) {
+			this.windowStart = now;
+			this.windowCalls = 0;
+		}
+		return ++this.windowCalls > max;
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+public class AmazonClientInstrumentationTest {
+
+	@Test
+	public void testApiCallsAreCounted() {
+		ProvisioningMetrics metrics = ProvisioningMetrics.forDriver("testInstrumentation");
+		AmazonEC2 ec2 = (AmazonEC2) Proxy.newProxyInstance(AmazonEC2.class.getClassLoader(),
+				new Class<?>[] { AmazonEC2.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) {
+						if ("runInstances".equals(method.getName())) {
+							AmazonServiceException e = new AmazonServiceException("no capacity");
+							e.setErrorCode("InsufficientInstanceCapacity");
+							throw e;
+						}
+						return new DescribeInstancesResult();
+					}
+				});
+		AmazonEC2 instrumented = AmazonClientInstrumentation.instrument(AmazonEC2.class, ec2, metrics);
+
+		instrumented.describeInstances(new DescribeInstancesRequest());
+		instrumented.describeInstances(new DescribeInstancesRequest());
+		try {
+			instrumented.runInstances(new RunInstancesRequest());
+			Assert.fail("AmazonServiceException expected");
+		} catch (AmazonServiceException e) {
+			Assert.assertEquals("InsufficientInstanceCapacity", e.getErrorCode());
+		}
+
+		Assert.assertEquals(Long.valueOf(2L), metrics.getApiCalls().get("describeInstances/OK"));
+		Assert.assertEquals(Long.valueOf(1L), metrics.getApiCalls().get("runInstances/InsufficientInstanceCapacity"));
+		Assert.assertEquals(3L, metrics.getApiCallCount());
+		Assert.assertEquals(1L, metrics.getApiErrorCount());
+		Assert.assertEquals(Long.valueOf(0L), metrics.getInFlight().get(ProvisioningMetrics.API_CALLS));
+	}
+}
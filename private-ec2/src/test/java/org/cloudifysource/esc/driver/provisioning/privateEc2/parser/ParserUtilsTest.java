@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParserUtilsTest {
+
+	private static final File TEMPLATE = new File("./src/test/resources/cfn_templates/externalConfig-cfn.template");
+	private static final File PROPERTIES = new File("./src/test/resources/cfn_templates/externalConfig-cfn.properties");
+	private static final File PLAIN_TEMPLATE =
+			new File("./src/test/resources/cfn_templates/WordPress_Single_Instance_With_RDS.template");
+
+	@Test
+	public void testReaderIsShared() {
+		Assert.assertSame(ParserUtils.reader(PrivateEc2Template.class), ParserUtils.reader(PrivateEc2Template.class));
+	}
+
+	@Test
+	public void testMapJsonFromReader() throws Exception {
+		Reader reader = new FileReader(PLAIN_TEMPLATE);
+		try {
+			PrivateEc2Template template = ParserUtils.mapJson(PrivateEc2Template.class, reader);
+			Assert.assertNotNull(template.getEC2Instance().getProperties().getImageId().getValue());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testMapJsonWithProperties() throws Exception {
+		PrivateEc2Template template = ParserUtils.mapJson(PrivateEc2Template.class, TEMPLATE, PROPERTIES);
+		Assert.assertEquals("ami-23d9a94a", template.getEC2Instance().getProperties().getImageId().getValue());
+		Assert.assertEquals("cloudify", template.getEC2Instance().getProperties().getKeyName().getValue());
+	}
+
+	@Test
+	public void testConcurrentMapping() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<PrivateEc2Template>> futures = new ArrayList<Future<PrivateEc2Template>>();
+			for (int i = 0; i < 32; i++) {
+				futures.add(executor.submit(new Callable<PrivateEc2Template>() {
+					@Override
+					public PrivateEc2Template call() throws Exception {
+						return ParserUtils.mapJson(PrivateEc2Template.class, TEMPLATE, PROPERTIES);
+					}
+				}));
+			}
+			for (Future<PrivateEc2Template> future : futures) {
+				Assert.assertEquals("ami-23d9a94a", future.get().getEC2Instance().getProperties().getImageId()
+						.getValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Properties;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropertySubstitutionTest {
+
+	private PropertySubstitution substitution;
+
+	@Before
+	public void before() {
+		Properties properties = new Properties();
+		properties.setProperty("imageId", "\"ami-23d9a94a\"");
+		properties.setProperty("key-name", "\"cloudify\"");
+		properties.setProperty("size", "10");
+		substitution = new PropertySubstitution(properties);
+	}
+
+	private String substitute(final String template) throws Exception {
+		return substitution.substitute(new StringReader(template), 0);
+	}
+
+	@Test
+	public void testReplacesValues() throws Exception {
+		Assert.assertEquals("{\"ImageId\":\"ami-23d9a94a\", \"KeyName\" : \"cloudify\",\n\"Size\":10}",
+				substitute("{\"ImageId\":imageId, \"KeyName\" : key-name,\n\"Size\":size}"));
+	}
+
+	@Test
+	public void testReplacesArrayElements() throws Exception {
+		Assert.assertEquals("{\"Groups\":[\"default\",\"ami-23d9a94a\"]}",
+				substitute("{\"Groups\":[\"default\",imageId]}"));
+	}
+
+	@Test
+	public void testKeepsStringsNumbersAndLiterals() throws Exception {
+		String template = "{\"a\":\"imageId\",\"b\":\"say \\\"size\\\"\",\"c\":-1.5e3,"
+				+ "\"d\":true,\"e\":null,\"f\":false}";
+		Assert.assertEquals(template, substitute(template));
+	}
+
+	@Test
+	public void testReportsAllMissingProperties() throws Exception {
+		try {
+			substitute("{\"a\":missing1,\"b\":imageId,\"c\":missing2,\"d\":missing1}");
+			Assert.fail("IllegalStateException expected");
+		} catch (IllegalStateException e) {
+			Assert.assertEquals("Couldn't find properties: [missing1, missing2]", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReplacePropertiesOfTemplateFile() throws Exception {
+		String template = ParserUtils.replaceProperties(
+				new File("./src/test/resources/cfn_templates/externalConfig-cfn.template"),
+				new File("./src/test/resources/cfn_templates/externalConfig-cfn.properties"));
+		PrivateEc2Template cfn = ParserUtils.mapJson(PrivateEc2Template.class, template);
+		Assert.assertEquals("ami-23d9a94a", cfn.getEC2Instance().getProperties().getImageId().getValue());
+		Assert.assertEquals("cloudify", cfn.getEC2Instance().getProperties().getKeyName().getValue());
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.InstanceProperties;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.Parameter;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.Base64Function;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.JoinFunction;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.RefValue;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.StringValue;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueEvaluator;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.types.ValueType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TemplateEvaluatorTest {
+
+	private static final String TEMPLATE = "{"
+			+ "\"Parameters\":{\"InstanceType\":{\"Type\":\"String\",\"Default\":\"m1.small\","
+			+ "\"AllowedValues\":[\"t1.micro\",\"m1.small\"]},\"Region\":{\"Default\":\"eu-west-1\"}},"
+			+ "\"Mappings\":{\"RegionArch2AMI\":{\"eu-west-1\":{\"64\":\"ami-64\",\"32\":\"ami-32\"}},"
+			+ "\"InstanceType2Arch\":{\"t1.micro\":{\"Arch\":\"32\"},\"m1.small\":{\"Arch\":\"64\"}}},"
+			+ "\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"Properties\":{"
+			+ "\"InstanceType\":{\"Ref\":\"InstanceType\"},"
+			+ "\"ImageId\":{\"Fn::FindInMap\":[\"RegionArch2AMI\",{\"Ref\":\"Region\"},"
+			+ "{\"Fn::FindInMap\":[\"InstanceType2Arch\",{\"Ref\":\"InstanceType\"},\"Arch\"]}]},"
+			+ "\"UserData\":{\"Fn::Base64\":{\"Fn::Join\":[\"\",[\"type=\",{\"Ref\":\"InstanceType\"}]]}},"
+			+ "\"Volumes\":[{\"VolumeId\":{\"Ref\":\"disk\"},\"Device\":\"/dev/sdk\"}]}},"
+			+ "\"disk\":{\"Type\":\"AWS::EC2::Volume\",\"Properties\":{\"Size\":1}}}}";
+
+	/**
+	 * A value which counts its evaluations.
+	 */
+	private static final class CountingValue implements ValueType {
+
+		private final AtomicInteger evaluations = new AtomicInteger();
+
+		@Override
+		public String getValue() {
+			return "counted";
+		}
+
+		@Override
+		public String evaluate(final ValueEvaluator evaluator) {
+			evaluations.incrementAndGet();
+			return "counted";
+		}
+	}
+
+	@Test
+	public void testEvaluateTemplate() throws Exception {
+		PrivateEc2Template template = ParserUtils.mapJson(PrivateEc2Template.class, TEMPLATE);
+		InstanceProperties properties = template.getEC2Instance().getProperties();
+		Assert.assertEquals("m1.small", template.evaluate(properties.getInstanceType()));
+		Assert.assertEquals("ami-64", template.evaluate(properties.getImageId()));
+		Assert.assertEquals("type=m1.small", template.evaluate(properties.getUserData()));
+		Assert.assertEquals("disk", template.evaluate(properties.getVolumes().get(0).getVolumeId()));
+	}
+
+	@Test
+	public void testUnevaluatedValues() throws Exception {
+		PrivateEc2Template template = ParserUtils.mapJson(PrivateEc2Template.class, TEMPLATE);
+		Assert.assertEquals("InstanceType", template.getEC2Instance().getProperties().getInstanceType().getValue());
+		Assert.assertEquals("Fn::FindInMap[RegionArch2AMI, Region, Fn::FindInMap[InstanceType2Arch, InstanceType, "
+				+ "Arch]]", template.getEC2Instance().getProperties().getImageId().getValue());
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testDefaultNotAllowed() throws Exception {
+		ParserUtils.mapJson(PrivateEc2Template.class, TEMPLATE.replace("\"Default\":\"m1.small\"",
+				"\"Default\":\"m1.large\""));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testParameterWithoutValue() {
+		Map<String, Parameter> parameters = new HashMap<String, Parameter>();
+		parameters.put("KeyName", new Parameter(null));
+		new TemplateEvaluator(parameters, null).evaluate(new RefValue("KeyName"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testMissingMapping() throws Exception {
+		PrivateEc2Template template = ParserUtils.mapJson(PrivateEc2Template.class,
+				TEMPLATE.replace("\"Default\":\"eu-west-1\"", "\"Default\":\"us-east-1\""));
+		template.evaluate(template.getEC2Instance().getProperties().getImageId());
+	}
+
+	@Test
+	public void testEqualNodesAreEvaluatedOnce() {
+		CountingValue counted = new CountingValue();
+		ValueType first = new Base64Function(new JoinFunction("-", Arrays.asList(new StringValue("a"), counted)));
+		ValueType second = new Base64Function(new JoinFunction("-", Arrays.asList(new StringValue("a"), counted)));
+		Assert.assertEquals(first, second);
+		Assert.assertEquals(first.hashCode(), second.hashCode());
+
+		TemplateEvaluator evaluator = new TemplateEvaluator(null, null);
+		Assert.assertEquals("a-counted-", evaluator.evaluate(first));
+		Assert.assertEquals("a-counted-", evaluator.evaluate(second));
+		Assert.assertEquals("a-counted-", evaluator.evaluate(new JoinFunction("-", Arrays.asList(new StringValue("a"),
+				counted))));
+		Assert.assertEquals(1, counted.evaluations.get());
+	}
+
+	@Test
+	public void testEncodedValueIsMemoized() {
+		Base64Function base64 = new Base64Function(new StringValue("hello world"));
+		Assert.assertEquals("aGVsbG8gd29ybGQ=", base64.getEncodedValue());
+		Assert.assertSame(base64.getEncodedValue(), base64.getEncodedValue());
+	}
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.InstanceProperties;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateSnapshotCacheTest {
+
+	private static final String TEMPLATE = "{"
+			+ "\"Parameters\":{\"InstanceType\":{\"Type\":\"String\",\"Default\":\"m1.small\","
+			+ "\"AllowedValues\":[\"t1.micro\",\"m1.small\"],\"Description\":\"The type\"}},"
+			+ "\"Mappings\":{\"Type2AMI\":{\"m1.small\":{\"AMI\":\"ami-small\"},\"t1.micro\":{\"AMI\":\"ami-micro\"}}},"
+			+ "\"Resources\":{\"vm\":{\"Type\":\"AWS::EC2::Instance\",\"DependsOn\":\"disk\",\"Properties\":{"
+			+ "\"InstanceType\":{\"Ref\":\"InstanceType\"},\"KeyName\":keyName,"
+			+ "\"ImageId\":{\"Fn::FindInMap\":[\"Type2AMI\",{\"Ref\":\"InstanceType\"},\"AMI\"]},"
+			+ "\"SecurityGroups\":[\"default\",\"web\"],\"Tags\":[{\"Key\":\"Name\",\"Value\":\"vm\"}],"
+			+ "\"UserData\":{\"Fn::Base64\":{\"Fn::Join\":[\"\",[\"#!/bin/bash\\n\",\"echo \\u00e9t\\u00e9\"]]}},"
+			+ "\"Volumes\":[{\"VolumeId\":{\"Ref\":\"disk\"},\"Device\":\"/dev/sdk\"}]}},"
+			+ "\"disk\":{\"Type\":\"AWS::EC2::Volume\",\"Properties\":{\"Size\":\"5\",\"Iops\":100,"
+			+ "\"AvailabilityZone\":\"eu-west-1c\",\"Tags\":[{\"Key\":\"Name\",\"Value\":\"disk\"}]}}}}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File templateFile;
+	private File propertiesFile;
+	private File cacheDirectory;
+
+	@Before
+	public void before() throws Exception {
+		this.templateFile = new File(this.folder.getRoot(), "vm-cfn.template");
+		this.propertiesFile = new File(this.folder.getRoot(), "vm-cfn.properties");
+		this.cacheDirectory = new File(this.folder.getRoot(), "cache");
+		FileUtils.writeStringToFile(this.templateFile, TEMPLATE, "UTF-8");
+		FileUtils.writeStringToFile(this.propertiesFile, "keyName=\"cloudify\"");
+	}
+
+	private static void assertSameTemplate(final PrivateEc2Template expected, final PrivateEc2Template actual) {
+		Assert.assertEquals(expected.toString(), actual.toString());
+		Assert.assertEquals(expected.getParameters().toString(), actual.getParameters().toString());
+		Assert.assertEquals(expected.getMappings(), actual.getMappings());
+		final InstanceProperties properties = actual.getEC2Instance().getProperties();
+		Assert.assertEquals("ami-small", actual.evaluate(properties.getImageId()));
+		Assert.assertEquals("cloudify", actual.evaluate(properties.getKeyName()));
+		Assert.assertEquals("#!/bin/bash\necho \u00e9t\u00e9", actual.evaluate(properties.getUserData()));
+		Assert.assertEquals(Integer.valueOf(100), actual.getEC2Volume("disk").getProperties().getIops());
+		Assert.assertEquals(Arrays.asList("disk"), actual.getEC2Instance().getDependsOn());
+	}
+
+	private File snapshot() {
+		final File[] files = this.cacheDirectory.listFiles();
+		Assert.assertNotNull(files);
+		Assert.assertEquals(1, files.length);
+		return files[0];
+	}
+
+	@Test
+	public void testCodecRoundTrip() throws Exception {
+		final PrivateEc2Template template =
+				ParserUtils.mapJson(PrivateEc2Template.class, this.templateFile, this.propertiesFile);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		TemplateSnapshotCodec.write(new DataOutputStream(bytes), template);
+
+		final PrivateEc2Template decoded =
+				TemplateSnapshotCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertSameTemplate(template, decoded);
+	}
+
+	@Test
+	public void testSnapshotIsReusedAfterRestart() throws Exception {
+		final PrivateEc2Template parsed =
+				new TemplateSnapshotCache(this.cacheDirectory).load(this.templateFile, this.propertiesFile);
+		final File snapshot = this.snapshot();
+		Assert.assertTrue(snapshot.setLastModified(1000000000000L));
+
+		final PrivateEc2Template loaded =
+				new TemplateSnapshotCache(this.cacheDirectory).load(this.templateFile, this.propertiesFile);
+		assertSameTemplate(parsed, loaded);
+		// The snapshot was read, not written again
+		Assert.assertEquals(1000000000000L, this.snapshot().lastModified());
+	}
+
+	@Test
+	public void testHitsAndMissesAreCounted() throws Exception {
+		final ProvisioningMetrics metrics = ProvisioningMetrics.forDriver("testSnapshotCache");
+		final TemplateSnapshotCache cache = new TemplateSnapshotCache(this.cacheDirectory, metrics);
+		cache.load(this.templateFile, this.propertiesFile);
+		Assert.assertEquals(Long.valueOf(1L), metrics.getCounters().get(ProvisioningMetrics.CACHE_MISSES));
+		Assert.assertNull(metrics.getCounters().get(ProvisioningMetrics.CACHE_HITS));
+
+		cache.load(this.templateFile, this.propertiesFile);
+		cache.load(this.templateFile, this.propertiesFile);
+		Assert.assertEquals(Long.valueOf(2L), metrics.getCounters().get(ProvisioningMetrics.CACHE_HITS));
+
+		FileUtils.writeStringToFile(this.propertiesFile, "keyName=\"other\"");
+		cache.load(this.templateFile, this.propertiesFile);
+		Assert.assertEquals(Long.valueOf(2L), metrics.getCounters().get(ProvisioningMetrics.CACHE_MISSES));
+	}
+
+	@Test
+	public void testStaleSnapshot() throws Exception {
+		final TemplateSnapshotCache cache = new TemplateSnapshotCache(this.cacheDirectory);
+		cache.load(this.templateFile, this.propertiesFile);
+
+		FileUtils.writeStringToFile(this.propertiesFile, "keyName=\"other\"");
+		final PrivateEc2Template template = cache.load(this.templateFile, this.propertiesFile);
+		Assert.assertEquals("other", template.evaluate(template.getEC2Instance().getProperties().getKeyName()));
+
+		final PrivateEc2Template reloaded =
+				new TemplateSnapshotCache(this.cacheDirectory).load(this.templateFile, this.propertiesFile);
+		Assert.assertEquals("other", reloaded.evaluate(reloaded.getEC2Instance().getProperties().getKeyName()));
+	}
+
+	@Test
+	public void testCorruptedSnapshot() throws Exception {
+		final TemplateSnapshotCache cache = new TemplateSnapshotCache(this.cacheDirectory);
+		final PrivateEc2Template parsed = cache.load(this.templateFile, this.propertiesFile);
+		final File snapshot = this.snapshot();
+		final byte[] content = FileUtils.readFileToByteArray(snapshot);
+		FileUtils.writeByteArrayToFile(snapshot, Arrays.copyOf(content, content.length / 2));
+
+		assertSameTemplate(parsed, cache.load(this.templateFile, this.propertiesFile));
+		Assert.assertEquals(content.length, this.snapshot().length());
+	}
+
+	@Test
+	public void testErrorsAreNotCached() throws Exception {
+		FileUtils.writeStringToFile(this.propertiesFile, "imageId=\"ami\"");
+		try {
+			new TemplateSnapshotCache(this.cacheDirectory).load(this.templateFile, this.propertiesFile);
+			Assert.fail("The missing property should be reported");
+		} catch (final IllegalStateException e) {
+			Assert.assertEquals("Couldn't find properties: [keyName]", e.getMessage());
+		}
+		final File[] files = this.cacheDirectory.listFiles();
+		Assert.assertTrue(files == null || files.length == 0);
+	}
+}
@@ -13,28 +13,99 @@
 package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
 public class PrivateEc2TemplateTest {
 
-	private PrivateEc2Template template = new PrivateEc2Template();
+	private static AWSResource resource(final String name, final String type) throws Exception {
+		String json = "{\"Resources\":{\"" + name + "\":{\"Type\":\"" + type + "\"}}}";
+		return ParserUtils.mapJson(PrivateEc2Template.class, json).getResources().get(0);
+	}
+
+	private static AWSEC2Volume volume(final String name) throws Exception {
+		return (AWSEC2Volume) resource(name, "AWS::EC2::Volume");
+	}
 
 	@Test
 	public void testGetEC2Volume() throws Exception {
-		template.setResources(new ArrayList<AWSResource>());
-		AWSEC2Volume vol1 = new AWSEC2Volume();
-		vol1.setResourceName("volume1");
-		template.getResources().add(vol1);
-
-		AWSEC2Volume vol2 = new AWSEC2Volume();
-		vol2.setResourceName("volume2");
-		template.getResources().add(vol2);
+		List<AWSResource> resources = new ArrayList<AWSResource>();
+		resources.add(volume("volume1"));
+		resources.add(volume("volume2"));
+		PrivateEc2Template template = new PrivateEc2Template(resources);
 
 		Assert.assertNotNull(template.getEC2Volume("volume2"));
 		Assert.assertNotNull(template.getEC2Volume("volume1"));
 		Assert.assertNull(template.getEC2Volume("volume3"));
 		Assert.assertNotNull(template.getEC2Volume(null)); // Returns the first found
 	}
+
+	@Test
+	public void testIndexes() throws Exception {
+		AWSResource instance = resource("instance", "AWS::EC2::Instance");
+		List<AWSResource> resources = new ArrayList<AWSResource>();
+		resources.add(volume("volume1"));
+		resources.add(instance);
+		resources.add(volume("volume2"));
+		PrivateEc2Template template = new PrivateEc2Template(resources);
+
+		Assert.assertSame(instance, template.getEC2Instance());
+		Assert.assertEquals("volume1", template.getEC2Volume(null).getResourceName());
+		Assert.assertEquals("volume2", template.getEC2Volume("volume2").getResourceName());
+		Assert.assertNull("Not a volume", template.getEC2Volume("instance"));
+		Assert.assertNull(new PrivateEc2Template(null).getEC2Instance());
+	}
+
+	@Test
+	public void testImmutable() throws Exception {
+		List<AWSResource> resources = new ArrayList<AWSResource>();
+		resources.add(volume("volume1"));
+		PrivateEc2Template template = new PrivateEc2Template(resources);
+		resources.add(volume("volume2"));
+
+		Assert.assertEquals(1, template.getResources().size());
+		Assert.assertNull(template.getEC2Volume("volume2"));
+		try {
+			template.getResources().add(volume("volume3"));
+			Assert.fail("UnsupportedOperationException expected");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testResourceIdentity() throws Exception {
+		AWSResource volume = volume("volume1");
+		Assert.assertEquals("volume1", volume.getResourceName());
+		Assert.assertEquals("AWS::EC2::Volume", volume.getType());
+	}
+
+	@Test
+	public void testMappingsAreCopied() throws Exception {
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("AMI", "ami-1");
+		Map<String, Map<String, String>> mapping = new HashMap<String, Map<String, String>>();
+		mapping.put("eu-west-1", values);
+		Map<String, Map<String, Map<String, String>>> mappings =
+				new HashMap<String, Map<String, Map<String, String>>>();
+		mappings.put("RegionMap", mapping);
+		PrivateEc2Template template = new PrivateEc2Template(null, null, mappings);
+		values.put("AMI", "ami-2");
+		mapping.put("us-east-1", Collections.<String, String> emptyMap());
+
+		Assert.assertEquals("ami-1", template.getMappings().get("RegionMap").get("eu-west-1").get("AMI"));
+		Assert.assertNull(template.getMappings().get("RegionMap").get("us-east-1"));
+		try {
+			template.getMappings().get("RegionMap").get("eu-west-1").put("AMI", "ami-3");
+			Assert.fail("UnsupportedOperationException expected");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
 }
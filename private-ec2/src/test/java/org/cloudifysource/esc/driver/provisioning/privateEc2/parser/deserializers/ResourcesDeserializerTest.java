@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.privateEc2.parser.deserializers;
+
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.ParserUtils;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.PrivateEc2ParserException;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Instance;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.AWSEC2Volume;
+import org.cloudifysource.esc.driver.provisioning.privateEc2.parser.beans.PrivateEc2Template;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ResourcesDeserializerTest {
+
+	private static final String INSTANCE_PROPERTIES =
+			"\"Properties\":{\"ImageId\":\"ami-1\",\"InstanceType\":\"t1.micro\"}";
+
+	private PrivateEc2Template parse(final String resources) throws PrivateEc2ParserException {
+		return ParserUtils.mapJson(PrivateEc2Template.class, "{\"Resources\":{" + resources + "}}");
+	}
+
+	@Test
+	public void testTypeBeforeProperties() throws Exception {
+		PrivateEc2Template template = parse("\"vm\":{\"Type\":\"AWS::EC2::Instance\"," + INSTANCE_PROPERTIES + "}");
+		AWSEC2Instance instance = template.getEC2Instance();
+		Assert.assertEquals("vm", instance.getResourceName());
+		Assert.assertEquals("AWS::EC2::Instance", instance.getType());
+		Assert.assertEquals("ami-1", instance.getProperties().getImageId().getValue());
+	}
+
+	@Test
+	public void testTypeAfterProperties() throws Exception {
+		PrivateEc2Template template = parse("\"vm\":{" + INSTANCE_PROPERTIES + ",\"Type\":\"AWS::EC2::Instance\"},"
+				+ "\"disk\":{\"Properties\":{\"Size\":\"5\"},\"Type\":\"AWS::EC2::Volume\",\"Metadata\":{}}");
+		AWSEC2Instance instance = template.getEC2Instance();
+		Assert.assertEquals("AWS::EC2::Instance", instance.getType());
+		Assert.assertEquals("t1.micro", instance.getProperties().getInstanceType().getValue());
+		AWSEC2Volume volume = template.getEC2Volume("disk");
+		Assert.assertEquals("AWS::EC2::Volume", volume.getType());
+		Assert.assertEquals(Integer.valueOf(5), volume.getProperties().getSize());
+	}
+
+	@Test
+	public void testTypeOnly() throws Exception {
+		PrivateEc2Template template = parse("\"disk\":{\"Type\":\"AWS::EC2::Volume\"}");
+		Assert.assertNotNull(template.getEC2Volume("disk"));
+	}
+
+	@Test
+	public void testUnhandledTypeIsSkipped() throws Exception {
+		PrivateEc2Template template = parse("\"group\":{\"Properties\":{\"Tags\":[{\"Key\":\"a\"}]},"
+				+ "\"Type\":\"AWS::EC2::SecurityGroup\",\"Metadata\":{\"a\":[1,2]}},"
+				+ "\"vm\":{\"Type\":\"AWS::EC2::Instance\"," + INSTANCE_PROPERTIES + "}");
+		Assert.assertEquals("vm", template.getEC2Instance().getResourceName());
+	}
+
+	@Test(expected = PrivateEc2ParserException.class)
+	public void testMissingType() throws Exception {
+		parse("\"vm\":{" + INSTANCE_PROPERTIES + "}");
+	}
+}
@@ -73,6 +73,27 @@ public class ValueDeserializerTest {
 		assertThat(((Base64Function) mapJson.getValueType()).getEncodedValue(), is(base64));
 	}
 
+	@Test
+	public void testDeserializeNumber() throws PrivateEc2ParserException {
+		SimpleValue mapJson = ParserUtils.mapJson(SimpleValue.class, "{\"Value\": 10}");
+		assertThat(mapJson.getValueType().getValue(), is("10"));
+	}
+
+	@Test
+	public void testDeserializeUnsupportedFunction() throws PrivateEc2ParserException {
+		String template = "{\"Value\": { \"Fn::GetAtt\" : [\"vm\", \"PublicIp\"], \"Other\": {\"a\": 1}}}";
+		SimpleValue mapJson = ParserUtils.mapJson(SimpleValue.class, template);
+		assertThat(mapJson.getValueType().getValue(), is("{\"Fn::GetAtt\":[\"vm\",\"PublicIp\"],\"Other\":{\"a\":1}}"));
+	}
+
+	@Test
+	public void testDeserializeJoinWithTrailingFields() throws PrivateEc2ParserException {
+		String template = "{\"Value\": { \"Fn::Join\" : [\"-\", [\"a\", {\"Ref\": \"b\"}], \"x\"], \"Other\": [1]},"
+				+ " \"Unknown\": 1}";
+		SimpleValue mapJson = ParserUtils.mapJson(SimpleValue.class, template);
+		assertThat(mapJson.getValueType().getValue(), is("a-b-"));
+	}
+
 	@Test
 	public void testDeserializeRef() throws PrivateEc2ParserException {
 		PrivateEc2Template template =
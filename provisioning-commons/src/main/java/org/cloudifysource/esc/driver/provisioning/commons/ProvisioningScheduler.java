@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningEvents;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningScheduledExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * A small scheduler which drives the asynchronous provisioning operations of a driver.<br />
+ * Waiting for a cloud resource doesn't park a thread: each polling tick is a scheduled task, so a thread is only used
+ * while a request to the cloud is actually running.<br />
+ * The tasks run with the launch ID of the operation which submitted them, see {@link LaunchContext}. There is one
+ * instance per driver name, shared by all the instances of that driver in the JVM.
+ * 
+ */
+public final class ProvisioningScheduler {
+
+	private static final Logger LOGGER = Logger.getLogger(ProvisioningScheduler.class.getName());
+
+	private static final int POOL_SIZE = 4;
+
+	private static final String TICK_PENDING = "Pending";
+
+	private static final ConcurrentMap<String, ProvisioningScheduler> INSTANCES =
+			new ConcurrentHashMap<String, ProvisioningScheduler>();
+
+	private final String driverName;
+	private final ListeningScheduledExecutorService executor;
+
+	/**
+	 * Polls a cloud resource until it reaches an expected state.
+	 * 
+	 * @param <T>
+	 *            The type of the polling result.
+	 */
+	public interface Poller<T> {
+
+		/**
+		 * Runs one polling tick.
+		 * 
+		 * @return The result if the resource reached the expected state, <code>null</code> to poll again later.
+		 * @throws Exception
+		 *             If the resource will never reach the expected state.
+		 */
+		T poll() throws Exception;
+	}
+
+	private ProvisioningScheduler(final String driverName, final int poolSize) {
+		this.driverName = driverName;
+		final ScheduledExecutorService scheduledExecutor =
+				Executors.newScheduledThreadPool(poolSize, new ThreadFactory() {
+					private final AtomicInteger threadCounter = new AtomicInteger(0);
+
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread =
+								new Thread(r, driverName + "-provisioning-" + threadCounter.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor = MoreExecutors.listeningDecorator(scheduledExecutor);
+	}
+
+	/**
+	 * Returns the scheduler of a driver, starting it on first use. The threads of the scheduler are daemon threads
+	 * named after the driver.
+	 * 
+	 * @param driverName
+	 *            The name of the driver.
+	 * @return The scheduler shared by all the instances of the driver.
+	 */
+	public static ProvisioningScheduler forDriver(final String driverName) {
+		ProvisioningScheduler scheduler = INSTANCES.get(driverName);
+		if (scheduler == null) {
+			final ProvisioningScheduler created = new ProvisioningScheduler(driverName, POOL_SIZE);
+			scheduler = INSTANCES.putIfAbsent(driverName, created);
+			if (scheduler == null) {
+				scheduler = created;
+			} else {
+				created.executor.shutdown();
+			}
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Runs a task on the scheduler threads, with the launch ID of the current thread.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @param <T>
+	 *            The type of the task result.
+	 * @return A future of the task result.
+	 */
+	public <T> ListenableFuture<T> submit(final Callable<T> task) {
+		final ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+		final String launchId = LaunchContext.current();
+		this.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// The listeners of the future run in this context as well
+				final String previous = LaunchContext.enter(launchId);
+				try {
+					future.run();
+				} finally {
+					LaunchContext.restore(previous);
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Runs a task periodically on the scheduler threads, until the returned future is cancelled. The runs never
+	 * overlap and an exception thrown by the task stops the periodic runs, so the task should handle its own errors.
+	 * 
+	 * @param task
+	 *            The task to run.
+	 * @param interval
+	 *            Delay in milliseconds before the first run and between the end of a run and the start of the next.
+	 * @return A future which cancels the periodic runs.
+	 */
+	public Future<?> scheduleWithFixedDelay(final Runnable task, final long interval) {
+		return this.executor.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Polls until the poller returns a result. Each tick runs with the launch ID of the current thread.
+	 * 
+	 * @param name
+	 *            The name of the wait, as reported in the polling tick events.
+	 * @param poller
+	 *            The poller to run on each tick.
+	 * @param initialDelay
+	 *            Delay in milliseconds before the first tick.
+	 * @param interval
+	 *            Delay in milliseconds between two ticks.
+	 * @param endTime
+	 *            Time in milliseconds after which the future fails with a {@link TimeoutException}.
+	 * @param timeoutMessage
+	 *            The message of the {@link TimeoutException}.
+	 * @param <T>
+	 *            The type of the polling result.
+	 * @return A future of the polling result.
+	 */
+	public <T> ListenableFuture<T> poll(final String name, final Poller<T> poller, final long initialDelay,
+			final long interval, final long endTime, final String timeoutMessage) {
+		final PollingFuture<T> future = new PollingFuture<T>(name, poller, interval, endTime, timeoutMessage);
+		future.schedule(initialDelay);
+		return future;
+	}
+
+	/**
+	 * A future completed by a poller which reschedules itself on the scheduler until it gets a result.<br />
+	 * Cancelling the future stops the polling: the next tick is cancelled.
+	 */
+	private final class PollingFuture<T> extends AbstractFuture<T> implements Runnable {
+
+		private final String name;
+		private final Poller<T> poller;
+		private final long interval;
+		private final long endTime;
+		private final String timeoutMessage;
+		private final String launchId;
+		private volatile Future<?> nextTick;
+
+		private PollingFuture(final String name, final Poller<T> poller, final long interval, final long endTime,
+				final String timeoutMessage) {
+			this.name = name;
+			this.poller = poller;
+			this.interval = interval;
+			this.endTime = endTime;
+			this.timeoutMessage = timeoutMessage;
+			this.launchId = LaunchContext.current();
+		}
+
+		@Override
+		public void run() {
+			if (this.isDone()) {
+				return;
+			}
+			final String previous = LaunchContext.enter(this.launchId);
+			final Object event = ProvisioningEvents.begin(ProvisioningEvents.Type.POLLING_TICK);
+			String result = TICK_PENDING;
+			try {
+				result = this.tick();
+			} finally {
+				ProvisioningEvents.commit(event, this.launchId, driverName, this.name, result);
+				LaunchContext.restore(previous);
+			}
+		}
+
+		private String tick() {
+			try {
+				final T result = this.poller.poll();
+				if (result != null) {
+					this.set(result);
+					return ProvisioningEvents.status(null);
+				} else if (System.currentTimeMillis() >= this.endTime) {
+					final TimeoutException timeout = new TimeoutException(this.timeoutMessage);
+					this.setException(timeout);
+					return ProvisioningEvents.status(timeout);
+				} else {
+					if (LOGGER.isLoggable(Level.FINEST)) {
+						LOGGER.finest("polling again in " + this.interval + "ms at most...");
+					}
+					// Never sleep past the end time: the last tick happens right on time
+					this.schedule(Math.min(this.interval, this.endTime - System.currentTimeMillis()));
+					return TICK_PENDING;
+				}
+			} catch (final Throwable t) {
+				this.setException(t);
+				return ProvisioningEvents.status(t);
+			}
+		}
+
+		private void schedule(final long delay) {
+			this.nextTick = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+			if (this.isCancelled()) {
+				this.nextTick.cancel(false);
+			}
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning)) {
+				return false;
+			}
+			final Future<?> tick = this.nextTick;
+			if (tick != null) {
+				tick.cancel(false);
+			}
+			return true;
+		}
+	}
+}
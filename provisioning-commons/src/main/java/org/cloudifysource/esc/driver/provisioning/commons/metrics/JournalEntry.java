@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+/**
+ * A record read from a {@link ProvisioningJournal}.
+ * 
+ */
+public final class JournalEntry {
+
+	private final long sequence;
+	private final long epochNanos;
+	private final long threadId;
+	private final String transition;
+	private final String launchId;
+	private final String subject;
+	private final String detail;
+
+	JournalEntry(final long sequence, final long epochNanos, final long threadId, final String transition,
+			final String launchId, final String subject, final String detail) {
+		this.sequence = sequence;
+		this.epochNanos = epochNanos;
+		this.threadId = threadId;
+		this.transition = transition;
+		this.launchId = launchId;
+		this.subject = subject;
+		this.detail = detail;
+	}
+
+	/**
+	 * @return The sequence number of the record, in the order of the recording.
+	 */
+	public long getSequence() {
+		return this.sequence;
+	}
+
+	/**
+	 * @return The time of the transition in nanoseconds since the epoch.
+	 */
+	public long getEpochNanos() {
+		return this.epochNanos;
+	}
+
+	/**
+	 * @return The id of the thread which recorded the transition.
+	 */
+	public long getThreadId() {
+		return this.threadId;
+	}
+
+	/**
+	 * @return The name of the transition, see {@link ProvisioningJournal.Transition}.
+	 */
+	public String getTransition() {
+		return this.transition;
+	}
+
+	/**
+	 * @return The launch ID of the operation, <code>null</code> if there is none.
+	 */
+	public String getLaunchId() {
+		return this.launchId;
+	}
+
+	/**
+	 * @return The subject of the transition, <code>null</code> if there is none.
+	 */
+	public String getSubject() {
+		return this.subject;
+	}
+
+	/**
+	 * @return The detail of the transition, <code>null</code> if there is none.
+	 */
+	public String getDetail() {
+		return this.detail;
+	}
+
+	@Override
+	public String toString() {
+		return "JournalEntry [sequence=" + this.sequence + ", epochNanos=" + this.epochNanos + ", threadId="
+				+ this.threadId + ", transition=" + this.transition + ", launchId=" + this.launchId + ", subject="
+				+ this.subject + ", detail=" + this.detail + "]";
+	}
+}
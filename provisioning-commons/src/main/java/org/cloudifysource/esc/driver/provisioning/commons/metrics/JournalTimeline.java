@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the timeline of each launch and stop recorded in a {@link ProvisioningJournal}.<br />
+ * Usage: <code>java ... JournalTimeline &lt;journal file&gt; [launch id]</code>
+ * 
+ */
+public final class JournalTimeline {
+
+	private static final String NO_LAUNCH_ID = "(none)";
+	private static final double NANOS_IN_MILLI = 1000000d;
+
+	private JournalTimeline() {
+	}
+
+	/**
+	 * Prints the timelines of a journal file on the standard output.
+	 * 
+	 * @param args
+	 *            The journal file and optionally the launch ID to render.
+	 * @throws IOException
+	 *             If the journal couldn't be read.
+	 */
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: " + JournalTimeline.class.getName() + " <journal file> [launch id]");
+			System.exit(1);
+		}
+		render(ProvisioningJournal.read(new File(args[0])), args.length > 1 ? args[1] : null, System.out);
+	}
+
+	/**
+	 * Groups the records by launch ID and renders the timeline of each launch, in the order of their first record.
+	 * 
+	 * @param entries
+	 *            The records, from the oldest to the latest.
+	 * @param launchId
+	 *            The launch ID to render, <code>null</code> to render all of them.
+	 * @param out
+	 *            Where to render the timelines.
+	 */
+	public static void render(final List<JournalEntry> entries, final String launchId, final PrintStream out) {
+		final Map<String, List<JournalEntry>> launches = new LinkedHashMap<String, List<JournalEntry>>();
+		for (final JournalEntry entry : entries) {
+			final String key = entry.getLaunchId() == null ? NO_LAUNCH_ID : entry.getLaunchId();
+			if (launchId != null && !launchId.equals(key)) {
+				continue;
+			}
+			List<JournalEntry> launch = launches.get(key);
+			if (launch == null) {
+				launch = new ArrayList<JournalEntry>();
+				launches.put(key, launch);
+			}
+			launch.add(entry);
+		}
+
+		final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		for (final Map.Entry<String, List<JournalEntry>> launch : launches.entrySet()) {
+			final List<JournalEntry> timeline = launch.getValue();
+			final long start = timeline.get(0).getEpochNanos();
+			final long end = timeline.get(timeline.size() - 1).getEpochNanos();
+			out.println(String.format("Launch %s: %d transitions over %.3f ms", launch.getKey(), timeline.size(),
+					(end - start) / NANOS_IN_MILLI));
+			for (final JournalEntry entry : timeline) {
+				final long nanos = entry.getEpochNanos();
+				out.println(String.format("  %s%06d %+12.3f ms  thread %-4d %-20s %s%s",
+						dateFormat.format(new Date(nanos / 1000000L)), nanos % 1000000L,
+						(nanos - start) / NANOS_IN_MILLI, entry.getThreadId(), entry.getTransition(),
+						entry.getSubject() == null ? "" : entry.getSubject(),
+						entry.getDetail() == null ? "" : " (" + entry.getDetail() + ")"));
+			}
+			out.println();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram with fixed buckets, from 50ms up to 20 minutes.<br />
+ * Percentiles are estimated with the upper bound of the bucket they fall in.
+ * 
+ */
+public final class LatencyHistogram implements LatencyHistogramMXBean {
+
+	private static final long[] BUCKET_BOUNDS = { 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L, 30000L, 60000L,
+			120000L, 300000L, 600000L, 1200000L };
+
+	private static final double P50 = 0.50;
+	private static final double P95 = 0.95;
+	private static final double P99 = 0.99;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param millis
+	 *            The latency in milliseconds.
+	 */
+	public void record(final long millis) {
+		final long value = Math.max(0L, millis);
+		this.buckets.incrementAndGet(bucketIndex(value));
+		this.sum.addAndGet(value);
+		this.count.incrementAndGet();
+		long current = this.max.get();
+		while (value > current && !this.max.compareAndSet(current, value)) {
+			current = this.max.get();
+		}
+	}
+
+	private static int bucketIndex(final long value) {
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			if (value <= BUCKET_BOUNDS[i]) {
+				return i;
+			}
+		}
+		return BUCKET_BOUNDS.length;
+	}
+
+	/**
+	 * @return The number of buckets, including the last one which has no upper bound.
+	 */
+	public int getBucketNumber() {
+		return BUCKET_BOUNDS.length + 1;
+	}
+
+	/**
+	 * @param index
+	 *            The index of a bucket.
+	 * @return The upper bound of the bucket in milliseconds, {@link Long#MAX_VALUE} for the last bucket.
+	 */
+	public long getBucketBound(final int index) {
+		return index < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[index] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @param index
+	 *            The index of a bucket.
+	 * @return The number of latencies recorded in the bucket.
+	 */
+	public long getBucketCount(final int index) {
+		return this.buckets.get(index);
+	}
+
+	@Override
+	public long getCount() {
+		return this.count.get();
+	}
+
+	@Override
+	public long getSumMillis() {
+		return this.sum.get();
+	}
+
+	@Override
+	public double getMeanMillis() {
+		final long n = this.count.get();
+		return n == 0 ? 0d : (double) this.sum.get() / n;
+	}
+
+	@Override
+	public long getMaxMillis() {
+		return this.max.get();
+	}
+
+	@Override
+	public long getP50Millis() {
+		return this.percentile(P50);
+	}
+
+	@Override
+	public long getP95Millis() {
+		return this.percentile(P95);
+	}
+
+	@Override
+	public long getP99Millis() {
+		return this.percentile(P99);
+	}
+
+	/**
+	 * Estimates a percentile of the recorded latencies.
+	 * 
+	 * @param quantile
+	 *            The quantile, between 0 and 1.
+	 * @return The upper bound of the bucket of the percentile, or the highest latency for the last bucket.
+	 */
+	public long percentile(final double quantile) {
+		long total = 0L;
+		for (int i = 0; i < this.buckets.length(); i++) {
+			total += this.buckets.get(i);
+		}
+		if (total == 0L) {
+			return 0L;
+		}
+		final long rank = (long) Math.ceil(quantile * total);
+		long cumulated = 0L;
+		for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+			cumulated += this.buckets.get(i);
+			if (cumulated >= rank) {
+				return Math.min(BUCKET_BOUNDS[i], this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+
+	@Override
+	public long[] getBucketBoundsMillis() {
+		return BUCKET_BOUNDS.clone();
+	}
+
+	@Override
+	public long[] getBucketCounts() {
+		final long[] counts = new long[this.buckets.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = this.buckets.get(i);
+		}
+		return counts;
+	}
+}
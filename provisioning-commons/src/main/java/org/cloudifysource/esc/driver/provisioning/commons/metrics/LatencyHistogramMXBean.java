@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+/**
+ * JMX view of a {@link LatencyHistogram}.
+ * 
+ */
+public interface LatencyHistogramMXBean {
+
+	/**
+	 * @return The number of recorded latencies.
+	 */
+	long getCount();
+
+	/**
+	 * @return The sum of the recorded latencies in milliseconds.
+	 */
+	long getSumMillis();
+
+	/**
+	 * @return The mean latency in milliseconds.
+	 */
+	double getMeanMillis();
+
+	/**
+	 * @return The highest recorded latency in milliseconds.
+	 */
+	long getMaxMillis();
+
+	/**
+	 * @return The estimated median latency in milliseconds.
+	 */
+	long getP50Millis();
+
+	/**
+	 * @return The estimated 95th percentile of the latency in milliseconds.
+	 */
+	long getP95Millis();
+
+	/**
+	 * @return The estimated 99th percentile of the latency in milliseconds.
+	 */
+	long getP99Millis();
+
+	/**
+	 * @return The upper bounds of the histogram buckets in milliseconds. The last bucket, which has no upper bound, is
+	 *         not part of the array.
+	 */
+	long[] getBucketBoundsMillis();
+
+	/**
+	 * @return The number of latencies recorded in each bucket.
+	 */
+	long[] getBucketCounts();
+}
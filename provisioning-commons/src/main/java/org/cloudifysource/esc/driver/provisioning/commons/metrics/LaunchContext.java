@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.util.UUID;
+
+/**
+ * The ID of the provisioning operation (i.e. a machine launch) the current thread works for.<br />
+ * The provisioning scheduler binds the ID of the operation which submitted a task while the task runs, so that the
+ * API calls, polling ticks and events of an operation can be correlated.
+ * 
+ */
+public final class LaunchContext {
+
+	private static final ThreadLocal<String> CURRENT = new ThreadLocal<String>();
+
+	private LaunchContext() {
+	}
+
+	/**
+	 * @return A new unique launch ID.
+	 */
+	public static String newLaunchId() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * @return The launch ID bound to the current thread, <code>null</code> if there is none.
+	 */
+	public static String current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Binds a launch ID to the current thread.
+	 * 
+	 * @param launchId
+	 *            The launch ID, <code>null</code> to unbind.
+	 * @return The launch ID previously bound, to give to {@link #restore(String)}.
+	 */
+	public static String enter(final String launchId) {
+		final String previous = CURRENT.get();
+		CURRENT.set(launchId);
+		return previous;
+	}
+
+	/**
+	 * Restores the launch ID bound before a call to {@link #enter(String)}.
+	 * 
+	 * @param previous
+	 *            The launch ID returned by {@link #enter(String)}.
+	 */
+	public static void restore(final String previous) {
+		if (previous == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(previous);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+/**
+ * Identifies a metric of an operation: the latency of a phase for a template, or the calls of an API operation which
+ * ended with an error code.
+ * 
+ */
+public final class MetricKey {
+
+	private final String operation;
+	private final String qualifier;
+
+	/**
+	 * @param operation
+	 *            The operation, i.e. a provisioning phase or an API operation.
+	 * @param qualifier
+	 *            The qualifier of the operation, i.e. a template name or an error code.
+	 */
+	public MetricKey(final String operation, final String qualifier) {
+		this.operation = operation;
+		this.qualifier = qualifier;
+	}
+
+	public String getOperation() {
+		return this.operation;
+	}
+
+	public String getQualifier() {
+		return this.qualifier;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * this.operation.hashCode() + this.qualifier.hashCode();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof MetricKey)) {
+			return false;
+		}
+		final MetricKey other = (MetricKey) obj;
+		return this.operation.equals(other.operation) && this.qualifier.equals(other.qualifier);
+	}
+
+	@Override
+	public String toString() {
+		return this.operation + "/" + this.qualifier;
+	}
+}
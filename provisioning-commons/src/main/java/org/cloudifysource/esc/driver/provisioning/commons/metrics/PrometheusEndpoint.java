@@ -0,0 +1,384 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP endpoint serving the {@link ProvisioningMetrics} in the Prometheus text exposition format on
+ * <code>/metrics</code>.<br />
+ * It is enabled with the <code>prometheusPort</code> entry of the cloud custom map, and bound to all the interfaces
+ * unless <code>prometheusBindAddress</code> is set. The drivers of a JVM share the endpoint of a port, which serves
+ * the metrics of all of them, each series labelled with its driver, and is stopped once the last of them is
+ * closed.<br />
+ * Scrapes are served one at a time by the dispatcher thread of the server, which renders the metrics in a reused
+ * buffer.
+ * 
+ */
+public final class PrometheusEndpoint implements HttpHandler {
+
+	/** Cloud custom map key of the port of the endpoint. */
+	public static final String PORT_PROPERTY = "prometheusPort";
+
+	/** Cloud custom map key of the address the endpoint is bound to. */
+	public static final String BIND_ADDRESS_PROPERTY = "prometheusBindAddress";
+
+	private static final Logger LOGGER = Logger.getLogger(PrometheusEndpoint.class.getName());
+
+	private static final String CONTEXT = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final int HTTP_OK = 200;
+	private static final int HTTP_BAD_METHOD = 405;
+	private static final String PREFIX = "cloudify_driver_";
+
+	private static final Map<Integer, PrometheusEndpoint> ENDPOINTS = new HashMap<Integer, PrometheusEndpoint>();
+
+	private final int port;
+	private final HttpServer server;
+	private final ExpositionBuffer buffer = new ExpositionBuffer();
+	// One entry per acquisition, guarded by ENDPOINTS
+	private final List<ProvisioningMetrics> registrations = new ArrayList<ProvisioningMetrics>();
+	// The distinct registered metrics, read by the dispatcher thread
+	private volatile List<ProvisioningMetrics> served = Collections.emptyList();
+
+	private PrometheusEndpoint(final int port, final HttpServer server) {
+		this.port = port;
+		this.server = server;
+	}
+
+	/**
+	 * Starts the endpoint of a port, or shares it if it is already started, and adds the metrics of a driver to the
+	 * metrics it serves.
+	 * 
+	 * @param bindAddress
+	 *            The address to bind to, <code>null</code> for all the interfaces.
+	 * @param port
+	 *            The port of the endpoint.
+	 * @param metrics
+	 *            The metrics to serve.
+	 * @return The endpoint, to release with the same metrics once the driver is closed.
+	 * @throws IOException
+	 *             If the server couldn't be started.
+	 */
+	public static PrometheusEndpoint acquire(final String bindAddress, final int port,
+			final ProvisioningMetrics metrics) throws IOException {
+		synchronized (ENDPOINTS) {
+			PrometheusEndpoint endpoint = ENDPOINTS.get(port);
+			if (endpoint == null) {
+				final InetSocketAddress address =
+						bindAddress == null ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port);
+				final HttpServer server = HttpServer.create(address, 0);
+				endpoint = new PrometheusEndpoint(port, server);
+				server.createContext(CONTEXT, endpoint);
+				// No executor: exchanges are handled one at a time by the dispatcher thread
+				server.setExecutor(null);
+				server.start();
+				LOGGER.info("Prometheus metrics endpoint started on " + address + CONTEXT);
+				ENDPOINTS.put(port, endpoint);
+			}
+			endpoint.registrations.add(metrics);
+			endpoint.updateServed();
+			return endpoint;
+		}
+	}
+
+	/**
+	 * @return The port the endpoint listens to.
+	 */
+	public int getPort() {
+		return this.server.getAddress().getPort();
+	}
+
+	/**
+	 * Releases the endpoint, which stops serving the metrics once no driver using them is left, and is stopped if no
+	 * other driver uses it.
+	 * 
+	 * @param metrics
+	 *            The metrics given to {@link #acquire(String, int, ProvisioningMetrics)}.
+	 */
+	public void release(final ProvisioningMetrics metrics) {
+		synchronized (ENDPOINTS) {
+			if (!this.registrations.remove(metrics)) {
+				throw new IllegalArgumentException("The metrics of driver " + metrics.getDriverName()
+						+ " are not served on port " + this.port);
+			}
+			this.updateServed();
+			if (this.registrations.isEmpty()) {
+				ENDPOINTS.remove(this.port);
+				this.server.stop(0);
+				LOGGER.info("Prometheus metrics endpoint stopped on port " + this.port);
+			}
+		}
+	}
+
+	private void updateServed() {
+		final List<ProvisioningMetrics> distinct = new ArrayList<ProvisioningMetrics>();
+		for (final ProvisioningMetrics metrics : this.registrations) {
+			if (!distinct.contains(metrics)) {
+				distinct.add(metrics);
+			}
+		}
+		this.served = Collections.unmodifiableList(distinct);
+	}
+
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(HTTP_BAD_METHOD, -1);
+				return;
+			}
+			this.buffer.reset();
+			this.write(this.buffer);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(HTTP_OK, this.buffer.size());
+			final OutputStream out = exchange.getResponseBody();
+			out.write(this.buffer.bytes(), 0, this.buffer.size());
+			out.flush();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Renders the metrics in the Prometheus text exposition format.
+	 * 
+	 * @param out
+	 *            The buffer where to render the metrics.
+	 */
+	void write(final ExpositionBuffer out) {
+		final List<ProvisioningMetrics> drivers = this.served;
+
+		final String latency = PREFIX + "provisioning_latency_seconds";
+		out.header(latency, "Latency of the provisioning phases per template.", "histogram");
+		for (final ProvisioningMetrics metrics : drivers) {
+			final String driver = metrics.getDriverName();
+			for (final Map.Entry<MetricKey, LatencyHistogram> entry : metrics.getLatencies().entrySet()) {
+				final MetricKey key = entry.getKey();
+				final LatencyHistogram histogram = entry.getValue();
+				long cumulated = 0L;
+				for (int i = 0; i < histogram.getBucketNumber(); i++) {
+					cumulated += histogram.getBucketCount(i);
+					out.append(latency).append("_bucket");
+					out.labels(driver, "operation", key.getOperation(), "template", key.getQualifier());
+					out.append(",le=\"");
+					if (i < histogram.getBucketNumber() - 1) {
+						out.appendSeconds(histogram.getBucketBound(i));
+					} else {
+						out.append("+Inf");
+					}
+					out.append("\"} ").append(cumulated).append('\n');
+				}
+				out.append(latency).append("_sum");
+				out.labels(driver, "operation", key.getOperation(), "template", key.getQualifier());
+				out.append("} ").appendSeconds(histogram.getSumMillis()).append('\n');
+				out.append(latency).append("_count");
+				out.labels(driver, "operation", key.getOperation(), "template", key.getQualifier());
+				out.append("} ").append(cumulated).append('\n');
+			}
+		}
+
+		final String apiCalls = PREFIX + "api_calls_total";
+		out.header(apiCalls, "Cloud API calls per operation and error code.", "counter");
+		for (final ProvisioningMetrics metrics : drivers) {
+			for (final Map.Entry<MetricKey, AtomicLong> entry : metrics.getApiCallCounters().entrySet()) {
+				out.append(apiCalls);
+				out.labels(metrics.getDriverName(), "operation", entry.getKey().getOperation(), "code",
+						entry.getKey().getQualifier());
+				out.append("} ").append(entry.getValue().get()).append('\n');
+			}
+		}
+
+		final String inFlight = PREFIX + "in_flight";
+		out.header(inFlight, "Operations currently running.", "gauge");
+		for (final ProvisioningMetrics metrics : drivers) {
+			for (final Map.Entry<String, AtomicLong> entry : metrics.getInFlightGauges().entrySet()) {
+				out.append(inFlight);
+				out.labels(metrics.getDriverName(), "operation", entry.getKey(), null, null);
+				out.append("} ").append(entry.getValue().get()).append('\n');
+			}
+		}
+
+		// A metric family is declared once, with the samples of all the drivers which have it
+		final Set<String> counters = new TreeSet<String>();
+		for (final ProvisioningMetrics metrics : drivers) {
+			counters.addAll(metrics.getCounterValues().keySet());
+		}
+		for (final String counter : counters) {
+			out.append("# TYPE ").append(PREFIX).append(counter).append("_total counter\n");
+			for (final ProvisioningMetrics metrics : drivers) {
+				final AtomicLong value = metrics.getCounterValues().get(counter);
+				if (value != null) {
+					out.append(PREFIX).append(counter).append("_total");
+					out.labels(metrics.getDriverName(), null, null, null, null);
+					out.append("} ").append(value.get()).append('\n');
+				}
+			}
+		}
+	}
+
+	/**
+	 * A growable UTF-8 byte buffer, reused from one scrape to the other.
+	 */
+	static final class ExpositionBuffer {
+
+		private static final int INITIAL_CAPACITY = 8192;
+		private static final int MILLIS_PER_SECOND = 1000;
+		private static final int RADIX = 10;
+
+		private byte[] bytes = new byte[INITIAL_CAPACITY];
+		private int size;
+		private final byte[] digits = new byte[20];
+
+		void reset() {
+			this.size = 0;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		byte[] bytes() {
+			return this.bytes;
+		}
+
+		private void ensureCapacity(final int additional) {
+			if (this.size + additional > this.bytes.length) {
+				final byte[] grown = new byte[Math.max(this.bytes.length * 2, this.size + additional)];
+				System.arraycopy(this.bytes, 0, grown, 0, this.size);
+				this.bytes = grown;
+			}
+		}
+
+		private void write(final int b) {
+			this.ensureCapacity(1);
+			this.bytes[this.size++] = (byte) b;
+		}
+
+		ExpositionBuffer append(final char c) {
+			if (c < 0x80) {
+				this.write(c);
+			} else if (c < 0x800) {
+				this.write(0xC0 | c >> 6);
+				this.write(0x80 | c & 0x3F);
+			} else {
+				this.write(0xE0 | c >> 12);
+				this.write(0x80 | c >> 6 & 0x3F);
+				this.write(0x80 | c & 0x3F);
+			}
+			return this;
+		}
+
+		ExpositionBuffer append(final String s) {
+			for (int i = 0; i < s.length(); i++) {
+				final char c = s.charAt(i);
+				if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+					final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+					this.write(0xF0 | codePoint >> 18);
+					this.write(0x80 | codePoint >> 12 & 0x3F);
+					this.write(0x80 | codePoint >> 6 & 0x3F);
+					this.write(0x80 | codePoint & 0x3F);
+				} else {
+					this.append(c);
+				}
+			}
+			return this;
+		}
+
+		ExpositionBuffer append(final long value) {
+			if (value < 0) {
+				this.write('-');
+				if (value == Long.MIN_VALUE) {
+					return this.append(String.valueOf(value).substring(1));
+				}
+				return this.append(-value);
+			}
+			long remaining = value;
+			int length = 0;
+			do {
+				this.digits[length++] = (byte) ('0' + remaining % RADIX);
+				remaining /= RADIX;
+			} while (remaining > 0);
+			this.ensureCapacity(length);
+			while (length > 0) {
+				this.bytes[this.size++] = this.digits[--length];
+			}
+			return this;
+		}
+
+		/**
+		 * Appends a duration in milliseconds as seconds, i.e. 1250 as 1.250.
+		 */
+		ExpositionBuffer appendSeconds(final long millis) {
+			this.append(millis / MILLIS_PER_SECOND).append('.');
+			final long fraction = millis % MILLIS_PER_SECOND;
+			if (fraction < 100) {
+				this.write('0');
+			}
+			if (fraction < RADIX) {
+				this.write('0');
+			}
+			return this.append(fraction);
+		}
+
+		private ExpositionBuffer appendLabelValue(final String value) {
+			for (int i = 0; i < value.length(); i++) {
+				final char c = value.charAt(i);
+				if (c == '\\' || c == '"') {
+					this.write('\\');
+					this.append(c);
+				} else if (c == '\n') {
+					this.write('\\');
+					this.write('n');
+				} else {
+					this.append(c);
+				}
+			}
+			return this;
+		}
+
+		void header(final String name, final String help, final String type) {
+			this.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			this.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		}
+
+		/**
+		 * Opens the labels of a sample, the caller closes them.
+		 */
+		void labels(final String driver, final String name1, final String value1, final String name2,
+				final String value2) {
+			this.append("{driver=\"").appendLabelValue(driver).append('"');
+			if (name1 != null) {
+				this.append(',').append(name1).append("=\"").appendLabelValue(value1).append('"');
+			}
+			if (name2 != null) {
+				this.append(',').append(name2).append("=\"").appendLabelValue(value2).append('"');
+			}
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Custom Java Flight Recorder events of the provisioning operations, all correlated by launch ID:
+ * <ul>
+ * <li><code>org.cloudifysource.esc.ApiCall</code>: a cloud API call with its operation and status.</li>
+ * <li><code>org.cloudifysource.esc.PollingTick</code>: a tick of a wait for a cloud resource.</li>
+ * <li><code>org.cloudifysource.esc.Archive</code>: the creation or the upload of the cloud files archive.</li>
+ * <li><code>org.cloudifysource.esc.Provisioning</code>: a whole machine launch or shutdown.</li>
+ * </ul>
+ * The drivers are built for Java 6, so the event types are defined at runtime with <code>jdk.jfr.EventFactory</code>.
+ * On a JVM without Flight Recorder, the events are not emitted.
+ * 
+ */
+public final class ProvisioningEvents {
+
+	/**
+	 * The types of provisioning events. The values of an event are given in the order of the fields.
+	 */
+	public static enum Type {
+		/** A cloud API call. */
+		API_CALL("ApiCall", "Cloud API Call", "launchId", "driver", "operation", "status"),
+		/** A tick of a wait for a cloud resource. */
+		POLLING_TICK("PollingTick", "Polling Tick", "launchId", "driver", "poller", "result"),
+		/** The creation or the upload of the cloud files archive. */
+		ARCHIVE("Archive", "Cloud Files Archive", "launchId", "driver", "action", "path", "bytes"),
+		/** A whole machine launch or shutdown. */
+		PROVISIONING("Provisioning", "Provisioning Operation", "launchId", "driver", "operation", "template",
+				"status");
+
+		private final String name;
+		private final String label;
+		private final String[] fields;
+		private Object factory;
+
+		private Type(final String name, final String label, final String... fields) {
+			this.name = name;
+			this.label = label;
+			this.fields = fields;
+		}
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(ProvisioningEvents.class.getName());
+
+	private static final String EVENT_PREFIX = "org.cloudifysource.esc.";
+	private static final String BYTES_FIELD = "bytes";
+
+	private static final Method NEW_EVENT;
+	private static final Method BEGIN;
+	private static final Method END;
+	private static final Method SHOULD_COMMIT;
+	private static final Method COMMIT;
+	private static final Method SET;
+
+	static {
+		Method newEvent = null;
+		Method begin = null;
+		Method end = null;
+		Method shouldCommit = null;
+		Method commit = null;
+		Method set = null;
+		try {
+			final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+			final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+			final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+			final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+			final Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+			final Method create = eventFactoryClass.getMethod("create", List.class, List.class);
+
+			for (final Type type : Type.values()) {
+				final List<Object> annotations = new ArrayList<Object>();
+				annotations.add(annotationElement.newInstance(jfrAnnotation("Name"), EVENT_PREFIX + type.name));
+				annotations.add(annotationElement.newInstance(jfrAnnotation("Label"), type.label));
+				annotations.add(annotationElement.newInstance(jfrAnnotation("Category"),
+						new String[] { "Cloudify", "Provisioning" }));
+				final List<Object> fields = new ArrayList<Object>();
+				for (final String field : type.fields) {
+					final Class<?> fieldType = BYTES_FIELD.equals(field) ? long.class : String.class;
+					fields.add(valueDescriptor.newInstance(fieldType, field));
+				}
+				type.factory = create.invoke(null, annotations, fields);
+			}
+
+			newEvent = eventFactoryClass.getMethod("newEvent");
+			begin = eventClass.getMethod("begin");
+			end = eventClass.getMethod("end");
+			shouldCommit = eventClass.getMethod("shouldCommit");
+			commit = eventClass.getMethod("commit");
+			set = eventClass.getMethod("set", int.class, Object.class);
+		} catch (final ClassNotFoundException e) {
+			LOGGER.fine("Java Flight Recorder is not available, provisioning events are disabled");
+		} catch (final Exception e) {
+			LOGGER.log(Level.WARNING, "Couldn't define the provisioning Flight Recorder events", e);
+			newEvent = null;
+		}
+		NEW_EVENT = newEvent;
+		BEGIN = begin;
+		END = end;
+		SHOULD_COMMIT = shouldCommit;
+		COMMIT = commit;
+		SET = set;
+	}
+
+	private ProvisioningEvents() {
+	}
+
+	private static Class<? extends Annotation> jfrAnnotation(final String name) throws ClassNotFoundException {
+		return Class.forName("jdk.jfr." + name).asSubclass(Annotation.class);
+	}
+
+	/**
+	 * @return <code>true</code> if the events can be emitted.
+	 */
+	public static boolean isAvailable() {
+		return NEW_EVENT != null;
+	}
+
+	/**
+	 * Starts timing an event.
+	 * 
+	 * @param type
+	 *            The event type.
+	 * @return The event to give to {@link #commit(Object, Object...)}, <code>null</code> if the events are not
+	 *         available.
+	 */
+	public static Object begin(final Type type) {
+		if (NEW_EVENT == null) {
+			return null;
+		}
+		try {
+			final Object event = NEW_EVENT.invoke(type.factory);
+			BEGIN.invoke(event);
+			return event;
+		} catch (final Exception e) {
+			LOGGER.log(Level.FINEST, "Couldn't begin event " + type, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Ends an event and commits it if it is enabled in the running recordings.
+	 * 
+	 * @param event
+	 *            The event returned by {@link #begin(Type)}, may be <code>null</code>.
+	 * @param values
+	 *            The values of the fields of the event type.
+	 */
+	public static void commit(final Object event, final Object... values) {
+		if (event == null) {
+			return;
+		}
+		try {
+			END.invoke(event);
+			if ((Boolean) SHOULD_COMMIT.invoke(event)) {
+				for (int i = 0; i < values.length; i++) {
+					SET.invoke(event, i, values[i]);
+				}
+				COMMIT.invoke(event);
+			}
+		} catch (final Exception e) {
+			LOGGER.log(Level.FINEST, "Couldn't commit event with values " + Arrays.toString(values), e);
+		}
+	}
+
+	/**
+	 * @param t
+	 *            The failure of an operation, <code>null</code> if it succeeded.
+	 * @return The status of the operation, as reported in the events.
+	 */
+	public static String status(final Throwable t) {
+		if (t == null) {
+			return ProvisioningMetrics.SUCCESS;
+		} else if (t instanceof CancellationException) {
+			return "Cancelled";
+		} else if (t instanceof TimeoutException) {
+			return "Timeout";
+		}
+		return t.getClass().getSimpleName();
+	}
+}
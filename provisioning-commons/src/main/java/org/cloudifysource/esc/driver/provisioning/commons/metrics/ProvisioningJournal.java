@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * An append-only binary journal of the state transitions of the launches and stops, written in a memory-mapped ring
+ * file so that it survives a crash of the JVM. Once the ring is full, the oldest records are overwritten.<br />
+ * It is enabled with the <code>journalFile</code> entry of the cloud custom map, and holds
+ * <code>journalCapacity</code> records. The drivers of a JVM share the journal of a file.<br />
+ * Recording takes a slot with an atomic increment and writes a fixed size record in place: it doesn't lock and
+ * doesn't allocate. The records are read back with {@link #read(File)} and rendered by {@link JournalTimeline}.
+ * 
+ * <pre>
+ * header: int magic, int version, int record size, int capacity (64 bytes)
+ * record: long sequence, long epoch nanos, long thread id, int transition,
+ *         launch id, subject and detail as zero padded ASCII (128 bytes)
+ * </pre>
+ * 
+ */
+public final class ProvisioningJournal {
+
+	/**
+	 * The recorded state transitions.
+	 */
+	public static enum Transition {
+		/** A launch started. The subject is the template. */
+		LAUNCH_STARTED,
+		/** A launch succeeded. The subject is the machine id. */
+		LAUNCH_SUCCEEDED,
+		/** A launch failed. The detail is the failure. */
+		LAUNCH_FAILED,
+		/** A stop started. The subject is the machine ip. */
+		STOP_STARTED,
+		/** A stop succeeded. */
+		STOP_SUCCEEDED,
+		/** A stop failed. The detail is the failure. */
+		STOP_FAILED,
+		/** A phase of a launch started. The subject is the phase. */
+		PHASE_STARTED,
+		/** A phase of a launch succeeded. The subject is the phase. */
+		PHASE_SUCCEEDED,
+		/** A phase of a launch failed. The subject is the phase, the detail is the failure. */
+		PHASE_FAILED,
+		/** A machine was created. The subject is the machine id. */
+		MACHINE_CREATED,
+		/** A machine is being terminated. The subject is the machine id. */
+		MACHINE_TERMINATING
+	}
+
+	/** Cloud custom map key of the journal file. */
+	public static final String FILE_PROPERTY = "journalFile";
+
+	/** Cloud custom map key of the number of records of the journal. */
+	public static final String CAPACITY_PROPERTY = "journalCapacity";
+
+	/** The default number of records of the journal. */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/** A journal which doesn't record anything. */
+	public static final ProvisioningJournal DISABLED = new ProvisioningJournal(null, null, null, 0, 0L);
+
+	static final int MAGIC = 0x434a524e;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int RECORD_SIZE = 128;
+
+	static final int SEQUENCE_OFFSET = 0;
+	static final int TIMESTAMP_OFFSET = 8;
+	static final int THREAD_OFFSET = 16;
+	static final int TRANSITION_OFFSET = 24;
+	static final int LAUNCH_ID_OFFSET = 32;
+	static final int LAUNCH_ID_SIZE = 40;
+	static final int SUBJECT_OFFSET = 72;
+	static final int SUBJECT_SIZE = 24;
+	static final int DETAIL_OFFSET = 96;
+	static final int DETAIL_SIZE = 32;
+
+	private static final Logger LOGGER = Logger.getLogger(ProvisioningJournal.class.getName());
+
+	private static final Map<String, ProvisioningJournal> JOURNALS = new HashMap<String, ProvisioningJournal>();
+
+	private static final long EPOCH_NANOS_BASE = System.currentTimeMillis() * 1000000L;
+	private static final long NANO_TIME_BASE = System.nanoTime();
+
+	private final String path;
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final AtomicLong sequence;
+	private int references;
+
+	private ProvisioningJournal(final String path, final RandomAccessFile file, final MappedByteBuffer buffer,
+			final int capacity, final long lastSequence) {
+		this.path = path;
+		this.file = file;
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.sequence = new AtomicLong(lastSequence);
+	}
+
+	/**
+	 * Opens the journal of a file, or shares it if it is already open. An existing journal is appended to, with its
+	 * own capacity.
+	 * 
+	 * @param journalFile
+	 *            The journal file.
+	 * @param capacity
+	 *            The number of records of a new journal.
+	 * @return The journal, to release once the driver is closed.
+	 * @throws IOException
+	 *             If the journal couldn't be opened.
+	 */
+	public static ProvisioningJournal acquire(final File journalFile, final int capacity) throws IOException {
+		if (capacity <= 0 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+			throw new IllegalArgumentException("Invalid journal capacity: " + capacity);
+		}
+		final String path = journalFile.getCanonicalPath();
+		synchronized (JOURNALS) {
+			ProvisioningJournal journal = JOURNALS.get(path);
+			if (journal == null) {
+				journal = open(path, capacity);
+				LOGGER.info("Provisioning journal opened on " + path + " (capacity=" + journal.capacity
+						+ ", sequence=" + journal.sequence.get() + ")");
+				JOURNALS.put(path, journal);
+			}
+			journal.references++;
+			return journal;
+		}
+	}
+
+	private static ProvisioningJournal open(final String path, final int defaultCapacity) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			int capacity = defaultCapacity;
+			final boolean existing = file.length() >= HEADER_SIZE;
+			if (existing) {
+				file.seek(0L);
+				checkHeader(file.readInt(), file.readInt(), file.readInt(), path);
+				capacity = file.readInt();
+			}
+			final MappedByteBuffer buffer =
+					file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, size(capacity));
+			long lastSequence = 0L;
+			if (existing) {
+				for (int slot = 0; slot < capacity; slot++) {
+					lastSequence = Math.max(lastSequence, buffer.getLong(offset(slot) + SEQUENCE_OFFSET));
+				}
+			} else {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(8, RECORD_SIZE);
+				buffer.putInt(12, capacity);
+			}
+			return new ProvisioningJournal(path, file, buffer, capacity, lastSequence);
+		} catch (final IOException e) {
+			file.close();
+			throw e;
+		} catch (final RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private static void checkHeader(final int magic, final int version, final int recordSize, final String path)
+			throws IOException {
+		if (magic != MAGIC || version != VERSION || recordSize != RECORD_SIZE) {
+			throw new IOException("Not a provisioning journal: " + path);
+		}
+	}
+
+	private static long size(final int capacity) {
+		return HEADER_SIZE + (long) capacity * RECORD_SIZE;
+	}
+
+	private static int offset(final int slot) {
+		return HEADER_SIZE + slot * RECORD_SIZE;
+	}
+
+	/**
+	 * Releases the journal, which is flushed and closed if no other driver uses it.
+	 */
+	public void release() {
+		if (this.buffer == null) {
+			return;
+		}
+		synchronized (JOURNALS) {
+			this.references--;
+			if (this.references == 0) {
+				JOURNALS.remove(this.path);
+				this.buffer.force();
+				try {
+					this.file.close();
+				} catch (final IOException e) {
+					LOGGER.warning("Couldn't close the provisioning journal " + this.path + ": " + e);
+				}
+				LOGGER.info("Provisioning journal closed on " + this.path);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the journal records the transitions.
+	 */
+	public boolean isEnabled() {
+		return this.buffer != null;
+	}
+
+	/**
+	 * @return The number of records of the journal.
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Records a state transition. The texts are truncated to the size of their field and their non ASCII characters
+	 * replaced.
+	 * 
+	 * @param transition
+	 *            The transition.
+	 * @param launchId
+	 *            The launch ID of the operation.
+	 * @param subject
+	 *            The subject of the transition, may be <code>null</code>.
+	 * @param detail
+	 *            The detail of the transition, may be <code>null</code>.
+	 */
+	public void record(final Transition transition, final String launchId, final String subject,
+			final String detail) {
+		final ByteBuffer b = this.buffer;
+		if (b == null) {
+			return;
+		}
+		final long seq = this.sequence.incrementAndGet();
+		final int offset = offset((int) ((seq - 1) % this.capacity));
+		// Absolute puts don't touch the buffer position: writers of distinct slots don't interfere.
+		// The sequence is written last, a torn record doesn't match its slot and is skipped by the reader.
+		b.putLong(offset + SEQUENCE_OFFSET, 0L);
+		b.putLong(offset + TIMESTAMP_OFFSET, epochNanos());
+		b.putLong(offset + THREAD_OFFSET, Thread.currentThread().getId());
+		b.putInt(offset + TRANSITION_OFFSET, transition.ordinal());
+		putAscii(b, offset + LAUNCH_ID_OFFSET, LAUNCH_ID_SIZE, launchId);
+		putAscii(b, offset + SUBJECT_OFFSET, SUBJECT_SIZE, subject);
+		putAscii(b, offset + DETAIL_OFFSET, DETAIL_SIZE, detail);
+		b.putLong(offset + SEQUENCE_OFFSET, seq);
+	}
+
+	/**
+	 * @return The current time in nanoseconds since the epoch.
+	 */
+	static long epochNanos() {
+		return EPOCH_NANOS_BASE + System.nanoTime() - NANO_TIME_BASE;
+	}
+
+	private static void putAscii(final ByteBuffer b, final int offset, final int size, final String value) {
+		final int length = value == null ? 0 : Math.min(value.length(), size);
+		for (int i = 0; i < size; i++) {
+			final char c = i < length ? value.charAt(i) : 0;
+			b.put(offset + i, (byte) (c < 0x80 ? c : '?'));
+		}
+	}
+
+	private static String getAscii(final ByteBuffer b, final int offset, final int size) {
+		final StringBuilder sb = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			final byte c = b.get(offset + i);
+			if (c == 0) {
+				break;
+			}
+			sb.append((char) c);
+		}
+		return sb.length() == 0 ? null : sb.toString();
+	}
+
+	/**
+	 * Reads the records of a journal file.
+	 * 
+	 * @param journalFile
+	 *            The journal file.
+	 * @return The records, from the oldest to the latest.
+	 * @throws IOException
+	 *             If the file couldn't be read or isn't a journal.
+	 */
+	public static List<JournalEntry> read(final File journalFile) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+		try {
+			if (file.length() < HEADER_SIZE) {
+				throw new IOException("Not a provisioning journal: " + journalFile);
+			}
+			checkHeader(file.readInt(), file.readInt(), file.readInt(), journalFile.getPath());
+			final int capacity = file.readInt();
+			final MappedByteBuffer b = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L,
+					Math.min(file.length(), size(capacity)));
+			final Transition[] transitions = Transition.values();
+			final List<JournalEntry> entries = new ArrayList<JournalEntry>();
+			for (int slot = 0; slot < capacity && offset(slot) + RECORD_SIZE <= b.limit(); slot++) {
+				final int offset = offset(slot);
+				final long seq = b.getLong(offset + SEQUENCE_OFFSET);
+				if (seq <= 0L || (seq - 1) % capacity != slot) {
+					continue;
+				}
+				final int transition = b.getInt(offset + TRANSITION_OFFSET);
+				entries.add(new JournalEntry(seq, b.getLong(offset + TIMESTAMP_OFFSET),
+						b.getLong(offset + THREAD_OFFSET),
+						transition >= 0 && transition < transitions.length ? transitions[transition].name()
+								: "UNKNOWN_" + transition,
+						getAscii(b, offset + LAUNCH_ID_OFFSET, LAUNCH_ID_SIZE),
+						getAscii(b, offset + SUBJECT_OFFSET, SUBJECT_SIZE),
+						getAscii(b, offset + DETAIL_OFFSET, DETAIL_SIZE)));
+			}
+			Collections.sort(entries, new Comparator<JournalEntry>() {
+				@Override
+				public int compare(final JournalEntry e1, final JournalEntry e2) {
+					return e1.getSequence() < e2.getSequence() ? -1 : e1.getSequence() == e2.getSequence() ? 0 : 1;
+				}
+			});
+			return entries;
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Provisioning metrics of a driver: latency histograms per phase and per template, cloud API call counters per
+ * operation and error code, and gauges of the operations in flight.<br />
+ * There is one instance per driver name, registered in the platform MBean server under
+ * <code>org.cloudifysource.esc.driver:type=ProvisioningMetrics,driver=&lt;driver&gt;</code>. Each latency histogram
+ * is registered under
+ * <code>org.cloudifysource.esc.driver:type=ProvisioningLatency,driver=&lt;driver&gt;,operation=&lt;phase&gt;,
+ * template=&lt;template&gt;</code>.
+ * 
+ */
+public final class ProvisioningMetrics implements ProvisioningMetricsMXBean {
+
+	/** The JMX domain of the metrics. */
+	public static final String DOMAIN = "org.cloudifysource.esc.driver";
+
+	/** The error code of successful API calls. */
+	public static final String SUCCESS = "OK";
+
+	/** The phase name of the whole launch of a machine. */
+	public static final String LAUNCH = "LAUNCH";
+
+	/** The phase name of the whole shutdown of a machine. */
+	public static final String STOP = "STOP";
+
+	/** The gauge of the API calls in flight. */
+	public static final String API_CALLS = "apiCalls";
+
+	/** The gauge of the machine launches in flight. */
+	public static final String LAUNCHES = "launches";
+
+	/** The gauge of the machine shutdowns in flight. */
+	public static final String STOPS = "stops";
+
+	/** The counter of the requests rejected or slowed down by the cloud throttling. */
+	public static final String THROTTLED = "throttled";
+
+	/** The counter of the archives uploaded to the cloud. */
+	public static final String ARCHIVES = "archives";
+
+	/** The counter of the bytes of the archives uploaded to the cloud. */
+	public static final String ARCHIVE_BYTES = "archive_bytes";
+
+	/** The counter of the cache hits. */
+	public static final String CACHE_HITS = "cache_hits";
+
+	/** The counter of the cache misses. */
+	public static final String CACHE_MISSES = "cache_misses";
+
+	/** The counter of the launches moved to another availability zone because a zone had no capacity. */
+	public static final String ZONE_FAILOVERS = "zone_failovers";
+
+	/** The counter of the launches moved to another instance type because a type had no capacity. */
+	public static final String INSTANCE_TYPE_FAILOVERS = "instance_type_failovers";
+
+	/** The counter of the launch requests sent again after their response was lost. */
+	public static final String LAUNCH_RETRIES = "launch_retries";
+
+	private static final Logger LOGGER = Logger.getLogger(ProvisioningMetrics.class.getName());
+
+	private static final ConcurrentMap<String, ProvisioningMetrics> INSTANCES =
+			new ConcurrentHashMap<String, ProvisioningMetrics>();
+
+	private final String driverName;
+	private final ConcurrentMap<MetricKey, LatencyHistogram> latencies =
+			new ConcurrentHashMap<MetricKey, LatencyHistogram>();
+	private final ConcurrentMap<MetricKey, AtomicLong> apiCalls = new ConcurrentHashMap<MetricKey, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> inFlight = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	private ProvisioningMetrics(final String driverName) {
+		this.driverName = driverName;
+	}
+
+	/**
+	 * Returns the metrics of a driver, registering them in JMX on first use.
+	 * 
+	 * @param driverName
+	 *            The name of the driver.
+	 * @return The metrics of the driver.
+	 */
+	public static ProvisioningMetrics forDriver(final String driverName) {
+		ProvisioningMetrics metrics = INSTANCES.get(driverName);
+		if (metrics == null) {
+			final ProvisioningMetrics created = new ProvisioningMetrics(driverName);
+			metrics = INSTANCES.putIfAbsent(driverName, created);
+			if (metrics == null) {
+				metrics = created;
+				register(metrics, "type=ProvisioningMetrics,driver=" + ObjectName.quote(driverName));
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Registers an MBean, replacing any MBean with the same name (i.e. registered by another class loader of the
+	 * driver), so that the names stay stable.
+	 */
+	private static void register(final Object mbean, final String properties) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(mbean, name);
+		} catch (final MalformedObjectNameException e) {
+			throw new IllegalArgumentException(e);
+		} catch (final JMException e) {
+			LOGGER.log(Level.WARNING, "Couldn't register provisioning metrics MBean: " + properties, e);
+		}
+	}
+
+	/**
+	 * Returns the latency histogram of a phase for a template.
+	 * 
+	 * @param phase
+	 *            The provisioning phase.
+	 * @param template
+	 *            The template name.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getLatency(final String phase, final String template) {
+		final MetricKey key = new MetricKey(phase, String.valueOf(template));
+		LatencyHistogram histogram = this.latencies.get(key);
+		if (histogram == null) {
+			final LatencyHistogram created = new LatencyHistogram();
+			histogram = this.latencies.putIfAbsent(key, created);
+			if (histogram == null) {
+				histogram = created;
+				register(histogram, "type=ProvisioningLatency,driver=" + ObjectName.quote(this.driverName)
+						+ ",operation=" + ObjectName.quote(phase)
+						+ ",template=" + ObjectName.quote(key.getQualifier()));
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Records the latency of a phase for a template.
+	 * 
+	 * @param phase
+	 *            The provisioning phase.
+	 * @param template
+	 *            The template name.
+	 * @param millis
+	 *            The latency in milliseconds.
+	 */
+	public void recordLatency(final String phase, final String template, final long millis) {
+		this.getLatency(phase, template).record(millis);
+	}
+
+	/**
+	 * Counts a cloud API call.
+	 * 
+	 * @param operation
+	 *            The API operation.
+	 * @param errorCode
+	 *            The error code of the call, {@link #SUCCESS} if it succeeded.
+	 */
+	public void recordApiCall(final String operation, final String errorCode) {
+		counter(this.apiCalls, new MetricKey(operation, errorCode)).incrementAndGet();
+	}
+
+	/**
+	 * Increments a gauge of operations in flight.
+	 * 
+	 * @param gauge
+	 *            The kind of operation.
+	 */
+	public void enter(final String gauge) {
+		counter(this.inFlight, gauge).incrementAndGet();
+	}
+
+	/**
+	 * Decrements a gauge of operations in flight.
+	 * 
+	 * @param gauge
+	 *            The kind of operation.
+	 */
+	public void exit(final String gauge) {
+		counter(this.inFlight, gauge).decrementAndGet();
+	}
+
+	/**
+	 * Adds a value to a counter.
+	 * 
+	 * @param name
+	 *            The counter name.
+	 * @param delta
+	 *            The value to add.
+	 */
+	public void add(final String name, final long delta) {
+		counter(this.counters, name).addAndGet(delta);
+	}
+
+	/**
+	 * Increments a counter.
+	 * 
+	 * @param name
+	 *            The counter name.
+	 */
+	public void increment(final String name) {
+		this.add(name, 1L);
+	}
+
+	private static <K> AtomicLong counter(final ConcurrentMap<K, AtomicLong> counters, final K key) {
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			final AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return The latency histograms per phase and template. The map is a live view.
+	 */
+	public Map<MetricKey, LatencyHistogram> getLatencies() {
+		return Collections.unmodifiableMap(this.latencies);
+	}
+
+	/**
+	 * @return The API call counters per operation and error code. The map is a live view.
+	 */
+	public Map<MetricKey, AtomicLong> getApiCallCounters() {
+		return Collections.unmodifiableMap(this.apiCalls);
+	}
+
+	/**
+	 * @return The gauges of operations in flight. The map is a live view.
+	 */
+	public Map<String, AtomicLong> getInFlightGauges() {
+		return Collections.unmodifiableMap(this.inFlight);
+	}
+
+	/**
+	 * @return The counters. The map is a live view.
+	 */
+	public Map<String, AtomicLong> getCounterValues() {
+		return Collections.unmodifiableMap(this.counters);
+	}
+
+	@Override
+	public String getDriverName() {
+		return this.driverName;
+	}
+
+	@Override
+	public Map<String, Long> getApiCalls() {
+		final Map<String, Long> calls = new TreeMap<String, Long>();
+		for (final Map.Entry<MetricKey, AtomicLong> entry : this.apiCalls.entrySet()) {
+			calls.put(entry.getKey().toString(), entry.getValue().get());
+		}
+		return calls;
+	}
+
+	@Override
+	public long getApiCallCount() {
+		long total = 0L;
+		for (final AtomicLong counter : this.apiCalls.values()) {
+			total += counter.get();
+		}
+		return total;
+	}
+
+	@Override
+	public long getApiErrorCount() {
+		long total = 0L;
+		for (final Map.Entry<MetricKey, AtomicLong> entry : this.apiCalls.entrySet()) {
+			if (!SUCCESS.equals(entry.getKey().getQualifier())) {
+				total += entry.getValue().get();
+			}
+		}
+		return total;
+	}
+
+	@Override
+	public Map<String, Long> getInFlight() {
+		final Map<String, Long> gauges = new TreeMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong> entry : this.inFlight.entrySet()) {
+			gauges.put(entry.getKey(), entry.getValue().get());
+		}
+		return gauges;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		final Map<String, Long> values = new TreeMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong> entry : this.counters.entrySet()) {
+			values.put(entry.getKey(), entry.getValue().get());
+		}
+		return values;
+	}
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ProvisioningMetrics} of a driver.<br />
+ * Latency histograms are registered as separate MBeans.
+ * 
+ */
+public interface ProvisioningMetricsMXBean {
+
+	/**
+	 * @return The name of the driver.
+	 */
+	String getDriverName();
+
+	/**
+	 * @return The number of cloud API calls per "operation/error code". Successful calls have the
+	 *         {@link ProvisioningMetrics#SUCCESS} code.
+	 */
+	Map<String, Long> getApiCalls();
+
+	/**
+	 * @return The total number of cloud API calls.
+	 */
+	long getApiCallCount();
+
+	/**
+	 * @return The total number of failed cloud API calls.
+	 */
+	long getApiErrorCount();
+
+	/**
+	 * @return The number of operations currently running, per kind of operation.
+	 */
+	Map<String, Long> getInFlight();
+
+	/**
+	 * @return The counters of notable events, i.e. throttling, uploaded archives or cache hits.
+	 */
+	Map<String, Long> getCounters();
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class ProvisioningSchedulerTest {
+
+	private final ProvisioningScheduler scheduler = ProvisioningScheduler.forDriver("testScheduler");
+
+	@Test
+	public void testPollUntilResult() throws Exception {
+		final AtomicInteger ticks = new AtomicInteger();
+		ListenableFuture<String> future = scheduler.poll("test", new ProvisioningScheduler.Poller<String>() {
+			@Override
+			public String poll() {
+				return ticks.incrementAndGet() < 3 ? null : "done";
+			}
+		}, 0L, 10L, System.currentTimeMillis() + 5000L, "timeout");
+
+		Assert.assertEquals("done", future.get());
+		Assert.assertEquals(3, ticks.get());
+	}
+
+	@Test
+	public void testPollTimeout() throws Exception {
+		ListenableFuture<String> future = scheduler.poll("test", new ProvisioningScheduler.Poller<String>() {
+			@Override
+			public String poll() {
+				return null;
+			}
+		}, 0L, 10L, System.currentTimeMillis() + 50L, "timeout");
+
+		try {
+			future.get();
+			Assert.fail("TimeoutException expected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+	}
+
+	@Test
+	public void testPollTimeoutDoesNotWaitForTheInterval() throws Exception {
+		final long start = System.currentTimeMillis();
+		ListenableFuture<String> future = scheduler.poll("test", new ProvisioningScheduler.Poller<String>() {
+			@Override
+			public String poll() {
+				return null;
+			}
+		}, 0L, 60000L, start + 50L, "timeout");
+
+		try {
+			future.get(5L, TimeUnit.SECONDS);
+			Assert.fail("TimeoutException expected");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000L);
+	}
+
+	@Test
+	public void testOneSchedulerPerDriver() throws Exception {
+		Assert.assertSame(scheduler, ProvisioningScheduler.forDriver("testScheduler"));
+		Assert.assertNotSame(scheduler, ProvisioningScheduler.forDriver("testOtherScheduler"));
+
+		ListenableFuture<String> threadName = scheduler.submit(new Callable<String>() {
+			@Override
+			public String call() {
+				return Thread.currentThread().getName();
+			}
+		});
+		Assert.assertTrue(threadName.get().startsWith("testScheduler-provisioning-"));
+	}
+
+	@Test
+	public void testCancelStopsPolling() throws Exception {
+		final AtomicInteger ticks = new AtomicInteger();
+		ListenableFuture<String> future = scheduler.poll("test", new ProvisioningScheduler.Poller<String>() {
+			@Override
+			public String poll() {
+				ticks.incrementAndGet();
+				return null;
+			}
+		}, 0L, 10L, System.currentTimeMillis() + 5000L, "timeout");
+
+		Thread.sleep(50L);
+		Assert.assertTrue(future.cancel(true));
+		Thread.sleep(20L);
+		int ticksAfterCancel = ticks.get();
+		Thread.sleep(100L);
+		Assert.assertEquals(ticksAfterCancel, ticks.get());
+	}
+
+	@Test
+	public void testTasksRunWithSubmitterLaunchId() throws Exception {
+		final String previous = LaunchContext.enter("launch-1");
+		final ListenableFuture<String> submitted;
+		final ListenableFuture<String> polled;
+		try {
+			submitted = scheduler.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return LaunchContext.current();
+				}
+			});
+			polled = scheduler.poll("test", new ProvisioningScheduler.Poller<String>() {
+				@Override
+				public String poll() {
+					return LaunchContext.current();
+				}
+			}, 0L, 10L, System.currentTimeMillis() + 5000L, "timeout");
+		} finally {
+			LaunchContext.restore(previous);
+		}
+
+		Assert.assertEquals("launch-1", submitted.get());
+		Assert.assertEquals("launch-1", polled.get());
+	}
+}
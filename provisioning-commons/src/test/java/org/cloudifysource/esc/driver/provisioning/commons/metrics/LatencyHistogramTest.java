@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Assert.assertEquals(0L, histogram.getCount());
+		Assert.assertEquals(0L, histogram.getP99Millis());
+		Assert.assertEquals(0d, histogram.getMeanMillis(), 0d);
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 98; i++) {
+			histogram.record(80L);
+		}
+		histogram.record(4000L);
+		histogram.record(2000000L);
+
+		Assert.assertEquals(100L, histogram.getCount());
+		Assert.assertEquals(100L, histogram.getP50Millis());
+		Assert.assertEquals(5000L, histogram.getP99Millis());
+		Assert.assertEquals(2000000L, histogram.getMaxMillis());
+		Assert.assertEquals(2000000L, histogram.percentile(1d));
+		Assert.assertEquals(98L, histogram.getBucketCounts()[1]);
+		Assert.assertEquals(1L, histogram.getBucketCount(histogram.getBucketNumber() - 1));
+		Assert.assertEquals(histogram.getBucketNumber(), histogram.getBucketBoundsMillis().length + 1);
+	}
+}
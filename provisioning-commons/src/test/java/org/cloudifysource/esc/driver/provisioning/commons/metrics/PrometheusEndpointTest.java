@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrometheusEndpointTest {
+
+	@Test
+	public void testExpositionFormat() throws Exception {
+		ProvisioningMetrics metrics = ProvisioningMetrics.forDriver("testExposition");
+		metrics.recordLatency("RUN", "tom\"cat", 1250L);
+		metrics.recordApiCall("runInstances", ProvisioningMetrics.SUCCESS);
+		metrics.enter(ProvisioningMetrics.LAUNCHES);
+		metrics.add(ProvisioningMetrics.ARCHIVE_BYTES, 4096L);
+
+		PrometheusEndpoint endpoint = PrometheusEndpoint.acquire("127.0.0.1", 0, metrics);
+		String body;
+		try {
+			body = scrape(endpoint.getPort());
+		} finally {
+			endpoint.release(metrics);
+		}
+
+		Assert.assertTrue(body, body.contains("# TYPE cloudify_driver_provisioning_latency_seconds histogram\n"));
+		String latency = "cloudify_driver_provisioning_latency_seconds";
+		Assert.assertTrue(body, body.contains(latency + "_bucket{driver=\"testExposition\","
+				+ "operation=\"RUN\",template=\"tom\\\"cat\",le=\"1.000\"} 0\n"));
+		Assert.assertTrue(body, body.contains(latency + "_bucket{driver=\"testExposition\","
+				+ "operation=\"RUN\",template=\"tom\\\"cat\",le=\"+Inf\"} 1\n"));
+		Assert.assertTrue(body, body.contains(latency + "_sum{driver=\"testExposition\","
+				+ "operation=\"RUN\",template=\"tom\\\"cat\"} 1.250\n"));
+		Assert.assertTrue(body, body.contains("cloudify_driver_api_calls_total{driver=\"testExposition\","
+				+ "operation=\"runInstances\",code=\"OK\"} 1\n"));
+		Assert.assertTrue(body, body.contains("cloudify_driver_in_flight{driver=\"testExposition\","
+				+ "operation=\"launches\"} 1\n"));
+		Assert.assertTrue(body,
+				body.contains("cloudify_driver_archive_bytes_total{driver=\"testExposition\"} 4096\n"));
+	}
+
+	@Test
+	public void testDriversShareTheEndpoint() throws Exception {
+		ProvisioningMetrics first = ProvisioningMetrics.forDriver("testSharedFirst");
+		ProvisioningMetrics second = ProvisioningMetrics.forDriver("testSharedSecond");
+		first.increment(ProvisioningMetrics.CACHE_HITS);
+		second.increment(ProvisioningMetrics.CACHE_HITS);
+		second.recordApiCall("createInstance", ProvisioningMetrics.SUCCESS);
+
+		int port = freePort();
+		PrometheusEndpoint endpoint = PrometheusEndpoint.acquire("127.0.0.1", port, first);
+		try {
+			Assert.assertSame(endpoint, PrometheusEndpoint.acquire("127.0.0.1", port, second));
+			String body = scrape(port);
+			Assert.assertTrue(body, body.contains("cloudify_driver_cache_hits_total{driver=\"testSharedFirst\"} 1\n"));
+			Assert.assertTrue(body, body.contains("cloudify_driver_cache_hits_total{driver=\"testSharedSecond\"} 1\n"));
+			Assert.assertTrue(body, body.contains("cloudify_driver_api_calls_total{driver=\"testSharedSecond\","
+					+ "operation=\"createInstance\",code=\"OK\"} 1\n"));
+			// Each metric family is declared once
+			String type = "# TYPE cloudify_driver_cache_hits_total counter\n";
+			Assert.assertEquals(body, body.indexOf(type), body.lastIndexOf(type));
+
+			endpoint.release(second);
+			body = scrape(port);
+			Assert.assertTrue(body, body.contains("cloudify_driver_cache_hits_total{driver=\"testSharedFirst\"} 1\n"));
+			Assert.assertFalse(body, body.contains("testSharedSecond"));
+		} finally {
+			endpoint.release(first);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReleaseUnknownMetrics() throws Exception {
+		ProvisioningMetrics metrics = ProvisioningMetrics.forDriver("testReleaseKnown");
+		PrometheusEndpoint endpoint = PrometheusEndpoint.acquire("127.0.0.1", 0, metrics);
+		try {
+			endpoint.release(ProvisioningMetrics.forDriver("testReleaseUnknown"));
+		} finally {
+			endpoint.release(metrics);
+		}
+	}
+
+	@Test
+	public void testBufferIsReused() {
+		PrometheusEndpoint.ExpositionBuffer buffer = new PrometheusEndpoint.ExpositionBuffer();
+		buffer.append(-42L).append(' ').appendSeconds(50L).append(' ').append("\u00e9");
+		Assert.assertEquals("-42 0.050 \u00e9", new String(buffer.bytes(), 0, buffer.size(),
+				Charset.forName("UTF-8")));
+		byte[] bytes = buffer.bytes();
+		buffer.reset();
+		buffer.append(Long.MAX_VALUE);
+		Assert.assertSame(bytes, buffer.bytes());
+		Assert.assertEquals(String.valueOf(Long.MAX_VALUE), new String(buffer.bytes(), 0, buffer.size()));
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String scrape(final int port) throws IOException {
+		HttpURLConnection connection =
+				(HttpURLConnection) new URL("http://127.0.0.1:" + port + "/metrics").openConnection();
+		Assert.assertEquals(200, connection.getResponseCode());
+		Assert.assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+		InputStream in = connection.getInputStream();
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
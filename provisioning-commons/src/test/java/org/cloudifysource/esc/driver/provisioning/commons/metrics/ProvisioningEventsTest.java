@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProvisioningEventsTest {
+
+	@Test
+	public void testBeginAndCommit() {
+		final Object event = ProvisioningEvents.begin(ProvisioningEvents.Type.ARCHIVE);
+		Assert.assertEquals(ProvisioningEvents.isAvailable(), event != null);
+		ProvisioningEvents.commit(event, "launch-1", "privateEc2", "create", "/tmp/archive.tar.gz", 42L);
+	}
+
+	@Test
+	public void testCommitWithoutEvent() {
+		ProvisioningEvents.commit(null, "launch-1", "privateEc2", "runInstances", "OK");
+	}
+
+	@Test
+	public void testStatus() {
+		Assert.assertEquals(ProvisioningMetrics.SUCCESS, ProvisioningEvents.status(null));
+		Assert.assertEquals("Timeout", ProvisioningEvents.status(new TimeoutException()));
+		Assert.assertEquals("Cancelled", ProvisioningEvents.status(new CancellationException()));
+		Assert.assertEquals("IllegalStateException", ProvisioningEvents.status(new IllegalStateException()));
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal.Transition;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProvisioningJournalTest {
+
+	private File file;
+
+	@Before
+	public void before() throws Exception {
+		file = File.createTempFile("provisioning", ".journal");
+		file.delete();
+	}
+
+	@After
+	public void after() {
+		file.delete();
+	}
+
+	@Test
+	public void testRecordAndRead() throws Exception {
+		ProvisioningJournal journal = ProvisioningJournal.acquire(file, 16);
+		journal.record(Transition.LAUNCH_STARTED, "launch-1", "web", null);
+		journal.record(Transition.PHASE_FAILED, "launch-1", "RUN", "InsufficientInstanceCapacity-truncated-detail");
+		journal.release();
+
+		List<JournalEntry> entries = ProvisioningJournal.read(file);
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals(1L, entries.get(0).getSequence());
+		Assert.assertEquals("LAUNCH_STARTED", entries.get(0).getTransition());
+		Assert.assertEquals("launch-1", entries.get(0).getLaunchId());
+		Assert.assertEquals("web", entries.get(0).getSubject());
+		Assert.assertNull(entries.get(0).getDetail());
+		Assert.assertEquals(Thread.currentThread().getId(), entries.get(0).getThreadId());
+		Assert.assertEquals("InsufficientInstanceCapacity-tru", entries.get(1).getDetail());
+		Assert.assertTrue(entries.get(1).getEpochNanos() >= entries.get(0).getEpochNanos());
+	}
+
+	@Test
+	public void testRingKeepsLatestRecords() throws Exception {
+		ProvisioningJournal journal = ProvisioningJournal.acquire(file, 4);
+		for (int i = 1; i <= 10; i++) {
+			journal.record(Transition.PHASE_STARTED, "launch-" + i, null, null);
+		}
+		journal.release();
+
+		List<JournalEntry> entries = ProvisioningJournal.read(file);
+		Assert.assertEquals(4, entries.size());
+		Assert.assertEquals(7L, entries.get(0).getSequence());
+		Assert.assertEquals("launch-10", entries.get(3).getLaunchId());
+	}
+
+	@Test
+	public void testReopenAppends() throws Exception {
+		ProvisioningJournal journal = ProvisioningJournal.acquire(file, 8);
+		journal.record(Transition.STOP_STARTED, "stop-1", "10.0.0.1", null);
+		journal.release();
+
+		// The capacity of the existing journal is kept
+		journal = ProvisioningJournal.acquire(file, 1024);
+		Assert.assertEquals(8, journal.getCapacity());
+		journal.record(Transition.STOP_SUCCEEDED, "stop-1", "10.0.0.1", null);
+		journal.release();
+
+		List<JournalEntry> entries = ProvisioningJournal.read(file);
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals("STOP_SUCCEEDED", entries.get(1).getTransition());
+		Assert.assertEquals(2L, entries.get(1).getSequence());
+	}
+
+	@Test
+	public void testDisabledJournal() {
+		Assert.assertFalse(ProvisioningJournal.DISABLED.isEnabled());
+		ProvisioningJournal.DISABLED.record(Transition.LAUNCH_STARTED, "launch-1", null, null);
+		ProvisioningJournal.DISABLED.release();
+	}
+
+	@Test
+	public void testTimelineGroupsByLaunch() throws Exception {
+		ProvisioningJournal journal = ProvisioningJournal.acquire(file, 16);
+		journal.record(Transition.LAUNCH_STARTED, "launch-1", "web", null);
+		journal.record(Transition.LAUNCH_STARTED, "launch-2", "web", null);
+		journal.record(Transition.LAUNCH_SUCCEEDED, "launch-1", "i-12345678", null);
+		journal.release();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JournalTimeline.render(ProvisioningJournal.read(file), "launch-1", new PrintStream(out, true));
+		String timeline = out.toString();
+		Assert.assertTrue(timeline, timeline.startsWith("Launch launch-1: 2 transitions"));
+		Assert.assertTrue(timeline, timeline.contains("LAUNCH_SUCCEEDED"));
+		Assert.assertTrue(timeline, timeline.contains("i-12345678"));
+		Assert.assertFalse(timeline, timeline.contains("launch-2"));
+	}
+}
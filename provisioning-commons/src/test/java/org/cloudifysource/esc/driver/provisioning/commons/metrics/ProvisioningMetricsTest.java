@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ ******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.commons.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProvisioningMetricsTest {
+
+	@Test
+	public void testMBeansAreRegistered() throws Exception {
+		ProvisioningMetrics metrics = ProvisioningMetrics.forDriver("testRegistration");
+		Assert.assertSame(metrics, ProvisioningMetrics.forDriver("testRegistration"));
+		metrics.recordLatency("UPLOAD", "tomcat", 120L);
+		metrics.recordLatency("UPLOAD", "tomcat", 300L);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"org.cloudifysource.esc.driver:type=ProvisioningLatency,driver=\"testRegistration\","
+						+ "operation=\"UPLOAD\",template=\"tomcat\"");
+		Assert.assertEquals(2L, server.getAttribute(name, "Count"));
+		Assert.assertEquals(300L, server.getAttribute(name, "P99Millis"));
+		Assert.assertTrue(server.isRegistered(new ObjectName(
+				"org.cloudifysource.esc.driver:type=ProvisioningMetrics,driver=\"testRegistration\"")));
+	}
+
+	@Test
+	public void testApiCallsAreCounted() {
+		ProvisioningMetrics metrics = ProvisioningMetrics.forDriver("testApiCalls");
+		metrics.enter(ProvisioningMetrics.API_CALLS);
+		metrics.recordApiCall("describeInstances", ProvisioningMetrics.SUCCESS);
+		metrics.recordApiCall("describeInstances", ProvisioningMetrics.SUCCESS);
+		metrics.recordApiCall("runInstances", "InsufficientInstanceCapacity");
+		metrics.exit(ProvisioningMetrics.API_CALLS);
+
+		Assert.assertEquals(Long.valueOf(2L), metrics.getApiCalls().get("describeInstances/OK"));
+		Assert.assertEquals(Long.valueOf(1L), metrics.getApiCalls().get("runInstances/InsufficientInstanceCapacity"));
+		Assert.assertEquals(3L, metrics.getApiCallCount());
+		Assert.assertEquals(1L, metrics.getApiErrorCount());
+		Assert.assertEquals(Long.valueOf(0L), metrics.getInFlight().get(ProvisioningMetrics.API_CALLS));
+	}
+}
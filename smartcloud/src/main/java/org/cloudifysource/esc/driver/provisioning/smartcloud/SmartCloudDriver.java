@@ -12,18 +12,21 @@
 *******************************************************************************/
 package org.cloudifysource.esc.driver.provisioning.smartcloud;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
 import javax.ws.rs.core.MediaType;
@@ -43,11 +46,26 @@ import org.cloudifysource.esc.driver.provisioning.CloudDriverSupport;
 import org.cloudifysource.esc.driver.provisioning.CloudProvisioningException;
 import org.cloudifysource.esc.driver.provisioning.MachineDetails;
 import org.cloudifysource.esc.driver.provisioning.ProvisioningDriver;
+import org.cloudifysource.esc.driver.provisioning.commons.ProvisioningScheduler;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.PrometheusEndpoint;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningEvents;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningJournal.Transition;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+import org.cloudifysource.esc.driver.provisioning.smartcloud.metrics.ApiCallMetricsFilter;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.UniformInterfaceException;
 import com.sun.jersey.api.client.WebResource;
@@ -81,12 +99,26 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 			+ " Requests for new machines will be suspended for "
 			+ DEFAULT_TIMEOUT_AFTER_CLOUD_INTERNAL_ERROR / MILLIS_IN_SECOND + " seconds";
 	private static final String RUNNING_THROTTLING = "Requests for new machines are currently suspended";
+	private static final String METRICS_DRIVER_NAME = "smartcloud";
+	private static final String PHASE_CREATE = "CREATE";
+	private static final String PHASE_WAIT_ACTIVE = "WAIT_ACTIVE";
+	private static final String PHASE_WAIT_STOPPED = "WAIT_STOPPED";
 
 	private final XPath xpath = XPathFactory.newInstance().newXPath();
 
 	private final Client client;
 
-	private long throttlingTimeout = -1;
+	/** Scheduler which drives the asynchronous provisioning operations. */
+	private final ProvisioningScheduler scheduler = ProvisioningScheduler.forDriver(METRICS_DRIVER_NAME);
+
+	/** Latencies, API calls and operations in flight, exposed over JMX. */
+	private final ProvisioningMetrics metrics = ProvisioningMetrics.forDriver(METRICS_DRIVER_NAME);
+
+	private PrometheusEndpoint prometheusEndpoint;
+	private ProvisioningJournal journal = ProvisioningJournal.DISABLED;
+	/** End time of the throttling, set by the launch callbacks on the scheduler threads. */
+	private volatile long throttlingTimeout = -1;
+	private String templateName;
 	private String serverNamePrefix;
 	private String location;
 	private String endpoint;
@@ -127,6 +159,12 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 	 */
 	@Override
 	public void close() {
+		if (this.prometheusEndpoint != null) {
+			this.prometheusEndpoint.release(this.metrics);
+			this.prometheusEndpoint = null;
+		}
+		this.journal.release();
+		this.journal = ProvisioningJournal.DISABLED;
 	}
 
 	/**
@@ -149,6 +187,7 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 	public void setConfig(final Cloud cloud, final String templateName,
 			final boolean management, final String serviceName) {
 		super.setConfig(cloud, templateName, management, serviceName);
+		this.templateName = templateName;
 		if (this.management) {
 			this.serverNamePrefix = this.cloud.getProvider().getManagementGroup();
 		} else {
@@ -168,6 +207,7 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 
 		this.service = client.resource(this.endpoint);
 		this.service.addFilter(new HTTPBasicAuthFilter(this.cloud.getUser().getUser(),this.cloud.getUser().getApiKey()));
+		this.service.addFilter(new ApiCallMetricsFilter(this.metrics, this.endpoint));
 
 		final String wireLog = (String) this.cloud.getCustom().get(smartcloud_WIRE_LOG);
 		if (wireLog != null) {
@@ -176,6 +216,31 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 			}
 		}
 
+		final Object prometheusPort = this.cloud.getCustom().get(PrometheusEndpoint.PORT_PROPERTY);
+		if (prometheusPort != null && this.prometheusEndpoint == null) {
+			final Object bindAddress = this.cloud.getCustom().get(PrometheusEndpoint.BIND_ADDRESS_PROPERTY);
+			try {
+				this.prometheusEndpoint = PrometheusEndpoint.acquire(
+						bindAddress == null ? null : bindAddress.toString(),
+						Integer.parseInt(prometheusPort.toString()), this.metrics);
+			} catch (final IOException e) {
+				throw new IllegalArgumentException("Failed to start the Prometheus metrics endpoint on port "
+						+ prometheusPort, e);
+			}
+		}
+
+		final Object journalFile = this.cloud.getCustom().get(ProvisioningJournal.FILE_PROPERTY);
+		if (journalFile != null && !this.journal.isEnabled()) {
+			final Object journalCapacity = this.cloud.getCustom().get(ProvisioningJournal.CAPACITY_PROPERTY);
+			try {
+				this.journal = ProvisioningJournal.acquire(new File(journalFile.toString()),
+						journalCapacity == null ? ProvisioningJournal.DEFAULT_CAPACITY
+								: Integer.parseInt(journalCapacity.toString()));
+			} catch (final IOException e) {
+				throw new IllegalArgumentException("Failed to open the provisioning journal " + journalFile, e);
+			}
+		}
+
 	}
 
 	/**
@@ -194,27 +259,89 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 	@Override
 	public MachineDetails startMachine(final String locationId, final long duration, final TimeUnit unit)
 			throws TimeoutException, CloudProvisioningException {
+		final long endTime = calcEndTimeInMillis(duration, unit);
+		final ListenableFuture<MachineDetails> future = startMachineAsync(locationId, duration, unit);
+		try {
+			return future.get(Math.max(0L, endTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (final TimeoutException e) {
+			// out of time, stop the launch
+			future.cancel(true);
+			throw e;
+		} catch (final InterruptedException e) {
+			// the caller gave up, stop the launch
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new CloudProvisioningException(e);
+		} catch (final ExecutionException e) {
+			throw (CloudProvisioningException) e.getCause();
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #startMachine(String, long, TimeUnit)}.
+	 * Any failure of the returned future is reported as a CloudProvisioningException.
+	 * Cancelling the future stops the launch and shuts down the server in the background.
+	 * 
+	 * @param locationId - the location to allocate the machine to.
+	 * @param duration - Time duration to wait for the instance.
+	 * @param unit - Time unit to wait for the instance.
+	 * 
+	 * @return A future of the details of the started instance.
+	 */
+	public ListenableFuture<MachineDetails> startMachineAsync(final String locationId, final long duration,
+			final TimeUnit unit) {
 
 		if (isThrottling()) {
-			throw new CloudProvisioningException(RUNNING_THROTTLING);
+			metrics.increment(ProvisioningMetrics.THROTTLED);
+			return Futures.immediateFailedFuture(new CloudProvisioningException(RUNNING_THROTTLING));
 		}
 
-		final long endTime = System.currentTimeMillis() + unit.toMillis(duration);
+		final long startTime = System.currentTimeMillis();
+		final long endTime = startTime + unit.toMillis(duration);
+		final String launchTemplateName = templateName;
+
+		metrics.enter(ProvisioningMetrics.LAUNCHES);
+		final ListenableFuture<MachineDetails> server = newServerAsync(endTime, this.template);
+		final SettableFuture<MachineDetails> result = SettableFuture.create();
+		cancelWith(result, server);
+		Futures.addCallback(server, new FutureCallback<MachineDetails>() {
+			@Override
+			public void onSuccess(final MachineDetails md) {
+				metrics.exit(ProvisioningMetrics.LAUNCHES);
+				metrics.recordLatency(ProvisioningMetrics.LAUNCH, launchTemplateName,
+						System.currentTimeMillis() - startTime);
+				result.set(md);
+			}
 
-		MachineDetails md;
-		try {
-			md = newServer(endTime, this.template);
-		} catch (final Exception e) {
-			if (e instanceof UniformInterfaceException
-					&& ((UniformInterfaceException) e).getResponse().getStatus() == INTERNAL_SERVER_ERROR) {
-				throttlingTimeout = calcEndTimeInMillis(DEFAULT_TIMEOUT_AFTER_CLOUD_INTERNAL_ERROR,
-						TimeUnit.MILLISECONDS);
-				throw new CloudProvisioningException(STARTING_THROTTLING, e);
-			} else {
-				throw new CloudProvisioningException(e);
+			@Override
+			public void onFailure(final Throwable e) {
+				metrics.exit(ProvisioningMetrics.LAUNCHES);
+				if (e instanceof UniformInterfaceException
+						&& ((UniformInterfaceException) e).getResponse().getStatus() == INTERNAL_SERVER_ERROR) {
+					throttlingTimeout = calcEndTimeInMillis(DEFAULT_TIMEOUT_AFTER_CLOUD_INTERNAL_ERROR,
+							TimeUnit.MILLISECONDS);
+					metrics.increment(ProvisioningMetrics.THROTTLED);
+					result.setException(new CloudProvisioningException(STARTING_THROTTLING, e));
+				} else {
+					result.setException(new CloudProvisioningException(e));
+				}
 			}
-		}
-		return md;
+		});
+		return result;
+	}
+
+	/**
+	 * Cancels the inner future of an operation when its outer future is cancelled.
+	 */
+	private static void cancelWith(final ListenableFuture<?> outer, final Future<?> inner) {
+		outer.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (outer.isCancelled()) {
+					inner.cancel(true);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
 	}
 
 	private long calcEndTimeInMillis(final long duration, final TimeUnit unit) {
@@ -240,38 +367,16 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 
 		final int numOfManagementMachines = cloud.getProvider().getNumberOfManagementMachines();
 
-		// thread pool - one per machine
-		final ExecutorService executor =
-				Executors.newFixedThreadPool(cloud.getProvider().getNumberOfManagementMachines());
-
-		try {
-			return doStartManagement(endTime, numOfManagementMachines, executor);
-		} finally {
-			executor.shutdown();
-		}
+		return doStartManagement(endTime, numOfManagementMachines);
 	}
 
-	private MachineDetails[] doStartManagement(final long endTime, 
-			final int numOfManagementMachines, final ExecutorService executor)
+	private MachineDetails[] doStartManagement(final long endTime, final int numOfManagementMachines)
 			throws CloudProvisioningException {
 
-		// launch machine on a thread
+		// launch machines asynchronously
 		final List<Future<MachineDetails>> list = new ArrayList<Future<MachineDetails>>(numOfManagementMachines);
 		for (int i = 0; i < numOfManagementMachines; ++i) {
-			final Future<MachineDetails> task = executor.submit(new Callable<MachineDetails>() {
-
-				@Override
-				public MachineDetails call()
-						throws Exception {
-
-					final MachineDetails md = newServer(endTime, template);
-					return md;
-
-				}
-
-			});
-			list.add(task);
-
+			list.add(newServerAsync(endTime, template));
 		}
 
 		// get the machines
@@ -280,6 +385,16 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 		for (final Future<MachineDetails> future : list) {
 			try {
 				machines.add(future.get());
+			} catch (final InterruptedException e) {
+				// the bootstrap was cancelled, stop the other launches
+				for (final Future<MachineDetails> launch : list) {
+					launch.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				if (firstException == null) {
+					firstException = e;
+				}
+				break;
 			} catch (final Exception e) {
 				if (firstException == null) {
 					firstException = e;
@@ -327,16 +442,78 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 			throws InterruptedException, TimeoutException, CloudProvisioningException {
 		final long endTime = calcEndTimeInMillis(duration, unit);
 
+		final ListenableFuture<Boolean> future = stopMachineAsync(ip, endTime);
+		try {
+			return future.get(Math.max(0L, endTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (final TimeoutException e) {
+			future.cancel(true);
+			throw e;
+		} catch (final InterruptedException e) {
+			// the caller gave up, stop waiting for the shutdown
+			future.cancel(true);
+			throw e;
+		} catch (final ExecutionException e) {
+			throw new CloudProvisioningException(e.getCause());
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #stopMachine(String, long, TimeUnit)}.
+	 * 
+	 * @param ip - host-name/IP of the machine to shut down.
+	 * @param duration - time to wait for the shutdown operation.
+	 * @param unit - time unit for the shutdown operations
+	 * 
+	 * @return A future set to true if the operation succeeded, false otherwise.
+	 */
+	public ListenableFuture<Boolean> stopMachineAsync(final String ip, final long duration, final TimeUnit unit) {
+		return stopMachineAsync(ip, calcEndTimeInMillis(duration, unit));
+	}
+
+	private ListenableFuture<Boolean> stopMachineAsync(final String ip, final long endTime) {
 		if (isStopRequestRecent(ip)) {
-			return false;
+			return Futures.immediateFuture(Boolean.FALSE);
 		}
 
+		final long startTime = System.currentTimeMillis();
+		final String launchId = LaunchContext.newLaunchId();
+		final Object stopEvent = ProvisioningEvents.begin(ProvisioningEvents.Type.PROVISIONING);
+		final String stopTemplateName = templateName;
+		final ProvisioningJournal stopJournal = journal;
+		metrics.enter(ProvisioningMetrics.STOPS);
+		stopJournal.record(Transition.STOP_STARTED, launchId, ip, null);
+		final ListenableFuture<Void> terminated;
+		final String previousLaunchId = LaunchContext.enter(launchId);
 		try {
-			terminateServerByIp(ip, endTime);
-			return true;
-		} catch (final Exception e) {
-			throw new CloudProvisioningException(e);
+			terminated = terminateServerByIpAsync(ip, endTime);
+		} finally {
+			LaunchContext.restore(previousLaunchId);
 		}
+		Futures.addCallback(terminated, new FutureCallback<Void>() {
+			@Override
+			public void onSuccess(final Void result) {
+				metrics.exit(ProvisioningMetrics.STOPS);
+				stopJournal.record(Transition.STOP_SUCCEEDED, launchId, ip, null);
+				ProvisioningEvents.commit(stopEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.STOP,
+						stopTemplateName, ProvisioningEvents.status(null));
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				metrics.exit(ProvisioningMetrics.STOPS);
+				stopJournal.record(Transition.STOP_FAILED, launchId, ip, ProvisioningEvents.status(t));
+				ProvisioningEvents.commit(stopEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.STOP,
+						stopTemplateName, ProvisioningEvents.status(t));
+			}
+		});
+		return Futures.transform(terminated, new Function<Void, Boolean>() {
+			@Override
+			public Boolean apply(final Void result) {
+				metrics.recordLatency(ProvisioningMetrics.STOP, stopTemplateName,
+						System.currentTimeMillis() - startTime);
+				return Boolean.TRUE;
+			}
+		});
 	}
 
 	/**
@@ -473,15 +650,26 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 		}
 	}
 
-	private void terminateServerByIp(final String serverIp, final long endTime)
-			throws Exception {
-		logger.finer("Terminating machine with IP " + serverIp);
-		final Node node = getNodeByIp(serverIp);
-		if (node == null) {
-			throw new IllegalArgumentException("Could not find a server with IP: " + serverIp);
-		}
-		logger.finer("Terminating node with the following detailes: " + node.toString());
-		terminateServer(node.getId(), endTime);
+	private ListenableFuture<Void> terminateServerByIpAsync(final String serverIp, final long endTime) {
+		final ListenableFuture<Node> found = scheduler.submit(new Callable<Node>() {
+			@Override
+			public Node call() throws SmartCloudException {
+				logger.finer("Terminating machine with IP " + serverIp);
+				final Node node = getNodeByIp(serverIp);
+				if (node == null) {
+					throw new IllegalArgumentException("Could not find a server with IP: " + serverIp);
+				}
+				return node;
+			}
+		});
+		return Futures.transform(found, new AsyncFunction<Node, Void>() {
+			@Override
+			public ListenableFuture<Void> apply(final Node node) {
+				logger.finer("Terminating node with the following detailes: " + node.toString());
+				journal.record(Transition.MACHINE_TERMINATING, LaunchContext.current(), node.getId(), null);
+				return terminateServersAsync(Arrays.asList(node.getId()), endTime);
+			}
+		});
 	}
 
 	private Node getNodeByIp(final String serverIp)
@@ -505,96 +693,247 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 
 	private void terminateServers(final List<String> serverIds, final long endTime)
 			throws Exception {
-
-		// detach public ip and delete the servers
-		for (final String serverId : serverIds) {
-			try {
-				logger.finer("In terminateServers deletes from cloud: "+serverId);
-				service.path("instances/"+serverId).accept(MediaType.APPLICATION_XML).delete();
-			} catch (final UniformInterfaceException e) {
-				final String responseEntity = e.getResponse().getEntity(String.class);
-				throw new IllegalArgumentException(e + " Response entity: " + responseEntity);
+		try {
+			terminateServersAsync(serverIds, endTime).get();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
 			}
-
+			throw e;
 		}
+	}
 
-		int successCounter = 0;
-
-		// wait for all servers to die
-		for (final String serverId : serverIds) {
-			while (System.currentTimeMillis() < endTime) {
-				try {
-					logger.finer("In terminateServers while loop, shutting down server id: "+serverId);
-					this.getNode(serverId);
+	private ListenableFuture<Void> terminateServersAsync(final List<String> serverIds, final long endTime) {
 
-				} catch (final SmartCloudException e) {
-					logger.finer("In terminateServers method, getting SmartCloudException checking if No node found");
-					if (e.getMessage().equals("No node found"))
-					{
-							++successCounter;
-							logger.finer("In terminateServers method, No node found successCounter= "+successCounter);
-							break;
+		// detach public ip and delete the servers
+		final ListenableFuture<Void> deleted = scheduler.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				for (final String serverId : serverIds) {
+					try {
+						logger.finer("In terminateServers deletes from cloud: " + serverId);
+						service.path("instances/" + serverId).accept(MediaType.APPLICATION_XML).delete();
+					} catch (final UniformInterfaceException e) {
+						final String responseEntity = e.getResponse().getEntity(String.class);
+						throw new IllegalArgumentException(e + " Response entity: " + responseEntity);
 					}
-					throw e;
 				}
-				Thread.sleep(SERVER_POLLING_INTERVAL_MILLIS);
+				return null;
 			}
+		});
 
-		}
+		// wait for all servers to die
+		final ListenableFuture<Boolean> shutdown = Futures.transform(deleted, new AsyncFunction<Void, Boolean>() {
+			@Override
+			public ListenableFuture<Boolean> apply(final Void input) {
+				final Set<String> remainingIds = new CopyOnWriteArraySet<String>(serverIds);
+				return scheduler.poll(PHASE_WAIT_STOPPED, new ProvisioningScheduler.Poller<Boolean>() {
+					@Override
+					public Boolean poll() throws SmartCloudException {
+						for (final String serverId : remainingIds) {
+							try {
+								logger.finer("In terminateServers while loop, shutting down server id: " + serverId);
+								getNode(serverId);
+							} catch (final SmartCloudException e) {
+								logger.finer("In terminateServers method, getting SmartCloudException checking if "
+										+ "No node found");
+								if (e.getMessage().equals("No node found")) {
+									remainingIds.remove(serverId);
+									logger.finer("In terminateServers method, No node found, remaining servers: "
+											+ remainingIds);
+									continue;
+								}
+								throw e;
+							}
+						}
+						return remainingIds.isEmpty() ? Boolean.TRUE : null;
+					}
+				}, 0, SERVER_POLLING_INTERVAL_MILLIS, endTime,
+						"Nodes " + serverIds + " did not shut down in the required time");
+			}
+		});
+		return Futures.transform(shutdown, new Function<Boolean, Void>() {
+			@Override
+			public Void apply(final Boolean input) {
+				return null;
+			}
+		});
+	}
 
-		if (successCounter == serverIds.size()) {
-			logger.finer("In terminateServers method successCounter == serverIds.size() return");
-			return;
+	/**
+	 * Creates server. Completes once the server is active.
+	 * If the server fails to start up correctly or if the returned future is cancelled, the server is shut down in
+	 * the background.
+	 * 
+	 * @param endTime the time the server must be active by
+	 * @param serverTemplate the cloud template to use for this server
+	 * @return a future of the server details
+	 */
+	private ListenableFuture<MachineDetails> newServerAsync(final long endTime, final CloudTemplate serverTemplate) {
+
+		final String metricsTemplateName = this.templateName;
+		final String launchId = LaunchContext.newLaunchId();
+		final LaunchGuard guard = new LaunchGuard(launchId, this.journal);
+		final Object launchEvent = ProvisioningEvents.begin(ProvisioningEvents.Type.PROVISIONING);
+		guard.journal(Transition.LAUNCH_STARTED, metricsTemplateName, null);
+		// Every task of the launch is submitted with its launch id
+		final String previousLaunchId = LaunchContext.enter(launchId);
+		try {
+			return this.newServerAsync(endTime, serverTemplate, guard, metricsTemplateName, launchEvent);
+		} finally {
+			LaunchContext.restore(previousLaunchId);
 		}
+	}
 
-		throw new TimeoutException("Nodes " + serverIds + " did not shut down in the required time");
+	private ListenableFuture<MachineDetails> newServerAsync(final long endTime, final CloudTemplate serverTemplate,
+			final LaunchGuard guard, final String metricsTemplateName, final Object launchEvent) {
+		final String launchId = guard.launchId;
+		final ListenableFuture<String> created = scheduler.submit(new Callable<String>() {
+			@Override
+			public String call() throws SmartCloudException {
+				final long phaseStart = System.currentTimeMillis();
+				guard.journal(Transition.PHASE_STARTED, PHASE_CREATE, null);
+				final String serverId;
+				try {
+					serverId = createServer(serverTemplate);
+				} catch (final RuntimeException e) {
+					guard.journal(Transition.PHASE_FAILED, PHASE_CREATE, ProvisioningEvents.status(e));
+					throw e;
+				} catch (final SmartCloudException e) {
+					guard.journal(Transition.PHASE_FAILED, PHASE_CREATE, ProvisioningEvents.status(e));
+					throw e;
+				}
+				metrics.recordLatency(PHASE_CREATE, metricsTemplateName, System.currentTimeMillis() - phaseStart);
+				guard.journal(Transition.PHASE_SUCCEEDED, PHASE_CREATE, null);
+				guard.launched(serverId);
+				return serverId;
+			}
+		});
+		final ListenableFuture<MachineDetails> started = Futures.transform(created,
+				new AsyncFunction<String, MachineDetails>() {
+					@Override
+					public ListenableFuture<MachineDetails> apply(final String serverId) {
+						final MachineDetails md = new MachineDetails();
+						logger.finer("In the newServer --> starting the waitForServerToReachStatus method");
+						// wait until complete
+						final long phaseStart = System.currentTimeMillis();
+						guard.journal(Transition.PHASE_STARTED, PHASE_WAIT_ACTIVE, null);
+						final ListenableFuture<Node> active =
+								waitForServerToReachStatusAsync(md, endTime, serverId, MACHINE_STATUS_ACTIVE);
+						Futures.addCallback(active, new FutureCallback<Node>() {
+							@Override
+							public void onSuccess(final Node activeNode) {
+								metrics.recordLatency(PHASE_WAIT_ACTIVE, metricsTemplateName,
+										System.currentTimeMillis() - phaseStart);
+								guard.journal(Transition.PHASE_SUCCEEDED, PHASE_WAIT_ACTIVE, null);
+							}
+
+							@Override
+							public void onFailure(final Throwable t) {
+								metrics.recordLatency(PHASE_WAIT_ACTIVE, metricsTemplateName,
+										System.currentTimeMillis() - phaseStart);
+								guard.journal(Transition.PHASE_FAILED, PHASE_WAIT_ACTIVE,
+										ProvisioningEvents.status(t));
+							}
+						});
+						return Futures.transform(active, new AsyncFunction<Node, MachineDetails>() {
+							@Override
+							public ListenableFuture<MachineDetails> apply(final Node activeNode)
+									throws SmartCloudException {
+								// if here, we have a node with a private and public ip.
+								final Node node = getNode(serverId);
+
+								md.setPublicAddress(node.getPublicIp());
+								md.setMachineId(serverId);
+								md.setAgentRunning(false);
+								md.setCloudifyInstalled(false);
+								md.setInstallationDirectory(serverTemplate.getRemoteDirectory());
+
+								md.setRemoteUsername(serverTemplate.getUsername());
+
+								return Futures.immediateFuture(md);
+							}
+						});
+					}
+				});
+		Futures.addCallback(started, new FutureCallback<MachineDetails>() {
+			@Override
+			public void onSuccess(final MachineDetails md) {
+				guard.journal(Transition.LAUNCH_SUCCEEDED, md.getMachineId(), null);
+				ProvisioningEvents.commit(launchEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.LAUNCH,
+						metricsTemplateName, ProvisioningEvents.status(null));
+			}
 
+			@Override
+			public void onFailure(final Throwable e) {
+				logger.log(Level.WARNING, "server failed to start up correctly (launchId=" + launchId
+						+ "). Error was: " + e.getMessage(), e);
+				guard.abandoned();
+				guard.journal(Transition.LAUNCH_FAILED, null, ProvisioningEvents.status(e));
+				ProvisioningEvents.commit(launchEvent, launchId, METRICS_DRIVER_NAME, ProvisioningMetrics.LAUNCH,
+						metricsTemplateName, ProvisioningEvents.status(e));
+			}
+		});
+		return started;
 	}
 
 	/**
-	 * Creates server. Block until complete. Returns id
-	 * 
-	 * @param name the server name
-	 * @param timeout the timeout in seconds
-	 * @param serverTemplate the cloud template to use for this server
-	 * @return the server id
+	 * Keeps track of the server created by a launch so that it gets shut down if the launch is abandoned.
+	 * The launch may be abandoned while the creation request is still running, in that case the server is shut down
+	 * as soon as the request returns.
 	 */
-	private MachineDetails newServer(final long endTime, final CloudTemplate serverTemplate)
-			throws Exception {
+	private final class LaunchGuard {
 
-		final String serverId = createServer(serverTemplate);
+		private static final String ABANDONED = "abandoned";
 
-		try {
-			final MachineDetails md = new MachineDetails();
-			logger.finer("In the newServer --> starting the waitForServerToReachStatus method"); 
-			// wait until complete
-			waitForServerToReachStatus(md, endTime, serverId, MACHINE_STATUS_ACTIVE);
+		private final AtomicReference<String> serverId = new AtomicReference<String>();
+		private final String launchId;
+		private final ProvisioningJournal launchJournal;
 
-			// if here, we have a node with a private and public ip.
-			final Node node = this.getNode(serverId);
+		private LaunchGuard(final String launchId, final ProvisioningJournal launchJournal) {
+			this.launchId = launchId;
+			this.launchJournal = launchJournal;
+		}
 
-			md.setPublicAddress(node.getPublicIp());
-			md.setMachineId(serverId);
-			md.setAgentRunning(false);
-			md.setCloudifyInstalled(false);
-			md.setInstallationDirectory(serverTemplate.getRemoteDirectory());
+		private void journal(final Transition transition, final String subject, final String detail) {
+			launchJournal.record(transition, launchId, subject, detail);
+		}
 
-			md.setRemoteUsername(serverTemplate.getUsername());
+		private void launched(final String launchedServerId) {
+			journal(Transition.MACHINE_CREATED, launchedServerId, null);
+			if (!serverId.compareAndSet(null, launchedServerId)) {
+				terminate(launchedServerId);
+			}
+		}
 
-			return md;
-		} catch (final Exception e) {
-			logger.log(Level.WARNING, "server: " + serverId + " failed to start up correctly. "
-					+ "Shutting it down. Error was: " + e.getMessage(), e);
-			try {
-				terminateServer(serverId,  endTime);
-			} catch (final Exception e2) {
-				logger.log(Level.WARNING,
-						"Error while shutting down failed machine: " + serverId + ". Error was: " + e.getMessage()
-								+ ".It may be leaking.", e);
+		private void abandoned() {
+			final String launchedServerId = serverId.getAndSet(ABANDONED);
+			if (launchedServerId != null && !ABANDONED.equals(launchedServerId)) {
+				terminate(launchedServerId);
 			}
-			throw e;
 		}
 
+		private void terminate(final String launchedServerId) {
+			journal(Transition.MACHINE_TERMINATING, launchedServerId, ABANDONED);
+			terminateInBackground(launchedServerId);
+		}
+	}
+
+	private void terminateInBackground(final String serverId) {
+		logger.warning("Shutting down server: " + serverId);
+		final long endTime = calcEndTimeInMillis(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		Futures.addCallback(terminateServersAsync(Arrays.asList(serverId), endTime), new FutureCallback<Void>() {
+			@Override
+			public void onSuccess(final Void terminated) {
+				logger.fine("Server " + serverId + " was shut down");
+			}
+
+			@Override
+			public void onFailure(final Throwable e) {
+				logger.log(Level.WARNING, "Error while shutting down failed machine: " + serverId + ". Error was: "
+						+ e.getMessage() + ".It may be leaking.", e);
+			}
+		});
 	}
 
 	private String createServer(final CloudTemplate serverTemplate)
@@ -667,36 +1006,32 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 
 	}
 
-	private void waitForServerToReachStatus(final MachineDetails md, final long endTime, final String serverId,	final String status)
-			throws SmartCloudException, TimeoutException, InterruptedException {
-
-		final String respone = null;
-		while (true) {
-			logger.finer("In the loop of waitForServerToReachStatus --> starting the getNode method"); 
+	private ListenableFuture<Node> waitForServerToReachStatusAsync(final MachineDetails md, final long endTime,
+			final String serverId, final String status) {
 
-			final Node node = this.getNode(serverId);
+		return scheduler.poll(PHASE_WAIT_ACTIVE, new ProvisioningScheduler.Poller<Node>() {
+			@Override
+			public Node poll() throws SmartCloudException {
+				logger.finer("In the loop of waitForServerToReachStatus --> starting the getNode method");
 
-			final String currentStatus = node.getStatus().toLowerCase();
+				final Node node = getNode(serverId);
 
-			if (currentStatus.equalsIgnoreCase(status)) {
+				final String currentStatus = node.getStatus().toLowerCase();
 
-				md.setPrivateAddress(node.getPrivateIp());
-				break;
-			} else {
-				if (currentStatus.contains("error")) {
-					throw new SmartCloudException("Server provisioning failed. Node ID: " + node.getId() + ", status: "
-							+ node.getStatus());
-				}
+				if (currentStatus.equalsIgnoreCase(status)) {
 
-			}
+					md.setPrivateAddress(node.getPrivateIp());
+					return node;
+				} else {
+					if (currentStatus.contains("error")) {
+						throw new SmartCloudException("Server provisioning failed. Node ID: " + node.getId()
+								+ ", status: " + node.getStatus());
+					}
 
-			if (System.currentTimeMillis() > endTime) {
-				throw new TimeoutException("timeout creating server. last status:" + respone);
+				}
+				return null;
 			}
-
-			Thread.sleep(SERVER_POLLING_INTERVAL_MILLIS);
-		}
-
+		}, 0, SERVER_POLLING_INTERVAL_MILLIS, endTime, "timeout creating server " + serverId);
 	}
 
 
@@ -707,7 +1042,8 @@ public class SmartCloudDriver extends CloudDriverSupport implements Provisioning
 	 */
 	public boolean isThrottling() {
 		boolean throttling = false;
-		if (throttlingTimeout > 0 && throttlingTimeout - System.currentTimeMillis() > 0) {
+		final long timeout = throttlingTimeout;
+		if (timeout > 0 && timeout - System.currentTimeMillis() > 0) {
 			throttling = true;
 		}
 
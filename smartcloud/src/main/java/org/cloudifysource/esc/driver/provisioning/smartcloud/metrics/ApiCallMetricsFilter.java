@@ -0,0 +1,86 @@
+/*******************************************************************************
+* Copyright (c) 2013 GigaSpaces Technologies Ltd. All rights reserved
+* 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+* the License. You may obtain a copy of the License at
+* 
+ * http://www.apache.org/licenses/LICENSE-2.0
+* 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+* an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+* specific language governing permissions and limitations under the License.
+*******************************************************************************/
+package org.cloudifysource.esc.driver.provisioning.smartcloud.metrics;
+
+import java.net.URI;
+
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.LaunchContext;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningEvents;
+import org.cloudifysource.esc.driver.provisioning.commons.metrics.ProvisioningMetrics;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+
+/**
+ * Jersey filter which counts the calls to the SmartCloud REST API in the {@link ProvisioningMetrics}, by operation
+ * and HTTP status.<br />
+ * The operation is the HTTP method and the resource relative to the API endpoint, i.e. "GET instances/{id}".
+ * 
+ */
+public class ApiCallMetricsFilter extends ClientFilter {
+
+	/** The error code of requests which got no response, i.e. a network error. */
+	public static final String CLIENT_ERROR = "ClientError";
+
+	private static final int HTTP_ERROR_STATUS = 400;
+
+	private final ProvisioningMetrics metrics;
+	private final URI endpoint;
+
+	/**
+	 * @param metrics
+	 *            The metrics where to count the calls.
+	 * @param endpoint
+	 *            The API endpoint.
+	 */
+	public ApiCallMetricsFilter(final ProvisioningMetrics metrics, final String endpoint) {
+		this.metrics = metrics;
+		this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint : endpoint + "/");
+	}
+
+	@Override
+	public ClientResponse handle(final ClientRequest request) throws ClientHandlerException {
+		final String operation = request.getMethod() + " " + this.resource(request.getURI());
+		final Object event = ProvisioningEvents.begin(ProvisioningEvents.Type.API_CALL);
+		String code = CLIENT_ERROR;
+		this.metrics.enter(ProvisioningMetrics.API_CALLS);
+		try {
+			final ClientResponse response = this.getNext().handle(request);
+			final int status = response.getStatus();
+			code = status < HTTP_ERROR_STATUS ? ProvisioningMetrics.SUCCESS : String.valueOf(status);
+			this.metrics.recordApiCall(operation, code);
+			return response;
+		} catch (final ClientHandlerException e) {
+			this.metrics.recordApiCall(operation, CLIENT_ERROR);
+			throw e;
+		} finally {
+			this.metrics.exit(ProvisioningMetrics.API_CALLS);
+			ProvisioningEvents.commit(event, LaunchContext.current(), this.metrics.getDriverName(), operation, code);
+		}
+	}
+
+	/**
+	 * @return The first path segment relative to the endpoint, followed by "/{id}" if the request targets a single
+	 *         resource.
+	 */
+	private String resource(final URI uri) {
+		final String path = this.endpoint.relativize(uri).getPath();
+		final int slash = path.indexOf('/');
+		if (slash < 0 || slash == path.length() - 1) {
+			return slash < 0 ? path : path.substring(0, slash);
+		}
+		return path.substring(0, slash) + "/{id}";
+	}
+}